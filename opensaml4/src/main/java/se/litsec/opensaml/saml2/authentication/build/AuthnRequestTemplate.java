@@ -0,0 +1,195 @@
+/*
+ * Copyright 2016-2021 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.opensaml.saml2.authentication.build;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+import org.opensaml.saml.common.xml.SAMLConstants;
+import org.opensaml.saml.ext.saml2mdattr.EntityAttributes;
+import org.opensaml.saml.saml2.core.Attribute;
+import org.opensaml.saml.saml2.metadata.AssertionConsumerService;
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml.saml2.metadata.IDPSSODescriptor;
+import org.opensaml.saml.saml2.metadata.IndexedEndpoint;
+import org.opensaml.saml.saml2.metadata.NameIDFormat;
+import org.opensaml.saml.saml2.metadata.SPSSODescriptor;
+import org.opensaml.saml.saml2.metadata.SingleSignOnService;
+
+import se.litsec.opensaml.saml2.attribute.AttributeUtils;
+import se.litsec.opensaml.saml2.metadata.MetadataUtils;
+import se.litsec.opensaml.saml2.metadata.build.IdpEntityDescriptorBuilder;
+
+/**
+ * The values that {@link ExtendedAuthnRequestBuilder} reads from the IdP metadata, resolved once per IdP metadata
+ * entry.
+ * <p>
+ * The SP metadata is typically local configuration that is not published by a metadata provider, and the values that
+ * depend on it are few and cheap to find. They are therefore read from the SP metadata when they are needed, which
+ * makes it possible to cache templates even if the SP metadata has not been published. Templates may be cached using
+ * an {@link AuthnRequestTemplateCache}.
+ * </p>
+ *
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+final class AuthnRequestTemplate {
+
+  /** The IdP SingleSignOnService locations by binding (first match). */
+  private final Map<String, String> destinations = new HashMap<>();
+
+  /** The IdP SingleSignOnService bindings by location (first match). */
+  private final Map<String, String> bindings = new HashMap<>();
+
+  /** The NameID formats declared by the IdP. */
+  private final Set<String> idpNameIDFormats = new HashSet<>();
+
+  /** The IdP assurance certification URIs. */
+  private final List<String> assuranceCertificationUris;
+
+  /**
+   * Constructor resolving the values from the IdP metadata.
+   *
+   * @param idpMetadata
+   *          the IdP metadata
+   */
+  AuthnRequestTemplate(final EntityDescriptor idpMetadata) {
+    final IDPSSODescriptor idpDescriptor = idpMetadata.getIDPSSODescriptor(SAMLConstants.SAML20P_NS);
+
+    for (final SingleSignOnService sso : idpDescriptor.getSingleSignOnServices()) {
+      if (sso.getBinding() != null && !this.destinations.containsKey(sso.getBinding())) {
+        this.destinations.put(sso.getBinding(), sso.getLocation());
+      }
+      if (sso.getLocation() != null && !this.bindings.containsKey(sso.getLocation())) {
+        this.bindings.put(sso.getLocation(), sso.getBinding());
+      }
+    }
+
+    for (final NameIDFormat format : idpDescriptor.getNameIDFormats()) {
+      this.idpNameIDFormats.add(format.getURI());
+    }
+
+    final Optional<EntityAttributes> entityAttributes = MetadataUtils.getEntityAttributes(idpMetadata);
+    final Optional<Attribute> assuranceCertificationAttribute = entityAttributes.flatMap(
+      a -> a.getAttributes()
+        .stream()
+        .filter(attr -> IdpEntityDescriptorBuilder.ASSURANCE_CERTIFICATION_ATTRIBUTE_NAME.equals(attr.getName()))
+        .findFirst());
+    this.assuranceCertificationUris = Collections.unmodifiableList(
+      assuranceCertificationAttribute.map(AttributeUtils::getAttributeStringValues).orElseGet(Collections::emptyList));
+  }
+
+  /**
+   * Gets the location of the first IdP {@code SingleSignOnService} element having the given binding.
+   *
+   * @param binding
+   *          the binding URI
+   * @return the location, or {@code null} if the IdP does not support the binding
+   */
+  String getDestination(final String binding) {
+    return this.destinations.get(binding);
+  }
+
+  /**
+   * Gets the binding of the first IdP {@code SingleSignOnService} element having the given location.
+   *
+   * @param location
+   *          the location
+   * @return the binding, or {@code null} if no {@code SingleSignOnService} element has the given location
+   */
+  String getBinding(final String location) {
+    return this.bindings.get(location);
+  }
+
+  /**
+   * Tells whether the given location is declared by any of the IdP {@code SingleSignOnService} elements.
+   *
+   * @param location
+   *          the location
+   * @return {@code true} if the location is declared
+   */
+  boolean hasDestination(final String location) {
+    return this.bindings.containsKey(location);
+  }
+
+  /**
+   * Gets the SP {@code AssertionConsumerService} URL for the POST binding. This is the first endpoint with the POST
+   * binding that is marked as default, or, if no endpoint is marked as default, the endpoint with the lowest index.
+   *
+   * @param spDescriptor
+   *          the SP descriptor
+   * @return the URL, or {@code null} if the SP does not declare an {@code AssertionConsumerService} for POST
+   */
+  static String getAssertionConsumerServiceURL(final SPSSODescriptor spDescriptor) {
+    Optional<String> serviceUrl = spDescriptor.getAssertionConsumerServices()
+      .stream()
+      .filter(a -> SAMLConstants.SAML2_POST_BINDING_URI.equals(a.getBinding()))
+      .filter(IndexedEndpoint::isDefault)
+      .map(AssertionConsumerService::getLocation)
+      .findFirst();
+    if (!serviceUrl.isPresent()) {
+      serviceUrl = spDescriptor.getAssertionConsumerServices()
+        .stream()
+        .filter(a -> SAMLConstants.SAML2_POST_BINDING_URI.equals(a.getBinding()))
+        .sorted((a1, a2) -> a1.getIndex() != null ? (a2.getIndex() != null ? a1.getIndex().compareTo(a2.getIndex()) : -1)
+            : (a2.getIndex() != null ? 1 : 0))
+        .map(AssertionConsumerService::getLocation)
+        .findFirst();
+    }
+    return serviceUrl.orElse(null);
+  }
+
+  /**
+   * Gets the first NameID format declared by the SP that is also declared by the IdP.
+   *
+   * @param spDescriptor
+   *          the SP descriptor
+   * @return the format, or {@code null} if there is no match
+   */
+  String getNameIDFormat(final SPSSODescriptor spDescriptor) {
+    return spDescriptor.getNameIDFormats()
+      .stream()
+      .map(NameIDFormat::getURI)
+      .filter(this.idpNameIDFormats::contains)
+      .findFirst()
+      .orElse(null);
+  }
+
+  /**
+   * Tells whether the IdP declares the given NameID format.
+   *
+   * @param format
+   *          the format
+   * @return {@code true} if the format is declared by the IdP
+   */
+  boolean isSupportedNameIDFormat(final String format) {
+    return this.idpNameIDFormats.contains(format);
+  }
+
+  /**
+   * Gets the assurance certification URIs declared by the IdP.
+   *
+   * @return a (possibly empty) list of URIs
+   */
+  List<String> getAssuranceCertificationUris() {
+    return this.assuranceCertificationUris;
+  }
+
+}
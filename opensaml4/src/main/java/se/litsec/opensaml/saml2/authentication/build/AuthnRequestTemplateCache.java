@@ -0,0 +1,135 @@
+/*
+ * Copyright 2016-2021 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.opensaml.saml2.authentication.build;
+
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+
+import se.litsec.opensaml.saml2.metadata.provider.MetadataSnapshot;
+import se.litsec.opensaml.utils.VersionedCache;
+
+/**
+ * A cache for the values that {@link ExtendedAuthnRequestBuilder} reads from the IdP metadata. An application that
+ * creates many requests should create one instance and pass it to
+ * {@link ExtendedAuthnRequestBuilder#ExtendedAuthnRequestBuilder(EntityDescriptor, EntityDescriptor, AuthnRequestTemplateCache)}.
+ * <p>
+ * Entries are keyed by the IdP entityID and record the version of the metadata snapshot that they were created from
+ * (see {@link MetadataSnapshot#getVersion(org.opensaml.core.xml.XMLObject)}). When the IdP metadata has been
+ * refreshed, the entry is rebuilt. The cache holds no references to the metadata itself. IdP metadata that has not been
+ * published by a metadata provider is never cached, since its owner may change it at any time.
+ * </p>
+ * <p>
+ * The values that depend on the SP metadata are not cached (see {@link AuthnRequestTemplate}). This means that entries
+ * are cached also in the common case where only the IdP metadata is published by a metadata provider, and the SP
+ * metadata is local configuration.
+ * </p>
+ * <p>
+ * The cache is a bounded {@link VersionedCache} (see its documentation for the eviction policy).
+ * </p>
+ *
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+public class AuthnRequestTemplateCache {
+
+  /** The default maximum number of cached entries. */
+  public static final int DEFAULT_MAX_SIZE = VersionedCache.DEFAULT_MAX_SIZE;
+
+  /** The cache (keyed by IdP entityID and versioned by the IdP metadata version). */
+  private final VersionedCache<String, AuthnRequestTemplate> cache;
+
+  /**
+   * Constructor creating a cache with {@value #DEFAULT_MAX_SIZE} entries.
+   */
+  public AuthnRequestTemplateCache() {
+    this(DEFAULT_MAX_SIZE);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param maxSize
+   *          the maximum number of entries of the cache
+   */
+  public AuthnRequestTemplateCache(final int maxSize) {
+    this.cache = new VersionedCache<>(maxSize);
+  }
+
+  /**
+   * Gets the template for the supplied IdP metadata. The template is created if it does not exist in the cache, or if
+   * the metadata has been refreshed since the cached template was created.
+   *
+   * @param idpMetadata
+   *          the IdP metadata
+   * @return the template
+   */
+  AuthnRequestTemplate getTemplate(final EntityDescriptor idpMetadata) {
+    final long idpVersion = MetadataSnapshot.getVersion(idpMetadata);
+    if (idpVersion == MetadataSnapshot.NO_VERSION || idpMetadata.getEntityID() == null) {
+      return new AuthnRequestTemplate(idpMetadata);
+    }
+
+    final AuthnRequestTemplate cached = this.cache.get(idpMetadata.getEntityID(), idpVersion);
+    if (cached != null) {
+      return cached;
+    }
+    final AuthnRequestTemplate template = new AuthnRequestTemplate(idpMetadata);
+    this.cache.put(idpMetadata.getEntityID(), idpVersion, template);
+    return template;
+  }
+
+  /**
+   * Removes all entries from the cache.
+   */
+  public void clear() {
+    this.cache.clear();
+  }
+
+  /**
+   * Gets the number of entries in the cache.
+   *
+   * @return the number of entries
+   */
+  public int getSize() {
+    return this.cache.getSize();
+  }
+
+  /**
+   * Gets the number of lookups of published metadata that found an entry.
+   *
+   * @return the number of cache hits
+   */
+  public long getHits() {
+    return this.cache.getHits();
+  }
+
+  /**
+   * Gets the number of lookups of published metadata that did not find an entry.
+   *
+   * @return the number of cache misses
+   */
+  public long getMisses() {
+    return this.cache.getMisses();
+  }
+
+  /**
+   * Gets the number of entries that have been evicted since the cache was full.
+   *
+   * @return the number of evictions
+   */
+  public long getEvictions() {
+    return this.cache.getEvictions();
+  }
+
+}
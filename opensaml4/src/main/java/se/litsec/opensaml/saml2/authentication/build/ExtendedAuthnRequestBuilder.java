@@ -16,36 +16,24 @@
 package se.litsec.opensaml.saml2.authentication.build;
 
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
-import java.util.Optional;
 import java.util.stream.Collectors;
 
 import org.opensaml.core.xml.util.XMLObjectSupport;
 import org.opensaml.saml.common.SAMLVersion;
 import org.opensaml.saml.common.xml.SAMLConstants;
-import org.opensaml.saml.ext.saml2mdattr.EntityAttributes;
-import org.opensaml.saml.saml2.core.Attribute;
 import org.opensaml.saml.saml2.core.AuthnContextClassRef;
 import org.opensaml.saml.saml2.core.AuthnContextComparisonTypeEnumeration;
-import org.opensaml.saml.saml2.metadata.AssertionConsumerService;
 import org.opensaml.saml.saml2.metadata.EntityDescriptor;
-import org.opensaml.saml.saml2.metadata.IDPSSODescriptor;
-import org.opensaml.saml.saml2.metadata.IndexedEndpoint;
-import org.opensaml.saml.saml2.metadata.NameIDFormat;
-import org.opensaml.saml.saml2.metadata.SPSSODescriptor;
-import org.opensaml.saml.saml2.metadata.SingleSignOnService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import net.shibboleth.utilities.java.support.security.impl.RandomIdentifierGenerationStrategy;
+import net.shibboleth.utilities.java.support.security.IdentifierGenerationStrategy;
 import se.litsec.opensaml.core.SAMLObjectBuilderRuntimeException;
-import se.litsec.opensaml.saml2.attribute.AttributeUtils;
 import se.litsec.opensaml.saml2.core.build.AbstractAuthnRequestBuilder;
 import se.litsec.opensaml.saml2.core.build.NameIDPolicyBuilder;
 import se.litsec.opensaml.saml2.core.build.RequestedAuthnContextBuilder;
-import se.litsec.opensaml.saml2.metadata.MetadataUtils;
-import se.litsec.opensaml.saml2.metadata.build.IdpEntityDescriptorBuilder;
+import se.litsec.opensaml.utils.BufferedRandomIdentifierGenerationStrategy;
 
 /**
  * The {@code ExtendedAuthnRequestBuilder} builds an {@code AuthnRequest} object given the metadata entry for the
@@ -60,6 +48,11 @@ import se.litsec.opensaml.saml2.metadata.build.IdpEntityDescriptorBuilder;
  * Should the caller want to use another binding (POST), the {@link #binding(String)} should be invoked before calling
  * {@link #assignDefaults()}.
  * </p>
+ * <p>
+ * The values that the builder reads from the metadata are resolved once for each pair of SP and IdP metadata entries
+ * and are then reused by all builders for the same pair. They are resolved again when any of the entries has been
+ * refreshed.
+ * </p>
  * 
  * @author Martin Lindström (martin.lindstrom@litsec.se)
  */
@@ -74,6 +67,9 @@ public class ExtendedAuthnRequestBuilder extends AbstractAuthnRequestBuilder<Ext
   /** If an ID attribute is generated by the builder it uses 24 characters for it. */
   public static final int DEFAULT_ID_SIZE = 24;
 
+  /** The ID generator used when an ID attribute is generated with the default size. */
+  private static final IdentifierGenerationStrategy DEFAULT_ID_GENERATOR = new BufferedRandomIdentifierGenerationStrategy(DEFAULT_ID_SIZE);
+
   /** Logging instance. */
   private Logger log = LoggerFactory.getLogger(ExtendedAuthnRequestBuilder.class);
 
@@ -83,6 +79,12 @@ public class ExtendedAuthnRequestBuilder extends AbstractAuthnRequestBuilder<Ext
   /** The IdP metadata. */
   final EntityDescriptor idpMetadata;
 
+  /** The cache for the values read from the IdP metadata (may be null). */
+  private final AuthnRequestTemplateCache templateCache;
+
+  /** The values resolved from the IdP metadata (resolved when first needed). */
+  private AuthnRequestTemplate template;
+
   /** The binding of the request (redirect, POST, ...). */
   private String binding;
 
@@ -96,6 +98,23 @@ public class ExtendedAuthnRequestBuilder extends AbstractAuthnRequestBuilder<Ext
    *          the IdP metadata
    */
   public ExtendedAuthnRequestBuilder(final EntityDescriptor spMetadata, final EntityDescriptor idpMetadata) {
+    this(spMetadata, idpMetadata, null);
+  }
+
+  /**
+   * Constructor initializing the builder with the metadata entry for the Service Provider that is creating the
+   * authentication request and the metadata entry for the Identity Provider which is about to receive the request. The
+   * values read from the IdP metadata are served from the supplied cache. They are not resolved until they are needed.
+   * 
+   * @param spMetadata
+   *          the SP metadata
+   * @param idpMetadata
+   *          the IdP metadata
+   * @param templateCache
+   *          the cache for values read from the IdP metadata (if {@code null}, no caching is done)
+   */
+  public ExtendedAuthnRequestBuilder(final EntityDescriptor spMetadata, final EntityDescriptor idpMetadata,
+      final AuthnRequestTemplateCache templateCache) {
     if (spMetadata == null) {
       throw new IllegalArgumentException("spMetadata must not be null");
     }
@@ -110,6 +129,21 @@ public class ExtendedAuthnRequestBuilder extends AbstractAuthnRequestBuilder<Ext
       throw new IllegalArgumentException("idpMetadata does not contain a IDPSSODescriptor");
     }
     this.idpMetadata = idpMetadata;
+    this.templateCache = templateCache;
+  }
+
+  /**
+   * Gets the values read from the IdP metadata. They are resolved the first time they are needed.
+   * 
+   * @return the template
+   */
+  private AuthnRequestTemplate getTemplate() {
+    if (this.template == null) {
+      this.template = this.templateCache != null
+          ? this.templateCache.getTemplate(this.idpMetadata)
+          : new AuthnRequestTemplate(this.idpMetadata);
+    }
+    return this.template;
   }
 
   /**
@@ -133,9 +167,6 @@ public class ExtendedAuthnRequestBuilder extends AbstractAuthnRequestBuilder<Ext
    */
   public ExtendedAuthnRequestBuilder assignDefaults() {
 
-    final SPSSODescriptor spDescriptor = this.spMetadata.getSPSSODescriptor(SAMLConstants.SAML20P_NS);
-    final IDPSSODescriptor idpDescriptor = this.idpMetadata.getIDPSSODescriptor(SAMLConstants.SAML20P_NS);
-
     // Version
     //
     this.version(SAMLVersion.VERSION_20.getMajorVersion(), SAMLVersion.VERSION_20.getMinorVersion());
@@ -145,7 +176,7 @@ public class ExtendedAuthnRequestBuilder extends AbstractAuthnRequestBuilder<Ext
     //
     if (this.object().getID() == null) {
       log.debug("Generated an ID attribute and assigned it");
-      this.id(DEFAULT_ID_SIZE);
+      this.id(DEFAULT_ID_GENERATOR);
     }
 
     // ProtocolBinding
@@ -169,25 +200,11 @@ public class ExtendedAuthnRequestBuilder extends AbstractAuthnRequestBuilder<Ext
     // AssertionConsumerServiceURL (for POST binding)
     //
     if (this.object().getAssertionConsumerServiceURL() == null) {
-      Optional<String> serviceUrl = spDescriptor.getAssertionConsumerServices()
-        .stream()
-        .filter(a -> SAMLConstants.SAML2_POST_BINDING_URI.equals(a.getBinding()))
-        .filter(IndexedEndpoint::isDefault)
-        .map(AssertionConsumerService::getLocation)
-        .findFirst();
-
-      if (!serviceUrl.isPresent()) {
-        serviceUrl = spDescriptor.getAssertionConsumerServices()
-          .stream()
-          .filter(a -> SAMLConstants.SAML2_POST_BINDING_URI.equals(a.getBinding()))
-          .sorted((a1, a2) -> a1.getIndex() != null ? (a2.getIndex() != null ? a1.getIndex().compareTo(a2.getIndex()) : -1)
-              : (a2.getIndex() != null ? 1 : 0))
-          .map(AssertionConsumerService::getLocation)
-          .findFirst();
-      }
-      if (serviceUrl.isPresent()) {
-        log.debug("Assigning URL '{}' to the AssertionConsumerServiceURL attribute", serviceUrl.get());
-        this.object().setAssertionConsumerServiceURL(serviceUrl.get());
+      final String serviceUrl = AuthnRequestTemplate.getAssertionConsumerServiceURL(
+        this.spMetadata.getSPSSODescriptor(SAMLConstants.SAML20P_NS));
+      if (serviceUrl != null) {
+        log.debug("Assigning URL '{}' to the AssertionConsumerServiceURL attribute", serviceUrl);
+        this.object().setAssertionConsumerServiceURL(serviceUrl);
       }
       else {
         log.info("The AssertionConsumerServiceURL attribute could not be assigned automatically. "
@@ -202,17 +219,11 @@ public class ExtendedAuthnRequestBuilder extends AbstractAuthnRequestBuilder<Ext
       // We look at the declared NameIDFormats from the SP metadata and select the first one that is also declared by
       // the IdP.
       //
-      Optional<String> nameIDFormat = spDescriptor.getNameIDFormats()
-        .stream()
-        .filter(n -> idpDescriptor.getNameIDFormats()
-          .stream()
-          .anyMatch(in -> in.getURI().equals(n.getURI())))
-        .map(NameIDFormat::getURI)
-        .findFirst();
-
-      if (nameIDFormat.isPresent()) {
-        log.debug("Assigning the '{}' Format to the NameIDPolicy element", nameIDFormat.get());
-        this.nameIDPolicy(NameIDPolicyBuilder.builder().allowCreate(true).format(nameIDFormat.get()).build());
+      final String nameIDFormat = this.getTemplate().getNameIDFormat(
+        this.spMetadata.getSPSSODescriptor(SAMLConstants.SAML20P_NS));
+      if (nameIDFormat != null) {
+        log.debug("Assigning the '{}' Format to the NameIDPolicy element", nameIDFormat);
+        this.nameIDPolicy(NameIDPolicyBuilder.builder().allowCreate(true).format(nameIDFormat).build());
       }
       else {
         log.info("Could not assign the NameIDPolicy element automatically - no matching formats between SP and IdP");
@@ -230,9 +241,18 @@ public class ExtendedAuthnRequestBuilder extends AbstractAuthnRequestBuilder<Ext
    * @return the builder
    */
   public ExtendedAuthnRequestBuilder id(final int idSize) {
-    RandomIdentifierGenerationStrategy generator = new RandomIdentifierGenerationStrategy(idSize);
-    super.id(generator.generateIdentifier());
-    return this;
+    return this.id(idSize == DEFAULT_ID_SIZE ? DEFAULT_ID_GENERATOR : new BufferedRandomIdentifierGenerationStrategy(idSize));
+  }
+
+  /**
+   * Generates an identifier using the supplied generator and assigns it to the {@code AuthnRequest}.
+   * 
+   * @param idGenerator
+   *          the ID generator
+   * @return the builder
+   */
+  public ExtendedAuthnRequestBuilder id(final IdentifierGenerationStrategy idGenerator) {
+    return super.id(idGenerator.generateIdentifier(true));
   }
 
   /**
@@ -250,13 +270,7 @@ public class ExtendedAuthnRequestBuilder extends AbstractAuthnRequestBuilder<Ext
     if (destination == null) {
       return super.destination(null);
     }
-    Optional<SingleSignOnService> ssoService = this.idpMetadata.getIDPSSODescriptor(SAMLConstants.SAML20P_NS)
-      .getSingleSignOnServices()
-      .stream()
-      .filter(s -> destination.equals(s.getLocation()))
-      .findFirst();
-
-    if (!ssoService.isPresent()) {
+    if (!this.getTemplate().hasDestination(destination)) {
       String msg = String.format(
         "Metadata for IdP '%s' does not declare a SingleSignService element having its Location attribute set to '%s'",
         this.idpMetadata.getEntityID(), destination);
@@ -264,8 +278,9 @@ public class ExtendedAuthnRequestBuilder extends AbstractAuthnRequestBuilder<Ext
       throw new SAMLObjectBuilderRuntimeException(msg);
     }
 
-    log.debug("Assigning the Destination attribute to '{}' the setting the binding to '{}'", destination, ssoService.get().getBinding());
-    this.binding = ssoService.get().getBinding();
+    final String ssoBinding = this.getTemplate().getBinding(destination);
+    log.debug("Assigning the Destination attribute to '{}' the setting the binding to '{}'", destination, ssoBinding);
+    this.binding = ssoBinding;
     return super.destination(destination);
   }
 
@@ -302,23 +317,18 @@ public class ExtendedAuthnRequestBuilder extends AbstractAuthnRequestBuilder<Ext
     if (binding == null) {
       throw new IllegalArgumentException("binding must not be null");
     }
-    Optional<String> destination = this.idpMetadata.getIDPSSODescriptor(SAMLConstants.SAML20P_NS)
-      .getSingleSignOnServices()
-      .stream()
-      .filter(s -> binding.equals(s.getBinding()))
-      .map(SingleSignOnService::getLocation)
-      .findFirst();
-
-    if (!destination.isPresent()) {
+    final String destination = this.getTemplate().getDestination(binding);
+
+    if (destination == null) {
       String msg = String.format("Metadata for IdP '%s' does not declare a SingleSignOnService element having the '%s' binding",
         this.idpMetadata.getEntityID(), binding);
       log.error(msg);
       throw new SAMLObjectBuilderRuntimeException(msg);
     }
 
-    log.debug("Assigning the '{}' binding and setting the Destination attribute to '{}'", binding, destination.get());
+    log.debug("Assigning the '{}' binding and setting the Destination attribute to '{}'", binding, destination);
     this.binding = binding;
-    super.destination(destination.get());
+    super.destination(destination);
 
     return this;
   }
@@ -339,12 +349,7 @@ public class ExtendedAuthnRequestBuilder extends AbstractAuthnRequestBuilder<Ext
       return this.nameIDPolicy(null);
     }
 
-    boolean match = this.idpMetadata.getIDPSSODescriptor(SAMLConstants.SAML20P_NS)
-      .getNameIDFormats()
-      .stream()
-      .anyMatch(in -> in.getURI().equals(format));
-
-    if (!match) {
+    if (!this.getTemplate().isSupportedNameIDFormat(format)) {
       String msg = String.format("IdP '%s' does not support NameID of format '%s'", this.idpMetadata.getEntityID(), format);
       log.error(msg);
       throw new SAMLObjectBuilderRuntimeException(msg);
@@ -379,16 +384,7 @@ public class ExtendedAuthnRequestBuilder extends AbstractAuthnRequestBuilder<Ext
 
     // Get hold of the IdP:s assurance certification from its metadata.
     //
-    Optional<EntityAttributes> entityAttributes = MetadataUtils.getEntityAttributes(this.idpMetadata);
-    Optional<Attribute> assuranceCertificationAttribute = entityAttributes.flatMap(
-        entityAttributes1 -> entityAttributes1
-            .getAttributes()
-            .stream()
-            .filter(a -> IdpEntityDescriptorBuilder.ASSURANCE_CERTIFICATION_ATTRIBUTE_NAME.equals(a.getName()))
-            .findFirst());
-
-    List<String> assuranceUris = assuranceCertificationAttribute.map(AttributeUtils::getAttributeStringValues)
-        .orElseGet(Collections::emptyList);
+    List<String> assuranceUris = this.getTemplate().getAssuranceCertificationUris();
 
     // Get hold of which URIs to add
     //
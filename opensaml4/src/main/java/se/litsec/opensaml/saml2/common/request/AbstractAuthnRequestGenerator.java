@@ -25,6 +25,8 @@ import org.opensaml.saml.saml2.metadata.SingleSignOnService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import se.litsec.opensaml.saml2.metadata.MetadataEndpointIndex;
+
 /**
  * Abstract base class for generating AuthnRequest messages.
  * 
@@ -46,6 +48,9 @@ public abstract class AbstractAuthnRequestGenerator<I extends RequestGeneratorIn
   /** Function for checking if a metadata SingleSignOnService element has a binding that we support. */
   protected static Predicate<SingleSignOnService> hasSupportedBinding = s -> isValidBinding.test(s.getBinding());
 
+  /** The index used to look up the IdP endpoints (may be null). */
+  private MetadataEndpointIndex endpointIndex = new MetadataEndpointIndex();
+
   /**
    * Constructor.
    * 
@@ -77,11 +82,13 @@ public abstract class AbstractAuthnRequestGenerator<I extends RequestGeneratorIn
     if (descriptor == null) {
       throw new RequestGenerationException("Invalid IdP metadata - missing IDPSSODescriptor");
     }
-    SingleSignOnService ssoService = descriptor.getSingleSignOnServices()
-      .stream()
-      .filter(s -> preferBinding.equals(s.getBinding()))
-      .findFirst()
-      .orElse(null);
+    SingleSignOnService ssoService = this.endpointIndex != null
+        ? this.endpointIndex.getSingleSignOnService(idp, preferBinding)
+        : descriptor.getSingleSignOnServices()
+          .stream()
+          .filter(s -> preferBinding.equals(s.getBinding()))
+          .findFirst()
+          .orElse(null);
     if (ssoService == null) {
       ssoService = descriptor.getSingleSignOnServices().stream().filter(hasSupportedBinding).findFirst().orElse(null);
     }
@@ -93,4 +100,15 @@ public abstract class AbstractAuthnRequestGenerator<I extends RequestGeneratorIn
     return ssoService;
   }
 
+  /**
+   * Assigns the index used to look up the IdP endpoints. By default, the generator creates its own index. An
+   * application may use this method to have several components share one index.
+   * 
+   * @param endpointIndex
+   *          the endpoint index (if {@code null}, the metadata is searched on each call)
+   */
+  public void setEndpointIndex(MetadataEndpointIndex endpointIndex) {
+    this.endpointIndex = endpointIndex;
+  }
+
 }
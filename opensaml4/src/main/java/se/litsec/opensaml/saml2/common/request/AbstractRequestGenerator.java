@@ -15,7 +15,6 @@
  */
 package se.litsec.opensaml.saml2.common.request;
 
-import java.math.BigInteger;
 import java.security.SecureRandom;
 import java.util.Random;
 
@@ -32,7 +31,10 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.util.Assert;
 
+import net.shibboleth.utilities.java.support.security.IdentifierGenerationStrategy;
 import se.litsec.opensaml.saml2.metadata.PeerMetadataResolver;
+import se.litsec.opensaml.utils.BufferedRandomIdentifierGenerationStrategy;
+import se.litsec.opensaml.xmlsec.SigningParametersCache;
 
 /**
  * Abstract base class for request generators.
@@ -60,7 +62,13 @@ public abstract class AbstractRequestGenerator<T extends RequestAbstractType, I
   private X509Credential signingCredentials;
 
   /** Random generator. */
-  private Random randomizer = new SecureRandom(String.valueOf(System.currentTimeMillis()).getBytes());
+  private Random randomizer = new SecureRandom();
+
+  /** The generator for request ID:s. */
+  private IdentifierGenerationStrategy idGenerator = BufferedRandomIdentifierGenerationStrategy.getInstance();
+
+  /** Cache for the signature signing parameters used when signing requests (null means no caching). */
+  private SigningParametersCache signingParametersCache = new SigningParametersCache();
 
   /**
    * Constructor assigning the Service Provider entityID.
@@ -174,12 +182,12 @@ public abstract class AbstractRequestGenerator<T extends RequestAbstractType, I
       if (SAMLConstants.SAML2_REDIRECT_BINDING_URI.equals(binding)) {
         // Redirect binding
         return new RedirectRequestHttpObject<>(request, input.getRelayState(), signCred, destination, recipientMetadata,
-        		defaultSignatureSigningConfiguration);
+          defaultSignatureSigningConfiguration, this.signingParametersCache);
       }
       else if (SAMLConstants.SAML2_POST_BINDING_URI.equals(binding)) {
         // POST binding
         return new PostRequestHttpObject<>(request, input.getRelayState(), signCred, destination, recipientMetadata,
-          defaultSignatureSigningConfiguration);
+          defaultSignatureSigningConfiguration, this.signingParametersCache);
       }
       else {
         throw new RequestGenerationException("Unsupported binding: " + binding);
@@ -193,12 +201,12 @@ public abstract class AbstractRequestGenerator<T extends RequestAbstractType, I
   }
 
   /**
-   * Generates a request ID.
+   * Generates a request ID using the configured {@link IdentifierGenerationStrategy}.
    * 
    * @return request ID
    */
   protected String generateID() {
-    return "_" + new BigInteger(128, this.randomizer).toString(16);
+    return this.idGenerator.generateIdentifier(true);
   }
 
   /**
@@ -259,6 +267,30 @@ public abstract class AbstractRequestGenerator<T extends RequestAbstractType, I
     this.signingCredentials = signingCredentials;
   }
 
+  /**
+   * Assigns the strategy for generating request ID:s. The default is a shared
+   * {@link BufferedRandomIdentifierGenerationStrategy} instance creating ID:s having 128 random bits.
+   * 
+   * @param idGenerator
+   *          the ID generator
+   */
+  public void setIdGenerator(IdentifierGenerationStrategy idGenerator) {
+    Assert.notNull(idGenerator, "idGenerator must not be null");
+    this.idGenerator = idGenerator;
+  }
+
+  /**
+   * Assigns the cache for the signature signing parameters that are resolved when requests are signed. The default is a
+   * {@link SigningParametersCache} owned by this generator. If {@code null} is assigned, the parameters are resolved for
+   * each request.
+   * 
+   * @param signingParametersCache
+   *          the cache (may be {@code null})
+   */
+  public void setSigningParametersCache(SigningParametersCache signingParametersCache) {
+    this.signingParametersCache = signingParametersCache;
+  }
+
   /** {@inheritDoc} */
   @Override
   public void afterPropertiesSet() throws Exception {
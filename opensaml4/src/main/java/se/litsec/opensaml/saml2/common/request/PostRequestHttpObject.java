@@ -15,7 +15,11 @@
  */
 package se.litsec.opensaml.saml2.common.request;
 
-import java.io.UnsupportedEncodingException;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -35,11 +39,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Element;
 
-import net.shibboleth.utilities.java.support.codec.Base64Support;
-import net.shibboleth.utilities.java.support.codec.EncodingException;
 import net.shibboleth.utilities.java.support.codec.HTMLEncoder;
 import net.shibboleth.utilities.java.support.xml.SerializeSupport;
 import se.litsec.opensaml.utils.SignatureUtils;
+import se.litsec.opensaml.xmlsec.SigningParametersCache;
 
 /**
  * A RequestHttpObject for sending using HTTP POST.
@@ -57,6 +60,12 @@ public class PostRequestHttpObject<T extends RequestAbstractType> extends HTTPPo
   /** Logging instance. */
   private static final Logger logger = LoggerFactory.getLogger(PostRequestHttpObject.class);
 
+  /** Buffers larger than this are not kept for reuse by the thread. */
+  private static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+
+  /** Per-thread buffer for the Base64-encoded message. */
+  private static final ThreadLocal<EncodingBuffer> encodingBuffer = ThreadLocal.withInitial(EncodingBuffer::new);
+
   /** The request. */
   private T request;
 
@@ -116,6 +125,35 @@ public class PostRequestHttpObject<T extends RequestAbstractType> extends HTTPPo
   public PostRequestHttpObject(T request, String relayState, X509Credential signatureCredentials,
       String endpoint, EntityDescriptor recipientMetadata, SignatureSigningConfiguration defaultSignatureSigningConfiguration)
       throws MessageEncodingException, SignatureException {
+    this(request, relayState, signatureCredentials, endpoint, recipientMetadata, defaultSignatureSigningConfiguration, null);
+  }
+
+  /**
+   * Constructor that puts together the resulting object.
+   *
+   * @param request
+   *          the request object
+   * @param relayState
+   *          the relay state
+   * @param signatureCredentials
+   *          optional signature credentials
+   * @param endpoint
+   *          the endpoint where we send this request to
+   * @param recipientMetadata
+   *          the recipient metadata (may be {@code null})
+   * @param defaultSignatureSigningConfiguration
+   *          the default signature configuration for the application. If {@code null}, the value returned from
+   *          {@link SecurityConfigurationSupport#getGlobalSignatureSigningConfiguration()} will be used
+   * @param signingParametersCache
+   *          cache for the resolved signature signing parameters (if {@code null}, the parameters are not cached)
+   * @throws MessageEncodingException
+   *           for encoding errors
+   * @throws SignatureException
+   *           for signature errors
+   */
+  public PostRequestHttpObject(T request, String relayState, X509Credential signatureCredentials,
+      String endpoint, EntityDescriptor recipientMetadata, SignatureSigningConfiguration defaultSignatureSigningConfiguration,
+      SigningParametersCache signingParametersCache) throws MessageEncodingException, SignatureException {
 
     this.request = request;
 
@@ -130,29 +168,14 @@ public class PostRequestHttpObject<T extends RequestAbstractType> extends HTTPPo
     //
     if (signatureCredentials != null) {
       logger.trace("Signing SAML Request message ...");
-      SignatureUtils.sign(this.request, signatureCredentials,
-        defaultSignatureSigningConfiguration != null
-            ? defaultSignatureSigningConfiguration
-            : SecurityConfigurationSupport.getGlobalSignatureSigningConfiguration(),
-        recipientMetadata);
+      SignatureUtils.sign(this.request, signingParametersCache != null
+          ? signingParametersCache.getSigningParameters(signatureCredentials, defaultSignatureSigningConfiguration, recipientMetadata)
+          : SignatureUtils.getSigningParameters(signatureCredentials, defaultSignatureSigningConfiguration, recipientMetadata));
     }
 
     logger.trace("Marshalling and Base64 encoding SAML message");
     Element domMessage = this.marshallMessage((XMLObject) context.getMessage());
-
-    try {
-      String messageXML = SerializeSupport.nodeToString(domMessage);
-      String encodedMessage = Base64Support.encode(messageXML.getBytes("UTF-8"), Base64Support.UNCHUNKED);
-      this.postParameters.put("SAMLRequest", encodedMessage);
-    }
-    catch (UnsupportedEncodingException e) {
-      logger.error("UTF-8 encoding is not supported, this VM is not Java compliant.");
-      throw new MessageEncodingException("Unable to encode message, UTF-8 encoding is not supported");
-    }
-    catch (EncodingException e) {
-      throw new MessageEncodingException("Unable to encode message", e);
-    }
-  
+    this.postParameters.put("SAMLRequest", encodeMessage(domMessage));
 
     // Assign RelayState
     //
@@ -168,6 +191,36 @@ public class PostRequestHttpObject<T extends RequestAbstractType> extends HTTPPo
     this.httpHeaders.put("Pragma", "no-cache");
   }
 
+  /**
+   * Serializes the supplied DOM element and Base64-encodes the result.
+   * <p>
+   * The element is serialized directly into a Base64-encoding stream that writes to a buffer that is reused by the
+   * calling thread. This means that the only copy of the message that is created is the resulting string. The result is
+   * the same as Base64-encoding the bytes of {@link SerializeSupport#nodeToString(org.w3c.dom.Node)}.
+   * </p>
+   *
+   * @param domMessage
+   *          the element to encode
+   * @return the Base64-encoding of the serialized element
+   * @throws MessageEncodingException
+   *           for encoding errors
+   */
+  static String encodeMessage(final Element domMessage) throws MessageEncodingException {
+    final EncodingBuffer buffer = encodingBuffer.get();
+    try {
+      try (OutputStream out = Base64.getEncoder().wrap(buffer)) {
+        SerializeSupport.writeNode(domMessage, out);
+      }
+      return buffer.toString(StandardCharsets.ISO_8859_1);
+    }
+    catch (IOException e) {
+      throw new MessageEncodingException("Unable to encode message", e);
+    }
+    finally {
+      buffer.release();
+    }
+  }
+
   /** {@inheritDoc} */
   @Override
   public String getSendUrl() {
@@ -205,4 +258,34 @@ public class PostRequestHttpObject<T extends RequestAbstractType> extends HTTPPo
       this.sendUrl, this.httpHeaders, this.postParameters);
   }
 
+  /**
+   * A byte array stream that is reset (and not closed) after use so that its buffer may be reused.
+   */
+  private static class EncodingBuffer extends ByteArrayOutputStream {
+
+    /**
+     * Constructor.
+     */
+    EncodingBuffer() {
+      super(8192);
+    }
+
+    /**
+     * Closing the stream has no effect. This is so that the encoding stream that wraps the buffer may be closed.
+     */
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Resets the buffer. If the buffer has grown too large it is dropped.
+     */
+    void release() {
+      this.reset();
+      if (this.buf.length > MAX_RETAINED_BUFFER_SIZE) {
+        encodingBuffer.remove();
+      }
+    }
+  }
+
 }
@@ -0,0 +1,369 @@
+/*
+ * Copyright 2016-2021 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.opensaml.saml2.common.request;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Consumer;
+import java.util.zip.Deflater;
+
+import org.opensaml.messaging.encoder.MessageEncodingException;
+import org.opensaml.saml.common.binding.SAMLBindingSupport;
+import org.opensaml.security.credential.Credential;
+import org.opensaml.xmlsec.SignatureSigningParameters;
+import org.opensaml.xmlsec.crypto.XMLSigningUtil;
+import org.w3c.dom.Element;
+
+import net.shibboleth.utilities.java.support.collection.Pair;
+import net.shibboleth.utilities.java.support.net.URISupport;
+import net.shibboleth.utilities.java.support.net.URLBuilder;
+import net.shibboleth.utilities.java.support.primitive.StringSupport;
+import net.shibboleth.utilities.java.support.xml.SerializeSupport;
+import se.litsec.opensaml.utils.VersionedCache;
+
+/**
+ * Encoding support for the HTTP-Redirect binding used by {@link RedirectRequestHttpObject}.
+ * <p>
+ * The encoder produces the same output as OpenSAML's {@code HTTPRedirectDeflateEncoder}, but with less work per
+ * message:
+ * </p>
+ * <ul>
+ * <li>Each endpoint URL is parsed once, and the parsed endpoint is cached. The query parameters filter is applied to the
+ * cached parameters on each call.</li>
+ * <li>{@code Deflater} instances, and the buffers for the serialized and deflated message, are kept in a small bounded
+ * pool and reused. Deflaters that are not returned to the pool are ended, so that their native memory is released.</li>
+ * <li>The query string ({@code SAMLRequest}, {@code RelayState}, {@code SigAlg} and {@code Signature}) is built in one
+ * pass into a pre-sized buffer.</li>
+ * </ul>
+ * <p>
+ * Query parameters that are part of the endpoint URL are kept in the resulting URL, but are not included in the
+ * signature (see section 3.4.4.1 of the SAML bindings specification).
+ * </p>
+ *
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+final class RedirectBindingEncoder {
+
+  /** The maximum number of parsed endpoints that are cached. */
+  private static final int MAX_CACHED_ENDPOINTS = VersionedCache.DEFAULT_MAX_SIZE;
+
+  /** The version of all cached endpoints (the parsed form of an endpoint URL never changes). */
+  private static final long ENDPOINT_VERSION = 1L;
+
+  /** Buffers larger than this are not returned to the pool. */
+  private static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+
+  /** The maximum number of deflaters (and buffers) kept in the pool. */
+  private static final int MAX_POOLED_DEFLATERS = Math.max(4, Runtime.getRuntime().availableProcessors());
+
+  /** Cache of parsed endpoints. */
+  private static final VersionedCache<String, ParsedEndpoint> endpoints = new VersionedCache<>(MAX_CACHED_ENDPOINTS);
+
+  /** Pool of deflaters and buffers that are not in use. */
+  private static final BlockingQueue<DeflateBuffers> deflateBuffersPool = new ArrayBlockingQueue<>(MAX_POOLED_DEFLATERS);
+
+  /**
+   * Serializes the supplied message, deflates it and Base64-encodes the result.
+   *
+   * @param domMessage
+   *          the marshalled message
+   * @return the encoded message
+   * @throws MessageEncodingException
+   *           for encoding errors
+   */
+  static String deflateAndBase64Encode(final Element domMessage) throws MessageEncodingException {
+    final DeflateBuffers buffers = DeflateBuffers.acquire();
+    try {
+      SerializeSupport.writeNode(domMessage, buffers.input);
+
+      // The same settings as used by OpenSAML (the compression level is the value of Deflater.DEFLATED).
+      final Deflater deflater = buffers.deflater;
+      deflater.setInput(buffers.input.getBuffer(), 0, buffers.input.size());
+      deflater.finish();
+      int length = 0;
+      while (!deflater.finished()) {
+        if (length == buffers.output.length) {
+          buffers.output = Arrays.copyOf(buffers.output, buffers.output.length * 2);
+        }
+        length += deflater.deflate(buffers.output, length, buffers.output.length - length);
+      }
+      final ByteBuffer encoded = Base64.getEncoder().encode(ByteBuffer.wrap(buffers.output, 0, length));
+      return new String(encoded.array(), StandardCharsets.ISO_8859_1);
+    }
+    finally {
+      buffers.release();
+    }
+  }
+
+  /**
+   * Builds the URL to redirect the user agent to.
+   *
+   * @param endpoint
+   *          the recipient endpoint URL
+   * @param encodedMessage
+   *          the encoded message (see {@link #deflateAndBase64Encode(Element)})
+   * @param relayState
+   *          the relay state (may be {@code null})
+   * @param signingParameters
+   *          the signing parameters ({@code null} if the message should not be signed)
+   * @param queryParamsFilter
+   *          filter that removes disallowed query parameters from the endpoint URL
+   * @return the redirect URL
+   * @throws MessageEncodingException
+   *           for encoding errors
+   */
+  static String buildRedirectURL(final String endpoint, final String encodedMessage, final String relayState,
+      final SignatureSigningParameters signingParameters, final Consumer<List<Pair<String, String>>> queryParamsFilter)
+      throws MessageEncodingException {
+
+    final ParsedEndpoint parsedEndpoint = getParsedEndpoint(endpoint);
+
+    // Filter a copy of the endpoint's query parameters. If the filter leaves the parameters unchanged, the query string
+    // built when the endpoint was parsed is used.
+    //
+    final List<Pair<String, String>> queryParams = new ArrayList<>(parsedEndpoint.queryParams);
+    queryParamsFilter.accept(queryParams);
+    final String query = queryParams.equals(parsedEndpoint.queryParams) ? parsedEndpoint.query : buildQueryString(queryParams);
+
+    final StringBuilder sb = new StringBuilder(
+      parsedEndpoint.base.length() + (query != null ? query.length() : 0)
+          + encodedMessage.length() + (encodedMessage.length() >> 3) + (relayState != null ? relayState.length() * 3 : 0) + 1024);
+
+    sb.append(parsedEndpoint.base).append('?');
+    if (query != null && !query.isEmpty()) {
+      sb.append(query);
+      if (!query.endsWith("&")) {
+        sb.append('&');
+      }
+    }
+
+    // The signed part of the query string ...
+    //
+    final int signedStart = sb.length();
+    appendParameter(sb, "SAMLRequest", encodedMessage);
+    if (SAMLBindingSupport.checkRelayState(relayState)) {
+      sb.append('&');
+      appendParameter(sb, "RelayState", relayState);
+    }
+
+    final Credential signingCredential = signingParameters != null ? signingParameters.getSigningCredential() : null;
+    if (signingCredential != null) {
+      final String sigAlg = signingParameters.getSignatureAlgorithm();
+      if (sigAlg == null) {
+        throw new MessageEncodingException("The signing algorithm URI could not be determined");
+      }
+      sb.append('&');
+      appendParameter(sb, "SigAlg", sigAlg);
+
+      final byte[] signedContent = sb.substring(signedStart).getBytes(StandardCharsets.UTF_8);
+      try {
+        final byte[] signature = XMLSigningUtil.signWithURI(signingCredential, sigAlg, signedContent);
+        sb.append('&');
+        appendParameter(sb, "Signature", Base64.getEncoder().encodeToString(signature));
+      }
+      catch (final org.opensaml.security.SecurityException e) {
+        throw new MessageEncodingException("Unable to sign URL query string", e);
+      }
+    }
+
+    if (parsedEndpoint.fragment != null) {
+      sb.append('#').append(parsedEndpoint.fragment);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Appends a query parameter in the same way as {@link URLBuilder#buildQueryString()}.
+   *
+   * @param sb
+   *          the buffer
+   * @param name
+   *          the parameter name
+   * @param value
+   *          the parameter value
+   */
+  private static void appendParameter(final StringBuilder sb, final String name, final String value) {
+    sb.append(URISupport.doURLEncode(name));
+    final String v = StringSupport.trimOrNull(value);
+    if (v != null) {
+      sb.append('=').append(URISupport.doURLEncode(v));
+    }
+  }
+
+  /**
+   * Builds a query string from the supplied parameters in the same way as {@link URLBuilder#buildQueryString()}.
+   *
+   * @param queryParams
+   *          the query parameters
+   * @return the query string, or {@code null} if there are no parameters
+   */
+  private static String buildQueryString(final List<Pair<String, String>> queryParams) {
+    if (queryParams.isEmpty()) {
+      return null;
+    }
+    final URLBuilder urlBuilder = new URLBuilder();
+    urlBuilder.getQueryParams().addAll(queryParams);
+    return urlBuilder.buildQueryString();
+  }
+
+  /**
+   * Gets the parsed endpoint from the cache, or parses the endpoint.
+   *
+   * @param endpoint
+   *          the endpoint URL
+   * @return the parsed endpoint
+   * @throws MessageEncodingException
+   *           for invalid URLs
+   */
+  private static ParsedEndpoint getParsedEndpoint(final String endpoint) throws MessageEncodingException {
+    ParsedEndpoint parsedEndpoint = endpoints.get(endpoint, ENDPOINT_VERSION);
+    if (parsedEndpoint != null) {
+      return parsedEndpoint;
+    }
+    try {
+      final URLBuilder urlBuilder = new URLBuilder(endpoint);
+      final List<Pair<String, String>> queryParams = Collections.unmodifiableList(new ArrayList<>(urlBuilder.getQueryParams()));
+      final String query = buildQueryString(queryParams);
+      urlBuilder.getQueryParams().clear();
+      final String fragment = urlBuilder.getFragment() != null && !urlBuilder.getFragment().isEmpty() ? urlBuilder.getFragment() : null;
+      urlBuilder.setFragment(null);
+
+      parsedEndpoint = new ParsedEndpoint(urlBuilder.buildURL(), queryParams, query, fragment);
+      endpoints.put(endpoint, ENDPOINT_VERSION, parsedEndpoint);
+      return parsedEndpoint;
+    }
+    catch (final MalformedURLException e) {
+      throw new MessageEncodingException("Endpoint URL " + endpoint + " is not a valid URL", e);
+    }
+  }
+
+  // Hidden constructor.
+  private RedirectBindingEncoder() {
+  }
+
+  /**
+   * An endpoint URL split into the parts that are used when building the redirect URL.
+   */
+  private static class ParsedEndpoint {
+
+    /** The URL without query and fragment. */
+    private final String base;
+
+    /** The (unfiltered) query parameters of the endpoint URL. */
+    private final List<Pair<String, String>> queryParams;
+
+    /** The encoded query string for the unfiltered query parameters (may be null). */
+    private final String query;
+
+    /** The fragment (may be null). */
+    private final String fragment;
+
+    /**
+     * Constructor.
+     *
+     * @param base
+     *          the URL without query and fragment
+     * @param queryParams
+     *          the query parameters
+     * @param query
+     *          the encoded query string for the query parameters
+     * @param fragment
+     *          the fragment
+     */
+    ParsedEndpoint(final String base, final List<Pair<String, String>> queryParams, final String query, final String fragment) {
+      this.base = base;
+      this.queryParams = queryParams;
+      this.query = query;
+      this.fragment = fragment;
+    }
+  }
+
+  /**
+   * A deflater and the buffers used while encoding a message.
+   */
+  private static class DeflateBuffers {
+
+    /** The deflater (nowrap, and the same compression level as used by OpenSAML). */
+    private final Deflater deflater = new Deflater(Deflater.DEFLATED, true);
+
+    /** The buffer for the serialized message. */
+    private final InputBuffer input = new InputBuffer();
+
+    /** The buffer for the deflated message. */
+    private byte[] output = new byte[4096];
+
+    /**
+     * Gets a deflater and buffers from the pool, or creates new ones if the pool is empty.
+     *
+     * @return the deflater and buffers
+     */
+    static DeflateBuffers acquire() {
+      final DeflateBuffers buffers = deflateBuffersPool.poll();
+      return buffers != null ? buffers : new DeflateBuffers();
+    }
+
+    /**
+     * Resets the deflater and buffers and returns them to the pool. If the buffers have grown too large, or if the pool
+     * is full, they are dropped and the deflater is ended.
+     */
+    void release() {
+      this.deflater.reset();
+      this.input.reset();
+      if (this.input.getBuffer().length > MAX_RETAINED_BUFFER_SIZE || this.output.length > MAX_RETAINED_BUFFER_SIZE
+          || !deflateBuffersPool.offer(this)) {
+        this.deflater.end();
+      }
+    }
+  }
+
+  /**
+   * A byte array stream whose buffer may be read directly.
+   */
+  private static class InputBuffer extends ByteArrayOutputStream {
+
+    /**
+     * Constructor.
+     */
+    InputBuffer() {
+      super(8192);
+    }
+
+    /**
+     * Gets the internal buffer. The first {@link #size()} bytes are valid.
+     *
+     * @return the buffer
+     */
+    byte[] getBuffer() {
+      return this.buf;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void close() throws IOException {
+    }
+  }
+
+}
@@ -15,16 +15,10 @@
  */
 package se.litsec.opensaml.saml2.common.request;
 
-import java.net.MalformedURLException;
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 
-import org.opensaml.messaging.context.MessageContext;
 import org.opensaml.messaging.encoder.MessageEncodingException;
-import org.opensaml.saml.common.messaging.context.SAMLBindingContext;
 import org.opensaml.saml.common.xml.SAMLConstants;
 import org.opensaml.saml.saml2.binding.encoding.impl.HTTPRedirectDeflateEncoder;
 import org.opensaml.saml.saml2.core.RequestAbstractType;
@@ -33,19 +27,12 @@ import org.opensaml.security.x509.X509Credential;
 import org.opensaml.xmlsec.SecurityConfigurationSupport;
 import org.opensaml.xmlsec.SignatureSigningConfiguration;
 import org.opensaml.xmlsec.SignatureSigningParameters;
-import org.opensaml.xmlsec.context.SecurityParametersContext;
-import org.opensaml.xmlsec.criterion.SignatureSigningConfigurationCriterion;
-import org.opensaml.xmlsec.impl.BasicSignatureSigningConfiguration;
-import org.opensaml.xmlsec.impl.BasicSignatureSigningParametersResolver;
 import org.opensaml.xmlsec.signature.support.SignatureException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import net.shibboleth.utilities.java.support.collection.Pair;
-import net.shibboleth.utilities.java.support.net.URLBuilder;
-import net.shibboleth.utilities.java.support.resolver.CriteriaSet;
-import net.shibboleth.utilities.java.support.resolver.ResolverException;
 import se.litsec.opensaml.utils.SignatureUtils;
+import se.litsec.opensaml.xmlsec.SigningParametersCache;
 
 /**
  * A RequestHttpObject for sending using HTTP GET (redirect binding).
@@ -121,86 +108,59 @@ public class RedirectRequestHttpObject<T extends RequestAbstractType> extends HT
       final String endpoint, final EntityDescriptor recipientMetadata, 
       final SignatureSigningConfiguration defaultSignatureSigningConfiguration) throws MessageEncodingException, SignatureException {
 
-    this.request = request;
+    this(request, relayState, signatureCredentials, endpoint, recipientMetadata, defaultSignatureSigningConfiguration, null);
+  }
 
-    // Set up the message context.
-    //
-    MessageContext messageContext = new MessageContext();
-    messageContext.setMessage(request);
-    messageContext.getSubcontext(SAMLBindingContext.class, true).setRelayState(relayState);
+  /**
+   * Constructor that puts together the resulting object.
+   * 
+   * @param request
+   *          the request object
+   * @param relayState
+   *          the relay state
+   * @param signatureCredentials
+   *          optional signature credentials
+   * @param endpoint
+   *          the endpoint where we send this request to
+   * @param recipientMetadata
+   *          the recipient metadata (may be {@code null})
+   * @param defaultSignatureSigningConfiguration
+   *          the default signature configuration for the application. If {@code null}, the value returned from
+   *          {@link SecurityConfigurationSupport#getGlobalSignatureSigningConfiguration()} will be used
+   * @param signingParametersCache
+   *          cache for the resolved signature signing parameters (if {@code null}, the parameters are not cached)
+   * @throws MessageEncodingException
+   *           for encoding errors
+   * @throws SignatureException
+   *           for signature errors
+   */
+  public RedirectRequestHttpObject(final T request, final String relayState, final X509Credential signatureCredentials,
+      final String endpoint, final EntityDescriptor recipientMetadata,
+      final SignatureSigningConfiguration defaultSignatureSigningConfiguration,
+      final SigningParametersCache signingParametersCache) throws MessageEncodingException, SignatureException {
 
-    if (signatureCredentials != null) {
+    this.request = request;
 
-      // Check if the recipient has specified any signature preferences in its metadata.
-      SignatureSigningConfiguration peerConfig = SignatureUtils.getSignaturePreferences(recipientMetadata);
-
-      SignatureSigningConfiguration[] configs = new SignatureSigningConfiguration[2 + (peerConfig != null ? 1 : 0)];
-      int pos = 0;
-      if (peerConfig != null) {
-        configs[pos++] = peerConfig;
-      }
-      // The system wide configuration for signing.
-      configs[pos++] = defaultSignatureSigningConfiguration != null
-          ? defaultSignatureSigningConfiguration
-          : SecurityConfigurationSupport.getGlobalSignatureSigningConfiguration();
-
-      // And finally our signing credential.
-      BasicSignatureSigningConfiguration signatureCreds = new BasicSignatureSigningConfiguration();
-      signatureCreds.setSigningCredentials(Collections.singletonList(signatureCredentials));
-      configs[pos] = signatureCreds;
-
-      BasicSignatureSigningParametersResolver signatureParametersResolver = new BasicSignatureSigningParametersResolver();
-      CriteriaSet criteriaSet = new CriteriaSet(new SignatureSigningConfigurationCriterion(configs));
-
-      try {
-        SignatureSigningParameters parameters = signatureParametersResolver.resolveSingle(criteriaSet);
-        messageContext.getSubcontext(SecurityParametersContext.class, true).setSignatureSigningParameters(parameters);
-      }
-      catch (ResolverException e) {
-        throw new SignatureException(e);
-      }
+    SignatureSigningParameters parameters = null;
+    if (signatureCredentials != null) {
+      // The recipient signature preferences (from its metadata) are given precedence over the
+      // system wide configuration for signing.
+      parameters = signingParametersCache != null
+          ? signingParametersCache.getSigningParameters(signatureCredentials, defaultSignatureSigningConfiguration, recipientMetadata)
+          : SignatureUtils.getSigningParameters(signatureCredentials, defaultSignatureSigningConfiguration, recipientMetadata);
     }
 
     // Put together the message.
     //
     this.removeSignature(this.request);
-    String encodedMessage = this.deflateAndBase64Encode(this.request);
+    String encodedMessage = RedirectBindingEncoder.deflateAndBase64Encode(this.marshallMessage(this.request));
 
     // OpenSAML has a bug in where it calculates the signature over any potential query parameters that
-    // are part of the IdP SingleSignOnService location URL. We implement a work-around for this.
+    // are part of the IdP SingleSignOnService location URL. The encoder keeps such parameters in the URL,
+    // but leaves them out of the signature.
     //
-    URLBuilder urlBuilder = null;
-    try {
-      urlBuilder = new URLBuilder(endpoint);
-
-      List<Pair<String, String>> queryParams = urlBuilder.getQueryParams();
-      this.removeDisallowedQueryParams(queryParams);
-      if (!queryParams.isEmpty()) {
-        // The work-around kicks in. We can't supply the endpoint as-is. First we need to remove the
-        // query parameters.
-        //
-        // First make a copy ...
-        List<Pair<String, String>> qp = new ArrayList<>(queryParams);
-        // Then clear all query parameters ...
-        queryParams.clear();
-
-        // Build the URL ...
-        String tmpSendUrl = this.buildRedirectURL(messageContext, urlBuilder.buildURL(), encodedMessage);
-
-        // And finally, put the query params back ...
-        urlBuilder = new URLBuilder(tmpSendUrl);
-        queryParams = urlBuilder.getQueryParams();
-        queryParams.addAll(0, qp);
-
-        this.sendUrl = urlBuilder.buildURL();
-      }
-      else {
-        this.sendUrl = this.buildRedirectURL(messageContext, endpoint, encodedMessage);
-      }
-    }
-    catch (final MalformedURLException e) {
-      throw new MessageEncodingException("Endpoint URL " + endpoint + " is not a valid URL", e);
-    }
+    this.sendUrl = RedirectBindingEncoder.buildRedirectURL(endpoint, encodedMessage, relayState, parameters,
+      this::removeDisallowedQueryParams);
 
     logger.trace("Redirect URL is {}", this.sendUrl);
 
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2016-2021 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.opensaml.saml2.common.response;
+
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+
+import org.opensaml.saml.common.SAMLObject;
+
+/**
+ * A {@link MessageReplayChecker} that may perform its checks asynchronously.
+ * <p>
+ * The synchronous methods of {@link MessageReplayChecker} wait for the result of the asynchronous check.
+ * </p>
+ *
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+public interface AsyncMessageReplayChecker extends MessageReplayChecker {
+
+  /**
+   * Checks if the supplied message ID already has been processed within the time the replay checker keeps the processed
+   * items in its cache.
+   *
+   * @param id
+   *          the message ID
+   * @return a completion stage that completes normally if the check succeeds and exceptionally with a
+   *         {@link MessageReplayException} if there is a replay attack
+   */
+  CompletionStage<Void> checkReplayAsync(String id);
+
+  /**
+   * Checks if the supplied message contains an ID that already has been processed within the time the replay checker
+   * keeps the processed items in its cache.
+   *
+   * @param object
+   *          the SAML message object
+   * @return a completion stage that completes normally if the check succeeds and exceptionally with a
+   *         {@link MessageReplayException} if there is a replay attack
+   * @throws IllegalArgumentException
+   *           if the supplied object is not supported by the cheker
+   */
+  CompletionStage<Void> checkReplayAsync(SAMLObject object) throws IllegalArgumentException;
+
+  /** {@inheritDoc} */
+  @Override
+  default void checkReplay(final String id) throws MessageReplayException {
+    try {
+      this.checkReplayAsync(id).toCompletableFuture().join();
+    }
+    catch (CompletionException e) {
+      if (e.getCause() instanceof MessageReplayException) {
+        throw (MessageReplayException) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  default void checkReplay(final SAMLObject object) throws MessageReplayException, IllegalArgumentException {
+    try {
+      this.checkReplayAsync(object).toCompletableFuture().join();
+    }
+    catch (CompletionException e) {
+      if (e.getCause() instanceof MessageReplayException) {
+        throw (MessageReplayException) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+}
@@ -0,0 +1,453 @@
+/*
+ * Copyright 2016-2021 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.opensaml.saml2.common.response;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.opensaml.saml.common.SAMLObject;
+import org.opensaml.saml.saml2.core.Assertion;
+import org.opensaml.saml.saml2.core.Response;
+import org.opensaml.storage.StorageService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.util.Assert;
+
+/**
+ * Asynchronous message replay checker using an OpenSAML {@link StorageService} as an underlying cache.
+ * <p>
+ * Checks are coalesced before they reach the storage service:
+ * </p>
+ * <ul>
+ * <li>A check of an ID for which a check already is in flight is rejected directly, without contacting the storage
+ * service. At most one of several concurrent checks of the same ID can succeed, so the later ones are replays no matter
+ * how the first one ends.</li>
+ * <li>Checks are put on a queue that is drained by at most {@link #setMaxConcurrency(int)} drain tasks running on the
+ * executor. Each drain task performs the queued storage operations back-to-back until the queue is empty, so a burst
+ * of checks costs a bounded number of executor tasks, and the storage operations of the different drain tasks run in
+ * parallel.</li>
+ * </ul>
+ * <p>
+ * The {@link StorageService} API has no operation that creates several records at once, so each unique ID still
+ * requires one {@link StorageService#create(String, String, String, Long)} call. If no executor is assigned, a pool of
+ * at most {@link #setMaxConcurrency(int)} daemon threads is used.
+ * </p>
+ * <p>
+ * The checker also keeps a local near-cache ({@link InMemoryReplayChecker}) of the IDs it has stored. An ID that has
+ * already been stored by this node is rejected directly, without contacting the storage service. An ID is added to the
+ * near-cache only after it has been successfully stored, so a failed storage operation does not cause a later check of
+ * the same ID to be rejected.
+ * </p>
+ * <p>
+ * If the storage service fails, the check fails. This means that the message is rejected.
+ * </p>
+ *
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+public class AsyncMessageReplayCheckerImpl implements AsyncMessageReplayChecker, InitializingBean, DisposableBean {
+
+  /** The default maximum number of concurrent storage operations (when no executor is assigned). */
+  public static final int DEFAULT_MAX_CONCURRENCY = 8;
+
+  /** Logging instance. */
+  private final Logger log = LoggerFactory.getLogger(AsyncMessageReplayCheckerImpl.class);
+
+  /** The storage service. */
+  private StorageService storage;
+
+  /** Number of milliseconds to keep elements in the replay cache - default is 5 minutes. */
+  private long replayCacheExpiration = 300 * 1000L;
+
+  /** The name of the replay cache (used as storage context). */
+  private String replayCacheName;
+
+  /** The executor that runs the storage operations. */
+  private Executor executor;
+
+  /** The executor that we created (and should shut down). */
+  private ExecutorService ownedExecutor;
+
+  /** The maximum number of concurrent storage operations (drain tasks). */
+  private int maxConcurrency = DEFAULT_MAX_CONCURRENCY;
+
+  /** The local cache of stored IDs. */
+  private final InMemoryReplayChecker nearCache = new InMemoryReplayChecker();
+
+  /** Number of replays rejected by the near-cache or because a check of the same ID was in flight. */
+  private final LongAdder localRejections = new LongAdder();
+
+  /** The checks that have been queued, but not yet performed against the storage service. */
+  private final Queue<PendingCheck> pendingChecks = new ConcurrentLinkedQueue<>();
+
+  /** The checks that are in flight, keyed by ID. */
+  private final ConcurrentMap<String, CompletableFuture<Void>> inFlight = new ConcurrentHashMap<>();
+
+  /** The number of drain tasks that are scheduled or running. */
+  private final AtomicInteger activeDrainers = new AtomicInteger();
+
+  /** {@inheritDoc} */
+  @Override
+  public CompletionStage<Void> checkReplayAsync(final String id) {
+    if (this.nearCache.contains(id)) {
+      return this.rejectLocally(id);
+    }
+    final CompletableFuture<Void> result = new CompletableFuture<>();
+    if (this.inFlight.putIfAbsent(id, result) != null) {
+      return this.rejectLocally(id);
+    }
+    this.pendingChecks.add(new PendingCheck(id, System.currentTimeMillis() + this.replayCacheExpiration, result));
+    this.scheduleDrainer();
+    return result;
+  }
+
+  /**
+   * Rejects a check of the supplied ID without contacting the storage service.
+   *
+   * @param id
+   *          the message ID
+   * @return a failed completion stage
+   */
+  private CompletionStage<Void> rejectLocally(final String id) {
+    this.localRejections.increment();
+    final String msg = String.format("Replay check of ID '%s' failed", id);
+    log.warn(msg);
+    return CompletableFuture.failedFuture(new MessageReplayException(msg));
+  }
+
+  /**
+   * Schedules a drain task unless {@link #setMaxConcurrency(int)} drain tasks already are scheduled or running. If the
+   * executor rejects the task, the queued checks are failed.
+   */
+  private void scheduleDrainer() {
+    while (true) {
+      final int active = this.activeDrainers.get();
+      if (active >= this.maxConcurrency) {
+        return;
+      }
+      if (this.activeDrainers.compareAndSet(active, active + 1)) {
+        break;
+      }
+    }
+    final Executor executor = this.executor;
+    try {
+      if (executor == null) {
+        throw new RejectedExecutionException("Replay checker has been destroyed");
+      }
+      executor.execute(this::drain);
+    }
+    catch (RejectedExecutionException e) {
+      this.activeDrainers.decrementAndGet();
+      log.error("Failed to schedule replay check", e);
+      PendingCheck check;
+      while ((check = this.pendingChecks.poll()) != null) {
+        this.complete(check, new MessageReplayException(
+          String.format("Replay check of ID '%s' failed - %s", check.id, e.getMessage())));
+      }
+    }
+  }
+
+  /**
+   * Performs the queued checks until the queue is empty.
+   */
+  private void drain() {
+    while (true) {
+      final PendingCheck check = this.pendingChecks.poll();
+      if (check != null) {
+        try {
+          this.performCheck(check.id, check.expiration);
+          this.complete(check, null);
+        }
+        catch (CompletionException e) {
+          this.complete(check, e.getCause());
+        }
+        continue;
+      }
+      this.activeDrainers.decrementAndGet();
+      // A check may have been queued after our poll, but before the decrement, when all drain tasks were active.
+      if (this.pendingChecks.isEmpty() || !this.reactivateDrainer()) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Lets a drain task that has just finished continue draining, unless the maximum number of drain tasks already are
+   * active.
+   *
+   * @return {@code true} if the caller should continue draining
+   */
+  private boolean reactivateDrainer() {
+    while (true) {
+      final int active = this.activeDrainers.get();
+      if (active >= this.maxConcurrency) {
+        return false;
+      }
+      if (this.activeDrainers.compareAndSet(active, active + 1)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Completes a check and removes it from the in-flight checks. A successful check has already been added to the
+   * near-cache, so there is no window where a replay of the ID is missed locally.
+   *
+   * @param check
+   *          the check
+   * @param error
+   *          the error, or {@code null} if the check succeeded
+   */
+  private void complete(final PendingCheck check, final Throwable error) {
+    this.inFlight.remove(check.id, check.result);
+    if (error == null) {
+      check.result.complete(null);
+    }
+    else {
+      check.result.completeExceptionally(error);
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public CompletionStage<Void> checkReplayAsync(final SAMLObject object) throws IllegalArgumentException {
+    String id = null;
+    if (object instanceof Response) {
+      id = ((Response) object).getID();
+    }
+    else if (object instanceof Assertion) {
+      id = ((Assertion) object).getID();
+    }
+    if (id == null) {
+      throw new IllegalArgumentException("Unsupported object type");
+    }
+    return this.checkReplayAsync(id);
+  }
+
+  /**
+   * Performs a check against the storage service. If the ID is stored, it is also added to the near-cache.
+   *
+   * @param id
+   *          the message ID
+   * @param expiration
+   *          the expiration time (millis since epoch)
+   * @throws CompletionException
+   *           wrapping a {@link MessageReplayException} if the check fails
+   */
+  private void performCheck(final String id, final long expiration) throws CompletionException {
+    final boolean created;
+    try {
+      created = this.storage.create(this.replayCacheName, this.getStorageKey(id), "x", expiration);
+    }
+    catch (IOException | RuntimeException e) {
+      final String msg = String.format("Replay check of ID '%s' failed - storage error: %s", id, e.getMessage());
+      log.error(msg, e);
+      throw new CompletionException(new MessageReplayException(msg));
+    }
+    if (!created) {
+      final String msg = String.format("Replay check of ID '%s' failed", id);
+      log.warn(msg);
+      throw new CompletionException(new MessageReplayException(msg));
+    }
+    try {
+      this.nearCache.checkReplay(id);
+    }
+    catch (MessageReplayException e) {
+      // Can only happen if the ID was stored again after its storage record expired. It is still stored.
+    }
+    log.debug("Message replay check of ID '{}' succeeded", id);
+  }
+
+  /**
+   * Returns the key to use for the supplied ID. If the ID is longer than the storage service accepts, a digest of the
+   * ID is used.
+   *
+   * @param id
+   *          the message ID
+   * @return the storage key
+   */
+  private String getStorageKey(final String id) {
+    if (id.length() <= this.storage.getCapabilities().getKeySize()) {
+      return id;
+    }
+    try {
+      final byte[] digest = MessageDigest.getInstance("SHA-256").digest(id.getBytes(StandardCharsets.UTF_8));
+      return Base64.getEncoder().encodeToString(digest);
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new SecurityException(e);
+    }
+  }
+
+  /**
+   * Assigns the storage service to use when checking against replay attacks.
+   *
+   * @param storage
+   *          the storage service
+   */
+  public void setStorage(final StorageService storage) {
+    this.storage = storage;
+  }
+
+  /**
+   * Assigns the name of the replay cache. This name is used as the storage context.
+   *
+   * @param replayCacheName
+   *          the name
+   */
+  public void setReplayCacheName(final String replayCacheName) {
+    this.replayCacheName = replayCacheName;
+  }
+
+  /**
+   * Assigns the number of milliseconds each stored ID should be kept in the cache. The default is 5 minutes.
+   *
+   * @param replayCacheExpiration
+   *          number of millis
+   */
+  public void setReplayCacheExpiration(final long replayCacheExpiration) {
+    if (replayCacheExpiration < 0) {
+      throw new IllegalArgumentException("replayCacheExpiration must be greater than 0");
+    }
+    this.replayCacheExpiration = replayCacheExpiration;
+    this.nearCache.setReplayCacheExpiration(replayCacheExpiration);
+  }
+
+  /**
+   * Assigns the executor that runs the drain tasks performing the storage operations. If not assigned, a pool of at
+   * most {@link #setMaxConcurrency(int)} daemon threads is used.
+   *
+   * @param executor
+   *          the executor
+   */
+  public void setExecutor(final Executor executor) {
+    this.executor = executor;
+  }
+
+  /**
+   * Assigns the maximum number of storage operations that are performed concurrently, that is, the maximum number of
+   * drain tasks that are scheduled on the executor at the same time. The default is {@value #DEFAULT_MAX_CONCURRENCY}.
+   *
+   * @param maxConcurrency
+   *          the maximum number of concurrent storage operations
+   */
+  public void setMaxConcurrency(final int maxConcurrency) {
+    if (maxConcurrency <= 0) {
+      throw new IllegalArgumentException("maxConcurrency must be greater than 0");
+    }
+    this.maxConcurrency = maxConcurrency;
+  }
+
+  /**
+   * Assigns the maximum number of IDs held by the local near-cache. The default is
+   * {@value InMemoryReplayChecker#DEFAULT_CAPACITY}.
+   *
+   * @param nearCacheCapacity
+   *          the capacity
+   */
+  public void setNearCacheCapacity(final int nearCacheCapacity) {
+    this.nearCache.setCapacity(nearCacheCapacity);
+  }
+
+  /**
+   * Returns the number of replays that were rejected locally (without contacting the storage service), either by the
+   * near-cache or because a check of the same ID was in flight.
+   *
+   * @return the number of locally rejected replays
+   */
+  public long getLocalRejections() {
+    return this.localRejections.sum();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void afterPropertiesSet() throws Exception {
+    Assert.notNull(this.storage, "Property 'storage' must be assigned");
+    Assert.hasText(this.replayCacheName, "Property 'replayCacheName' must be assigned");
+    if (this.executor == null) {
+      final ThreadPoolExecutor pool = new ThreadPoolExecutor(this.maxConcurrency, this.maxConcurrency, 60L, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<>(), r -> {
+          final Thread thread = new Thread(r, "replay-checker-" + this.replayCacheName);
+          thread.setDaemon(true);
+          return thread;
+        });
+      pool.allowCoreThreadTimeOut(true);
+      this.ownedExecutor = pool;
+      this.executor = pool;
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void destroy() throws Exception {
+    if (this.ownedExecutor != null) {
+      this.ownedExecutor.shutdown();
+      this.ownedExecutor = null;
+      this.executor = null;
+    }
+  }
+
+  /**
+   * A queued replay check.
+   */
+  private static class PendingCheck {
+
+    /** The message ID. */
+    private final String id;
+
+    /** The expiration time (millis since epoch). */
+    private final long expiration;
+
+    /** The result of the check. */
+    private final CompletableFuture<Void> result;
+
+    /**
+     * Constructor.
+     *
+     * @param id
+     *          the message ID
+     * @param expiration
+     *          the expiration time (millis since epoch)
+     * @param result
+     *          the result of the check
+     */
+    public PendingCheck(final String id, final long expiration, final CompletableFuture<Void> result) {
+      this.id = id;
+      this.expiration = expiration;
+      this.result = result;
+    }
+  }
+
+}
@@ -15,8 +15,12 @@
  */
 package se.litsec.opensaml.saml2.common.response;
 
-import java.util.Map;
+import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.opensaml.saml.common.SAMLObject;
 import org.opensaml.saml.saml2.core.Assertion;
@@ -25,44 +29,71 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * An in-memory based message replay checker implementation. This is mainly for testing and simple mock implementations.
- * 
+ * An in-memory based message replay checker implementation.
+ * <p>
+ * IDs are added using insert-if-absent semantics on a concurrent map, so checks of different IDs never block each
+ * other. Each stored ID is also added to a queue that is ordered by expiration time (all IDs are kept equally long).
+ * Expired IDs are removed from the head of the queue, which gives constant amortized cost per check instead of a scan
+ * of the whole cache. Only one thread at the time performs the cleanup, other threads skip it.
+ * </p>
+ * <p>
+ * The number of stored IDs is bounded by the capacity. If the cache is full, the IDs that are closest to expiration are
+ * evicted. Note that evicted IDs are no longer protected against replay, so the capacity should be set to hold all IDs
+ * received during the expiration time.
+ * </p>
+ *
  * @author Martin Lindström (martin.lindstrom@litsec.se)
  */
 public class InMemoryReplayChecker implements MessageReplayChecker {
-  
-  /** If the size exceeds MAX_SIZE we clean up the cache map. */
-  private static final int MAX_SIZE = 1000;
-  
+
+  /** The default capacity. */
+  public static final int DEFAULT_CAPACITY = 100000;
+
   /** Logging instance. */
   private final Logger log = LoggerFactory.getLogger(InMemoryReplayChecker.class);
-  
+
   /** Number of milliseconds to keep elements in the replay cache - default is 5 minutes. */
   private long replayCacheExpiration = 300 * 1000L;
-  
+
+  /** The maximum number of IDs to store. */
+  private int capacity = DEFAULT_CAPACITY;
+
   /** The cache. */
-  private Map<String, Long> cache = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, Entry> cache = new ConcurrentHashMap<>();
+
+  /** The stored entries ordered by expiration time. */
+  private final Queue<Entry> expirationQueue = new ConcurrentLinkedQueue<>();
+
+  /** Lock held by the thread removing entries from the cache. */
+  private final ReentrantLock cleanupLock = new ReentrantLock();
+
+  /** Number of IDs evicted before they expired. */
+  private final LongAdder evictions = new LongAdder();
+
+  /** Number of rejected replays. */
+  private final LongAdder rejectedReplays = new LongAdder();
 
   /** {@inheritDoc} */
   @Override
-  public synchronized void checkReplay(final String id) throws MessageReplayException {
-    Long e = this.cache.get(id);
-    if (e == null) {
-      this.cache.put(id, replayCacheExpiration + System.currentTimeMillis());
-    }
-    else {
-      if (System.currentTimeMillis() > e) {
-        this.cache.remove(id);
-        String msg = String.format("Replay check of ID '%s' failed", id);
+  public void checkReplay(final String id) throws MessageReplayException {
+    final long now = System.currentTimeMillis();
+    final Entry entry = new Entry(id, now + this.replayCacheExpiration);
+
+    Entry existing = this.cache.putIfAbsent(id, entry);
+    while (existing != null) {
+      if (now <= existing.expiration) {
+        this.rejectedReplays.increment();
+        final String msg = String.format("Replay check of ID '%s' failed", id);
         log.warn(msg);
         throw new MessageReplayException(msg);
       }
+      // The stored ID has expired, but has not been removed yet.
+      existing = this.cache.replace(id, existing, entry) ? null : this.cache.putIfAbsent(id, entry);
     }
+    this.expirationQueue.add(entry);
     log.debug("Message replay check of ID '{}' succeeded", id);
-    if (this.cache.size() > MAX_SIZE) {
-      long now = System.currentTimeMillis();
-      this.cache.entrySet().removeIf(entry -> now > entry.getValue());
-    }
+
+    this.cleanup(now);
   }
 
   /** {@inheritDoc} */
@@ -80,10 +111,56 @@ public class InMemoryReplayChecker implements MessageReplayChecker {
     }
     this.checkReplay(id);
   }
-    
+
+  /**
+   * Tells whether the supplied ID is stored in the cache (and has not expired). Unlike {@link #checkReplay(String)},
+   * the ID is not added to the cache.
+   *
+   * @param id
+   *          the ID
+   * @return {@code true} if the ID is stored and {@code false} otherwise
+   */
+  public boolean contains(final String id) {
+    final Entry entry = this.cache.get(id);
+    return entry != null && System.currentTimeMillis() <= entry.expiration;
+  }
+
+  /**
+   * Removes expired entries from the head of the expiration queue, and evicts entries if the cache holds more entries
+   * than its capacity. If another thread already is cleaning up, the method returns directly.
+   *
+   * @param now
+   *          the current time (in millis)
+   */
+  private void cleanup(final long now) {
+    if (!this.cleanupLock.tryLock()) {
+      return;
+    }
+    try {
+      Entry head;
+      while ((head = this.expirationQueue.peek()) != null) {
+        if (now > head.expiration) {
+          this.cache.remove(head.id, head);
+        }
+        else if (this.cache.size() > this.capacity) {
+          if (this.cache.remove(head.id, head)) {
+            this.evictions.increment();
+          }
+        }
+        else {
+          break;
+        }
+        this.expirationQueue.poll();
+      }
+    }
+    finally {
+      this.cleanupLock.unlock();
+    }
+  }
+
   /**
    * Assigns the number of milliseconds each stored ID should be kept in the cache. The default is 5 minutes.
-   * 
+   *
    * @param replayCacheExpiration
    *          number of millis
    */
@@ -93,5 +170,70 @@ public class InMemoryReplayChecker implements MessageReplayChecker {
     }
     this.replayCacheExpiration = replayCacheExpiration;
   }
-  
+
+  /**
+   * Assigns the maximum number of IDs that are stored in the cache. The default is {@value #DEFAULT_CAPACITY}.
+   *
+   * @param capacity
+   *          the capacity
+   */
+  public void setCapacity(final int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("capacity must be greater than 0");
+    }
+    this.capacity = capacity;
+  }
+
+  /**
+   * Returns the number of IDs stored in the cache.
+   *
+   * @return the number of stored IDs
+   */
+  public int getSize() {
+    return this.cache.size();
+  }
+
+  /**
+   * Returns the number of IDs that were evicted from the cache before they expired (since the cache was full).
+   *
+   * @return the number of evictions
+   */
+  public long getEvictions() {
+    return this.evictions.sum();
+  }
+
+  /**
+   * Returns the number of replay checks that failed.
+   *
+   * @return the number of rejected replays
+   */
+  public long getRejectedReplays() {
+    return this.rejectedReplays.sum();
+  }
+
+  /**
+   * A stored ID.
+   */
+  private static class Entry {
+
+    /** The ID. */
+    private final String id;
+
+    /** The expiration time (in millis). */
+    private final long expiration;
+
+    /**
+     * Constructor.
+     *
+     * @param id
+     *          the ID
+     * @param expiration
+     *          the expiration time
+     */
+    Entry(final String id, final long expiration) {
+      this.id = id;
+      this.expiration = expiration;
+    }
+  }
+
 }
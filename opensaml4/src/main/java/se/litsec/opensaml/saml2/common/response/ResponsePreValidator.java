@@ -0,0 +1,226 @@
+/*
+ * Copyright 2016-2021 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.opensaml.saml2.common.response;
+
+import java.io.InputStream;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.opensaml.saml.common.xml.SAMLConstants;
+import org.opensaml.saml.saml2.core.Issuer;
+import org.opensaml.saml.saml2.core.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import se.litsec.opensaml.saml2.metadata.PeerMetadataResolver;
+
+/**
+ * Performs cheap checks of a SAML response message before it is parsed into a DOM and unmarshalled.
+ * <p>
+ * The validator reads the start of the message using StAX. Only the attributes of the {@code Response} element and the
+ * {@code Issuer} element are read, and the rest of the message is not decoded. The following is checked:
+ * </p>
+ * <ul>
+ * <li>The root element is a {@code Response} element.</li>
+ * <li>The {@code InResponseTo} attribute matches the ID of the {@code AuthnRequest}.</li>
+ * <li>The {@code Destination} attribute matches the URL on which the message was received.</li>
+ * <li>The {@code IssueInstant} attribute is not too old and not too far in the future.</li>
+ * <li>The {@code Issuer} element is present and metadata for the issuer is available.</li>
+ * </ul>
+ * <p>
+ * These checks are also performed by the {@link ResponseValidator} after the message has been unmarshalled. The point
+ * of this validator is to reject junk, stale and replayed messages without the cost of parsing the message and
+ * verifying its signature. Note that none of the values read here are trusted, since the signature has not been
+ * verified.
+ * </p>
+ *
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+public class ResponsePreValidator {
+
+  /** Logging instance. */
+  private final Logger log = LoggerFactory.getLogger(ResponsePreValidator.class);
+
+  /** The validation settings. */
+  private final ResponseValidationSettings responseValidationSettings;
+
+  /** The StAX factory. */
+  private final XMLInputFactory xmlInputFactory;
+
+  /**
+   * Constructor.
+   *
+   * @param responseValidationSettings
+   *          the validation settings
+   */
+  public ResponsePreValidator(final ResponseValidationSettings responseValidationSettings) {
+    this.responseValidationSettings = responseValidationSettings;
+    this.xmlInputFactory = XMLInputFactory.newFactory();
+    this.xmlInputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+    this.xmlInputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+    this.xmlInputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+  }
+
+  /**
+   * Checks the start of the supplied (decoded) response message.
+   *
+   * @param response
+   *          the stream holding the decoded response message
+   * @param input
+   *          the processing input
+   * @param peerMetadataResolver
+   *          the metadata resolver
+   * @throws ResponseValidationException
+   *           if the message is invalid
+   */
+  public void validate(final InputStream response, final ResponseProcessingInput input,
+      final PeerMetadataResolver peerMetadataResolver) throws ResponseValidationException {
+
+    final Header header = this.readHeader(response);
+
+    if (input.getAuthnRequest() != null && !input.getAuthnRequest().getID().equals(header.inResponseTo)) {
+      throw this.reject(String.format("Expected Response message for AuthnRequest with ID '%s', but this Response is for '%s'",
+        input.getAuthnRequest().getID(), header.inResponseTo), header);
+    }
+    if (input.getReceiveURL() != null && !input.getReceiveURL().equals(header.destination)) {
+      throw this.reject(String.format("Destination attribute (%s) of Response does not match URL on which response was received (%s)",
+        header.destination, input.getReceiveURL()), header);
+    }
+
+    if (header.issueInstant == null) {
+      throw this.reject("Missing or invalid IssueInstant attribute in Response", header);
+    }
+    final Instant receiveInstant = input.getReceiveInstant() != null ? input.getReceiveInstant() : Instant.now();
+    final Duration allowedClockSkew = this.responseValidationSettings.getAllowedClockSkew();
+    if (Duration.between(header.issueInstant, receiveInstant).compareTo(
+      this.responseValidationSettings.getMaxAgeResponse().plus(allowedClockSkew)) > 0) {
+      throw this.reject(String.format("Received Response message is too old - issue-instant: %s - receive-time: %s",
+        header.issueInstant, receiveInstant), header);
+    }
+    if (Duration.between(receiveInstant, header.issueInstant).compareTo(allowedClockSkew) > 0) {
+      throw this.reject(String.format(
+        "Issue-instant of Response message (%s) is newer than receive time (%s) - Non accepted clock skew",
+        header.issueInstant, receiveInstant), header);
+    }
+
+    if (header.issuer == null) {
+      throw this.reject("Missing Issuer element in Response", header);
+    }
+    if (peerMetadataResolver.getMetadata(header.issuer) == null) {
+      throw this.reject(String.format("No metadata found for issuer '%s'", header.issuer), header);
+    }
+    log.trace("Pre-validation of Response succeeded [response-id:'{}']", header.id);
+  }
+
+  /**
+   * Reads the attributes of the {@code Response} element and the value of its {@code Issuer} element.
+   *
+   * @param response
+   *          the stream holding the decoded response message
+   * @return the header values
+   * @throws ResponseValidationException
+   *           if the message can not be read or is not a response message
+   */
+  private Header readHeader(final InputStream response) throws ResponseValidationException {
+    XMLStreamReader reader = null;
+    try {
+      reader = this.xmlInputFactory.createXMLStreamReader(response);
+      reader.nextTag();
+      if (!Response.DEFAULT_ELEMENT_NAME.equals(reader.getName())) {
+        throw this.reject(String.format("Message is not a Response - %s", reader.getName()), null);
+      }
+      final Header header = new Header();
+      header.id = reader.getAttributeValue(null, Response.ID_ATTRIB_NAME);
+      header.inResponseTo = reader.getAttributeValue(null, Response.IN_RESPONSE_TO_ATTRIB_NAME);
+      header.destination = reader.getAttributeValue(null, Response.DESTINATION_ATTRIB_NAME);
+      final String issueInstant = reader.getAttributeValue(null, Response.ISSUE_INSTANT_ATTRIB_NAME);
+      if (issueInstant != null) {
+        try {
+          header.issueInstant = Instant.parse(issueInstant.trim());
+        }
+        catch (DateTimeParseException e) {
+          log.debug("Invalid IssueInstant '{}'", issueInstant);
+        }
+      }
+
+      // The Issuer element must be the first child (if present).
+      if (reader.nextTag() == XMLStreamConstants.START_ELEMENT
+          && Issuer.DEFAULT_ELEMENT_NAME.equals(reader.getName())) {
+        header.issuer = reader.getElementText().trim();
+      }
+      return header;
+    }
+    catch (XMLStreamException e) {
+      throw this.reject("Failed to read Response - " + e.getMessage(), null);
+    }
+    finally {
+      if (reader != null) {
+        try {
+          reader.close();
+        }
+        catch (XMLStreamException e) {
+        }
+      }
+    }
+  }
+
+  /**
+   * Logs and creates an exception for a rejected message.
+   *
+   * @param msg
+   *          the error message
+   * @param header
+   *          the header values (may be {@code null})
+   * @return an exception
+   */
+  private ResponseValidationException reject(final String msg, final Header header) {
+    if (header != null) {
+      log.info("Pre-validation of Response failed - {} [response-id:'{}', issuer:'{}']", msg, header.id, header.issuer);
+    }
+    else {
+      log.info("Pre-validation of Response failed - {}", msg);
+    }
+    return new ResponseValidationException(msg);
+  }
+
+  /**
+   * The values read from the start of the message.
+   */
+  private static class Header {
+
+    /** The Response ID. */
+    private String id;
+
+    /** The InResponseTo attribute. */
+    private String inResponseTo;
+
+    /** The Destination attribute. */
+    private String destination;
+
+    /** The IssueInstant attribute. */
+    private Instant issueInstant;
+
+    /** The Issuer value. */
+    private String issuer;
+  }
+
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2016-2021 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.opensaml.saml2.common.response;
+
+/**
+ * Interface for collecting metrics from the response processing.
+ * <p>
+ * The {@link ResponseProcessorImpl} reports the time spent in each processing stage, and the outcome, total time and
+ * payload size of each processed response. Implementations must be thread safe.
+ * </p>
+ * 
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+public interface ResponseProcessingMetrics {
+
+  /** Metrics instance that does not record anything. */
+  ResponseProcessingMetrics NOOP = new ResponseProcessingMetrics() {
+
+    @Override
+    public boolean isEnabled() {
+      return false;
+    }
+
+    @Override
+    public void recordStage(final Stage stage, final long durationNanos, final boolean success) {
+    }
+
+    @Override
+    public void recordResponse(final Outcome outcome, final long durationNanos, final int payloadSize) {
+    }
+  };
+
+  /**
+   * The processing stages.
+   */
+  enum Stage {
+    /** Pre-validation of the encoded message (if enabled). */
+    PRE_VALIDATION,
+    /** Base64 decoding, parsing and unmarshalling. */
+    DECODE,
+    /** Lookup of the IdP metadata. */
+    METADATA_LOOKUP,
+    /** Validation of the response, including its signature. */
+    RESPONSE_VALIDATION,
+    /** The replay check. */
+    REPLAY_CHECK,
+    /** Check of the status and relay state. */
+    STATUS_CHECK,
+    /** Decryption of the assertion. */
+    DECRYPT,
+    /** Validation of the assertion, including its signature. */
+    ASSERTION_VALIDATION
+  }
+
+  /**
+   * The outcome of processing a response.
+   */
+  enum Outcome {
+    /** The response was successfully processed. */
+    SUCCESS,
+    /** The response indicates a non-successful status. */
+    STATUS_ERROR,
+    /** The response was rejected, or processing failed. */
+    FAILURE
+  }
+
+  /**
+   * Tells whether metrics are collected. If {@code false}, the processor does not measure anything.
+   * 
+   * @return whether metrics are collected
+   */
+  default boolean isEnabled() {
+    return true;
+  }
+
+  /**
+   * Records the time spent in a processing stage.
+   * 
+   * @param stage
+   *          the stage
+   * @param durationNanos
+   *          the time spent (in nanoseconds)
+   * @param success
+   *          whether the stage completed successfully
+   */
+  void recordStage(final Stage stage, final long durationNanos, final boolean success);
+
+  /**
+   * Records the outcome of processing a response.
+   * 
+   * @param outcome
+   *          the outcome
+   * @param durationNanos
+   *          the total processing time (in nanoseconds)
+   * @param payloadSize
+   *          the size of the received (Base64 encoded) message
+   */
+  void recordResponse(final Outcome outcome, final long durationNanos, final int payloadSize);
+
+}
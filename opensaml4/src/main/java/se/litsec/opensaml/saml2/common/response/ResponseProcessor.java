@@ -15,6 +15,8 @@
  */
 package se.litsec.opensaml.saml2.common.response;
 
+import java.util.concurrent.CompletableFuture;
+
 import org.opensaml.saml.common.assertion.ValidationContext;
 
 import se.litsec.opensaml.saml2.metadata.PeerMetadataResolver;
@@ -49,4 +51,40 @@ public interface ResponseProcessor {
       final ResponseProcessingInput input, final PeerMetadataResolver peerMetadataResolver, 
       final ValidationContext validationContext) throws ResponseStatusErrorException, ResponseProcessingException;
 
+  /**
+   * Processes a SAML response asynchronously. See
+   * {@link #processSamlResponse(String, String, ResponseProcessingInput, PeerMetadataResolver, ValidationContext)}.
+   * <p>
+   * The returned future completes exceptionally with a {@link ResponseStatusErrorException} if the response indicates a
+   * non-successful {@code Status}, or a {@link ResponseProcessingException} for other processing errors. Note that the
+   * exception may be wrapped in a {@link java.util.concurrent.CompletionException}.
+   * </p>
+   * <p>
+   * The default implementation processes the response in the calling thread and returns a completed future.
+   * </p>
+   * 
+   * @param samlResponse
+   *          the base64 encoded SAML response
+   * @param relayState
+   *          the received relay state
+   * @param input
+   *          the processing input
+   * @param peerMetadataResolver
+   *          a resolver for finding the peer metadata entry
+   * @param validationContext
+   *          optional validation context for controlling the validation and assertion validation process
+   * @return a future holding the result
+   */
+  default CompletableFuture<ResponseProcessingResult> processSamlResponseAsync(final String samlResponse,
+      final String relayState, final ResponseProcessingInput input, final PeerMetadataResolver peerMetadataResolver,
+      final ValidationContext validationContext) {
+    try {
+      return CompletableFuture.completedFuture(
+        this.processSamlResponse(samlResponse, relayState, input, peerMetadataResolver, validationContext));
+    }
+    catch (ResponseStatusErrorException | ResponseProcessingException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+  }
+
 }
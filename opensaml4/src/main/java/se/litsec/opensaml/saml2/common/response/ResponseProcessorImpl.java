@@ -15,9 +15,24 @@
  */
 package se.litsec.opensaml.saml2.common.response;
 
-import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.Arrays;
+import java.util.Base64;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 import org.opensaml.core.xml.io.UnmarshallingException;
 import org.opensaml.messaging.decoder.MessageDecodingException;
@@ -29,6 +44,7 @@ import org.opensaml.saml.saml2.assertion.impl.AudienceRestrictionConditionValida
 import org.opensaml.saml.saml2.assertion.impl.BearerSubjectConfirmationValidator;
 import org.opensaml.saml.saml2.core.Assertion;
 import org.opensaml.saml.saml2.core.AuthnRequest;
+import org.opensaml.saml.saml2.core.EncryptedAssertion;
 import org.opensaml.saml.saml2.core.Issuer;
 import org.opensaml.saml.saml2.core.Response;
 import org.opensaml.saml.saml2.core.StatusCode;
@@ -42,31 +58,37 @@ import org.opensaml.xmlsec.config.impl.DefaultSecurityConfigurationBootstrap;
 import org.opensaml.xmlsec.encryption.support.DecryptionException;
 import org.opensaml.xmlsec.signature.support.SignaturePrevalidator;
 import org.opensaml.xmlsec.signature.support.SignatureTrustEngine;
-import org.opensaml.xmlsec.signature.support.impl.ExplicitKeySignatureTrustEngine;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.util.Assert;
 
-import net.shibboleth.utilities.java.support.codec.Base64Support;
-import net.shibboleth.utilities.java.support.codec.DecodingException;
 import net.shibboleth.utilities.java.support.resolver.CriteriaSet;
 import net.shibboleth.utilities.java.support.xml.XMLParserException;
 import se.litsec.opensaml.saml2.common.assertion.AssertionValidationParametersBuilder;
 import se.litsec.opensaml.saml2.common.assertion.AssertionValidator;
 import se.litsec.opensaml.saml2.common.assertion.AuthnStatementValidator;
+import se.litsec.opensaml.saml2.metadata.CachingMetadataCredentialResolver;
 import se.litsec.opensaml.saml2.metadata.PeerMetadataResolver;
 import se.litsec.opensaml.utils.ObjectUtils;
+import se.litsec.opensaml.xmlsec.CachingSignatureTrustEngine;
+import se.litsec.opensaml.xmlsec.InMemoryTrustedKeyCache;
 import se.litsec.opensaml.xmlsec.SAMLObjectDecrypter;
+import se.litsec.opensaml.xmlsec.TrustedKeyCache;
 
 /**
  * Response processor for SAML Response messages.
  * <p>
- * Note that {@link #initialize()} must be invoked before the bean can be used.
+ * Note that {@link #initialize()} must be invoked before the bean can be used, and that {@link #destroy()} should be
+ * invoked when the bean is no longer used (so that the default executor for asynchronous processing is shut down).
  * </p>
  * 
  * @author Martin Lindström (martin.lindstrom@litsec.se)
  */
-public class ResponseProcessorImpl implements ResponseProcessor {
+public class ResponseProcessorImpl implements ResponseProcessor, DisposableBean {
+
+  /** The queue size of the default executor for asynchronous processing. */
+  public static final int DEFAULT_PROCESSING_QUEUE_SIZE = 1000;
 
   /** Logging instance. */
   private final Logger log = LoggerFactory.getLogger(ResponseProcessorImpl.class);
@@ -80,9 +102,15 @@ public class ResponseProcessorImpl implements ResponseProcessor {
   /** Used to locate certificates from the IdP metadata. */
   protected MetadataCredentialResolver metadataCredentialResolver;
 
+  /** The maximum number of entries in the cache of credentials resolved from metadata (0 means no caching). */
+  protected int credentialCacheSize = CachingMetadataCredentialResolver.DEFAULT_MAX_SIZE;
+
   /** The signature trust engine to be used when validating signatures. */
   protected SignatureTrustEngine signatureTrustEngine;
 
+  /** Cache for the IdP keys used when validating signatures. */
+  protected TrustedKeyCache trustedKeyCache;
+
   /** Validator for checking the a Signature is correct with respect to the standards. */
   protected SignaturePrevalidator signatureProfileValidator = new SAMLSignatureProfileValidator();
 
@@ -95,6 +123,27 @@ public class ResponseProcessorImpl implements ResponseProcessor {
   /** Static response validation settings. */
   protected ResponseValidationSettings responseValidationSettings;
 
+  /** The maximum size (in bytes) of a decoded response message. Default: no limit. */
+  protected int maxResponseSize = 0;
+
+  /** Validator performing cheap checks before the response is parsed. */
+  protected ResponsePreValidator responsePreValidator;
+
+  /** Should the response be pre-validated before it is parsed? The default is {@code false}. */
+  protected boolean preValidation = false;
+
+  /** Should the assertion be decrypted while the Response signature is verified? The default is {@code false}. */
+  protected boolean parallelDecryption = false;
+
+  /** The metrics for the response processing. */
+  protected ResponseProcessingMetrics metrics = ResponseProcessingMetrics.NOOP;
+
+  /** The executor for asynchronous processing. */
+  protected Executor processingExecutor;
+
+  /** The executor for asynchronous processing that we created (and should shut down). */
+  private ExecutorService ownedExecutor;
+
   /** Do we require assertions to be encrypted? The default is {@code true}. */
   protected boolean requireEncryptedAssertions = true;
 
@@ -107,30 +156,233 @@ public class ResponseProcessorImpl implements ResponseProcessor {
       final ResponseProcessingInput input, final PeerMetadataResolver peerMetadataResolver,
       final ValidationContext validationContext) throws ResponseStatusErrorException, ResponseProcessingException {
 
+    final StageTimer timer = this.createTimer(samlResponse);
     try {
-      // Step 1: Decode the SAML response message.
+      final ProcessingState state = this.decodeAndValidateResponse(samlResponse, relayState, input, peerMetadataResolver,
+        validationContext, timer);
+
+      // Step 3: Make sure this isn't a replay attack
       //
-      final Response response = this.decodeResponse(samlResponse);
+      timer.stage(ResponseProcessingMetrics.Stage.REPLAY_CHECK);
+      this.messageReplayChecker.checkReplay(state.response);
 
-      if (log.isTraceEnabled()) {
-        log.trace("[{}] Decoded Response: {}", logId(response), ObjectUtils.toStringSafe(response));
-      }
+      final ResponseProcessingResult result = this.completeProcessing(state, relayState, input, validationContext);
+      timer.finish(ResponseProcessingMetrics.Outcome.SUCCESS);
+      return result;
+    }
+    catch (ResponseStatusErrorException e) {
+      timer.finish(ResponseProcessingMetrics.Outcome.STATUS_ERROR);
+      throw e;
+    }
+    catch (MessageReplayException e) {
+      timer.finish(ResponseProcessingMetrics.Outcome.FAILURE);
+      throw new ResponseProcessingException("Message replay: " + e.getMessage(), e);
+    }
+    catch (ResponseProcessingException | RuntimeException e) {
+      timer.finish(ResponseProcessingMetrics.Outcome.FAILURE);
+      throw e;
+    }
+  }
 
-      // The IdP metadata is required for all steps below ...
-      //
-      final String issuer = Optional.ofNullable(response.getIssuer()).map(Issuer::getValue).orElse(null);
-      final EntityDescriptor idpMetadata = issuer != null ? peerMetadataResolver.getMetadata(issuer) : null;
+  /**
+   * Processes the response in stages. Decoding, signature validation, decryption and assertion validation are performed
+   * by the processing executor (see {@link #setProcessingExecutor(Executor)}). If the message replay checker is an
+   * {@link AsyncMessageReplayChecker}, the replay check does not occupy any thread while waiting for the replay cache.
+   */
+  @Override
+  public CompletableFuture<ResponseProcessingResult> processSamlResponseAsync(final String samlResponse, final String relayState,
+      final ResponseProcessingInput input, final PeerMetadataResolver peerMetadataResolver,
+      final ValidationContext validationContext) {
 
-      // Step 2: Validate the Response (including its signature).
-      //
+    final StageTimer timer = this.createTimer(samlResponse);
+    final CompletableFuture<ProcessingState> validated;
+    try {
+      validated = CompletableFuture.supplyAsync(unchecked(
+        () -> this.decodeAndValidateResponse(samlResponse, relayState, input, peerMetadataResolver, validationContext, timer)),
+        this.processingExecutor);
+    }
+    catch (RejectedExecutionException e) {
+      timer.finish(ResponseProcessingMetrics.Outcome.FAILURE);
+      return CompletableFuture.failedFuture(this.processingRejected(e));
+    }
+    return validated
+      .thenCompose(this::checkReplayAsync)
+      .thenCompose(state -> this.completeProcessingAsync(state, relayState, input, validationContext))
+      .whenComplete((result, error) -> {
+        if (error == null) {
+          timer.finish(ResponseProcessingMetrics.Outcome.SUCCESS);
+        }
+        else {
+          final Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+          timer.finish(cause instanceof ResponseStatusErrorException
+              ? ResponseProcessingMetrics.Outcome.STATUS_ERROR
+              : ResponseProcessingMetrics.Outcome.FAILURE);
+        }
+      });
+  }
+
+  /**
+   * Decodes the response, resolves the IdP metadata and validates the response (including its signature).
+   * 
+   * @param samlResponse
+   *          the base64 encoded SAML response
+   * @param relayState
+   *          the received relay state
+   * @param input
+   *          the processing input
+   * @param peerMetadataResolver
+   *          a resolver for finding the peer metadata entry
+   * @param validationContext
+   *          optional validation context
+   * @param timer
+   *          the stage timer
+   * @return the processing state
+   * @throws ResponseProcessingException
+   *           for decoding and validation errors
+   */
+  private ProcessingState decodeAndValidateResponse(final String samlResponse, final String relayState,
+      final ResponseProcessingInput input, final PeerMetadataResolver peerMetadataResolver,
+      final ValidationContext validationContext, final StageTimer timer) throws ResponseProcessingException {
+
+    // Step 0: Reject junk, stale and unknown messages before they are parsed (if enabled).
+    //
+    if (this.preValidation) {
+      timer.stage(ResponseProcessingMetrics.Stage.PRE_VALIDATION);
+      this.preValidateResponse(samlResponse, input, peerMetadataResolver);
+    }
+
+    // Step 1: Decode the SAML response message.
+    //
+    timer.stage(ResponseProcessingMetrics.Stage.DECODE);
+    final Response response = this.decodeResponse(samlResponse);
+
+    if (log.isTraceEnabled()) {
+      log.trace("[{}] Decoded Response: {}", logId(response), ObjectUtils.toStringSafe(response));
+    }
+
+    // The IdP metadata is required for all steps below ...
+    //
+    timer.stage(ResponseProcessingMetrics.Stage.METADATA_LOOKUP);
+    final String issuer = Optional.ofNullable(response.getIssuer()).map(Issuer::getValue).orElse(null);
+    final EntityDescriptor idpMetadata = issuer != null ? peerMetadataResolver.getMetadata(issuer) : null;
+
+    // If enabled, start decrypting the assertion while the Response signature is verified.
+    //
+    final AssertionDecryption decryption = this.parallelDecryption && !response.getEncryptedAssertions().isEmpty()
+        ? new AssertionDecryption(this.decrypter, response.getEncryptedAssertions().get(0), this.processingExecutor)
+        : null;
+
+    // Step 2: Validate the Response (including its signature).
+    //
+    timer.stage(ResponseProcessingMetrics.Stage.RESPONSE_VALIDATION);
+    try {
       this.validateResponse(response, relayState, input, idpMetadata, validationContext);
+    }
+    catch (ResponseProcessingException | RuntimeException e) {
+      if (decryption != null) {
+        decryption.cancel();
+      }
+      throw e;
+    }
 
-      // Step 3: Make sure this isn't a replay attack
-      //
-      this.messageReplayChecker.checkReplay(response);
+    return new ProcessingState(response, idpMetadata, timer, decryption);
+  }
 
+  /**
+   * Performs the replay check without blocking if the replay checker is an {@link AsyncMessageReplayChecker}.
+   * 
+   * @param state
+   *          the processing state
+   * @return a completion stage that completes with the supplied state if the check succeeds
+   */
+  private CompletionStage<ProcessingState> checkReplayAsync(final ProcessingState state) {
+    state.timer.stage(ResponseProcessingMetrics.Stage.REPLAY_CHECK);
+    if (this.messageReplayChecker instanceof AsyncMessageReplayChecker) {
+      return ((AsyncMessageReplayChecker) this.messageReplayChecker).checkReplayAsync(state.response)
+        .handle((v, e) -> {
+          if (e == null) {
+            return state;
+          }
+          final Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+          throw new CompletionException(new ResponseProcessingException("Message replay: " + cause.getMessage(), cause));
+        });
+    }
+    try {
+      this.messageReplayChecker.checkReplay(state.response);
+      return CompletableFuture.completedFuture(state);
+    }
+    catch (MessageReplayException e) {
+      return CompletableFuture.failedFuture(new ResponseProcessingException("Message replay: " + e.getMessage(), e));
+    }
+  }
+
+  /**
+   * Schedules {@link #completeProcessing(ProcessingState, String, ResponseProcessingInput, ValidationContext)} on the
+   * processing executor. If the executor rejects the task, the returned stage fails with a
+   * {@link ResponseProcessingException}.
+   * 
+   * @param state
+   *          the processing state
+   * @param relayState
+   *          the received relay state
+   * @param input
+   *          the processing input
+   * @param validationContext
+   *          optional validation context
+   * @return a completion stage for the result
+   */
+  private CompletableFuture<ResponseProcessingResult> completeProcessingAsync(final ProcessingState state,
+      final String relayState, final ResponseProcessingInput input, final ValidationContext validationContext) {
+    try {
+      return CompletableFuture.supplyAsync(
+        unchecked(() -> this.completeProcessing(state, relayState, input, validationContext)), this.processingExecutor);
+    }
+    catch (RejectedExecutionException e) {
+      if (state.decryption != null) {
+        state.decryption.cancel();
+      }
+      return CompletableFuture.failedFuture(this.processingRejected(e));
+    }
+  }
+
+  /**
+   * Creates the exception that is reported when the processing executor rejects a task.
+   * 
+   * @param e
+   *          the rejection
+   * @return a processing exception
+   */
+  private ResponseProcessingException processingRejected(final RejectedExecutionException e) {
+    log.warn("Response processing rejected - {}", e.getMessage());
+    return new ResponseProcessingException("Response processing rejected - too many concurrent requests", e);
+  }
+
+  /**
+   * Checks the status and relay state of a validated response, and decrypts and validates its assertion.
+   * 
+   * @param state
+   *          the processing state
+   * @param relayState
+   *          the received relay state
+   * @param input
+   *          the processing input
+   * @param validationContext
+   *          optional validation context
+   * @return the result
+   * @throws ResponseStatusErrorException
+   *           if the response indicates a non-successful {@code Status}
+   * @throws ResponseProcessingException
+   *           for other processing errors
+   */
+  private ResponseProcessingResult completeProcessing(final ProcessingState state, final String relayState,
+      final ResponseProcessingInput input, final ValidationContext validationContext)
+      throws ResponseStatusErrorException, ResponseProcessingException {
+
+    final Response response = state.response;
+    try {
       // Step 4. Check Status
       //
+      state.timer.stage(ResponseProcessingMetrics.Stage.STATUS_CHECK);
       if (!StatusCode.SUCCESS.equals(response.getStatus().getStatusCode().getValue())) {
         log.info("Authentication failed with status '{}' [{}]",
           ResponseStatusErrorException.statusToString(response.getStatus()), logId(response));
@@ -145,7 +397,10 @@ public class ResponseProcessorImpl implements ResponseProcessor {
       //
       Assertion assertion = null;
       if (!response.getEncryptedAssertions().isEmpty()) {
-        assertion = this.decrypter.decrypt(response.getEncryptedAssertions().get(0), Assertion.class);
+        state.timer.stage(ResponseProcessingMetrics.Stage.DECRYPT);
+        assertion = state.decryption != null
+            ? state.decryption.get()
+            : this.decrypter.decrypt(response.getEncryptedAssertions().get(0), Assertion.class);
         if (log.isTraceEnabled()) {
           log.trace("[{}] Decrypted Assertion: {}", logId(response, assertion), ObjectUtils.toStringSafe(assertion));
         }
@@ -162,15 +417,13 @@ public class ResponseProcessorImpl implements ResponseProcessor {
 
       // Step 7. Validate the assertion
       //
-      this.validateAssertion(assertion, response, input, idpMetadata, validationContext);
+      state.timer.stage(ResponseProcessingMetrics.Stage.ASSERTION_VALIDATION);
+      this.validateAssertion(assertion, response, input, state.idpMetadata, validationContext);
 
       // And finally, build the result.
       //
       return new ResponseProcessingResultImpl(assertion);
     }
-    catch (MessageReplayException e) {
-      throw new ResponseProcessingException("Message replay: " + e.getMessage(), e);
-    }
     catch (DecryptionException e) {
       throw new ResponseProcessingException("Failed to decrypt assertion: " + e.getMessage(), e);
     }
@@ -200,13 +453,25 @@ public class ResponseProcessorImpl implements ResponseProcessor {
 
     if (!this.isInitialized) {
 
-      this.metadataCredentialResolver = new MetadataCredentialResolver();
+      this.responsePreValidator = new ResponsePreValidator(this.responseValidationSettings);
+
+      if (this.processingExecutor == null) {
+        this.ownedExecutor = createProcessingExecutor();
+        this.processingExecutor = this.ownedExecutor;
+      }
+
+      this.metadataCredentialResolver = this.credentialCacheSize > 0
+          ? new CachingMetadataCredentialResolver(this.credentialCacheSize)
+          : new MetadataCredentialResolver();
       this.metadataCredentialResolver.setKeyInfoCredentialResolver(DefaultSecurityConfigurationBootstrap
         .buildBasicInlineKeyInfoCredentialResolver());
       this.metadataCredentialResolver.initialize();
 
-      this.signatureTrustEngine = new ExplicitKeySignatureTrustEngine(this.metadataCredentialResolver,
-        DefaultSecurityConfigurationBootstrap.buildBasicInlineKeyInfoCredentialResolver());
+      if (this.trustedKeyCache == null) {
+        this.trustedKeyCache = new InMemoryTrustedKeyCache();
+      }
+      this.signatureTrustEngine = new CachingSignatureTrustEngine(this.metadataCredentialResolver,
+        DefaultSecurityConfigurationBootstrap.buildBasicInlineKeyInfoCredentialResolver(), this.trustedKeyCache);
 
       this.responseValidator = this.createResponseValidator(signatureTrustEngine, signatureProfileValidator);
       Assert.notNull(this.responseValidator, "createResponseValidator must not return null");
@@ -217,6 +482,21 @@ public class ResponseProcessorImpl implements ResponseProcessor {
     }
   }
 
+  /**
+   * Shuts down the default executor for asynchronous processing, if it was created by this processor. An executor
+   * assigned using {@link #setProcessingExecutor(Executor)} is not shut down. After this call, the processor must be
+   * initialized again before it can be used.
+   */
+  @Override
+  public void destroy() throws Exception {
+    if (this.ownedExecutor != null) {
+      this.ownedExecutor.shutdown();
+      this.ownedExecutor = null;
+      this.processingExecutor = null;
+    }
+    this.isInitialized = false;
+  }
+
   /**
    * Sets up the response validator.
    * <p>
@@ -261,6 +541,10 @@ public class ResponseProcessorImpl implements ResponseProcessor {
 
   /**
    * Decodes the received SAML response message into a {@link Response} object.
+   * <p>
+   * The Base64 decoding is streamed directly into the XML parser, so no copy of the decoded message is created. If a
+   * maximum response size has been assigned, parsing is aborted as soon as the decoded message exceeds it.
+   * </p>
    * 
    * @param samlResponse
    *          the Base64 encoded SAML response
@@ -269,19 +553,56 @@ public class ResponseProcessorImpl implements ResponseProcessor {
    *           for decoding errors
    */
   protected Response decodeResponse(final String samlResponse) throws ResponseProcessingException {
+    final SizeLimitedInputStream stream = this.createDecodingStream(samlResponse);
     try {
-      final byte[] decodedBytes = Base64Support.decode(samlResponse);
-      if (decodedBytes == null) {
-        log.error("Unable to Base64 decode SAML response message");
-        throw new MessageDecodingException("Unable to Base64 decode SAML response message");
-      }
-      return ObjectUtils.unmarshall(new ByteArrayInputStream(decodedBytes), Response.class);
+      return ObjectUtils.unmarshall(stream, Response.class);
     }
-    catch (MessageDecodingException | XMLParserException | UnmarshallingException | DecodingException e) {
+    catch (XMLParserException | UnmarshallingException e) {
+      if (stream.isLimitExceeded()) {
+        final String msg = String.format("SAML response message exceeds the maximum allowed size (%d bytes)", this.maxResponseSize);
+        log.error("{}", msg);
+        throw new ResponseProcessingException(msg);
+      }
       throw new ResponseProcessingException("Failed to decode message", e);
     }
   }
 
+  /**
+   * Performs cheap checks of the received SAML response message before it is parsed, see {@link ResponsePreValidator}.
+   * 
+   * @param samlResponse
+   *          the Base64 encoded SAML response
+   * @param input
+   *          the processing input
+   * @param peerMetadataResolver
+   *          the metadata resolver
+   * @throws ResponseProcessingException
+   *           if the message is rejected
+   */
+  protected void preValidateResponse(final String samlResponse, final ResponseProcessingInput input,
+      final PeerMetadataResolver peerMetadataResolver) throws ResponseProcessingException {
+    this.responsePreValidator.validate(this.createDecodingStream(samlResponse), input, peerMetadataResolver);
+  }
+
+  /**
+   * Creates a stream that Base64 decodes the received SAML response message (within the size limit).
+   * 
+   * @param samlResponse
+   *          the Base64 encoded SAML response
+   * @return a stream
+   * @throws ResponseProcessingException
+   *           if the message is empty
+   */
+  private SizeLimitedInputStream createDecodingStream(final String samlResponse) throws ResponseProcessingException {
+    if (samlResponse == null || samlResponse.isEmpty()) {
+      log.error("Unable to Base64 decode SAML response message");
+      throw new ResponseProcessingException("Failed to decode message",
+        new MessageDecodingException("Unable to Base64 decode SAML response message"));
+    }
+    return new SizeLimitedInputStream(
+      Base64.getDecoder().wrap(new AsciiCharSequenceInputStream(samlResponse)), this.maxResponseSize);
+  }
+
   /**
    * Validates the response including its signature.
    * 
@@ -467,6 +788,100 @@ public class ResponseProcessorImpl implements ResponseProcessor {
     this.messageReplayChecker = messageReplayChecker;
   }
 
+  /**
+   * Assigns the maximum number of entries in the cache of credentials that are resolved from IdP metadata. A value of 0
+   * turns off caching. The default is {@value CachingMetadataCredentialResolver#DEFAULT_MAX_SIZE}.
+   * 
+   * @param credentialCacheSize
+   *          the maximum number of cache entries
+   * @see CachingMetadataCredentialResolver
+   */
+  public void setCredentialCacheSize(final int credentialCacheSize) {
+    this.credentialCacheSize = credentialCacheSize;
+  }
+
+  /**
+   * Assigns the cache for the IdP keys that are used when validating signatures. The keys of an IdP are resolved from
+   * its metadata once, and are resolved again when the IdP metadata has been refreshed. If not assigned, an
+   * {@link InMemoryTrustedKeyCache} is used.
+   * 
+   * @param trustedKeyCache
+   *          the cache
+   */
+  public void setTrustedKeyCache(final TrustedKeyCache trustedKeyCache) {
+    this.trustedKeyCache = trustedKeyCache;
+  }
+
+  /**
+   * Assigns the maximum size (in bytes) of a decoded response message. Larger messages are rejected before they are
+   * fully read. Default is no limit.
+   * 
+   * @param maxResponseSize
+   *          the maximum size in bytes (0 means no limit)
+   */
+  public void setMaxResponseSize(final int maxResponseSize) {
+    if (maxResponseSize < 0) {
+      throw new IllegalArgumentException("maxResponseSize must not be negative");
+    }
+    this.maxResponseSize = maxResponseSize;
+  }
+
+  /**
+   * Assigns whether the response should be checked before it is parsed. If enabled, the attributes of the
+   * {@code Response} element and its {@code Issuer} are read using StAX, and junk, stale and unknown messages are
+   * rejected before the DOM is built and the signature is verified. The default is {@code false}.
+   * 
+   * @param preValidation
+   *          whether to pre-validate responses
+   * @see ResponsePreValidator
+   */
+  public void setPreValidation(final boolean preValidation) {
+    this.preValidation = preValidation;
+  }
+
+  /**
+   * Assigns the executor that performs the CPU-heavy steps (decoding, signature validation and decryption) of
+   * {@link #processSamlResponseAsync(String, String, ResponseProcessingInput, PeerMetadataResolver, ValidationContext)}.
+   * If not assigned, a bounded thread pool with one thread per available processor is used.
+   * 
+   * @param processingExecutor
+   *          the executor
+   */
+  public void setProcessingExecutor(final Executor processingExecutor) {
+    this.processingExecutor = processingExecutor;
+  }
+
+  /**
+   * Assigns whether the assertion should be decrypted concurrently with the verification of the Response signature.
+   * The decryption runs on the processing executor (see {@link #setProcessingExecutor(Executor)}). The assertion
+   * (including its signature) is validated after the Response has been validated and checked against replay, just as
+   * for sequential processing, so it is only the decryption that overlaps the Response signature verification. This
+   * reduces the latency for each response on multi-core hosts, but uses two threads per response. If the executor
+   * rejects the decryption task, or there is no executor, the assertion is decrypted by the processing thread.
+   * <p>
+   * The result is the same as for sequential processing. The decrypted assertion is not used unless the Response is
+   * valid, and errors are reported in the same order as for sequential processing (a Response validation error is
+   * always reported before a decryption error). The default is {@code false}.
+   * </p>
+   * 
+   * @param parallelDecryption
+   *          whether to decrypt the assertion concurrently with the Response signature verification
+   */
+  public void setParallelDecryption(final boolean parallelDecryption) {
+    this.parallelDecryption = parallelDecryption;
+  }
+
+  /**
+   * Assigns the metrics instance that should be informed about the processing stages and outcome of each processed
+   * response. The default is {@link ResponseProcessingMetrics#NOOP}, which means that nothing is measured.
+   * 
+   * @param metrics
+   *          the metrics instance
+   */
+  public void setMetrics(final ResponseProcessingMetrics metrics) {
+    this.metrics = metrics != null ? metrics : ResponseProcessingMetrics.NOOP;
+  }
+
   /**
    * Assigns the response validation settings.
    * 
@@ -497,4 +912,441 @@ public class ResponseProcessorImpl implements ResponseProcessor {
       Optional.ofNullable(assertion.getID()).orElse("<empty>"));
   }
 
+  /**
+   * Creates a stage timer for a new response.
+   * 
+   * @param samlResponse
+   *          the received message
+   * @return a timer
+   */
+  private StageTimer createTimer(final String samlResponse) {
+    return this.metrics.isEnabled()
+        ? new StageTimer(this.metrics, samlResponse != null ? samlResponse.length() : 0)
+        : StageTimer.DISABLED;
+  }
+
+  /**
+   * Creates the default executor for asynchronous processing. The pool has one (daemon) thread per available processor
+   * and a bounded queue. If the queue is full, new requests are rejected.
+   * 
+   * @return an executor
+   */
+  private static ExecutorService createProcessingExecutor() {
+    final int size = Runtime.getRuntime().availableProcessors();
+    final AtomicInteger threadNumber = new AtomicInteger(1);
+    final ThreadPoolExecutor pool = new ThreadPoolExecutor(size, size, 60L, TimeUnit.SECONDS,
+      new LinkedBlockingQueue<>(DEFAULT_PROCESSING_QUEUE_SIZE), r -> {
+        final Thread thread = new Thread(r, "response-processor-" + threadNumber.getAndIncrement());
+        thread.setDaemon(true);
+        return thread;
+      });
+    pool.allowCoreThreadTimeOut(true);
+    return pool;
+  }
+
+  /**
+   * Turns a processing step into a supplier that throws a {@link CompletionException} wrapping any checked exception.
+   * 
+   * @param step
+   *          the processing step
+   * @param <T>
+   *          the type of the step result
+   * @return a supplier
+   */
+  private static <T> Supplier<T> unchecked(final ProcessingStep<T> step) {
+    return () -> {
+      try {
+        return step.execute();
+      }
+      catch (RuntimeException e) {
+        throw e;
+      }
+      catch (Exception e) {
+        throw new CompletionException(e);
+      }
+    };
+  }
+
+  /**
+   * A processing step that may throw checked exceptions.
+   * 
+   * @param <T>
+   *          the type of the step result
+   */
+  @FunctionalInterface
+  private interface ProcessingStep<T> {
+
+    /**
+     * Executes the step.
+     * 
+     * @return the step result
+     * @throws Exception
+     *           for processing errors
+     */
+    T execute() throws Exception;
+  }
+
+  /**
+   * The state passed between the processing steps.
+   */
+  private static class ProcessingState {
+
+    /** The decoded and validated response. */
+    private final Response response;
+
+    /** The IdP metadata. */
+    private final EntityDescriptor idpMetadata;
+
+    /** The stage timer. */
+    private final StageTimer timer;
+
+    /** The started decryption of the assertion (null if not started). */
+    private final AssertionDecryption decryption;
+
+    /**
+     * Constructor.
+     * 
+     * @param response
+     *          the response
+     * @param idpMetadata
+     *          the IdP metadata
+     * @param timer
+     *          the stage timer
+     * @param decryption
+     *          the started decryption of the assertion (may be null)
+     */
+    ProcessingState(final Response response, final EntityDescriptor idpMetadata, final StageTimer timer,
+        final AssertionDecryption decryption) {
+      this.response = response;
+      this.idpMetadata = idpMetadata;
+      this.timer = timer;
+      this.decryption = decryption;
+    }
+  }
+
+  /**
+   * Decryption of an assertion that runs on an executor while the Response signature is verified.
+   * <p>
+   * The decryption is performed once, either by the executor or, if the executor has not started it when the result is
+   * needed, by the thread asking for the result. This way a busy (or single-threaded) executor can never make the
+   * processing wait for a task that is queued behind it.
+   * </p>
+   */
+  private static class AssertionDecryption implements Runnable {
+
+    /** The decrypter. */
+    private final SAMLObjectDecrypter decrypter;
+
+    /** The encrypted assertion. */
+    private final EncryptedAssertion encryptedAssertion;
+
+    /** Set by the thread that performs the decryption. */
+    private final AtomicBoolean claimed = new AtomicBoolean(false);
+
+    /** The result. */
+    private final CompletableFuture<Assertion> result = new CompletableFuture<>();
+
+    /**
+     * Constructor. Schedules the decryption on the supplied executor.
+     * 
+     * @param decrypter
+     *          the decrypter
+     * @param encryptedAssertion
+     *          the encrypted assertion
+     * @param executor
+     *          the executor (if null, the decryption is performed by the thread asking for the result)
+     */
+    AssertionDecryption(final SAMLObjectDecrypter decrypter, final EncryptedAssertion encryptedAssertion,
+        final Executor executor) {
+      this.decrypter = decrypter;
+      this.encryptedAssertion = encryptedAssertion;
+      if (executor == null) {
+        return;
+      }
+      try {
+        executor.execute(this);
+      }
+      catch (RejectedExecutionException e) {
+        // The decryption will be performed by the thread asking for the result.
+      }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void run() {
+      if (!this.claimed.compareAndSet(false, true)) {
+        return;
+      }
+      try {
+        this.result.complete(this.decrypter.decrypt(this.encryptedAssertion, Assertion.class));
+      }
+      catch (DecryptionException | RuntimeException e) {
+        this.result.completeExceptionally(e);
+      }
+    }
+
+    /**
+     * Cancels the decryption (if not already started).
+     */
+    void cancel() {
+      this.claimed.set(true);
+    }
+
+    /**
+     * Waits for, and returns, the decrypted assertion.
+     * 
+     * @return the decrypted assertion
+     * @throws DecryptionException
+     *           for decryption errors
+     */
+    Assertion get() throws DecryptionException {
+      this.run();
+      try {
+        return this.result.join();
+      }
+      catch (CompletionException e) {
+        if (e.getCause() instanceof DecryptionException) {
+          throw (DecryptionException) e.getCause();
+        }
+        if (e.getCause() instanceof RuntimeException) {
+          throw (RuntimeException) e.getCause();
+        }
+        throw e;
+      }
+    }
+  }
+
+  /**
+   * Measures the processing stages of one response and reports them to the metrics instance. A timer for disabled
+   * metrics does nothing.
+   */
+  private static class StageTimer {
+
+    /** Timer used when metrics are disabled. */
+    private static final StageTimer DISABLED = new StageTimer(null, 0);
+
+    /** The metrics (null if disabled). */
+    private final ResponseProcessingMetrics metrics;
+
+    /** The size of the received message. */
+    private final int payloadSize;
+
+    /** The processing start time. */
+    private final long startTime;
+
+    /** The current stage. */
+    private ResponseProcessingMetrics.Stage stage;
+
+    /** The start time of the current stage. */
+    private long stageStartTime;
+
+    /**
+     * Constructor.
+     * 
+     * @param metrics
+     *          the metrics (null if disabled)
+     * @param payloadSize
+     *          the size of the received message
+     */
+    StageTimer(final ResponseProcessingMetrics metrics, final int payloadSize) {
+      this.metrics = metrics;
+      this.payloadSize = payloadSize;
+      this.startTime = metrics != null ? System.nanoTime() : 0L;
+    }
+
+    /**
+     * Ends the current stage (successfully) and starts the next.
+     * 
+     * @param next
+     *          the next stage
+     */
+    void stage(final ResponseProcessingMetrics.Stage next) {
+      if (this.metrics == null) {
+        return;
+      }
+      final long now = System.nanoTime();
+      if (this.stage != null) {
+        this.metrics.recordStage(this.stage, now - this.stageStartTime, true);
+      }
+      this.stage = next;
+      this.stageStartTime = now;
+    }
+
+    /**
+     * Ends the current stage and records the outcome.
+     * 
+     * @param outcome
+     *          the outcome
+     */
+    void finish(final ResponseProcessingMetrics.Outcome outcome) {
+      if (this.metrics == null) {
+        return;
+      }
+      final long now = System.nanoTime();
+      if (this.stage != null) {
+        this.metrics.recordStage(this.stage, now - this.stageStartTime, outcome != ResponseProcessingMetrics.Outcome.FAILURE);
+        this.stage = null;
+      }
+      this.metrics.recordResponse(outcome, now - this.startTime, this.payloadSize);
+    }
+  }
+
+  /**
+   * Input stream reading the characters of a Base64 string as ASCII bytes, without copying the string. Whitespace
+   * (such as the line breaks of chunked Base64) is skipped, so the stream can be decoded using the strict Base64
+   * decoder. A character outside of the ASCII range causes an {@link IOException}.
+   */
+  private static class AsciiCharSequenceInputStream extends InputStream {
+
+    /** The characters. */
+    private final CharSequence chars;
+
+    /** The current position. */
+    private int pos = 0;
+
+    /**
+     * Constructor.
+     * 
+     * @param chars
+     *          the characters to read
+     */
+    AsciiCharSequenceInputStream(final CharSequence chars) {
+      this.chars = chars;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int read() throws IOException {
+      while (this.pos < this.chars.length()) {
+        final char c = this.chars.charAt(this.pos++);
+        if (!isWhitespace(c)) {
+          return toAscii(c);
+        }
+      }
+      return -1;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      int n = 0;
+      while (n < len && this.pos < this.chars.length()) {
+        final char c = this.chars.charAt(this.pos++);
+        if (!isWhitespace(c)) {
+          b[off + n++] = (byte) toAscii(c);
+        }
+      }
+      return n > 0 ? n : -1;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int available() {
+      return this.chars.length() - this.pos;
+    }
+
+    /**
+     * Tells whether the character is whitespace that may appear in Base64 encoded data.
+     * 
+     * @param c
+     *          the character
+     * @return {@code true} for whitespace
+     */
+    private static boolean isWhitespace(final char c) {
+      return c == ' ' || c == '\t' || c == '\r' || c == '\n';
+    }
+
+    /**
+     * Returns the ASCII value of the character.
+     * 
+     * @param c
+     *          the character
+     * @return the ASCII value
+     * @throws IOException
+     *           if the character is not an ASCII character
+     */
+    private static int toAscii(final char c) throws IOException {
+      if (c > 0x7f) {
+        throw new IOException(String.format("Invalid character in Base64 encoded data (0x%04x)", (int) c));
+      }
+      return c;
+    }
+  }
+
+  /**
+   * Input stream that fails with an {@link IOException} if more than a given number of bytes are read.
+   */
+  private static class SizeLimitedInputStream extends FilterInputStream {
+
+    /** The maximum number of bytes (0 means no limit). */
+    private final long limit;
+
+    /** The number of bytes read. */
+    private long count = 0;
+
+    /** Whether the limit has been exceeded. */
+    private boolean limitExceeded = false;
+
+    /**
+     * Constructor.
+     * 
+     * @param in
+     *          the stream to read from
+     * @param limit
+     *          the maximum number of bytes (0 means no limit)
+     */
+    SizeLimitedInputStream(final InputStream in, final long limit) {
+      super(in);
+      this.limit = limit;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int read() throws IOException {
+      final int b = super.read();
+      if (b != -1) {
+        this.count(1);
+      }
+      return b;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+      final int n = super.read(b, off, len);
+      if (n > 0) {
+        this.count(n);
+      }
+      return n;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long skip(final long n) throws IOException {
+      final long skipped = super.skip(n);
+      this.count(skipped);
+      return skipped;
+    }
+
+    /**
+     * Tells whether the limit has been exceeded.
+     * 
+     * @return {@code true} if the limit was exceeded
+     */
+    boolean isLimitExceeded() {
+      return this.limitExceeded;
+    }
+
+    private void count(final long n) throws IOException {
+      this.count += n;
+      if (this.limit > 0 && this.count > this.limit) {
+        this.limitExceeded = true;
+        throw new IOException(String.format("Stream exceeds the maximum allowed size (%d bytes)", this.limit));
+      }
+    }
+  }
+
 }
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2016-2021 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.opensaml.saml2.common.response;
+
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An in-memory {@link ResponseProcessingMetrics} implementation.
+ * <p>
+ * The metrics are kept in the same shape as in common meter registries (such as Micrometer): one timer per stage (with
+ * count, total time and max), one timer per outcome, counters for failed stages and a distribution summary of the
+ * payload sizes. The values may be read and exported to a monitoring system.
+ * </p>
+ *
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+public class SimpleResponseProcessingMetrics implements ResponseProcessingMetrics {
+
+  /** Timers for the stages. */
+  private final Map<Stage, Timer> stageTimers = new EnumMap<>(Stage.class);
+
+  /** Failure counters for the stages. */
+  private final Map<Stage, LongAdder> stageFailures = new EnumMap<>(Stage.class);
+
+  /** Timers for the outcomes. */
+  private final Map<Outcome, Timer> outcomeTimers = new EnumMap<>(Outcome.class);
+
+  /** Summary of the payload sizes. */
+  private final Timer payloadSizes = new Timer();
+
+  /**
+   * Constructor.
+   */
+  public SimpleResponseProcessingMetrics() {
+    for (final Stage stage : Stage.values()) {
+      this.stageTimers.put(stage, new Timer());
+      this.stageFailures.put(stage, new LongAdder());
+    }
+    for (final Outcome outcome : Outcome.values()) {
+      this.outcomeTimers.put(outcome, new Timer());
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void recordStage(final Stage stage, final long durationNanos, final boolean success) {
+    this.stageTimers.get(stage).record(durationNanos);
+    if (!success) {
+      this.stageFailures.get(stage).increment();
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void recordResponse(final Outcome outcome, final long durationNanos, final int payloadSize) {
+    this.outcomeTimers.get(outcome).record(durationNanos);
+    this.payloadSizes.record(payloadSize);
+  }
+
+  /**
+   * Returns the number of times the given stage has been executed.
+   *
+   * @param stage
+   *          the stage
+   * @return the count
+   */
+  public long getStageCount(final Stage stage) {
+    return this.stageTimers.get(stage).count.sum();
+  }
+
+  /**
+   * Returns the total time spent in the given stage.
+   *
+   * @param stage
+   *          the stage
+   * @return the total time
+   */
+  public Duration getStageTotalTime(final Stage stage) {
+    return Duration.ofNanos(this.stageTimers.get(stage).total.sum());
+  }
+
+  /**
+   * Returns the longest time spent in the given stage.
+   *
+   * @param stage
+   *          the stage
+   * @return the max time
+   */
+  public Duration getStageMaxTime(final Stage stage) {
+    return Duration.ofNanos(this.stageTimers.get(stage).max.get());
+  }
+
+  /**
+   * Returns the number of times the given stage failed.
+   *
+   * @param stage
+   *          the stage
+   * @return the number of failures
+   */
+  public long getStageFailures(final Stage stage) {
+    return this.stageFailures.get(stage).sum();
+  }
+
+  /**
+   * Returns the number of processed responses with the given outcome.
+   *
+   * @param outcome
+   *          the outcome
+   * @return the count
+   */
+  public long getOutcomeCount(final Outcome outcome) {
+    return this.outcomeTimers.get(outcome).count.sum();
+  }
+
+  /**
+   * Returns the total processing time for responses with the given outcome.
+   *
+   * @param outcome
+   *          the outcome
+   * @return the total time
+   */
+  public Duration getOutcomeTotalTime(final Outcome outcome) {
+    return Duration.ofNanos(this.outcomeTimers.get(outcome).total.sum());
+  }
+
+  /**
+   * Returns the total size of all received messages.
+   *
+   * @return the total size (in bytes)
+   */
+  public long getTotalPayloadSize() {
+    return this.payloadSizes.total.sum();
+  }
+
+  /**
+   * Returns the size of the largest received message.
+   *
+   * @return the max size (in bytes)
+   */
+  public long getMaxPayloadSize() {
+    return this.payloadSizes.max.get();
+  }
+
+  /**
+   * Resets all metrics.
+   */
+  public void reset() {
+    this.stageTimers.values().forEach(Timer::reset);
+    this.stageFailures.values().forEach(LongAdder::reset);
+    this.outcomeTimers.values().forEach(Timer::reset);
+    this.payloadSizes.reset();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String toString() {
+    final StringBuilder sb = new StringBuilder();
+    for (final Stage stage : Stage.values()) {
+      final long count = this.getStageCount(stage);
+      if (count > 0) {
+        sb.append(String.format("%s: count=%d, failures=%d, mean=%dus, max=%dus%n", stage, count,
+          this.getStageFailures(stage), this.getStageTotalTime(stage).toNanos() / count / 1000L,
+          this.getStageMaxTime(stage).toNanos() / 1000L));
+      }
+    }
+    for (final Outcome outcome : Outcome.values()) {
+      sb.append(String.format("%s: count=%d%n", outcome, this.getOutcomeCount(outcome)));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Holds count, total and max of recorded values.
+   */
+  private static class Timer {
+
+    /** The number of recorded values. */
+    private final LongAdder count = new LongAdder();
+
+    /** The sum of the recorded values. */
+    private final LongAdder total = new LongAdder();
+
+    /** The max recorded value. */
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0L);
+
+    /**
+     * Records a value.
+     *
+     * @param value
+     *          the value
+     */
+    void record(final long value) {
+      this.count.increment();
+      this.total.add(value);
+      this.max.accumulate(value);
+    }
+
+    /**
+     * Resets the values.
+     */
+    void reset() {
+      this.count.reset();
+      this.total.reset();
+      this.max.reset();
+    }
+  }
+
+}
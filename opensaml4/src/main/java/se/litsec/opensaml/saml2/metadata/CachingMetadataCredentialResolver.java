@@ -0,0 +1,196 @@
+/*
+ * Copyright 2016-2021 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.opensaml.saml2.metadata;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+
+import javax.xml.namespace.QName;
+
+import org.opensaml.saml.saml2.metadata.RoleDescriptor;
+import org.opensaml.saml.security.impl.MetadataCredentialResolver;
+import org.opensaml.security.credential.Credential;
+import org.opensaml.security.credential.UsageType;
+
+import net.shibboleth.utilities.java.support.resolver.ResolverException;
+import se.litsec.opensaml.saml2.metadata.provider.MetadataSnapshot;
+import se.litsec.opensaml.utils.VersionedCache;
+
+/**
+ * A {@link MetadataCredentialResolver} that caches the credentials that it resolves from metadata.
+ * <p>
+ * The credentials found in a role descriptor are cached under the peer entityID, the type of the role and the key
+ * usage. Each entry also remembers the version of the {@link MetadataSnapshot} that the credentials were resolved
+ * from, and an entry is only used if the role descriptor found in the metadata belongs to the same snapshot. Since
+ * metadata providers publish a new snapshot when they refresh their metadata, a refresh invalidates the cached
+ * credentials for a peer automatically. The cache never holds on to the metadata itself. Credentials from role
+ * descriptors that have not been published by a metadata provider are not cached.
+ * </p>
+ * <p>
+ * The cache is a bounded {@link VersionedCache} (see its documentation for the eviction policy).
+ * </p>
+ * 
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+public class CachingMetadataCredentialResolver extends MetadataCredentialResolver {
+
+  /** The default maximum number of entries of the cache. */
+  public static final int DEFAULT_MAX_SIZE = VersionedCache.DEFAULT_MAX_SIZE;
+
+  /** The cache (versioned by the metadata snapshot version). */
+  private final VersionedCache<CacheKey, List<Credential>> cache;
+
+  /**
+   * Constructor creating a cache with {@value #DEFAULT_MAX_SIZE} entries.
+   */
+  public CachingMetadataCredentialResolver() {
+    this(DEFAULT_MAX_SIZE);
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param maxSize
+   *          the maximum number of entries of the cache
+   */
+  public CachingMetadataCredentialResolver(final int maxSize) {
+    this.cache = new VersionedCache<>(maxSize);
+  }
+
+  /**
+   * Adds the credentials of the role descriptor to the supplied collection. The credentials are served from the cache,
+   * or, if not cached, resolved and added to the cache.
+   */
+  @Override
+  protected void processRoleDescriptor(final Collection<Credential> accumulator, final RoleDescriptor roleDescriptor,
+      final String entityID, final UsageType usage) throws ResolverException {
+
+    final long metadataVersion = MetadataSnapshot.getVersion(roleDescriptor);
+    if (entityID == null || metadataVersion == MetadataSnapshot.NO_VERSION) {
+      super.processRoleDescriptor(accumulator, roleDescriptor, entityID, usage);
+      return;
+    }
+    final CacheKey key = new CacheKey(entityID,
+      roleDescriptor.getSchemaType() != null ? roleDescriptor.getSchemaType() : roleDescriptor.getElementQName(), usage);
+
+    final List<Credential> cached = this.cache.get(key, metadataVersion);
+    if (cached != null) {
+      accumulator.addAll(cached);
+      return;
+    }
+
+    final List<Credential> credentials = new ArrayList<>();
+    super.processRoleDescriptor(credentials, roleDescriptor, entityID, usage);
+    this.cache.put(key, metadataVersion, List.copyOf(credentials));
+    accumulator.addAll(credentials);
+  }
+
+  /**
+   * Removes all entries from the cache.
+   */
+  public void clear() {
+    this.cache.clear();
+  }
+
+  /**
+   * Gets the number of entries in the cache.
+   * 
+   * @return the number of entries
+   */
+  public int getSize() {
+    return this.cache.getSize();
+  }
+
+  /**
+   * Gets the number of times credentials were served from the cache.
+   * 
+   * @return the number of cache hits
+   */
+  public long getHits() {
+    return this.cache.getHits();
+  }
+
+  /**
+   * Gets the number of times credentials were not found in the cache (and were resolved from metadata).
+   * 
+   * @return the number of cache misses
+   */
+  public long getMisses() {
+    return this.cache.getMisses();
+  }
+
+  /**
+   * Gets the number of entries that have been evicted from the cache since it was full.
+   * 
+   * @return the number of evictions
+   */
+  public long getEvictions() {
+    return this.cache.getEvictions();
+  }
+
+  /**
+   * Key for the cache.
+   */
+  private static class CacheKey {
+
+    /** The peer entityID. */
+    private final String entityID;
+
+    /** The role type. */
+    private final QName role;
+
+    /** The key usage. */
+    private final UsageType usage;
+
+    /**
+     * Constructor.
+     * 
+     * @param entityID
+     *          the peer entityID
+     * @param role
+     *          the role type
+     * @param usage
+     *          the key usage
+     */
+    CacheKey(final String entityID, final QName role, final UsageType usage) {
+      this.entityID = entityID;
+      this.role = role;
+      this.usage = usage;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int hashCode() {
+      return Objects.hash(this.entityID, this.role, this.usage);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean equals(final Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof CacheKey)) {
+        return false;
+      }
+      final CacheKey other = (CacheKey) obj;
+      return Objects.equals(this.entityID, other.entityID) && Objects.equals(this.role, other.role) && this.usage == other.usage;
+    }
+  }
+
+}
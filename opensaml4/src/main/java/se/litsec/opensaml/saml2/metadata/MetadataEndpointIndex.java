@@ -0,0 +1,405 @@
+/*
+ * Copyright 2016-2021 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.opensaml.saml2.metadata;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import org.apache.commons.lang3.Validate;
+import org.opensaml.saml.common.xml.SAMLConstants;
+import org.opensaml.saml.saml2.metadata.AssertionConsumerService;
+import org.opensaml.saml.saml2.metadata.Endpoint;
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml.saml2.metadata.IDPSSODescriptor;
+import org.opensaml.saml.saml2.metadata.SPSSODescriptor;
+import org.opensaml.saml.saml2.metadata.SingleLogoutService;
+import org.opensaml.saml.saml2.metadata.SingleSignOnService;
+
+import se.litsec.opensaml.saml2.metadata.provider.MetadataSnapshot;
+import se.litsec.opensaml.utils.VersionedCache;
+
+/**
+ * An index of the endpoints declared in metadata entries, making it possible to look up endpoints without scanning the
+ * metadata.
+ * <p>
+ * The index holds, for each entity:
+ * </p>
+ * <ul>
+ * <li>The IdP {@code SingleSignOnService} endpoints by binding and by location.</li>
+ * <li>The IdP and SP {@code SingleLogoutService} endpoints by binding.</li>
+ * <li>The SP {@code AssertionConsumerService} endpoints by binding and by index, and the default
+ * {@code AssertionConsumerService} for each binding.</li>
+ * </ul>
+ * <p>
+ * If several endpoints have the same binding, the first one (in document order) is indexed. The index for an entity is
+ * keyed by its entityID and the version of the metadata snapshot it was built from (see
+ * {@link MetadataSnapshot#getVersion(org.opensaml.core.xml.XMLObject)}). When metadata is refreshed, the index for the
+ * entity is rebuilt and the entries for older snapshots are dropped. Metadata that has not been published by a metadata
+ * provider is indexed on each call, since its owner may change it at any time.
+ * </p>
+ * <p>
+ * The index holds the positions of the endpoints within their descriptors, not the endpoint objects. The endpoints are
+ * read from the metadata supplied in each call. This way the index never holds on to the metadata, and an entry does
+ * not keep an old metadata snapshot alive after it has been refreshed.
+ * </p>
+ * <p>
+ * The entries are held in a bounded {@link VersionedCache} (see its documentation for the eviction policy). Lookups do
+ * not lock.
+ * </p>
+ * <p>
+ * There is no shared instance. A component that looks up endpoints should create its own index, or be configured
+ * with an index that is shared by the application.
+ * </p>
+ *
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+public class MetadataEndpointIndex {
+
+  /** The default maximum number of indexed entities. */
+  public static final int DEFAULT_MAX_SIZE = VersionedCache.DEFAULT_MAX_SIZE;
+
+  /** Gets the IdP SSO endpoints of an entity. */
+  private static final Function<EntityDescriptor, List<SingleSignOnService>> SSO =
+      m -> m.getIDPSSODescriptor(SAMLConstants.SAML20P_NS).getSingleSignOnServices();
+
+  /** Gets the IdP SLO endpoints of an entity. */
+  private static final Function<EntityDescriptor, List<SingleLogoutService>> IDP_SLO =
+      m -> m.getIDPSSODescriptor(SAMLConstants.SAML20P_NS).getSingleLogoutServices();
+
+  /** Gets the SP SLO endpoints of an entity. */
+  private static final Function<EntityDescriptor, List<SingleLogoutService>> SP_SLO =
+      m -> m.getSPSSODescriptor(SAMLConstants.SAML20P_NS).getSingleLogoutServices();
+
+  /** Gets the SP ACS endpoints of an entity. */
+  private static final Function<EntityDescriptor, List<AssertionConsumerService>> ACS =
+      m -> m.getSPSSODescriptor(SAMLConstants.SAML20P_NS).getAssertionConsumerServices();
+
+  /** The index entries keyed by entityID and versioned by the metadata snapshot version. */
+  private final VersionedCache<String, Entry> entries;
+
+  /**
+   * Constructor creating an index holding at most {@value #DEFAULT_MAX_SIZE} entities.
+   */
+  public MetadataEndpointIndex() {
+    this(DEFAULT_MAX_SIZE);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param maxSize
+   *          the maximum number of indexed entities
+   */
+  public MetadataEndpointIndex(final int maxSize) {
+    this.entries = new VersionedCache<>(maxSize);
+  }
+
+  /**
+   * Gets the first IdP {@code SingleSignOnService} having the given binding.
+   *
+   * @param metadata
+   *          the IdP metadata
+   * @param binding
+   *          the binding URI
+   * @return the endpoint, or {@code null} if there is no match
+   */
+  public SingleSignOnService getSingleSignOnService(final EntityDescriptor metadata, final String binding) {
+    return resolve(this.getEntry(metadata).singleSignOnServices.get(binding), metadata, SSO);
+  }
+
+  /**
+   * Gets the first IdP {@code SingleSignOnService} having the given location.
+   *
+   * @param metadata
+   *          the IdP metadata
+   * @param location
+   *          the endpoint location
+   * @return the endpoint, or {@code null} if there is no match
+   */
+  public SingleSignOnService getSingleSignOnServiceByLocation(final EntityDescriptor metadata, final String location) {
+    return resolve(this.getEntry(metadata).singleSignOnServicesByLocation.get(location), metadata, SSO);
+  }
+
+  /**
+   * Gets the first IdP {@code SingleLogoutService} having the given binding.
+   *
+   * @param metadata
+   *          the IdP metadata
+   * @param binding
+   *          the binding URI
+   * @return the endpoint, or {@code null} if there is no match
+   */
+  public SingleLogoutService getIdpSingleLogoutService(final EntityDescriptor metadata, final String binding) {
+    return resolve(this.getEntry(metadata).idpSingleLogoutServices.get(binding), metadata, IDP_SLO);
+  }
+
+  /**
+   * Gets the first SP {@code SingleLogoutService} having the given binding.
+   *
+   * @param metadata
+   *          the SP metadata
+   * @param binding
+   *          the binding URI
+   * @return the endpoint, or {@code null} if there is no match
+   */
+  public SingleLogoutService getSpSingleLogoutService(final EntityDescriptor metadata, final String binding) {
+    return resolve(this.getEntry(metadata).spSingleLogoutServices.get(binding), metadata, SP_SLO);
+  }
+
+  /**
+   * Gets the first SP {@code AssertionConsumerService} having the given binding.
+   *
+   * @param metadata
+   *          the SP metadata
+   * @param binding
+   *          the binding URI
+   * @return the endpoint, or {@code null} if there is no match
+   */
+  public AssertionConsumerService getAssertionConsumerService(final EntityDescriptor metadata, final String binding) {
+    return resolve(this.getEntry(metadata).assertionConsumerServices.get(binding), metadata, ACS);
+  }
+
+  /**
+   * Gets the SP {@code AssertionConsumerService} having the given index.
+   *
+   * @param metadata
+   *          the SP metadata
+   * @param index
+   *          the endpoint index
+   * @return the endpoint, or {@code null} if there is no match
+   */
+  public AssertionConsumerService getAssertionConsumerService(final EntityDescriptor metadata, final int index) {
+    return resolve(this.getEntry(metadata).assertionConsumerServicesByIndex.get(index), metadata, ACS);
+  }
+
+  /**
+   * Gets the default SP {@code AssertionConsumerService} for the given binding. This is the first endpoint with the
+   * binding that is marked as default, or, if no endpoint is marked as default, the endpoint with the binding that has
+   * the lowest index (endpoints without an index come last).
+   *
+   * @param metadata
+   *          the SP metadata
+   * @param binding
+   *          the binding URI
+   * @return the endpoint, or {@code null} if there is no endpoint with the given binding
+   */
+  public AssertionConsumerService getDefaultAssertionConsumerService(final EntityDescriptor metadata, final String binding) {
+    return resolve(this.getEntry(metadata).defaultAssertionConsumerServices.get(binding), metadata, ACS);
+  }
+
+  /**
+   * Removes all entries from the index.
+   */
+  public void clear() {
+    this.entries.clear();
+  }
+
+  /**
+   * Gets the number of indexed entities.
+   *
+   * @return the number of entries
+   */
+  public int getSize() {
+    return this.entries.getSize();
+  }
+
+  /**
+   * Gets the number of lookups that were served by an existing index entry.
+   *
+   * @return the number of hits
+   */
+  public long getHits() {
+    return this.entries.getHits();
+  }
+
+  /**
+   * Gets the number of times an index entry had to be built.
+   *
+   * @return the number of misses
+   */
+  public long getMisses() {
+    return this.entries.getMisses();
+  }
+
+  /**
+   * Gets the number of entries that have been evicted since the index was full.
+   *
+   * @return the number of evictions
+   */
+  public long getEvictions() {
+    return this.entries.getEvictions();
+  }
+
+  /**
+   * Gets the index entry for the supplied metadata. The entry is built if it does not exist for the metadata snapshot
+   * that the metadata belongs to.
+   *
+   * @param metadata
+   *          the metadata
+   * @return the index entry
+   */
+  private Entry getEntry(final EntityDescriptor metadata) {
+    Validate.notNull(metadata, "metadata must not be null");
+    final String entityID = metadata.getEntityID();
+    final long metadataVersion = MetadataSnapshot.getVersion(metadata);
+    if (entityID == null) {
+      return new Entry(metadata);
+    }
+
+    // Entries for metadata that has not been published are never added, so the lookup is a miss.
+    final Entry cached = this.entries.get(entityID, metadataVersion);
+    if (cached != null) {
+      return cached;
+    }
+    final Entry entry = new Entry(metadata);
+    if (metadataVersion != MetadataSnapshot.NO_VERSION) {
+      this.entries.put(entityID, metadataVersion, entry);
+    }
+    return entry;
+  }
+
+  /**
+   * Gets the endpoint at the given position of the metadata.
+   *
+   * @param position
+   *          the position of the endpoint (may be null)
+   * @param metadata
+   *          the metadata
+   * @param endpoints
+   *          function giving the list of endpoints that the position refers to
+   * @param <T>
+   *          the endpoint type
+   * @return the endpoint, or {@code null} if the position is {@code null}
+   */
+  private static <T extends Endpoint> T resolve(final Integer position, final EntityDescriptor metadata,
+      final Function<EntityDescriptor, List<T>> endpoints) {
+    return position != null ? endpoints.apply(metadata).get(position) : null;
+  }
+
+  /**
+   * Adds the positions of the endpoints to the map (by binding) unless an endpoint with the same binding already has
+   * been added.
+   *
+   * @param map
+   *          the map
+   * @param endpoints
+   *          the endpoints
+   * @return the map
+   */
+  private static Map<String, Integer> indexByBinding(final Map<String, Integer> map, final List<? extends Endpoint> endpoints) {
+    for (int i = 0; i < endpoints.size(); i++) {
+      final String binding = endpoints.get(i).getBinding();
+      if (binding != null && !map.containsKey(binding)) {
+        map.put(binding, i);
+      }
+    }
+    return map;
+  }
+
+  /**
+   * The indexed endpoints of an entity.
+   */
+  private static class Entry {
+
+    /** The positions of the IdP SSO endpoints by binding. */
+    private final Map<String, Integer> singleSignOnServices = new HashMap<>();
+
+    /** The positions of the IdP SSO endpoints by location. */
+    private final Map<String, Integer> singleSignOnServicesByLocation = new HashMap<>();
+
+    /** The positions of the IdP SLO endpoints by binding. */
+    private final Map<String, Integer> idpSingleLogoutServices = new HashMap<>();
+
+    /** The positions of the SP SLO endpoints by binding. */
+    private final Map<String, Integer> spSingleLogoutServices = new HashMap<>();
+
+    /** The positions of the SP ACS endpoints by binding. */
+    private final Map<String, Integer> assertionConsumerServices = new HashMap<>();
+
+    /** The positions of the SP ACS endpoints by index. */
+    private final Map<Integer, Integer> assertionConsumerServicesByIndex = new HashMap<>();
+
+    /** The position of the default SP ACS endpoint for each binding. */
+    private final Map<String, Integer> defaultAssertionConsumerServices = new HashMap<>();
+
+    /**
+     * Constructor building the index.
+     *
+     * @param metadata
+     *          the metadata
+     */
+    Entry(final EntityDescriptor metadata) {
+      final IDPSSODescriptor idpDescriptor = metadata.getIDPSSODescriptor(SAMLConstants.SAML20P_NS);
+      if (idpDescriptor != null) {
+        final List<SingleSignOnService> sso = idpDescriptor.getSingleSignOnServices();
+        indexByBinding(this.singleSignOnServices, sso);
+        for (int i = 0; i < sso.size(); i++) {
+          final String location = sso.get(i).getLocation();
+          if (location != null && !this.singleSignOnServicesByLocation.containsKey(location)) {
+            this.singleSignOnServicesByLocation.put(location, i);
+          }
+        }
+        indexByBinding(this.idpSingleLogoutServices, idpDescriptor.getSingleLogoutServices());
+      }
+
+      final SPSSODescriptor spDescriptor = metadata.getSPSSODescriptor(SAMLConstants.SAML20P_NS);
+      if (spDescriptor != null) {
+        indexByBinding(this.spSingleLogoutServices, spDescriptor.getSingleLogoutServices());
+        final List<AssertionConsumerService> acs = spDescriptor.getAssertionConsumerServices();
+        indexByBinding(this.assertionConsumerServices, acs);
+        for (int i = 0; i < acs.size(); i++) {
+          final AssertionConsumerService a = acs.get(i);
+          if (a.getIndex() != null && !this.assertionConsumerServicesByIndex.containsKey(a.getIndex())) {
+            this.assertionConsumerServicesByIndex.put(a.getIndex(), i);
+          }
+          if (a.getBinding() == null) {
+            continue;
+          }
+          final Integer current = this.defaultAssertionConsumerServices.get(a.getBinding());
+          if (current == null || isPreferred(a, acs.get(current))) {
+            this.defaultAssertionConsumerServices.put(a.getBinding(), i);
+          }
+        }
+      }
+    }
+
+    /**
+     * Tells whether {@code a} (appearing after {@code current} in the metadata) should be preferred as the default
+     * endpoint.
+     *
+     * @param a
+     *          the candidate
+     * @param current
+     *          the current default
+     * @return {@code true} if {@code a} is preferred
+     */
+    private static boolean isPreferred(final AssertionConsumerService a, final AssertionConsumerService current) {
+      if (Boolean.TRUE.equals(current.isDefault())) {
+        return false;
+      }
+      if (Boolean.TRUE.equals(a.isDefault())) {
+        return true;
+      }
+      if (a.getIndex() == null) {
+        return false;
+      }
+      return current.getIndex() == null || a.getIndex() < current.getIndex();
+    }
+  }
+
+}
@@ -15,7 +15,9 @@
  */
 package se.litsec.opensaml.saml2.metadata.provider;
 
+import java.io.File;
 import java.security.cert.X509Certificate;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -24,6 +26,15 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Optional;
+import java.util.TimerTask;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
@@ -46,6 +57,7 @@ import org.opensaml.saml.metadata.resolver.filter.impl.PredicateFilter.Direction
 import org.opensaml.saml.metadata.resolver.filter.impl.SchemaValidationFilter;
 import org.opensaml.saml.metadata.resolver.filter.impl.SignatureValidationFilter;
 import org.opensaml.saml.metadata.resolver.impl.AbstractMetadataResolver;
+import org.opensaml.saml.metadata.resolver.impl.AbstractReloadingMetadataResolver;
 import org.opensaml.saml.saml2.metadata.EntitiesDescriptor;
 import org.opensaml.saml.saml2.metadata.EntityDescriptor;
 import org.opensaml.saml.saml2.metadata.IDPSSODescriptor;
@@ -104,16 +116,44 @@ public abstract class AbstractMetadataProvider extends AbstractInitializableComp
   /** A list of exclusion predicates that will be applied to downloaded metadata. */
   private List<Predicate<EntityDescriptor>> exclusionPredicates = null;
 
-  /** The downloaded metadata. */
-  private XMLObject metadata;
+  /**
+   * The downloaded metadata, the time it was downloaded and the views derived from it. Replaced as a whole each time new
+   * metadata is installed.
+   */
+  private volatile MetadataSnapshot snapshot;
+
+  /** Optional file where a snapshot of the verified metadata is saved, and read from at startup. */
+  private MetadataSnapshotFile snapshotFile;
+
+  /** Completed when the revalidation of the metadata read from the snapshot file is done (null when not revalidating). */
+  private volatile CompletableFuture<Void> revalidation;
+
+  /** The metadata waiting to be written to the snapshot file (null if no write is pending). */
+  private final AtomicReference<PendingSnapshotWrite> pendingSnapshotWrite = new AtomicReference<>();
+
+  /** The executor used for background work. */
+  private Executor executor;
 
-  /** The time when the metadata was downloaded. */
-  private Instant downloadTime;
+  /** If no executor has been assigned, the provider creates (and destroys) its own. */
+  private ExecutorService ownedExecutor;
+
+  /** The policy for scheduling refreshes. */
+  private MetadataRefreshPolicy refreshPolicy = new MetadataRefreshPolicy();
+
+  /** The number of refreshes in a row that have failed. */
+  private int consecutiveRefreshFailures = 0;
+
+  /** When waiting to retry after failed refreshes, the time of the retry (otherwise null). */
+  private volatile Instant retryTime;
+
+  /** The task that performs the retry after failed refreshes. */
+  private TimerTask retryTask;
 
   /** {@inheritDoc} */
   @Override
-  public synchronized XMLObject getMetadata() {
-    return this.metadata;
+  public XMLObject getMetadata() {
+    final MetadataSnapshot s = this.getMetadataSnapshot();
+    return s != null ? s.getMetadata() : null;
   }
 
   /** {@inheritDoc} */
@@ -132,16 +172,20 @@ public abstract class AbstractMetadataProvider extends AbstractInitializableComp
   /** {@inheritDoc} */
   @Override
   public Instant getLastUpdate() {
-    if (RefreshableMetadataResolver.class.isInstance(this.getMetadataResolver())) {
+    if (this.revalidation == null && RefreshableMetadataResolver.class.isInstance(this.getMetadataResolver())) {
       return ((RefreshableMetadataResolver) this.getMetadataResolver()).getLastUpdate();
     }
-    return this.downloadTime;
+    final MetadataSnapshot s = this.snapshot;
+    return s != null ? s.getDownloadTime() : null;
   }
 
   /** {@inheritDoc} */
   @Override
   public void refresh() throws ResolverException {
-    if (RefreshableMetadataResolver.class.isInstance(this.getMetadataResolver())) {
+    if (this.revalidation != null) {
+      log.debug("Metadata for {} is being revalidated - refresh ignored", this.getID());
+    }
+    else if (RefreshableMetadataResolver.class.isInstance(this.getMetadataResolver())) {
       ((RefreshableMetadataResolver) this.getMetadataResolver()).refresh();
     }
     else {
@@ -152,18 +196,30 @@ public abstract class AbstractMetadataProvider extends AbstractInitializableComp
   /** {@inheritDoc} */
   @Override
   public Iterable<EntityDescriptor> iterator() {
+    final MetadataIndex index = this.getMetadataIndex();
+    if (index != null) {
+      return index.getEntityDescriptors();
+    }
     return new EntityDescriptorIterator(this.getMetadata());
   }
 
   /** {@inheritDoc} */
   @Override
   public Iterable<EntityDescriptor> iterator(final QName role) {
+    final MetadataIndex index = this.getMetadataIndex();
+    if (index != null) {
+      return index.getEntityDescriptors(role);
+    }
     return new EntityDescriptorIterator(this.getMetadata(), role);
   }
 
   /** {@inheritDoc} */
   @Override
   public EntityDescriptor getEntityDescriptor(final String entityID) throws ResolverException {
+    final MetadataIndex index = this.getMetadataIndex();
+    if (index != null) {
+      return index.getEntityDescriptor(entityID, this.requireValidMetadata);
+    }
     final CriteriaSet criteria = new CriteriaSet();
     criteria.add(new EntityIdCriterion(entityID));
     return this.getMetadataResolver().resolveSingle(criteria);
@@ -172,6 +228,10 @@ public abstract class AbstractMetadataProvider extends AbstractInitializableComp
   /** {@inheritDoc} */
   @Override
   public IDPSSODescriptor getIDPSSODescriptor(final String entityID) throws ResolverException {
+    final MetadataIndex index = this.getMetadataIndex();
+    if (index != null) {
+      return index.getIDPSSODescriptor(entityID, this.requireValidMetadata);
+    }
     final CriteriaSet criteria = new CriteriaSet();
     criteria.add(new EntityIdCriterion(entityID));
     criteria.add(new EntityRoleCriterion(IDPSSODescriptor.DEFAULT_ELEMENT_NAME));
@@ -183,6 +243,10 @@ public abstract class AbstractMetadataProvider extends AbstractInitializableComp
   /** {@inheritDoc} */
   @Override
   public SPSSODescriptor getSPSSODescriptor(final String entityID) throws ResolverException {
+    final MetadataIndex index = this.getMetadataIndex();
+    if (index != null) {
+      return index.getSPSSODescriptor(entityID, this.requireValidMetadata);
+    }
     final CriteriaSet criteria = new CriteriaSet();
     criteria.add(new EntityIdCriterion(entityID));
     criteria.add(new EntityRoleCriterion(SPSSODescriptor.DEFAULT_ELEMENT_NAME));
@@ -194,6 +258,10 @@ public abstract class AbstractMetadataProvider extends AbstractInitializableComp
   /** {@inheritDoc} */
   @Override
   public List<EntityDescriptor> getIdentityProviders() throws ResolverException {
+    final MetadataIndex index = this.getMetadataIndex();
+    if (index != null) {
+      return new ArrayList<>(index.getEntityDescriptors(IDPSSODescriptor.DEFAULT_ELEMENT_NAME));
+    }
     final List<EntityDescriptor> list = new ArrayList<>();
     Iterable<EntityDescriptor> it = this.iterator(IDPSSODescriptor.DEFAULT_ELEMENT_NAME);
     it.forEach(list::add);
@@ -203,21 +271,111 @@ public abstract class AbstractMetadataProvider extends AbstractInitializableComp
   /** {@inheritDoc} */
   @Override
   public List<EntityDescriptor> getServiceProviders() throws ResolverException {
+    final MetadataIndex index = this.getMetadataIndex();
+    if (index != null) {
+      return new ArrayList<>(index.getEntityDescriptors(SPSSODescriptor.DEFAULT_ELEMENT_NAME));
+    }
     final List<EntityDescriptor> list = new ArrayList<>();
     Iterable<EntityDescriptor> it = this.iterator(SPSSODescriptor.DEFAULT_ELEMENT_NAME);
     it.forEach(list::add);
     return list;
   }
 
+  /**
+   * Returns the index over the currently installed metadata.
+   * <p>
+   * The index is built when metadata is installed and is never modified, so the returned instance may be used without
+   * any locking.
+   * </p>
+   * 
+   * @return the metadata index, or {@code null} if no metadata has been installed
+   */
+  protected MetadataIndex getMetadataIndex() {
+    final MetadataSnapshot s = this.getMetadataSnapshot();
+    return s != null ? s.getIndex() : null;
+  }
+
+  /**
+   * Returns the snapshot of the currently installed metadata.
+   * 
+   * @return the metadata snapshot, or {@code null} if no metadata has been installed
+   */
+  public MetadataSnapshot getMetadataSnapshot() {
+    return this.snapshot;
+  }
+
   /**
    * Assigns the metadata that was downloaded.
+   * <p>
+   * The snapshot, including all derived views, is completely built before it is published, so readers see either the
+   * previous or the new metadata and never need to block.
+   * </p>
    * 
    * @param metadata
    *          metadata object
    */
-  private synchronized void setMetadata(final XMLObject metadata) {
-    this.metadata = metadata;
-    this.downloadTime = Instant.now();
+  private void setMetadata(final XMLObject metadata) {
+    // The metadata is serialized for the snapshot file before it is published. Once published, its DOM may be read by
+    // other threads and must not be traversed by the background writer.
+    //
+    byte[] contents = null;
+    if (this.snapshotFile != null && metadata != null) {
+      try {
+        contents = MetadataSnapshotFile.serialize(metadata);
+      }
+      catch (MarshallingException e) {
+        log.warn("Failed to save metadata snapshot for {} - {}", this.getID(), e.getMessage(), e);
+      }
+    }
+
+    final MetadataSnapshot s = new MetadataSnapshot(metadata, Instant.now(), new MetadataIndex(metadata));
+    this.snapshot = s;
+
+    if (contents != null) {
+      this.scheduleSnapshotWrite(new PendingSnapshotWrite(contents, s.getDownloadTime()));
+    }
+  }
+
+  /**
+   * Schedules a write of the supplied serialized metadata to the snapshot file. The file is written by the executor, so
+   * that the thread installing the metadata (usually the refresh timer) is not held up. If a write already is pending,
+   * the pending write will use the supplied metadata instead.
+   * 
+   * @param write
+   *          the serialized metadata to write
+   */
+  private void scheduleSnapshotWrite(final PendingSnapshotWrite write) {
+    if (this.pendingSnapshotWrite.getAndSet(write) != null) {
+      return;
+    }
+    try {
+      this.executor.execute(this::writeSnapshotFile);
+    }
+    catch (RejectedExecutionException e) {
+      this.pendingSnapshotWrite.set(null);
+      log.warn("Could not schedule save of metadata snapshot for {} - {}", this.getID(), e.getMessage());
+    }
+  }
+
+  /**
+   * Writes the pending snapshot (if any) to the snapshot file. The file is only replaced if the contents has changed.
+   */
+  private void writeSnapshotFile() {
+    final PendingSnapshotWrite write = this.pendingSnapshotWrite.getAndSet(null);
+    if (write == null) {
+      return;
+    }
+    try {
+      if (this.snapshotFile.write(write.contents, write.downloadTime)) {
+        log.debug("Metadata snapshot for {} saved to {}", this.getID(), this.snapshotFile.getFile());
+      }
+      else {
+        log.trace("Metadata snapshot for {} is unchanged", this.getID());
+      }
+    }
+    catch (Exception e) {
+      log.warn("Failed to save metadata snapshot for {} to {} - {}", this.getID(), this.snapshotFile.getFile(), e.getMessage(), e);
+    }
   }
 
   /** {@inheritDoc} */
@@ -231,7 +389,107 @@ public abstract class AbstractMetadataProvider extends AbstractInitializableComp
     catch (ResolverException e) {
       throw new ComponentInitializationException(e);
     }
-    this.initializeMetadataResolver();
+
+    if (this.snapshotFile != null && this.executor == null) {
+      this.ownedExecutor = createExecutor(this.getID());
+      this.executor = this.ownedExecutor;
+    }
+
+    // If we have a snapshot from an earlier run, we serve metadata from it directly, and load and verify the metadata
+    // in the background.
+    //
+    final MetadataSnapshot saved = this.readSnapshotFile();
+    if (saved == null) {
+      this.initializeMetadataResolver();
+      return;
+    }
+    log.info("Serving metadata for {} from snapshot {} ({} entities, downloaded {}) while the metadata is revalidated",
+      this.getID(), this.snapshotFile.getFile(), saved.getIndex().size(), saved.getDownloadTime());
+    this.snapshot = saved;
+
+    final CompletableFuture<Void> done = new CompletableFuture<>();
+    this.revalidation = done;
+    try {
+      this.executor.execute(() -> {
+        try {
+          this.revalidate(saved);
+        }
+        finally {
+          done.complete(null);
+        }
+      });
+    }
+    catch (RejectedExecutionException e) {
+      log.warn("Could not schedule revalidation of metadata for {} - revalidating now", this.getID());
+      this.revalidate(saved);
+      done.complete(null);
+    }
+  }
+
+  /**
+   * Creates the executor that is used if none has been assigned.
+   * 
+   * @param id
+   *          the provider ID
+   * @return an executor service
+   */
+  private static ExecutorService createExecutor(final String id) {
+    final ThreadPoolExecutor pool = new ThreadPoolExecutor(1, 1, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+      final Thread thread = new Thread(r, "metadata-provider-" + id);
+      thread.setDaemon(true);
+      return thread;
+    });
+    pool.allowCoreThreadTimeOut(true);
+    return pool;
+  }
+
+  /**
+   * Reads the snapshot file (if configured).
+   * 
+   * @return the snapshot, or {@code null} if there is no snapshot file, or it can not be used
+   */
+  private MetadataSnapshot readSnapshotFile() {
+    if (this.snapshotFile == null) {
+      return null;
+    }
+    try {
+      final MetadataSnapshot saved = this.snapshotFile.read();
+      if (saved == null) {
+        log.debug("No metadata snapshot found at {}", this.snapshotFile.getFile());
+      }
+      return saved;
+    }
+    catch (Exception e) {
+      log.warn("Failed to read metadata snapshot from {} - {}", this.snapshotFile.getFile(), e.getMessage(), e);
+      return null;
+    }
+  }
+
+  /**
+   * Initializes the metadata resolver, i.e., loads and verifies the metadata, after the provider has been initialized
+   * from the snapshot file. If the resolver does not install any metadata, the metadata from the snapshot is discarded
+   * since it could not be revalidated.
+   * 
+   * @param saved
+   *          the snapshot read from the snapshot file
+   */
+  private void revalidate(final MetadataSnapshot saved) {
+    try {
+      this.initializeMetadataResolver();
+    }
+    catch (Exception e) {
+      log.error("Failed to initialize metadata resolver for {} - {}", this.getID(), e.getMessage(), e);
+    }
+    finally {
+      if (this.snapshot == saved) {
+        log.error("Metadata for {} could not be revalidated - discarding metadata read from snapshot", this.getID());
+        this.snapshot = null;
+      }
+      else {
+        log.info("Metadata for {} has been revalidated", this.getID());
+      }
+      this.revalidation = null;
+    }
   }
 
   /**
@@ -292,6 +550,31 @@ public abstract class AbstractMetadataProvider extends AbstractInitializableComp
   @Override
   protected void doDestroy() {
     super.doDestroy();
+    synchronized (this) {
+      if (this.retryTask != null) {
+        this.retryTask.cancel();
+        this.retryTask = null;
+      }
+      this.retryTime = null;
+    }
+    final CompletableFuture<Void> done = this.revalidation;
+    if (done != null) {
+      done.join();
+    }
+    if (this.ownedExecutor != null) {
+      // Let a pending write of the snapshot file complete.
+      this.ownedExecutor.shutdown();
+      try {
+        if (!this.ownedExecutor.awaitTermination(30L, TimeUnit.SECONDS)) {
+          log.warn("Background tasks of {} did not complete", this.getID());
+        }
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      this.ownedExecutor = null;
+      this.executor = null;
+    }
     this.destroyMetadataResolver();
   }
 
@@ -338,6 +621,168 @@ public abstract class AbstractMetadataProvider extends AbstractInitializableComp
     this.requireValidMetadata = requireValidMetadata;
   }
 
+  /**
+   * Calculates the delay until the next refresh of metadata according to the refresh policy. Invoked by the metadata
+   * resolvers of the provider implementations after each refresh.
+   * 
+   * @param expiration
+   *          the time when the current metadata expires (may be {@code null})
+   * @param failed
+   *          whether the refresh failed
+   * @return the delay until the next refresh
+   */
+  protected synchronized Duration getNextRefreshDelay(final Instant expiration, final boolean failed) {
+    this.consecutiveRefreshFailures = failed ? this.consecutiveRefreshFailures + 1 : 0;
+    final Duration delay = this.refreshPolicy.getRefreshDelay(expiration, this.consecutiveRefreshFailures);
+    if (failed) {
+      log.info("Refresh of metadata for {} has failed {} time(s) in a row - will retry in {}",
+        this.getID(), this.consecutiveRefreshFailures, delay);
+    }
+    return delay;
+  }
+
+  /**
+   * Tells whether a refresh should be skipped since the provider is waiting to retry after failed refreshes. Invoked by
+   * the metadata resolvers of the provider implementations before each refresh.
+   * 
+   * @return {@code true} if the refresh should be skipped
+   */
+  protected boolean isRefreshPostponed() {
+    final Instant time = this.retryTime;
+    if (time == null) {
+      return false;
+    }
+    if (Instant.now().isBefore(time)) {
+      log.debug("Refresh of metadata for {} is postponed until {} since earlier refreshes have failed", this.getID(), time);
+      return true;
+    }
+    this.retryTime = null;
+    return false;
+  }
+
+  /**
+   * Invoked by the metadata resolvers of the provider implementations when a refresh has failed.
+   * <p>
+   * When a refresh fails, the resolver always schedules the next refresh after its minimum refresh delay. If the refresh
+   * policy gives a longer delay, the refresh scheduled by the resolver is skipped (see {@link #isRefreshPostponed()})
+   * and a retry is scheduled on the shared timer after the delay given by the policy.
+   * </p>
+   * 
+   * @param resolver
+   *          the resolver whose refresh failed
+   */
+  protected synchronized void refreshFailed(final AbstractReloadingMetadataResolver resolver) {
+    final Duration delay = this.getNextRefreshDelay(null, true);
+    if (this.retryTask != null) {
+      this.retryTask.cancel();
+      this.retryTask = null;
+    }
+    if (delay.compareTo(resolver.getMinRefreshDelay()) <= 0) {
+      this.retryTime = null;
+      return;
+    }
+    // Using millisecond precision, since that is what the timer uses. The retry will then never run before the retry
+    // time.
+    this.retryTime = Instant.ofEpochMilli(System.currentTimeMillis()).plus(delay);
+    this.retryTask = new TimerTask() {
+      @Override
+      public void run() {
+        try {
+          if (resolver.isInitialized() && !resolver.isDestroyed()) {
+            resolver.refresh();
+          }
+        }
+        catch (ResolverException e) {
+          log.trace("Retry of refresh for {} failed", getID(), e);
+        }
+      }
+    };
+    MetadataRefreshPolicy.getSharedTimer().schedule(this.retryTask, delay.toMillis());
+  }
+
+  /**
+   * Returns the time when the metadata is refreshed next.
+   * 
+   * @return the time of the next refresh, or {@code null} if no refresh is scheduled
+   */
+  public Instant getNextRefresh() {
+    final Instant time = this.retryTime;
+    if (time != null) {
+      return time;
+    }
+    return this.getMetadataResolver() instanceof AbstractReloadingMetadataResolver
+        ? ((AbstractReloadingMetadataResolver) this.getMetadataResolver()).getNextRefresh()
+        : null;
+  }
+
+  /**
+   * Returns the refresh policy.
+   * 
+   * @return the refresh policy
+   */
+  protected MetadataRefreshPolicy getRefreshPolicy() {
+    return this.refreshPolicy;
+  }
+
+  /**
+   * Assigns the policy that tells when metadata should be refreshed. If not assigned, a {@link MetadataRefreshPolicy}
+   * with default settings is used.
+   * <p>
+   * The policy is applied by providers that periodically reload their metadata ({@link HTTPMetadataProvider} and
+   * {@link FilesystemMetadataProvider}).
+   * </p>
+   * 
+   * @param refreshPolicy
+   *          the refresh policy
+   */
+  public void setRefreshPolicy(final MetadataRefreshPolicy refreshPolicy) {
+    ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+    this.refreshPolicy = refreshPolicy != null ? refreshPolicy : new MetadataRefreshPolicy();
+  }
+
+  /**
+   * Assigns a file where a snapshot of the metadata is saved each time verified metadata has been installed (i.e., after
+   * signature verification and all other filters have been applied).
+   * <p>
+   * When the provider is initialized and the file exists, the metadata is read from the file and served directly, and
+   * the metadata resolver is initialized (the metadata is downloaded and verified) in the background. This saves the
+   * time for downloading and verifying metadata at startup. If the metadata can not be revalidated, the metadata read
+   * from the file is discarded.
+   * </p>
+   * <p>
+   * The revalidation and the writing of the file are performed by the executor of the provider (see
+   * {@link #setExecutor(Executor)}). The file is only rewritten when the contents has changed.
+   * </p>
+   * <p>
+   * Note that the metadata from the snapshot file is trusted without signature verification. Therefore, the file must
+   * be protected in the same way as other configuration of the application. Also note that during the revalidation the
+   * resolver returned by {@link #getMetadataResolver()} has not been initialized, and only the methods of the provider
+   * should be used.
+   * </p>
+   * 
+   * @param snapshotFile
+   *          the snapshot file
+   */
+  public void setSnapshotFile(final File snapshotFile) {
+    ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+    this.snapshotFile = snapshotFile != null ? new MetadataSnapshotFile(snapshotFile) : null;
+  }
+
+  /**
+   * Assigns the executor that is used for background work, i.e., to revalidate the metadata read from the snapshot file
+   * and to write the snapshot file (see {@link #setSnapshotFile(File)}).
+   * <p>
+   * If not assigned, and a snapshot file has been assigned, the provider creates a single daemon thread.
+   * </p>
+   * 
+   * @param executor
+   *          the executor
+   */
+  public void setExecutor(final Executor executor) {
+    ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+    this.executor = executor;
+  }
+
   /**
    * Sets whether problems during initialization should cause the provider to fail or go on without metadata. The
    * assumption being that in most cases a provider will recover at some point in the future.
@@ -422,6 +867,31 @@ public abstract class AbstractMetadataProvider extends AbstractInitializableComp
     this.exclusionPredicates = exclusionPredicates;
   }
 
+  /**
+   * Serialized metadata waiting to be written to the snapshot file.
+   */
+  private static class PendingSnapshotWrite {
+
+    /** The serialized metadata. */
+    private final byte[] contents;
+
+    /** The time when the metadata was downloaded. */
+    private final Instant downloadTime;
+
+    /**
+     * Constructor.
+     * 
+     * @param contents
+     *          the serialized metadata
+     * @param downloadTime
+     *          the time when the metadata was downloaded
+     */
+    PendingSnapshotWrite(final byte[] contents, final Instant downloadTime) {
+      this.contents = contents;
+      this.downloadTime = downloadTime;
+    }
+  }
+
   /**
    * Iterates over EntitiesDescriptor or EntityDescriptor.
    */
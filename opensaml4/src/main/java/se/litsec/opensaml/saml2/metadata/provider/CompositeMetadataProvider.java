@@ -15,12 +15,32 @@
  */
 package se.litsec.opensaml.saml2.metadata.provider;
 
+import java.io.File;
 import java.security.cert.X509Certificate;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
@@ -36,10 +56,13 @@ import org.opensaml.saml.metadata.resolver.filter.MetadataFilter;
 import org.opensaml.saml.metadata.resolver.impl.CompositeMetadataResolver;
 import org.opensaml.saml.saml2.metadata.EntitiesDescriptor;
 import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml.saml2.metadata.IDPSSODescriptor;
+import org.opensaml.saml.saml2.metadata.SPSSODescriptor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
 import net.shibboleth.utilities.java.support.resolver.ResolverException;
 import net.shibboleth.utilities.java.support.security.impl.RandomIdentifierGenerationStrategy;
 
@@ -49,6 +72,11 @@ import net.shibboleth.utilities.java.support.security.impl.RandomIdentifierGener
  * It is recommended that all providers installed have the {@code failFastInitialization} property set to {@code false}.
  * Otherwise a failing provider will shut down the entire compostite provider.
  * </p>
+ * <p>
+ * The underlying providers are initialized and refreshed concurrently, so the time it takes to initialize the composite
+ * provider is about the time it takes for the slowest of the underlying providers. See
+ * {@link #setExecutor(Executor)}, {@link #setProviderTimeout(Duration)} and {@link #setFailOnProviderError(boolean)}.
+ * </p>
  * 
  * @author Martin Lindström (martin.lindstrom@litsec.se)
  * @see CompositeMetadataResolver
@@ -64,17 +92,41 @@ public class CompositeMetadataProvider extends AbstractMetadataProvider {
   /** The list of underlying metadata providers. */
   private List<MetadataProvider> metadataProviders;
 
+  /**
+   * The underlying providers that are in use, i.e., the providers that were successfully initialized (in the same order
+   * as {@code metadataProviders}).
+   */
+  private volatile List<MetadataProvider> activeProviders;
+
   /** The identifier for the provider. */
   private String id;
 
   /** The time that this provider was initialized. */
   private Instant initTime;
 
-  /** The downloaded metadata from all providers. */
-  private EntitiesDescriptor compositeMetadata;
+  /** The metadata assembled from all providers (and its update time and index). */
+  private volatile MetadataSnapshot compositeSnapshot;
+
+  /** The contribution from each of the underlying providers (in the same order as {@code activeProviders}). */
+  private List<Contribution> contributions;
+
+  /** Tells whether an assembly of the composite metadata has been scheduled. */
+  private final AtomicBoolean assemblyScheduled = new AtomicBoolean(false);
 
-  /** A timestamp for when the {@code compositeMetadata} was put together. */
-  private Instant compositeMetadataCreationTime;
+  /** The executor used for background work. */
+  private Executor executor;
+
+  /** If no executor has been assigned, the provider creates (and destroys) its own. */
+  private ExecutorService ownedExecutor;
+
+  /** The maximum time to wait for an underlying provider to initialize or refresh. Default: no limit. */
+  private Duration providerTimeout;
+
+  /**
+   * Whether an error from an underlying provider during initialization or refresh should make the entire operation
+   * fail. Default: {@code true}.
+   */
+  private boolean failOnProviderError = true;
 
   /** Generates ID. */
   private RandomIdentifierGenerationStrategy idGenerator = new RandomIdentifierGenerationStrategy(20);
@@ -97,6 +149,7 @@ public class CompositeMetadataProvider extends AbstractMetadataProvider {
     Validate.notNull(metadataProviders, "metadataProviders must not be null");
     this.id = id;
     this.metadataProviders = metadataProviders;
+    this.activeProviders = metadataProviders;
   }
 
   /** {@inheritDoc} */
@@ -112,11 +165,30 @@ public class CompositeMetadataProvider extends AbstractMetadataProvider {
   }
 
   /**
-   * Collects all metadata from all underlying providers and creates an {@code EntitiesDescriptor} element. Any
-   * duplicate entity ID:s will be removed.
+   * Returns the {@code EntitiesDescriptor} element holding the metadata from all underlying providers. Any duplicate
+   * entity ID:s will be removed.
+   * <p>
+   * If any of the underlying providers have been updated since the composite metadata was assembled, a new assembly is
+   * started in the background and the current composite metadata is returned until the new one is ready.
+   * </p>
+   * <p>
+   * The {@code EntitiesDescriptor} is created from copies of the entity descriptors the first time it is requested for a
+   * given assembly. The lookup methods of the provider do not use it, and they return other instances of the entity
+   * descriptors.
+   * </p>
+   */
+  @Override
+  public XMLObject getMetadata() {
+    final MetadataSnapshot s = this.getMetadataSnapshot();
+    return s != null ? s.getMetadata() : null;
+  }
+
+  /**
+   * Returns the snapshot of the composite metadata. If any of the underlying providers have been updated since the
+   * composite metadata was assembled, a new assembly is scheduled.
    */
   @Override
-  public synchronized XMLObject getMetadata() {
+  public MetadataSnapshot getMetadataSnapshot() {
 
     final Instant lastUpdate = this.getLastUpdate();
 
@@ -127,57 +199,248 @@ public class CompositeMetadataProvider extends AbstractMetadataProvider {
       return null;
     }
 
-    // Time to collect new metadata from the providers?
+    final MetadataSnapshot s = this.compositeSnapshot;
+    if (s == null) {
+      // Nothing assembled yet, we have to do it now.
+      return this.assembleMetadata();
+    }
+
+    // Time to assemble new metadata from the providers? Readers keep using the current snapshot until the new one is
+    // ready.
     //
-    if (this.compositeMetadata == null || this.compositeMetadataCreationTime.isBefore(lastUpdate)) {
-      this.collectMetadata();
+    if (s.getDownloadTime().isBefore(lastUpdate)) {
+      this.scheduleAssembly();
+    }
+    return s;
+  }
+
+  /**
+   * Schedules an assembly of the composite metadata (unless one is already scheduled).
+   */
+  private void scheduleAssembly() {
+    if (!this.assemblyScheduled.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      this.executor.execute(() -> {
+        try {
+          this.assembleMetadata();
+        }
+        catch (Exception e) {
+          log.error("Failed to assemble composite metadata for {}", this.getID(), e);
+        }
+        finally {
+          this.assemblyScheduled.set(false);
+        }
+      });
+    }
+    catch (RejectedExecutionException e) {
+      this.assemblyScheduled.set(false);
+      log.warn("Could not schedule assembly of composite metadata for {} - {}", this.getID(), e.getMessage());
     }
-    return this.compositeMetadata;
   }
 
   /**
-   * Collects metadata from all underlying providers.
+   * Assembles the composite metadata from the metadata of all underlying providers.
+   * <p>
+   * The contribution from each provider is kept between assemblies, and only the entity descriptors of providers whose
+   * metadata has changed since the last assembly are copied. A contribution is published once and never modified, so
+   * the index of the composite is built directly over the entity descriptors of the contributions. Unchanged providers
+   * therefore cost nothing but indexing. The {@code EntitiesDescriptor} returned by {@link #getMetadata()} is only
+   * created if it is requested (see {@link #createCompositeMetadata(List)}). The new composite is published when it is
+   * complete.
+   * </p>
+   * 
+   * @return the snapshot of the assembled metadata
    */
-  private synchronized void collectMetadata() {
+  private synchronized MetadataSnapshot assembleMetadata() {
+
+    // Read the update time before looking at the providers. If a provider is updated while we are assembling, the next
+    // call to getMetadataSnapshot will detect it.
+    //
+    final Instant lastUpdate = this.getLastUpdate();
+
+    // Another thread may have assembled the metadata while we were waiting for the lock.
+    //
+    final MetadataSnapshot current = this.compositeSnapshot;
+    if (current != null && !current.getDownloadTime().isBefore(lastUpdate)) {
+      return current;
+    }
+
+    log.debug("Assembling composite metadata for {} ...", this.getID());
+
+    final List<EntityDescriptor> entityDescriptors = new ArrayList<>();
+    final Set<String> entityIds = new HashSet<>();
+
+    final List<MetadataProvider> providers = this.activeProviders;
+    for (int i = 0; i < providers.size(); i++) {
+      final MetadataProvider provider = providers.get(i);
+      final Contribution contribution = this.getContribution(i, provider);
+
+      for (final EntityDescriptor ed : contribution.entityDescriptors) {
+        if (!entityIds.add(ed.getEntityID())) {
+          log.warn("EntityDescriptor for '{}' already exists in metadata. Entry read from provider '{}' will be ignored.",
+            ed.getEntityID(), provider.getID());
+          continue;
+        }
+        entityDescriptors.add(ed);
+      }
+    }
 
-    log.debug("Collecting composite metadata for {} ...", this.getID());
+    final MetadataSnapshot snapshot = new MetadataSnapshot(
+      () -> this.createCompositeMetadata(entityDescriptors), lastUpdate, MetadataIndex.of(entityDescriptors));
+    this.compositeSnapshot = snapshot;
+    log.info("Composite metadata for {} assembled ({} entities)", this.getID(), entityDescriptors.size());
+    return snapshot;
+  }
 
-    final List<String> entityIds = new ArrayList<>();
+  /**
+   * Creates the {@code EntitiesDescriptor} holding copies of the supplied entity descriptors. The descriptors belong to
+   * published contributions, and are copied from their cached DOM, which is never modified.
+   *
+   * @param entityDescriptors
+   *          the entity descriptors of the composite
+   * @return an {@code EntitiesDescriptor}
+   */
+  private EntitiesDescriptor createCompositeMetadata(final List<EntityDescriptor> entityDescriptors) {
+    log.debug("Creating EntitiesDescriptor for composite metadata of {} ...", this.getID());
 
     final EntitiesDescriptor metadata = (EntitiesDescriptor) XMLObjectSupport.buildXMLObject(EntitiesDescriptor.DEFAULT_ELEMENT_NAME);
     metadata.setName(this.getID());
     metadata.setID("metadata_" + this.idGenerator.generateIdentifier(true));
 
-    for (MetadataProvider provider : this.metadataProviders) {
-      Iterator<EntityDescriptor> it = provider.iterator().iterator();
-      while (it.hasNext()) {
-        final EntityDescriptor ed = it.next();
-        if (entityIds.contains(ed.getEntityID())) {
-          log.warn("EntityDescriptor for '{}' already exists in metadata. Entry read from provider '{}' will be ignored.", ed.getEntityID(),
-            provider.getID());
-          continue;
-        }
-        try {
-          // Make a copy of the descriptor since we may want to modify it.
-          final EntityDescriptor edCopy = XMLObjectSupport.cloneXMLObject(ed);
+    for (final EntityDescriptor ed : entityDescriptors) {
+      try {
+        metadata.getEntityDescriptors().add(XMLObjectSupport.cloneXMLObject(ed, true));
+      }
+      catch (MarshallingException | UnmarshallingException e) {
+        log.error("Error copying EntityDescriptor '{}' ({}), entry will not be included in metadata", ed.getEntityID(), e.getMessage(), e);
+      }
+    }
+    return metadata;
+  }
 
-          // Remove signature, cacheDuration and validity.
-          edCopy.setSignature(null);
-          edCopy.setCacheDuration(null);
-          edCopy.setValidUntil(null);
+  /**
+   * Returns the contribution from the given provider. If the metadata of the provider is the same as the last time, the
+   * previous contribution is returned, otherwise all entity descriptors from the provider are copied into a new
+   * contribution.
+   * <p>
+   * The copies are added to an {@code EntitiesDescriptor} of their own which is published as a snapshot, so that
+   * {@link MetadataSnapshot#getVersion(XMLObject)} for an entity descriptor only changes when the provider that it
+   * comes from has been updated.
+   * </p>
+   * 
+   * @param pos
+   *          the position of the provider
+   * @param provider
+   *          the provider
+   * @return the provider contribution
+   */
+  private Contribution getContribution(final int pos, final MetadataProvider provider) {
+    final Contribution previous = this.contributions.get(pos);
 
-          metadata.getEntityDescriptors().add(edCopy);
-          entityIds.add(edCopy.getEntityID());
-          log.trace("EntityDescriptor '{}' added to composite metadata", edCopy.getEntityID());
-        }
-        catch (MarshallingException | UnmarshallingException e) {
-          log.error("Error copying EntityDescriptor '{}' ({}), entry will not be included in metadata");
-        }
+    XMLObject source = null;
+    try {
+      source = provider.getMetadata();
+    }
+    catch (ResolverException e) {
+      log.error("Failed to get metadata from provider '{}' - using previous metadata", provider.getID(), e);
+      return previous;
+    }
+    if (source == previous.source) {
+      return previous;
+    }
+
+    log.debug("Metadata for provider '{}' has been updated - copying entity descriptors", provider.getID());
+    final EntitiesDescriptor contributionMetadata =
+        (EntitiesDescriptor) XMLObjectSupport.buildXMLObject(EntitiesDescriptor.DEFAULT_ELEMENT_NAME);
+    contributionMetadata.setName(provider.getID());
+    for (final EntityDescriptor ed : new EntityDescriptorIterator(source)) {
+      try {
+        // Make a copy of the descriptor since we may want to modify it.
+        final EntityDescriptor edCopy = XMLObjectSupport.cloneXMLObject(ed);
+
+        // Remove signature, cacheDuration and validity.
+        edCopy.setSignature(null);
+        edCopy.setCacheDuration(null);
+        edCopy.setValidUntil(null);
+
+        // Marshall the copy so that its DOM is cached. If the composite EntitiesDescriptor is requested, it is
+        // created from clones of the copy, and the clones are created from the cached DOM.
+        XMLObjectSupport.marshall(edCopy);
+
+        contributionMetadata.getEntityDescriptors().add(edCopy);
+      }
+      catch (MarshallingException | UnmarshallingException e) {
+        log.error("Error copying EntityDescriptor '{}' ({}), entry will not be included in metadata", ed.getEntityID(), e.getMessage(), e);
+      }
+    }
+    final Contribution contribution = new Contribution(source,
+      new MetadataSnapshot(contributionMetadata, Instant.now(), new MetadataIndex(contributionMetadata)));
+    this.contributions.set(pos, contribution);
+    return contribution;
+  }
+
+  /**
+   * Asks the underlying providers, in order, for the given entity descriptor. This gives the same result as querying the
+   * {@code CompositeMetadataResolver}, but makes use of the indexes of the underlying providers.
+   */
+  @Override
+  public EntityDescriptor getEntityDescriptor(final String entityID) throws ResolverException {
+    for (final MetadataProvider provider : this.activeProviders) {
+      final EntityDescriptor ed = provider.getEntityDescriptor(entityID);
+      if (ed != null) {
+        return ed;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Asks the underlying providers, in order, for the given IdP SSO descriptor.
+   */
+  @Override
+  public IDPSSODescriptor getIDPSSODescriptor(final String entityID) throws ResolverException {
+    for (final MetadataProvider provider : this.activeProviders) {
+      final IDPSSODescriptor descriptor = provider.getIDPSSODescriptor(entityID);
+      if (descriptor != null) {
+        return descriptor;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Asks the underlying providers, in order, for the given SP SSO descriptor.
+   */
+  @Override
+  public SPSSODescriptor getSPSSODescriptor(final String entityID) throws ResolverException {
+    for (final MetadataProvider provider : this.activeProviders) {
+      final SPSSODescriptor descriptor = provider.getSPSSODescriptor(entityID);
+      if (descriptor != null) {
+        return descriptor;
       }
     }
-    this.compositeMetadataCreationTime = Instant.now();
-    this.compositeMetadata = metadata;
-    log.info("Composite metadata for {} collected and compiled into EntitiesDescriptor", this.getID());
+    return null;
+  }
+
+  /**
+   * Refreshes all underlying providers concurrently. If {@link #setFailOnProviderError(boolean)} is {@code true} (the
+   * default), the method fails if any of the underlying providers fails to refresh, or does not complete within the
+   * time given by {@link #setProviderTimeout(Duration)}.
+   */
+  @Override
+  public void refresh() throws ResolverException {
+    final Map<MetadataProvider, Exception> failures = this.runConcurrently(this.activeProviders, MetadataProvider::refresh);
+    if (failures.isEmpty()) {
+      return;
+    }
+    if (this.failOnProviderError) {
+      final Map.Entry<MetadataProvider, Exception> failure = failures.entrySet().iterator().next();
+      throw new ResolverException(
+        String.format("Refresh of underlying provider '%s' failed", failure.getKey().getID()), failure.getValue());
+    }
+    failures.forEach((p, e) -> log.error("Refresh of underlying provider ({}) failed - {}", p.getID(), e.getMessage(), e));
   }
 
   /** {@inheritDoc} */
@@ -214,27 +477,54 @@ public class CompositeMetadataProvider extends AbstractMetadataProvider {
   @Override
   protected void initializeMetadataResolver() throws ComponentInitializationException {
     log.debug("Initializing CompositeMetadataProvider ...");
+
+    if (this.executor == null) {
+      this.ownedExecutor = createExecutor(this.getID(), this.metadataProviders.size());
+      this.executor = this.ownedExecutor;
+    }
+
+    // Initialize the underlying providers concurrently ...
+    //
+    final List<MetadataProvider> uninitialized = new ArrayList<>();
     for (MetadataProvider p : this.metadataProviders) {
-      final String id = p.getID();
       if (p.isInitialized()) {
-        log.debug("Underlying provider ({}) has already been initialized", id);
+        log.debug("Underlying provider ({}) has already been initialized", p.getID());
       }
       else {
-        log.trace("Initializing underlying provider ({}) ...", id);
-        p.initialize();
-        this.destroyList.add(id);
-        log.debug("Underlying provider ({}) successfully initialized", id);
+        uninitialized.add(p);
+        this.destroyList.add(p.getID());
+      }
+    }
+    final Map<MetadataProvider, Exception> failures = this.runConcurrently(uninitialized, p -> {
+      log.trace("Initializing underlying provider ({}) ...", p.getID());
+      p.initialize();
+      log.debug("Underlying provider ({}) successfully initialized", p.getID());
+    });
+    if (!failures.isEmpty()) {
+      if (this.failOnProviderError) {
+        if (this.ownedExecutor != null) {
+          this.ownedExecutor.shutdownNow();
+        }
+        final Map.Entry<MetadataProvider, Exception> failure = failures.entrySet().iterator().next();
+        throw new ComponentInitializationException(
+          String.format("Failed to initialize underlying provider '%s'", failure.getKey().getID()), failure.getValue());
       }
+      failures.forEach((p, e) -> log.error("Underlying provider ({}) failed to initialize and will not be used - {}",
+        p.getID(), e.getMessage(), e));
     }
+    this.activeProviders = Collections.unmodifiableList(this.metadataProviders
+      .stream()
+      .filter(p -> !failures.containsKey(p))
+      .collect(Collectors.toList()));
 
     // OK, now we save the init time since we may used that to answer the getLastUpdate queries.
     //
     this.initTime = Instant.now();
 
-    // At this point we know that all the underlying providers/resolvers have been initialized
+    // At this point we know that all the active providers/resolvers have been initialized
     // and we can install them.
     //
-    final List<MetadataResolver> resolvers = this.metadataProviders
+    final List<MetadataResolver> resolvers = this.activeProviders
       .stream()
       .map(MetadataProvider::getMetadataResolver)
       .collect(Collectors.toList());
@@ -250,6 +540,12 @@ public class CompositeMetadataProvider extends AbstractMetadataProvider {
     }
 
     this.metadataResolver.initialize();
+
+    // Assemble the composite metadata so that the first caller doesn't have to wait for it.
+    //
+    this.contributions = new ArrayList<>(Collections.nCopies(this.activeProviders.size(), Contribution.EMPTY));
+    this.assembleMetadata();
+
     log.debug("CompositeMetadataProvider successfully initialized");
   }
 
@@ -270,6 +566,148 @@ public class CompositeMetadataProvider extends AbstractMetadataProvider {
     if (this.metadataResolver != null) {
       this.metadataResolver.destroy();
     }
+    if (this.ownedExecutor != null) {
+      this.ownedExecutor.shutdownNow();
+    }
+  }
+
+  /**
+   * Runs the given operation for each of the supplied providers concurrently (using the assigned executor), and waits
+   * until all of them have completed or the provider timeout has expired. If {@code failOnProviderError} is set, the
+   * method stops waiting as soon as one operation fails.
+   * <p>
+   * Operations that have not completed when the method returns are cancelled (interrupted).
+   * </p>
+   * 
+   * @param providers
+   *          the providers
+   * @param operation
+   *          the operation to run for each provider
+   * @return the providers whose operation failed (or did not complete) along with the error, in the order the
+   *         failures were detected
+   */
+  private Map<MetadataProvider, Exception> runConcurrently(final List<MetadataProvider> providers, final ProviderOperation operation) {
+    final Map<MetadataProvider, Exception> failures = new LinkedHashMap<>();
+    if (providers.isEmpty()) {
+      return failures;
+    }
+    final CompletionService<MetadataProvider> completionService = new ExecutorCompletionService<>(this.executor);
+    final Map<Future<MetadataProvider>, MetadataProvider> pending = new LinkedHashMap<>();
+    for (final MetadataProvider p : providers) {
+      try {
+        pending.put(completionService.submit(() -> {
+          operation.execute(p);
+          return p;
+        }), p);
+      }
+      catch (RejectedExecutionException e) {
+        failures.put(p, e);
+      }
+    }
+
+    final long deadline = this.providerTimeout != null ? System.nanoTime() + this.providerTimeout.toNanos() : 0L;
+    boolean timedOut = false;
+    try {
+      while (!pending.isEmpty() && (failures.isEmpty() || !this.failOnProviderError)) {
+        final Future<MetadataProvider> future = this.providerTimeout != null
+            ? completionService.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)
+            : completionService.take();
+        if (future == null) {
+          timedOut = true;
+          break;
+        }
+        final MetadataProvider p = pending.remove(future);
+        try {
+          future.get();
+        }
+        catch (ExecutionException e) {
+          failures.put(p, e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+        }
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    for (final Map.Entry<Future<MetadataProvider>, MetadataProvider> e : pending.entrySet()) {
+      e.getKey().cancel(true);
+      failures.put(e.getValue(), timedOut
+          ? new TimeoutException(String.format("Provider '%s' did not complete within %s", e.getValue().getID(), this.providerTimeout))
+          : new CancellationException(String.format("Operation for provider '%s' was cancelled", e.getValue().getID())));
+    }
+    return failures;
+  }
+
+  /**
+   * Creates the executor that is used if none has been assigned. The pool has one thread per underlying provider (so
+   * that all providers may be initialized at the same time), and threads are terminated when they have been idle for a
+   * while.
+   * 
+   * @param id
+   *          the provider ID (used for thread names)
+   * @param size
+   *          the number of underlying providers
+   * @return an executor service
+   */
+  private static ExecutorService createExecutor(final String id, final int size) {
+    final AtomicInteger threadNumber = new AtomicInteger(1);
+    final ThreadPoolExecutor pool = new ThreadPoolExecutor(Math.max(1, size), Math.max(1, size), 60L, TimeUnit.SECONDS,
+      new LinkedBlockingQueue<>(), r -> {
+        final Thread thread = new Thread(r, "composite-metadata-" + id + "-" + threadNumber.getAndIncrement());
+        thread.setDaemon(true);
+        return thread;
+      });
+    pool.allowCoreThreadTimeOut(true);
+    return pool;
+  }
+
+  /**
+   * Assigns the executor that is used to initialize and refresh the underlying providers concurrently, and to assemble
+   * the composite metadata in the background when any of the underlying providers have been updated.
+   * <p>
+   * If not assigned, the provider creates a pool with one daemon thread per underlying provider. Any executor may be
+   * assigned, for example a bounded thread pool or, on Java 21 and later, an executor that creates a virtual thread per
+   * task. Note that the provider timeout (see {@link #setProviderTimeout(Duration)}) is counted from when the operation
+   * starts, so a pool that can not run all underlying providers at the same time will make the timeout apply to the
+   * entire operation rather than to each provider.
+   * </p>
+   * 
+   * @param executor
+   *          the executor
+   */
+  @Override
+  public void setExecutor(final Executor executor) {
+    super.setExecutor(executor);
+    this.executor = executor;
+  }
+
+  /**
+   * Assigns the maximum time to wait for an underlying provider to initialize or refresh. A provider that does not
+   * complete within this time is regarded as failed. Default is to wait until all providers have completed.
+   * 
+   * @param providerTimeout
+   *          the timeout
+   */
+  public void setProviderTimeout(final Duration providerTimeout) {
+    ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+    if (providerTimeout != null) {
+      Validate.isTrue(!providerTimeout.isNegative() && !providerTimeout.isZero(), "providerTimeout must be positive");
+    }
+    this.providerTimeout = providerTimeout;
+  }
+
+  /**
+   * Tells what to do if an underlying provider fails to initialize or refresh (or does not complete within the provider
+   * timeout). If {@code true} (the default), initialization of the composite provider, or the call to
+   * {@link #refresh()}, fails. If {@code false}, the error is logged and the composite provider continues with the
+   * providers that succeeded. A provider that failed to initialize will not be used at all.
+   * 
+   * @param failOnProviderError
+   *          whether errors from underlying providers should be fatal
+   */
+  public void setFailOnProviderError(final boolean failOnProviderError) {
+    ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+    this.failOnProviderError = failOnProviderError;
   }
 
   /**
@@ -317,6 +755,15 @@ public class CompositeMetadataProvider extends AbstractMetadataProvider {
     throw new UnsupportedOperationException("Cannot configure 'signatureVerificationCertificate' for a CompositeMetadataResolver");
   }
 
+  /**
+   * It is not possible to set configuration for metadata for a {@code CompositeMetadataResolver}. This should be done
+   * on each of the underlying resolvers.
+   */
+  @Override
+  public void setSnapshotFile(final File snapshotFile) {
+    throw new UnsupportedOperationException("Cannot configure 'snapshotFile' for a CompositeMetadataResolver");
+  }
+
   /**
    * It is not possible to set configuration for metadata for a {@code CompositeMetadataResolver}. This should be done
    * on each of the underlying resolvers.
@@ -326,6 +773,54 @@ public class CompositeMetadataProvider extends AbstractMetadataProvider {
     throw new UnsupportedOperationException("Cannot configure 'performSchemaValidation' for a CompositeMetadataResolver");
   }
 
+  /**
+   * An operation that is performed on an underlying provider.
+   */
+  @FunctionalInterface
+  private interface ProviderOperation {
+
+    /**
+     * Performs the operation.
+     * 
+     * @param provider
+     *          the provider
+     * @throws Exception
+     *           for errors
+     */
+    void execute(final MetadataProvider provider) throws Exception;
+  }
+
+  /**
+   * The entity descriptors that an underlying provider contributes with to the composite metadata.
+   */
+  private static class Contribution {
+
+    /** Contribution for a provider that has no metadata. */
+    static final Contribution EMPTY = new Contribution(null, null);
+
+    /** The provider metadata that the contribution was created from. */
+    private final XMLObject source;
+
+    /**
+     * Copies of all entity descriptors found in {@code source} (in document order). The copies belong to the
+     * {@code EntitiesDescriptor} of a snapshot of their own, and are never modified or moved to another parent.
+     */
+    private final List<EntityDescriptor> entityDescriptors;
+
+    /**
+     * Constructor.
+     * 
+     * @param source
+     *          the provider metadata
+     * @param snapshot
+     *          the snapshot holding the copies of the entity descriptors (null for the empty contribution)
+     */
+    Contribution(final XMLObject source, final MetadataSnapshot snapshot) {
+      this.source = source;
+      this.entityDescriptors = snapshot != null ? snapshot.getIndex().getEntityDescriptors() : Collections.emptyList();
+    }
+  }
+
   /**
    * OpenSAML:s CompositeMetadataResolver is buggy since the ID property can not be set (it's hidden), and when the
    * resolver is initialized an exception is thrown saying the the ID must be set.
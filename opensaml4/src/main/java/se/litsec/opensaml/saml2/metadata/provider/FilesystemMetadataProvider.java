@@ -16,6 +16,8 @@
 package se.litsec.opensaml.saml2.metadata.provider;
 
 import java.io.File;
+import java.time.Duration;
+import java.time.Instant;
 
 import org.apache.commons.lang3.Validate;
 import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
@@ -28,6 +30,10 @@ import net.shibboleth.utilities.java.support.resolver.ResolverException;
 
 /**
  * A metadata provider that reads its metadata from a file.
+ * <p>
+ * The file is periodically checked for updates according to the provider's {@link MetadataRefreshPolicy} (see
+ * {@link #setRefreshPolicy(MetadataRefreshPolicy)}).
+ * </p>
  * 
  * @author Martin Lindström (martin.lindstrom@litsec.se)
  * @see FilesystemMetadataResolver
@@ -67,10 +73,12 @@ public class FilesystemMetadataProvider extends AbstractMetadataProvider {
   @Override
   protected void createMetadataResolver(final boolean requireValidMetadata, final boolean failFastInitialization,
       final MetadataFilter filter) throws ResolverException {
-    this.metadataResolver = new FilesystemMetadataResolver(this.metadataSource);
+    this.metadataResolver = new ExtendedFilesystemMetadataResolver(this.metadataSource);
     this.metadataResolver.setId(this.getID());
     this.metadataResolver.setRequireValidMetadata(requireValidMetadata);
     this.metadataResolver.setFailFastInitialization(failFastInitialization);
+    // After a failed refresh, the resolver schedules the next refresh after its minimum refresh delay.
+    this.metadataResolver.setMinRefreshDelay(this.getRefreshPolicy().getErrorRetryDelay());
     this.metadataResolver.setMetadataFilter(filter);
     this.metadataResolver.setParserPool(XMLObjectProviderRegistrySupport.getParserPool());    
   }
@@ -89,4 +97,48 @@ public class FilesystemMetadataProvider extends AbstractMetadataProvider {
     }
   }
 
+  /**
+   * A {@link FilesystemMetadataResolver} that uses the shared timer and schedules refreshes according to the refresh
+   * policy of the provider.
+   */
+  private class ExtendedFilesystemMetadataResolver extends FilesystemMetadataResolver {
+
+    /**
+     * Constructor.
+     * 
+     * @param metadata
+     *          the metadata file
+     * @throws ResolverException
+     *           for errors accessing the file
+     */
+    ExtendedFilesystemMetadataResolver(final File metadata) throws ResolverException {
+      super(MetadataRefreshPolicy.getSharedTimer(), metadata);
+    }
+
+    /**
+     * Performs the refresh, unless the provider is waiting to retry after failed refreshes.
+     */
+    @Override
+    public synchronized void refresh() throws ResolverException {
+      if (isRefreshPostponed()) {
+        return;
+      }
+      try {
+        super.refresh();
+      }
+      catch (ResolverException e) {
+        refreshFailed(this);
+        throw e;
+      }
+    }
+
+    /**
+     * Invoked after successful refreshes. Failed refreshes are handled by {@link #refresh()}.
+     */
+    @Override
+    protected Duration computeNextRefreshDelay(final Instant expectedExpiration) {
+      return getNextRefreshDelay(expectedExpiration, false);
+    }
+  }
+
 }
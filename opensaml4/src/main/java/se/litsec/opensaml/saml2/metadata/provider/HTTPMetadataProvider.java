@@ -15,16 +15,31 @@
  */
 package se.litsec.opensaml.saml2.metadata.provider;
 
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.security.KeyStore;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
 
 import org.apache.commons.lang3.Validate;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
 import org.apache.http.conn.ssl.DefaultHostnameVerifier;
 import org.apache.http.conn.ssl.NoopHostnameVerifier;
 import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
@@ -37,6 +52,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.component.ComponentSupport;
 import net.shibboleth.utilities.java.support.httpclient.HttpClientBuilder;
 import net.shibboleth.utilities.java.support.httpclient.HttpClientSupport;
 import net.shibboleth.utilities.java.support.httpclient.TLSSocketFactoryBuilder;
@@ -44,6 +60,20 @@ import net.shibboleth.utilities.java.support.resolver.ResolverException;
 
 /**
  * A provider that downloads metadata from a HTTP resource.
+ * <p>
+ * Metadata is fetched using conditional requests ({@code If-None-Match} and {@code If-Modified-Since}), so if the
+ * metadata has not changed since the last download, the server may answer with {@code 304 Not Modified} and no
+ * metadata is transferred. Unless turned off (see {@link #setAcceptCompression(boolean)}), the provider also asks for a
+ * compressed ({@code gzip} or {@code deflate}) response.
+ * </p>
+ * <p>
+ * A maximum size for downloaded metadata may be set using {@link #setMaxMetadataSize(long)}, and statistics about the
+ * downloads are available through {@link #getStatistics()}.
+ * </p>
+ * <p>
+ * Metadata is refreshed according to the provider's {@link MetadataRefreshPolicy} (see
+ * {@link #setRefreshPolicy(MetadataRefreshPolicy)}), using the timer that is shared by all providers.
+ * </p>
  * 
  * @author Martin Lindström (martin.lindstrom@litsec.se)
  * @see HTTPMetadataResolver
@@ -51,12 +81,27 @@ import net.shibboleth.utilities.java.support.resolver.ResolverException;
  */
 public class HTTPMetadataProvider extends AbstractMetadataProvider {
   
+  /** The maximum initial size of the buffer holding downloaded metadata (1 MB). */
+  private static final int MAX_INITIAL_BUFFER_SIZE = 1024 * 1024;
+
   /** Logging instance. */
   private Logger log = LoggerFactory.getLogger(HTTPMetadataProvider.class);
 
   /** The metadata resolver. */
   private HTTPMetadataResolver metadataResolver;
 
+  /** The maximum size (in bytes) of the downloaded metadata document. Default: no limit. */
+  private long maxMetadataSize = 0L;
+
+  /** Whether a compressed response should be requested. Default: true. */
+  private boolean acceptCompression = true;
+
+  /** Download statistics. */
+  private final Statistics statistics = new Statistics();
+
+  /** The number of bytes that were transferred the last time the metadata was downloaded. */
+  private volatile long lastTransferSize = 0L;
+
   /**
    * Creates a provider that periodically downloads data from the URL given by {@code metadataUrl}. If the
    * {@code backupFile} parameter is given the provider also stores the downloaded metadata on disk as backup.
@@ -95,8 +140,8 @@ public class HTTPMetadataProvider extends AbstractMetadataProvider {
     Validate.notNull(httpClient, "httpClient must not be null");
 
     this.metadataResolver = backupFile != null
-        ? new FileBackedHTTPMetadataResolver(httpClient, metadataUrl, backupFile)
-        : new HTTPMetadataResolver(httpClient, metadataUrl);
+        ? new ExtendedFileBackedHTTPMetadataResolver(httpClient, metadataUrl, backupFile)
+        : new ExtendedHTTPMetadataResolver(httpClient, metadataUrl);
   }
 
   /**
@@ -120,6 +165,11 @@ public class HTTPMetadataProvider extends AbstractMetadataProvider {
    * {@code trustKeyStore} parameter. The {@code hostnameVerifier} parameter tells which hostname verifier that should
    * be used. If not supplied, a {@link DefaultHostnameVerifier} will be used.
    * 
+   * <p>
+   * Automatic decompression of responses is turned off for the client since this is handled by the provider (so that
+   * the number of transferred bytes can be counted).
+   * </p>
+   * 
    * @param trustKeyStore
    *          a KeyStore holding the certificates that should be accepted (if null, all certificates are accepted)
    * @param hostnameVerifier
@@ -146,6 +196,7 @@ public class HTTPMetadataProvider extends AbstractMetadataProvider {
 
       HttpClientBuilder builder = new HttpClientBuilder();
       builder.setUseSystemProperties(true);
+      builder.setDisableContentCompression(true);
       builder.setTLSSocketFactory(new TLSSocketFactoryBuilder()
         .setHostnameVerifier(hnv)
         .setTrustManagers(managers)
@@ -177,6 +228,8 @@ public class HTTPMetadataProvider extends AbstractMetadataProvider {
 
     this.metadataResolver.setId(this.getID());
     this.metadataResolver.setFailFastInitialization(failFastInitialization);
+    // After a failed refresh, the resolver schedules the next refresh after its minimum refresh delay.
+    this.metadataResolver.setMinRefreshDelay(this.getRefreshPolicy().getErrorRetryDelay());
     this.metadataResolver.setRequireValidMetadata(requireValidMetadata);
     this.metadataResolver.setParserPool(XMLObjectProviderRegistrySupport.getParserPool());
     this.metadataResolver.setMetadataFilter(filter);
@@ -204,4 +257,506 @@ public class HTTPMetadataProvider extends AbstractMetadataProvider {
     }
   }
 
+  /**
+   * Assigns the maximum size (in bytes) of a downloaded metadata document. The size is checked while the document is
+   * read (after decompression), and a download is aborted as soon as the limit is exceeded. Default is no limit.
+   * 
+   * @param maxMetadataSize
+   *          the maximum size in bytes (0 means no limit)
+   */
+  public void setMaxMetadataSize(final long maxMetadataSize) {
+    ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+    Validate.isTrue(maxMetadataSize >= 0, "maxMetadataSize must not be negative");
+    this.maxMetadataSize = maxMetadataSize;
+  }
+
+  /**
+   * Tells whether the provider should ask for a compressed ({@code gzip} or {@code deflate}) response. Default is
+   * {@code true}.
+   * 
+   * @param acceptCompression
+   *          whether compressed responses should be requested
+   */
+  public void setAcceptCompression(final boolean acceptCompression) {
+    ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+    this.acceptCompression = acceptCompression;
+  }
+
+  /**
+   * Returns the download statistics for this provider.
+   * 
+   * @return the statistics
+   */
+  public Statistics getStatistics() {
+    return this.statistics;
+  }
+
+  /**
+   * Adds an {@code Accept-Encoding} header to the request (unless compression is turned off, or the header has already
+   * been set).
+   * 
+   * @param request
+   *          the request
+   * @return the request
+   */
+  private HttpGet prepareRequest(final HttpGet request) {
+    if (this.acceptCompression && !request.containsHeader(HttpHeaders.ACCEPT_ENCODING)) {
+      request.setHeader(HttpHeaders.ACCEPT_ENCODING, "gzip, deflate");
+    }
+    return request;
+  }
+
+  /**
+   * Reads the metadata from the response. The response body is decompressed (if needed) and the size limit is checked
+   * while reading.
+   * 
+   * @param response
+   *          the HTTP response
+   * @return the metadata bytes
+   * @throws ResolverException
+   *           for read errors or if the metadata exceeds the size limit
+   */
+  private byte[] readMetadata(final HttpResponse response) throws ResolverException {
+    final HttpEntity entity = response.getEntity();
+    if (entity == null) {
+      throw new ResolverException(String.format("No metadata received from '%s'", this.getID()));
+    }
+    final String encoding = getContentEncoding(entity);
+    final long limit = this.maxMetadataSize;
+    if (limit > 0 && encoding == null && entity.getContentLength() > limit) {
+      throw new ResolverException(String.format("Metadata from '%s' exceeds the maximum allowed size (%d bytes)", this.getID(), limit));
+    }
+
+    CountingInputStream counter = null;
+    try {
+      counter = new CountingInputStream(entity.getContent());
+      try (InputStream in = decode(counter, encoding)) {
+        // The Content-Length header is only used as a hint (it may be wrong). The buffer grows if more data is received.
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream(encoding == null && entity.getContentLength() > 0
+            ? (int) Math.min(entity.getContentLength(), MAX_INITIAL_BUFFER_SIZE)
+            : 8192);
+        final byte[] buffer = new byte[8192];
+        long total = 0;
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+          total += n;
+          if (limit > 0 && total > limit) {
+            throw new ResolverException(
+              String.format("Metadata from '%s' exceeds the maximum allowed size (%d bytes)", this.getID(), limit));
+          }
+          bos.write(buffer, 0, n);
+        }
+        this.lastTransferSize = counter.getCount();
+        this.statistics.downloads.incrementAndGet();
+        log.debug("Downloaded metadata from '{}' - {} bytes transferred, {} bytes of metadata", this.getID(), counter.getCount(), total);
+        return bos.toByteArray();
+      }
+    }
+    catch (IOException e) {
+      throw new ResolverException(String.format("Unable to read metadata from '%s'", this.getID()), e);
+    }
+    finally {
+      if (counter != null) {
+        this.statistics.bytesTransferred.addAndGet(counter.getCount());
+      }
+    }
+  }
+
+  /**
+   * Invoked with the result of a metadata fetch. A {@code null} result means that the metadata has not been modified
+   * since the last download.
+   * 
+   * @param metadata
+   *          the fetched metadata (may be null)
+   * @return the fetched metadata
+   */
+  private byte[] fetched(final byte[] metadata) {
+    if (metadata == null) {
+      this.statistics.notModified.incrementAndGet();
+      this.statistics.bytesSkipped.addAndGet(this.lastTransferSize);
+    }
+    return metadata;
+  }
+
+  /**
+   * Records the outcome of a refresh.
+   * 
+   * @param startTime
+   *          the start time (nanos)
+   * @param success
+   *          whether the refresh was successful
+   */
+  private void refreshed(final long startTime, final boolean success) {
+    final long time = System.nanoTime() - startTime;
+    this.statistics.refreshes.incrementAndGet();
+    if (!success) {
+      this.statistics.failures.incrementAndGet();
+    }
+    this.statistics.lastRefreshTime.set(time);
+    this.statistics.totalRefreshTime.addAndGet(time);
+    this.statistics.maxRefreshTime.accumulateAndGet(time, Math::max);
+  }
+
+  /**
+   * Returns the content encoding of the entity (in lower case), or {@code null} if the content is not encoded.
+   * 
+   * @param entity
+   *          the HTTP entity
+   * @return the content encoding or {@code null}
+   */
+  private static String getContentEncoding(final HttpEntity entity) {
+    final Header header = entity.getContentEncoding();
+    if (header == null || header.getValue() == null) {
+      return null;
+    }
+    final String encoding = header.getValue().trim().toLowerCase(Locale.ROOT);
+    return encoding.isEmpty() || "identity".equals(encoding) ? null : encoding;
+  }
+
+  /**
+   * Returns a stream that decodes the supplied stream according to the content encoding.
+   * 
+   * @param in
+   *          the stream to decode
+   * @param encoding
+   *          the content encoding (may be null)
+   * @return the decoded stream
+   * @throws IOException
+   *           for unsupported encodings or read errors
+   */
+  private static InputStream decode(final InputStream in, final String encoding) throws IOException {
+    if (encoding == null) {
+      return in;
+    }
+    else if ("gzip".equals(encoding) || "x-gzip".equals(encoding)) {
+      return new GZIPInputStream(in, 8192);
+    }
+    else if ("deflate".equals(encoding)) {
+      return new InflaterInputStream(in);
+    }
+    throw new IOException(String.format("Unsupported content encoding '%s'", encoding));
+  }
+
+  /**
+   * Download statistics for a {@link HTTPMetadataProvider}.
+   */
+  public static class Statistics {
+
+    /** Number of refreshes. */
+    private final AtomicLong refreshes = new AtomicLong();
+
+    /** Number of failed refreshes. */
+    private final AtomicLong failures = new AtomicLong();
+
+    /** Number of downloads (responses holding metadata). */
+    private final AtomicLong downloads = new AtomicLong();
+
+    /** Number of "not modified" responses. */
+    private final AtomicLong notModified = new AtomicLong();
+
+    /** Number of bytes transferred. */
+    private final AtomicLong bytesTransferred = new AtomicLong();
+
+    /** Number of bytes that did not have to be transferred since the metadata had not been modified. */
+    private final AtomicLong bytesSkipped = new AtomicLong();
+
+    /** Duration of the last refresh (nanos). */
+    private final AtomicLong lastRefreshTime = new AtomicLong();
+
+    /** Total duration of all refreshes (nanos). */
+    private final AtomicLong totalRefreshTime = new AtomicLong();
+
+    /** Duration of the slowest refresh (nanos). */
+    private final AtomicLong maxRefreshTime = new AtomicLong();
+
+    /**
+     * Gets the number of refreshes (including the initial download).
+     * 
+     * @return the number of refreshes
+     */
+    public long getRefreshes() {
+      return this.refreshes.get();
+    }
+
+    /**
+     * Gets the number of failed refreshes.
+     * 
+     * @return the number of failed refreshes
+     */
+    public long getFailures() {
+      return this.failures.get();
+    }
+
+    /**
+     * Gets the number of times metadata was downloaded.
+     * 
+     * @return the number of downloads
+     */
+    public long getDownloads() {
+      return this.downloads.get();
+    }
+
+    /**
+     * Gets the number of times the server reported that the metadata had not been modified (304).
+     * 
+     * @return the number of "not modified" responses
+     */
+    public long getNotModified() {
+      return this.notModified.get();
+    }
+
+    /**
+     * Gets the number of bytes transferred. If the response was compressed, the compressed size is counted (unless the
+     * HTTP client decompresses responses itself).
+     * 
+     * @return the number of bytes transferred
+     */
+    public long getBytesTransferred() {
+      return this.bytesTransferred.get();
+    }
+
+    /**
+     * Gets the number of bytes that did not have to be transferred since the server reported that the metadata had not
+     * been modified (based on the size of the last download).
+     * 
+     * @return the number of bytes skipped
+     */
+    public long getBytesSkipped() {
+      return this.bytesSkipped.get();
+    }
+
+    /**
+     * Gets the duration of the last refresh.
+     * 
+     * @return the duration
+     */
+    public Duration getLastRefreshDuration() {
+      return Duration.ofNanos(this.lastRefreshTime.get());
+    }
+
+    /**
+     * Gets the total duration of all refreshes.
+     * 
+     * @return the duration
+     */
+    public Duration getTotalRefreshDuration() {
+      return Duration.ofNanos(this.totalRefreshTime.get());
+    }
+
+    /**
+     * Gets the duration of the slowest refresh.
+     * 
+     * @return the duration
+     */
+    public Duration getMaxRefreshDuration() {
+      return Duration.ofNanos(this.maxRefreshTime.get());
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+      return String.format("refreshes=%d, failures=%d, downloads=%d, not-modified=%d, bytes-transferred=%d, bytes-skipped=%d, "
+          + "last-refresh=%s, max-refresh=%s",
+        this.getRefreshes(), this.getFailures(), this.getDownloads(), this.getNotModified(), this.getBytesTransferred(),
+        this.getBytesSkipped(), this.getLastRefreshDuration(), this.getMaxRefreshDuration());
+    }
+  }
+
+  /**
+   * Input stream that counts the number of bytes read.
+   */
+  private static class CountingInputStream extends FilterInputStream {
+
+    /** The number of bytes read. */
+    private long count = 0;
+
+    /**
+     * Constructor.
+     * 
+     * @param in
+     *          the stream to read from
+     */
+    CountingInputStream(final InputStream in) {
+      super(in);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int read() throws IOException {
+      final int b = super.read();
+      if (b != -1) {
+        this.count++;
+      }
+      return b;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+      final int n = super.read(b, off, len);
+      if (n > 0) {
+        this.count += n;
+      }
+      return n;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long skip(final long n) throws IOException {
+      final long skipped = super.skip(n);
+      this.count += skipped;
+      return skipped;
+    }
+
+    /**
+     * Gets the number of bytes read.
+     * 
+     * @return the number of bytes read
+     */
+    long getCount() {
+      return this.count;
+    }
+  }
+
+  /**
+   * A {@link HTTPMetadataResolver} that lets the provider handle compression, the size limit and statistics.
+   */
+  private class ExtendedHTTPMetadataResolver extends HTTPMetadataResolver {
+
+    /**
+     * Constructor.
+     * 
+     * @param client
+     *          the HTTP client
+     * @param metadataURL
+     *          the metadata URL
+     * @throws ResolverException
+     *           for invalid URL:s
+     */
+    ExtendedHTTPMetadataResolver(final HttpClient client, final String metadataURL) throws ResolverException {
+      super(MetadataRefreshPolicy.getSharedTimer(), client, metadataURL);
+    }
+
+    /**
+     * Performs the refresh, unless the provider is waiting to retry after failed refreshes, and records the outcome.
+     */
+    @Override
+    public synchronized void refresh() throws ResolverException {
+      if (isRefreshPostponed()) {
+        return;
+      }
+      final long start = System.nanoTime();
+      boolean success = false;
+      try {
+        super.refresh();
+        success = true;
+      }
+      catch (ResolverException e) {
+        refreshFailed(this);
+        throw e;
+      }
+      finally {
+        refreshed(start, success);
+      }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected byte[] fetchMetadata() throws ResolverException {
+      return fetched(super.fetchMetadata());
+    }
+
+    /**
+     * Invoked after successful refreshes. Failed refreshes are handled by {@link #refresh()}.
+     */
+    @Override
+    protected Duration computeNextRefreshDelay(final Instant expectedExpiration) {
+      return getNextRefreshDelay(expectedExpiration, false);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected HttpGet buildHttpGet() {
+      return prepareRequest(super.buildHttpGet());
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected byte[] getMetadataBytesFromResponse(final HttpResponse response) throws ResolverException {
+      return readMetadata(response);
+    }
+  }
+
+  /**
+   * A {@link FileBackedHTTPMetadataResolver} that lets the provider handle compression, the size limit and statistics.
+   */
+  private class ExtendedFileBackedHTTPMetadataResolver extends FileBackedHTTPMetadataResolver {
+
+    /**
+     * Constructor.
+     * 
+     * @param client
+     *          the HTTP client
+     * @param metadataURL
+     *          the metadata URL
+     * @param backupFilePath
+     *          the backup file
+     * @throws ResolverException
+     *           for invalid URL:s
+     */
+    ExtendedFileBackedHTTPMetadataResolver(final HttpClient client, final String metadataURL, final String backupFilePath)
+        throws ResolverException {
+      super(MetadataRefreshPolicy.getSharedTimer(), client, metadataURL, backupFilePath);
+    }
+
+    /**
+     * Performs the refresh, unless the provider is waiting to retry after failed refreshes, and records the outcome.
+     */
+    @Override
+    public synchronized void refresh() throws ResolverException {
+      if (isRefreshPostponed()) {
+        return;
+      }
+      final long start = System.nanoTime();
+      boolean success = false;
+      try {
+        super.refresh();
+        success = true;
+      }
+      catch (ResolverException e) {
+        refreshFailed(this);
+        throw e;
+      }
+      finally {
+        refreshed(start, success);
+      }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected byte[] fetchMetadata() throws ResolverException {
+      return fetched(super.fetchMetadata());
+    }
+
+    /**
+     * Invoked after successful refreshes. Failed refreshes are handled by {@link #refresh()}.
+     */
+    @Override
+    protected Duration computeNextRefreshDelay(final Instant expectedExpiration) {
+      return getNextRefreshDelay(expectedExpiration, false);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected HttpGet buildHttpGet() {
+      return prepareRequest(super.buildHttpGet());
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected byte[] getMetadataBytesFromResponse(final HttpResponse response) throws ResolverException {
+      return readMetadata(response);
+    }
+  }
+
 }
@@ -0,0 +1,294 @@
+/*
+ * Copyright 2016-2021 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.opensaml.saml2.metadata.provider;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.namespace.QName;
+
+import org.opensaml.core.xml.XMLObject;
+import org.opensaml.saml.common.xml.SAMLConstants;
+import org.opensaml.saml.saml2.common.TimeBoundSAMLObject;
+import org.opensaml.saml.saml2.metadata.EntitiesDescriptor;
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml.saml2.metadata.IDPSSODescriptor;
+import org.opensaml.saml.saml2.metadata.RoleDescriptor;
+import org.opensaml.saml.saml2.metadata.SPSSODescriptor;
+
+/**
+ * An immutable index over the entity descriptors found in a metadata object ({@link EntityDescriptor} or
+ * {@link EntitiesDescriptor}).
+ * <p>
+ * The index is built once, when metadata is installed by a {@link MetadataProvider}, and is then used to answer entity
+ * lookups without going through the OpenSAML resolver machinery. Since the index is never modified after it has been
+ * created it may be read by any number of threads without locking.
+ * </p>
+ *
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+public final class MetadataIndex {
+
+  /** An empty index. */
+  public static final MetadataIndex EMPTY = new MetadataIndex((XMLObject) null);
+
+  /** All entity descriptors in document order. */
+  private final List<EntityDescriptor> entityDescriptors;
+
+  /** Entity descriptors indexed by entityID. */
+  private final Map<String, Entry> entries;
+
+  /** Entity descriptors indexed by role (element name and schema type of the role descriptors). */
+  private final Map<QName, List<EntityDescriptor>> roles;
+
+  /**
+   * Builds an index for the supplied metadata.
+   *
+   * @param metadata
+   *          an {@code EntityDescriptor} or {@code EntitiesDescriptor} (if {@code null} an empty index is created)
+   * @throws IllegalArgumentException
+   *           if the supplied object is not an {@code EntityDescriptor} or {@code EntitiesDescriptor}
+   */
+  public MetadataIndex(final XMLObject metadata) {
+    this(collect(metadata));
+  }
+
+  /**
+   * Builds an index over the supplied entity descriptors. The descriptors are indexed as they are, and are not added
+   * to any parent.
+   *
+   * @param entityDescriptors
+   *          the entity descriptors
+   * @return the index
+   */
+  public static MetadataIndex of(final List<EntityDescriptor> entityDescriptors) {
+    return new MetadataIndex(new ArrayList<>(entityDescriptors));
+  }
+
+  /**
+   * Builds an index over the supplied entity descriptors.
+   *
+   * @param list
+   *          the entity descriptors (owned by the index)
+   */
+  private MetadataIndex(final List<EntityDescriptor> list) {
+    final Map<String, Entry> entryMap = new HashMap<>(Math.max(16, list.size() * 4 / 3 + 1));
+    final Map<QName, List<EntityDescriptor>> roleMap = new HashMap<>();
+    for (final EntityDescriptor ed : list) {
+      // Just as the OpenSAML resolvers, the first occurrence of an entityID wins.
+      if (ed.getEntityID() != null) {
+        entryMap.putIfAbsent(ed.getEntityID(), new Entry(ed));
+      }
+      final Set<QName> edRoles = new LinkedHashSet<>();
+      for (final RoleDescriptor rd : ed.getRoleDescriptors()) {
+        edRoles.add(rd.getElementQName());
+        if (rd.getSchemaType() != null) {
+          edRoles.add(rd.getSchemaType());
+        }
+      }
+      edRoles.forEach(r -> roleMap.computeIfAbsent(r, k -> new ArrayList<>()).add(ed));
+    }
+    roleMap.replaceAll((k, v) -> Collections.unmodifiableList(v));
+
+    this.entityDescriptors = Collections.unmodifiableList(list);
+    this.entries = Collections.unmodifiableMap(entryMap);
+    this.roles = Collections.unmodifiableMap(roleMap);
+  }
+
+  /**
+   * Returns all entity descriptors of the index (in document order).
+   *
+   * @return an unmodifiable list of entity descriptors
+   */
+  public List<EntityDescriptor> getEntityDescriptors() {
+    return this.entityDescriptors;
+  }
+
+  /**
+   * Returns all entity descriptors having the given role (in document order).
+   *
+   * @param role
+   *          the role (if {@code null}, all descriptors are returned)
+   * @return an unmodifiable list of entity descriptors
+   */
+  public List<EntityDescriptor> getEntityDescriptors(final QName role) {
+    if (role == null) {
+      return this.entityDescriptors;
+    }
+    return this.roles.getOrDefault(role, Collections.emptyList());
+  }
+
+  /**
+   * Returns the entity descriptor having the given entityID.
+   *
+   * @param entityID
+   *          the entityID
+   * @param requireValid
+   *          if {@code true}, descriptors that have expired (or belongs to an expired {@code EntitiesDescriptor}) are not
+   *          returned
+   * @return the entity descriptor, or {@code null} if no matching descriptor is found
+   */
+  public EntityDescriptor getEntityDescriptor(final String entityID, final boolean requireValid) {
+    final Entry entry = this.getEntry(entityID, requireValid);
+    return entry != null ? entry.entityDescriptor : null;
+  }
+
+  /**
+   * Returns the IdP SSO descriptor (supporting SAML 2) for the entity having the given entityID.
+   *
+   * @param entityID
+   *          the entityID
+   * @param requireValid
+   *          whether only valid metadata should be considered
+   * @return the SSO descriptor, or {@code null} if no matching descriptor is found
+   */
+  public IDPSSODescriptor getIDPSSODescriptor(final String entityID, final boolean requireValid) {
+    final Entry entry = this.getEntry(entityID, requireValid);
+    return entry != null ? entry.idpDescriptor : null;
+  }
+
+  /**
+   * Returns the SP SSO descriptor (supporting SAML 2) for the entity having the given entityID.
+   *
+   * @param entityID
+   *          the entityID
+   * @param requireValid
+   *          whether only valid metadata should be considered
+   * @return the SSO descriptor, or {@code null} if no matching descriptor is found
+   */
+  public SPSSODescriptor getSPSSODescriptor(final String entityID, final boolean requireValid) {
+    final Entry entry = this.getEntry(entityID, requireValid);
+    return entry != null ? entry.spDescriptor : null;
+  }
+
+  /**
+   * Returns the number of entity descriptors held by the index.
+   *
+   * @return the number of entity descriptors
+   */
+  public int size() {
+    return this.entityDescriptors.size();
+  }
+
+  /**
+   * Finds the entry for the given entityID.
+   *
+   * @param entityID
+   *          the entityID
+   * @param requireValid
+   *          whether only valid metadata should be considered
+   * @return the entry or {@code null}
+   */
+  private Entry getEntry(final String entityID, final boolean requireValid) {
+    if (entityID == null) {
+      return null;
+    }
+    final Entry entry = this.entries.get(entityID);
+    if (entry == null) {
+      return null;
+    }
+    if (requireValid && entry.validUntil != Long.MAX_VALUE && System.currentTimeMillis() >= entry.validUntil) {
+      return null;
+    }
+    return entry;
+  }
+
+  /**
+   * Collects all entity descriptors from the supplied metadata.
+   *
+   * @param metadata
+   *          an {@code EntityDescriptor} or {@code EntitiesDescriptor} (may be {@code null})
+   * @return a list of entity descriptors
+   * @throws IllegalArgumentException
+   *           if the supplied object is not an {@code EntityDescriptor} or {@code EntitiesDescriptor}
+   */
+  private static List<EntityDescriptor> collect(final XMLObject metadata) {
+    final List<EntityDescriptor> list = new ArrayList<>();
+    if (metadata instanceof EntityDescriptor) {
+      list.add((EntityDescriptor) metadata);
+    }
+    else if (metadata instanceof EntitiesDescriptor) {
+      collect((EntitiesDescriptor) metadata, list);
+    }
+    else if (metadata != null) {
+      throw new IllegalArgumentException("Expected EntityDescriptor or EntitiesDescriptor");
+    }
+    return list;
+  }
+
+  /**
+   * Collects all entity descriptors from the supplied {@code EntitiesDescriptor}.
+   *
+   * @param entitiesDescriptor
+   *          the entities descriptor
+   * @param list
+   *          the list to add to
+   */
+  private static void collect(final EntitiesDescriptor entitiesDescriptor, final List<EntityDescriptor> list) {
+    list.addAll(entitiesDescriptor.getEntityDescriptors());
+    for (final EntitiesDescriptor ed : entitiesDescriptor.getEntitiesDescriptors()) {
+      collect(ed, list);
+    }
+  }
+
+  /**
+   * An index entry holding an entity descriptor along with its pre-resolved SSO descriptors.
+   */
+  private static class Entry {
+
+    /** The entity descriptor. */
+    private final EntityDescriptor entityDescriptor;
+
+    /** The IdP SSO descriptor (may be null). */
+    private final IDPSSODescriptor idpDescriptor;
+
+    /** The SP SSO descriptor (may be null). */
+    private final SPSSODescriptor spDescriptor;
+
+    /** The earliest validUntil (millis) for the descriptor and its ancestors ({@code Long.MAX_VALUE} if none is set). */
+    private final long validUntil;
+
+    /**
+     * Constructor.
+     *
+     * @param entityDescriptor
+     *          the entity descriptor
+     */
+    Entry(final EntityDescriptor entityDescriptor) {
+      this.entityDescriptor = entityDescriptor;
+      this.idpDescriptor = entityDescriptor.getIDPSSODescriptor(SAMLConstants.SAML20P_NS);
+      this.spDescriptor = entityDescriptor.getSPSSODescriptor(SAMLConstants.SAML20P_NS);
+
+      long earliest = Long.MAX_VALUE;
+      for (XMLObject o = entityDescriptor; o != null; o = o.getParent()) {
+        if (o instanceof TimeBoundSAMLObject) {
+          final Instant validUntil = ((TimeBoundSAMLObject) o).getValidUntil();
+          if (validUntil != null) {
+            earliest = Math.min(earliest, validUntil.toEpochMilli());
+          }
+        }
+      }
+      this.validUntil = earliest;
+    }
+  }
+
+}
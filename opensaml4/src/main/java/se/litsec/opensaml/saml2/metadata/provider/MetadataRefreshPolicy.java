@@ -0,0 +1,195 @@
+/*
+ * Copyright 2016-2021 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.opensaml.saml2.metadata.provider;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Timer;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Policy that tells when a metadata provider should refresh its metadata.
+ * <p>
+ * After a successful refresh, the next refresh is scheduled based on when the metadata expires (as given by its
+ * {@code validUntil} and {@code cacheDuration} attributes). After a failed refresh, the provider retries with an
+ * exponentially increasing delay. In both cases a random jitter is applied so that a cluster of nodes that were started
+ * at the same time don't download metadata at the same time.
+ * </p>
+ * <p>
+ * All providers scheduling refreshes according to a policy use the same timer thread, see {@link #getSharedTimer()}.
+ * A policy instance may be shared between several providers.
+ * </p>
+ *
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+public class MetadataRefreshPolicy {
+
+  /** The minimum delay between refreshes. Default: 5 minutes. */
+  private Duration minRefreshDelay = Duration.ofMinutes(5);
+
+  /** The maximum delay between refreshes. Default: 4 hours. */
+  private Duration maxRefreshDelay = Duration.ofHours(4);
+
+  /** The factor applied to the time until the metadata expires. Default: 0.75. */
+  private float refreshDelayFactor = 0.75f;
+
+  /** The jitter, i.e., how much (as a fraction) a delay may be shortened. Default: 0.1. */
+  private float jitter = 0.1f;
+
+  /** The delay before the first retry after a failed refresh. Default: 1 minute. */
+  private Duration errorRetryDelay = Duration.ofMinutes(1);
+
+  /** The maximum delay between retries after failed refreshes. Default: 1 hour. */
+  private Duration maxErrorRetryDelay = Duration.ofHours(1);
+
+  /**
+   * Returns the timer that is shared by all metadata providers in the JVM for scheduling refreshes.
+   *
+   * @return the shared timer
+   */
+  public static Timer getSharedTimer() {
+    return SharedTimerHolder.TIMER;
+  }
+
+  /**
+   * Calculates the delay until the next refresh.
+   *
+   * @param expiration
+   *          the time when the current metadata expires (may be {@code null})
+   * @param consecutiveFailures
+   *          the number of refreshes in a row that have failed (0 if the last refresh was successful)
+   * @return the delay until the next refresh
+   */
+  public Duration getRefreshDelay(final Instant expiration, final int consecutiveFailures) {
+    long delay;
+    if (consecutiveFailures > 0) {
+      final int shift = Math.min(consecutiveFailures - 1, 30);
+      delay = this.errorRetryDelay.toMillis() << shift;
+      if (delay <= 0 || delay > this.maxErrorRetryDelay.toMillis()) {
+        delay = this.maxErrorRetryDelay.toMillis();
+      }
+    }
+    else if (expiration == null) {
+      delay = this.maxRefreshDelay.toMillis();
+    }
+    else {
+      delay = (long) ((expiration.toEpochMilli() - System.currentTimeMillis()) * this.refreshDelayFactor);
+      delay = Math.min(Math.max(delay, this.minRefreshDelay.toMillis()), this.maxRefreshDelay.toMillis());
+    }
+
+    if (this.jitter > 0f) {
+      delay -= (long) (delay * this.jitter * ThreadLocalRandom.current().nextDouble());
+    }
+    if (consecutiveFailures == 0) {
+      delay = Math.max(delay, this.minRefreshDelay.toMillis());
+    }
+    return Duration.ofMillis(delay);
+  }
+
+  /**
+   * Assigns the minimum delay between refreshes. Default is 5 minutes.
+   *
+   * @param minRefreshDelay
+   *          the minimum delay
+   */
+  public void setMinRefreshDelay(final Duration minRefreshDelay) {
+    Validate.notNull(minRefreshDelay, "minRefreshDelay must not be null");
+    Validate.isTrue(!minRefreshDelay.isNegative() && !minRefreshDelay.isZero(), "minRefreshDelay must be positive");
+    this.minRefreshDelay = minRefreshDelay;
+  }
+
+  /**
+   * Assigns the maximum delay between refreshes. This is also the delay used if the metadata has no expiration time.
+   * Default is 4 hours.
+   *
+   * @param maxRefreshDelay
+   *          the maximum delay
+   */
+  public void setMaxRefreshDelay(final Duration maxRefreshDelay) {
+    Validate.notNull(maxRefreshDelay, "maxRefreshDelay must not be null");
+    Validate.isTrue(!maxRefreshDelay.isNegative() && !maxRefreshDelay.isZero(), "maxRefreshDelay must be positive");
+    this.maxRefreshDelay = maxRefreshDelay;
+  }
+
+  /**
+   * Assigns the factor that is applied to the time until the metadata expires to get the refresh delay. Default is
+   * 0.75.
+   *
+   * @param refreshDelayFactor
+   *          a value greater than 0 and less than 1
+   */
+  public void setRefreshDelayFactor(final float refreshDelayFactor) {
+    Validate.isTrue(refreshDelayFactor > 0f && refreshDelayFactor < 1f, "refreshDelayFactor must be between 0 and 1");
+    this.refreshDelayFactor = refreshDelayFactor;
+  }
+
+  /**
+   * Assigns the jitter, i.e., the maximum fraction by which a delay is randomly shortened. Default is 0.1.
+   *
+   * @param jitter
+   *          a value between 0 (no jitter) and 1
+   */
+  public void setJitter(final float jitter) {
+    Validate.isTrue(jitter >= 0f && jitter < 1f, "jitter must be between 0 and 1");
+    this.jitter = jitter;
+  }
+
+  /**
+   * Assigns the delay before the first retry after a failed refresh. The delay is doubled for each failed refresh in a
+   * row. Default is 1 minute.
+   *
+   * @param errorRetryDelay
+   *          the delay
+   */
+  public void setErrorRetryDelay(final Duration errorRetryDelay) {
+    Validate.notNull(errorRetryDelay, "errorRetryDelay must not be null");
+    Validate.isTrue(!errorRetryDelay.isNegative() && !errorRetryDelay.isZero(), "errorRetryDelay must be positive");
+    this.errorRetryDelay = errorRetryDelay;
+  }
+
+  /**
+   * Gets the delay before the first retry after a failed refresh.
+   *
+   * @return the delay
+   */
+  public Duration getErrorRetryDelay() {
+    return this.errorRetryDelay;
+  }
+
+  /**
+   * Assigns the maximum delay between retries after failed refreshes. Default is 1 hour.
+   *
+   * @param maxErrorRetryDelay
+   *          the maximum delay
+   */
+  public void setMaxErrorRetryDelay(final Duration maxErrorRetryDelay) {
+    Validate.notNull(maxErrorRetryDelay, "maxErrorRetryDelay must not be null");
+    Validate.isTrue(!maxErrorRetryDelay.isNegative() && !maxErrorRetryDelay.isZero(), "maxErrorRetryDelay must be positive");
+    this.maxErrorRetryDelay = maxErrorRetryDelay;
+  }
+
+  /**
+   * Holder for the shared timer (created when first used).
+   */
+  private static class SharedTimerHolder {
+
+    /** The shared timer. */
+    private static final Timer TIMER = new Timer("metadata-refresh", true);
+  }
+
+}
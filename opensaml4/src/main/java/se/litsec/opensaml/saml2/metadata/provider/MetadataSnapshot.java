@@ -0,0 +1,194 @@
+/*
+ * Copyright 2016-2021 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.opensaml.saml2.metadata.provider;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import org.opensaml.core.xml.XMLObject;
+
+/**
+ * An immutable snapshot of the metadata held by a {@link MetadataProvider}, along with the views that are derived from
+ * it.
+ * <p>
+ * A provider publishes a new snapshot each time metadata is installed. Readers obtain the current snapshot with a
+ * single read and will see a consistent combination of metadata, download time and index, even if a refresh is
+ * running at the same time.
+ * </p>
+ *
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+public final class MetadataSnapshot {
+
+  /** The version returned by {@link #getVersion(XMLObject)} for objects that do not belong to a snapshot. */
+  public static final long NO_VERSION = 0L;
+
+  /** Sequence used to assign snapshot versions. */
+  private static final AtomicLong versionSequence = new AtomicLong();
+
+  /** The metadata (EntityDescriptor or EntitiesDescriptor). */
+  private volatile XMLObject metadata;
+
+  /** Supplier for metadata that is created on first access (may be null). */
+  private final Supplier<XMLObject> metadataSupplier;
+
+  /** The time when the metadata was downloaded (or assembled). */
+  private final Instant downloadTime;
+
+  /** The index over the metadata. */
+  private final MetadataIndex index;
+
+  /** The snapshot version. */
+  private final long version;
+
+  /**
+   * Constructor.
+   *
+   * @param metadata
+   *          the metadata (may be {@code null})
+   * @param downloadTime
+   *          the time when the metadata was downloaded
+   * @param index
+   *          the index over the metadata
+   */
+  MetadataSnapshot(final XMLObject metadata, final Instant downloadTime, final MetadataIndex index) {
+    this.metadata = metadata;
+    this.metadataSupplier = null;
+    this.downloadTime = downloadTime;
+    this.index = index != null ? index : MetadataIndex.EMPTY;
+    this.version = versionSequence.incrementAndGet();
+    if (metadata != null) {
+      metadata.getObjectMetadata().put(new Version(this.version));
+    }
+  }
+
+  /**
+   * Constructor for a snapshot whose metadata object is created the first time it is requested. This is used when the
+   * index is built over metadata objects that are held elsewhere, and the metadata object is only needed by callers of
+   * {@link #getMetadata()}.
+   *
+   * @param metadataSupplier
+   *          supplies the metadata
+   * @param downloadTime
+   *          the time when the metadata was downloaded
+   * @param index
+   *          the index over the metadata
+   */
+  MetadataSnapshot(final Supplier<XMLObject> metadataSupplier, final Instant downloadTime, final MetadataIndex index) {
+    this.metadataSupplier = metadataSupplier;
+    this.downloadTime = downloadTime;
+    this.index = index != null ? index : MetadataIndex.EMPTY;
+    this.version = versionSequence.incrementAndGet();
+  }
+
+  /**
+   * Gets the metadata.
+   *
+   * @return the metadata (EntityDescriptor or EntitiesDescriptor), or {@code null}
+   */
+  public XMLObject getMetadata() {
+    XMLObject m = this.metadata;
+    if (m == null && this.metadataSupplier != null) {
+      synchronized (this) {
+        m = this.metadata;
+        if (m == null) {
+          m = this.metadataSupplier.get();
+          if (m != null) {
+            m.getObjectMetadata().put(new Version(this.version));
+          }
+          this.metadata = m;
+        }
+      }
+    }
+    return m;
+  }
+
+  /**
+   * Gets the time when the metadata was downloaded.
+   *
+   * @return the download time
+   */
+  public Instant getDownloadTime() {
+    return this.downloadTime;
+  }
+
+  /**
+   * Gets the index over the metadata.
+   *
+   * @return the metadata index
+   */
+  public MetadataIndex getIndex() {
+    return this.index;
+  }
+
+  /**
+   * Gets the version of this snapshot. Versions are unique within the JVM and a snapshot that is published after
+   * another snapshot always has a higher version.
+   *
+   * @return the snapshot version
+   */
+  public long getVersion() {
+    return this.version;
+  }
+
+  /**
+   * Gets the version of the snapshot that the supplied metadata object belongs to. The object may be the metadata of a
+   * snapshot or any object contained in it, for example an entity descriptor or a role descriptor.
+   * <p>
+   * Components that cache values derived from metadata should use this version, and not the metadata objects
+   * themselves, to tell whether a cached value is up to date. That way a cache does not keep old metadata alive after a
+   * refresh. Metadata objects that have not been published by a provider are not versioned since their owner may
+   * change them at any time.
+   * </p>
+   *
+   * @param object
+   *          the metadata object
+   * @return the snapshot version, or {@link #NO_VERSION} if the object does not belong to a snapshot
+   */
+  public static long getVersion(final XMLObject object) {
+    if (object == null) {
+      return NO_VERSION;
+    }
+    XMLObject root = object;
+    while (root.getParent() != null) {
+      root = root.getParent();
+    }
+    final List<Version> versions = root.getObjectMetadata().get(Version.class);
+    return versions.isEmpty() ? NO_VERSION : versions.get(versions.size() - 1).value;
+  }
+
+  /**
+   * Holds the snapshot version in the object metadata of the snapshot's metadata object.
+   */
+  private static final class Version {
+
+    /** The version. */
+    private final long value;
+
+    /**
+     * Constructor.
+     *
+     * @param value
+     *          the version
+     */
+    Version(final long value) {
+      this.value = value;
+    }
+  }
+
+}
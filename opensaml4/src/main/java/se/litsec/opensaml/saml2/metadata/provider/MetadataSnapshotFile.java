@@ -0,0 +1,288 @@
+/*
+ * Copyright 2016-2021 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.opensaml.saml2.metadata.provider;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.Arrays;
+
+import org.opensaml.core.xml.XMLObject;
+import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
+import org.opensaml.core.xml.io.MarshallingException;
+import org.opensaml.core.xml.io.UnmarshallingException;
+import org.opensaml.core.xml.util.XMLObjectSupport;
+import org.w3c.dom.Element;
+
+import net.shibboleth.utilities.java.support.xml.SerializeSupport;
+import net.shibboleth.utilities.java.support.xml.XMLParserException;
+
+/**
+ * A file holding a snapshot of verified metadata, used by {@link AbstractMetadataProvider} to serve metadata directly
+ * at startup (see {@link AbstractMetadataProvider#setSnapshotFile(File)}).
+ * <p>
+ * The file consists of a small header (format identifier, download time and a SHA-256 hash of the contents) followed
+ * by the metadata that was installed by the provider, i.e., the metadata after signature verification and all other
+ * filters have been applied. When the file is read it is memory-mapped and the hash is checked before the contents is
+ * parsed.
+ * </p>
+ *
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+final class MetadataSnapshotFile {
+
+  /** Identifies the file format ("LSMS"). */
+  private static final int MAGIC = 0x4C534D53;
+
+  /** The format version. */
+  private static final int FORMAT_VERSION = 1;
+
+  /** The hash algorithm. */
+  private static final String HASH_ALGORITHM = "SHA-256";
+
+  /** The length of the hash. */
+  private static final int HASH_LENGTH = 32;
+
+  /** The length of the header (magic, version, download time and hash). */
+  private static final int HEADER_LENGTH = 4 + 4 + 8 + HASH_LENGTH;
+
+  /** The file. */
+  private final File file;
+
+  /** The hash of the contents that was last read or written. */
+  private byte[] currentHash;
+
+  /**
+   * Constructor.
+   *
+   * @param file
+   *          the snapshot file
+   */
+  MetadataSnapshotFile(final File file) {
+    this.file = file;
+  }
+
+  /**
+   * Gets the snapshot file.
+   *
+   * @return the file
+   */
+  File getFile() {
+    return this.file;
+  }
+
+  /**
+   * Reads the snapshot from the file.
+   *
+   * @return the metadata snapshot, or {@code null} if the file does not exist
+   * @throws IOException
+   *           if the file can not be read, or is corrupt
+   * @throws XMLParserException
+   *           if the metadata can not be parsed
+   * @throws UnmarshallingException
+   *           if the metadata can not be unmarshalled
+   */
+  synchronized MetadataSnapshot read() throws IOException, XMLParserException, UnmarshallingException {
+    if (!this.file.isFile()) {
+      return null;
+    }
+    try (FileChannel channel = FileChannel.open(this.file.toPath(), StandardOpenOption.READ)) {
+      final MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+      if (buffer.remaining() < HEADER_LENGTH || buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+        throw new IOException(String.format("%s is not a metadata snapshot file", this.file));
+      }
+      final Instant downloadTime = Instant.ofEpochMilli(buffer.getLong());
+      final byte[] hash = new byte[HASH_LENGTH];
+      buffer.get(hash);
+
+      final ByteBuffer contents = buffer.slice();
+      final MessageDigest digest = createDigest();
+      digest.update(contents.duplicate());
+      if (!MessageDigest.isEqual(hash, digest.digest())) {
+        throw new IOException(String.format("Metadata snapshot file %s is corrupt - hash mismatch", this.file));
+      }
+
+      final XMLObject metadata = XMLObjectSupport.unmarshallFromInputStream(
+        XMLObjectProviderRegistrySupport.getParserPool(), new ByteBufferInputStream(contents));
+      final MetadataIndex index;
+      try {
+        index = new MetadataIndex(metadata);
+      }
+      catch (IllegalArgumentException e) {
+        throw new IOException(String.format("Metadata snapshot file %s does not contain metadata", this.file), e);
+      }
+      this.currentHash = hash;
+      return new MetadataSnapshot(metadata, downloadTime, index);
+    }
+  }
+
+  /**
+   * Serializes the supplied metadata. The metadata is marshalled if it does not have a DOM.
+   * <p>
+   * The DOM of published metadata may be read by other threads, and a DOM does not support concurrent access while it
+   * is being modified. Therefore, the metadata should be serialized by the thread that installs it, before it is
+   * published, and the serialized bytes are then handed over to {@link #write(byte[], Instant)}.
+   * </p>
+   *
+   * @param metadata
+   *          the metadata to serialize
+   * @return the serialized metadata
+   * @throws MarshallingException
+   *           if the metadata has no DOM and it can not be marshalled
+   */
+  static byte[] serialize(final XMLObject metadata) throws MarshallingException {
+    final Element element = metadata.getDOM() != null ? metadata.getDOM() : XMLObjectSupport.marshall(metadata);
+    final ByteArrayOutputStream out = new ByteArrayOutputStream(64 * 1024);
+    SerializeSupport.writeNode(element, out);
+    return out.toByteArray();
+  }
+
+  /**
+   * Writes the supplied metadata to the file, unless the file already holds the same metadata. See
+   * {@link #serialize(XMLObject)} and {@link #write(byte[], Instant)}.
+   *
+   * @param metadata
+   *          the metadata to write
+   * @param downloadTime
+   *          the time when the metadata was downloaded
+   * @return {@code true} if the file was written and {@code false} if it already held the metadata
+   * @throws MarshallingException
+   *           if the metadata has no DOM and it can not be marshalled
+   * @throws IOException
+   *           for errors writing the file
+   */
+  boolean write(final XMLObject metadata, final Instant downloadTime) throws MarshallingException, IOException {
+    return this.write(serialize(metadata), downloadTime);
+  }
+
+  /**
+   * Writes the supplied serialized metadata to the file, unless the file already holds the same metadata. The file is
+   * replaced atomically (if supported by the file system) so that a reader never sees a partially written file.
+   *
+   * @param contents
+   *          the serialized metadata (see {@link #serialize(XMLObject)})
+   * @param downloadTime
+   *          the time when the metadata was downloaded
+   * @return {@code true} if the file was written and {@code false} if it already held the metadata
+   * @throws IOException
+   *           for errors writing the file
+   */
+  synchronized boolean write(final byte[] contents, final Instant downloadTime) throws IOException {
+    final byte[] hash = createDigest().digest(contents);
+    if (Arrays.equals(hash, this.currentHash)) {
+      return false;
+    }
+
+    final Path target = this.file.getAbsoluteFile().toPath();
+    final Path tmp = Files.createTempFile(target.getParent(), this.file.getName(), ".tmp");
+    try {
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeLong(downloadTime.toEpochMilli());
+        out.write(hash);
+        out.write(contents);
+      }
+      try {
+        Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      }
+      catch (AtomicMoveNotSupportedException e) {
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+      }
+    }
+    finally {
+      Files.deleteIfExists(tmp);
+    }
+    this.currentHash = hash;
+    return true;
+  }
+
+  /**
+   * Creates the message digest used to hash the file contents.
+   *
+   * @return a message digest
+   */
+  private static MessageDigest createDigest() {
+    try {
+      return MessageDigest.getInstance(HASH_ALGORITHM);
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new SecurityException(e);
+    }
+  }
+
+  /**
+   * An input stream reading from a byte buffer.
+   */
+  private static class ByteBufferInputStream extends InputStream {
+
+    /** The buffer. */
+    private final ByteBuffer buffer;
+
+    /**
+     * Constructor.
+     *
+     * @param buffer
+     *          the buffer to read from
+     */
+    ByteBufferInputStream(final ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int read() {
+      return this.buffer.hasRemaining() ? this.buffer.get() & 0xFF : -1;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int read(final byte[] b, final int off, final int len) {
+      if (len == 0) {
+        return 0;
+      }
+      if (!this.buffer.hasRemaining()) {
+        return -1;
+      }
+      final int n = Math.min(len, this.buffer.remaining());
+      this.buffer.get(b, off, n);
+      return n;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int available() {
+      return this.buffer.remaining();
+    }
+  }
+
+}
@@ -45,6 +45,11 @@ import se.litsec.opensaml.saml2.metadata.MetadataUtils;
 
 /**
  * Utility methods for signatures.
+ * <p>
+ * The signature signing parameters resolved by {@link #getSigningParameters(Credential, SignatureSigningConfiguration,
+ * EntityDescriptor)} may be cached using a {@link se.litsec.opensaml.xmlsec.SigningParametersCache
+ * SigningParametersCache}.
+ * </p>
  * 
  * @author Martin Lindström (martin.lindstrom@litsec.se)
  */
@@ -171,11 +176,56 @@ public class SignatureUtils {
   public static <T extends SignableSAMLObject> void sign(T object, Credential signingCredentials,
       SignatureSigningConfiguration config, EntityDescriptor recipientMetadata) throws SignatureException {
 
-    SignatureSigningConfiguration peerConfig = getSignaturePreferences(recipientMetadata);
+    sign(object, getSigningParameters(signingCredentials, config, recipientMetadata));
+  }
+
+  /**
+   * Signs the supplied SAML object using the supplied signature signing parameters.
+   * 
+   * @param object
+   *          object to sign
+   * @param parameters
+   *          the signature signing parameters
+   * @param <T>
+   *          the object type
+   * @throws SignatureException
+   *           for signature errors
+   * @see #getSigningParameters(Credential, SignatureSigningConfiguration, EntityDescriptor)
+   */
+  public static <T extends SignableSAMLObject> void sign(T object, SignatureSigningParameters parameters) throws SignatureException {
+    try {
+      object.setSignature(null);
+      SignatureSupport.signObject(object, parameters);
+    }
+    catch (org.opensaml.security.SecurityException | MarshallingException e) {
+      throw new SignatureException(e);
+    }
+  }
+
+  /**
+   * Resolves the signature signing parameters to use when signing a message for the given recipient. The recipient
+   * preferences (see {@link #getSignaturePreferences(EntityDescriptor)}) are given precedence over the supplied
+   * configuration.
+   * 
+   * @param signingCredentials
+   *          signature credentials
+   * @param config
+   *          signature configuration (if {@code null}, the global configuration is used)
+   * @param recipientMetadata
+   *          recipient's metadata (may be {@code null})
+   * @return the signing parameters
+   * @throws SignatureException
+   *           if no parameters could be resolved
+   */
+  public static SignatureSigningParameters getSigningParameters(Credential signingCredentials,
+      SignatureSigningConfiguration config, EntityDescriptor recipientMetadata) throws SignatureException {
+
     if (config == null) {
       config = SecurityConfigurationSupport.getGlobalSignatureSigningConfiguration();
     }
 
+    SignatureSigningConfiguration peerConfig = getSignaturePreferences(recipientMetadata);
+
     SignatureSigningConfiguration[] configs = new SignatureSigningConfiguration[1 + (peerConfig != null ? 1 : 0)];
     int pos = 0;
     if (peerConfig != null) {
@@ -183,7 +233,7 @@ public class SignatureUtils {
     }
     configs[pos] = config;
 
-    sign(object, signingCredentials, configs);
+    return resolveSigningParameters(signingCredentials, configs);
   }
 
   /**
@@ -213,21 +263,46 @@ public class SignatureUtils {
 
     try {
       object.setSignature(null);
+      SignatureSigningParameters parameters = resolveSigningParameters(signingCredentials, configs);
+      SignatureSupport.signObject(object, parameters);
+    }
+    catch (org.opensaml.security.SecurityException | MarshallingException e) {
+      throw new SignatureException(e);
+    }
+  }
 
-      BasicSignatureSigningConfiguration signatureCreds = new BasicSignatureSigningConfiguration();
-      signatureCreds.setSigningCredentials(Collections.singletonList(signingCredentials));
+  /**
+   * Resolves the signing parameters given the credentials and configurations.
+   * 
+   * @param signingCredentials
+   *          signature credentials
+   * @param configs
+   *          signature configurations (in order of precedence)
+   * @return the signing parameters
+   * @throws SignatureException
+   *           if no parameters could be resolved
+   */
+  private static SignatureSigningParameters resolveSigningParameters(Credential signingCredentials,
+      SignatureSigningConfiguration... configs) throws SignatureException {
+
+    BasicSignatureSigningConfiguration signatureCreds = new BasicSignatureSigningConfiguration();
+    signatureCreds.setSigningCredentials(Collections.singletonList(signingCredentials));
 
-      BasicSignatureSigningParametersResolver signatureParametersResolver = new BasicSignatureSigningParametersResolver();
+    BasicSignatureSigningParametersResolver signatureParametersResolver = new BasicSignatureSigningParametersResolver();
 
-      SignatureSigningConfiguration[] criteriaConfig = new SignatureSigningConfiguration[configs.length + 1];
-      System.arraycopy(configs, 0, criteriaConfig, 0, configs.length);
-      criteriaConfig[configs.length] = signatureCreds;
-      CriteriaSet criteriaSet = new CriteriaSet(new SignatureSigningConfigurationCriterion(criteriaConfig));
+    SignatureSigningConfiguration[] criteriaConfig = new SignatureSigningConfiguration[configs.length + 1];
+    System.arraycopy(configs, 0, criteriaConfig, 0, configs.length);
+    criteriaConfig[configs.length] = signatureCreds;
+    CriteriaSet criteriaSet = new CriteriaSet(new SignatureSigningConfigurationCriterion(criteriaConfig));
 
+    try {
       SignatureSigningParameters parameters = signatureParametersResolver.resolveSingle(criteriaSet);
-      SignatureSupport.signObject(object, parameters);
+      if (parameters == null) {
+        throw new SignatureException("No signature signing parameters could be resolved");
+      }
+      return parameters;
     }
-    catch (ResolverException | org.opensaml.security.SecurityException | MarshallingException e) {
+    catch (ResolverException e) {
       throw new SignatureException(e);
     }
   }
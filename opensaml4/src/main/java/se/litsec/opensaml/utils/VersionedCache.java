@@ -0,0 +1,252 @@
+/*
+ * Copyright 2016-2021 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.opensaml.utils;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.lang3.Validate;
+
+/**
+ * A bounded cache where each value is tied to a version, for example the version of the metadata snapshot that the
+ * value was computed from (see {@code MetadataSnapshot#getVersion(XMLObject)}). This is the cache used by the caching
+ * components of the library.
+ * <p>
+ * A lookup gives a hit only if a value for the key has been added under the requested version. A key may hold values
+ * for several versions. When a value is added, the values for the same key with older versions are dropped, but values
+ * with newer versions are kept. This way a refresh of the underlying data invalidates the values computed from the old
+ * data, while two sources holding different versions of the same data (for example two metadata providers serving the
+ * same entity) do not replace each other's values on each lookup.
+ * </p>
+ * <p>
+ * The number of keys is bounded. When a key is added to a full cache, the least recently used key among a small sample
+ * of keys is evicted. This is an approximation of LRU-eviction that does not require any locking; lookups and additions
+ * never block. The number of hits, misses and evictions are counted.
+ * </p>
+ *
+ * @param <K>
+ *          the key type
+ * @param <V>
+ *          the value type
+ *
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+public class VersionedCache<K, V> {
+
+  /** The default maximum number of keys of a cache. */
+  public static final int DEFAULT_MAX_SIZE = 1000;
+
+  /** The number of keys that are examined when a key is to be evicted. */
+  private static final int EVICTION_SAMPLE_SIZE = 8;
+
+  /** The maximum number of keys. */
+  private final int maxSize;
+
+  /** The cache. */
+  private final ConcurrentMap<K, Entry<V>> cache = new ConcurrentHashMap<>();
+
+  /** Number of cache hits. */
+  private final LongAdder hits = new LongAdder();
+
+  /** Number of cache misses. */
+  private final LongAdder misses = new LongAdder();
+
+  /** Number of evicted keys. */
+  private final LongAdder evictions = new LongAdder();
+
+  /**
+   * Constructor creating a cache holding at most {@value #DEFAULT_MAX_SIZE} keys.
+   */
+  public VersionedCache() {
+    this(DEFAULT_MAX_SIZE);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param maxSize
+   *          the maximum number of keys of the cache
+   */
+  public VersionedCache(final int maxSize) {
+    Validate.isTrue(maxSize > 0, "maxSize must be greater than 0");
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * Gets the value that has been added for the given key and version.
+   *
+   * @param key
+   *          the key
+   * @param version
+   *          the version
+   * @return the value, or {@code null} if there is no value for the key and version
+   */
+  public V get(final K key, final long version) {
+    final Entry<V> head = this.cache.get(key);
+    for (Entry<V> e = head; e != null; e = e.next) {
+      if (e.version == version) {
+        head.lastAccess = System.nanoTime();
+        this.hits.increment();
+        return e.value;
+      }
+    }
+    this.misses.increment();
+    return null;
+  }
+
+  /**
+   * Adds a value for the given key and version. The values for the key with older versions are dropped.
+   *
+   * @param key
+   *          the key
+   * @param version
+   *          the version
+   * @param value
+   *          the value
+   */
+  public void put(final K key, final long version, final V value) {
+    Validate.notNull(value, "value must not be null");
+    this.cache.compute(key, (k, existing) -> {
+      Entry<V> added = new Entry<>(version, value, null);
+      for (Entry<V> e = existing; e != null; e = e.next) {
+        if (e.version > version) {
+          added = new Entry<>(e.version, e.value, added);
+        }
+      }
+      return added;
+    });
+
+    while (this.cache.size() > this.maxSize) {
+      if (!this.evict(key)) {
+        break;
+      }
+    }
+  }
+
+  /**
+   * Evicts the least recently used key among a sample of keys.
+   *
+   * @param retain
+   *          a key that must not be evicted
+   * @return {@code true} if a key was evicted, and {@code false} if there was no key to evict
+   */
+  private boolean evict(final K retain) {
+    Map.Entry<K, Entry<V>> victim = null;
+    int sampled = 0;
+    final Iterator<Map.Entry<K, Entry<V>>> i = this.cache.entrySet().iterator();
+    while (sampled < EVICTION_SAMPLE_SIZE && i.hasNext()) {
+      final Map.Entry<K, Entry<V>> candidate = i.next();
+      if (candidate.getKey().equals(retain)) {
+        continue;
+      }
+      if (victim == null || candidate.getValue().lastAccess - victim.getValue().lastAccess < 0) {
+        victim = candidate;
+      }
+      sampled++;
+    }
+    if (victim == null) {
+      return false;
+    }
+    if (this.cache.remove(victim.getKey(), victim.getValue())) {
+      this.evictions.increment();
+    }
+    return true;
+  }
+
+  /**
+   * Removes all entries from the cache.
+   */
+  public void clear() {
+    this.cache.clear();
+  }
+
+  /**
+   * Gets the number of keys in the cache.
+   *
+   * @return the number of keys
+   */
+  public int getSize() {
+    return this.cache.size();
+  }
+
+  /**
+   * Gets the number of lookups that found a value.
+   *
+   * @return the number of cache hits
+   */
+  public long getHits() {
+    return this.hits.sum();
+  }
+
+  /**
+   * Gets the number of lookups that did not find a value.
+   *
+   * @return the number of cache misses
+   */
+  public long getMisses() {
+    return this.misses.sum();
+  }
+
+  /**
+   * Gets the number of keys that have been evicted since the cache was full.
+   *
+   * @return the number of evictions
+   */
+  public long getEvictions() {
+    return this.evictions.sum();
+  }
+
+  /**
+   * A cached value. The entries for a key form a chain, and the access time is recorded on the first entry.
+   *
+   * @param <V>
+   *          the value type
+   */
+  private static class Entry<V> {
+
+    /** The version of the value. */
+    private final long version;
+
+    /** The value. */
+    private final V value;
+
+    /** The entry for another version of the same key (may be null). */
+    private final Entry<V> next;
+
+    /** The last time (in nanoseconds) the key was used. */
+    private volatile long lastAccess = System.nanoTime();
+
+    /**
+     * Constructor.
+     *
+     * @param version
+     *          the version of the value
+     * @param value
+     *          the value
+     * @param next
+     *          the entry for another version of the same key (may be null)
+     */
+    Entry(final long version, final V value, final Entry<V> next) {
+      this.version = version;
+      this.value = value;
+      this.next = next;
+    }
+  }
+
+}
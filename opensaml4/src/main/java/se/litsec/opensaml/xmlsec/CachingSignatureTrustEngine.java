@@ -0,0 +1,189 @@
+/*
+ * Copyright 2016-2021 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.opensaml.xmlsec;
+
+import java.security.Key;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import javax.xml.namespace.QName;
+
+import org.apache.commons.lang3.Validate;
+import org.opensaml.core.criterion.EntityIdCriterion;
+import org.opensaml.saml.criterion.RoleDescriptorCriterion;
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml.saml2.metadata.RoleDescriptor;
+import org.opensaml.security.SecurityException;
+import org.opensaml.security.credential.Credential;
+import org.opensaml.security.credential.CredentialResolver;
+import org.opensaml.security.credential.UsageType;
+import org.opensaml.security.criteria.UsageCriterion;
+import org.opensaml.xmlsec.algorithm.AlgorithmSupport;
+import org.opensaml.xmlsec.keyinfo.KeyInfoCredentialResolver;
+import org.opensaml.xmlsec.signature.Signature;
+import org.opensaml.xmlsec.signature.support.impl.ExplicitKeySignatureTrustEngine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.shibboleth.utilities.java.support.resolver.CriteriaSet;
+import net.shibboleth.utilities.java.support.resolver.ResolverException;
+import se.litsec.opensaml.saml2.metadata.provider.MetadataSnapshot;
+
+/**
+ * An {@link ExplicitKeySignatureTrustEngine} that caches the trusted keys of signers.
+ * <p>
+ * The explicit key trust engine resolves the trusted credentials from the credential resolver, and builds credentials
+ * from the {@code KeyInfo} of the signature, each time a signature is validated. This engine resolves the trusted
+ * credentials of a signer once per metadata version and stores them in a {@link TrustedKeyCache}. Signatures are then
+ * verified directly against the cached keys. The result is the same as for the explicit key trust engine since a key
+ * from the {@code KeyInfo} element is only accepted if it equals one of the trusted keys.
+ * </p>
+ * <p>
+ * The cache is only used if the criteria set contains a {@link RoleDescriptorCriterion} for a role descriptor that
+ * belongs to metadata published by a metadata provider. The version of the provider's {@link MetadataSnapshot} is used
+ * as the metadata version; when metadata is refreshed a new snapshot is published and the keys of the peer are
+ * resolved again. For all other criteria, the engine works as the explicit key trust engine.
+ * </p>
+ * 
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+public class CachingSignatureTrustEngine extends ExplicitKeySignatureTrustEngine {
+
+  /** Class logger. */
+  private final Logger log = LoggerFactory.getLogger(CachingSignatureTrustEngine.class);
+
+  /** The cache of trusted keys. */
+  private final TrustedKeyCache trustedKeyCache;
+
+  /**
+   * Constructor.
+   * 
+   * @param resolver
+   *          the credential resolver used to resolve trusted credentials
+   * @param keyInfoResolver
+   *          the KeyInfo credential resolver used to obtain the signing key from the signature (used when the cache
+   *          can not be used)
+   * @param trustedKeyCache
+   *          the cache for trusted keys
+   */
+  public CachingSignatureTrustEngine(final CredentialResolver resolver, final KeyInfoCredentialResolver keyInfoResolver,
+      final TrustedKeyCache trustedKeyCache) {
+    super(resolver, keyInfoResolver);
+    this.trustedKeyCache = Validate.notNull(trustedKeyCache, "trustedKeyCache must not be null");
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected boolean doValidate(final Signature signature, final CriteriaSet trustBasisCriteria) throws SecurityException {
+
+    final RoleDescriptor roleDescriptor = Optional.ofNullable(trustBasisCriteria.get(RoleDescriptorCriterion.class))
+      .map(RoleDescriptorCriterion::getRole)
+      .orElse(null);
+    final String entityID = getEntityID(roleDescriptor, trustBasisCriteria);
+    final long metadataVersion = MetadataSnapshot.getVersion(roleDescriptor);
+    if (metadataVersion == MetadataSnapshot.NO_VERSION || entityID == null) {
+      return super.doValidate(signature, trustBasisCriteria);
+    }
+    final UsageType usage = Optional.ofNullable(trustBasisCriteria.get(UsageCriterion.class))
+      .map(UsageCriterion::getUsage)
+      .orElse(UsageType.SIGNING);
+
+    // The credentials are resolved for the role, so the role is part of the key. Otherwise the keys of one role would
+    // be trusted when validating a signature for another role of the same entity.
+    //
+    final QName role = roleDescriptor.getSchemaType() != null ? roleDescriptor.getSchemaType() : roleDescriptor.getElementQName();
+
+    List<Credential> trustedCredentials = this.trustedKeyCache.get(entityID, role, metadataVersion, usage);
+    if (trustedCredentials == null) {
+      trustedCredentials = this.resolveTrustedCredentials(trustBasisCriteria, usage);
+      this.trustedKeyCache.put(entityID, role, metadataVersion, usage, trustedCredentials);
+      log.debug("Resolved {} trusted key(s) for '{}'", trustedCredentials.size(), entityID);
+    }
+
+    final String keyAlgorithm = AlgorithmSupport.getKeyAlgorithm(signature.getSignatureAlgorithm());
+    for (final Credential credential : trustedCredentials) {
+      final Key key = credential.getPublicKey() != null ? credential.getPublicKey() : credential.getSecretKey();
+      if (keyAlgorithm != null && !keyAlgorithm.equals(key.getAlgorithm())) {
+        continue;
+      }
+      if (this.verifySignature(signature, credential)) {
+        log.debug("Signature was verified using trusted key of '{}'", entityID);
+        return true;
+      }
+    }
+    log.debug("Signature could not be verified using any of the trusted keys of '{}'", entityID);
+    return false;
+  }
+
+  /**
+   * Resolves the trusted credentials that holds a key.
+   * 
+   * @param trustBasisCriteria
+   *          the criteria
+   * @param usage
+   *          the key usage
+   * @return a list of trusted credentials
+   * @throws SecurityException
+   *           for resolver errors
+   */
+  private List<Credential> resolveTrustedCredentials(final CriteriaSet trustBasisCriteria, final UsageType usage)
+      throws SecurityException {
+    final CriteriaSet criteriaSet = new CriteriaSet();
+    criteriaSet.addAll(trustBasisCriteria);
+    if (!criteriaSet.contains(UsageCriterion.class)) {
+      criteriaSet.add(new UsageCriterion(usage));
+    }
+    try {
+      final List<Credential> credentials = new ArrayList<>();
+      for (final Credential credential : this.getCredentialResolver().resolve(criteriaSet)) {
+        if (credential.getPublicKey() != null || credential.getSecretKey() != null) {
+          credentials.add(credential);
+        }
+      }
+      return credentials;
+    }
+    catch (ResolverException e) {
+      throw new SecurityException("Error resolving trusted credentials", e);
+    }
+  }
+
+  /**
+   * Gets the entityID of the signer.
+   * 
+   * @param roleDescriptor
+   *          the role descriptor (may be null)
+   * @param trustBasisCriteria
+   *          the criteria
+   * @return the entityID, or {@code null} if it is not known
+   */
+  private static String getEntityID(final RoleDescriptor roleDescriptor, final CriteriaSet trustBasisCriteria) {
+    if (roleDescriptor != null && roleDescriptor.getParent() instanceof EntityDescriptor) {
+      return ((EntityDescriptor) roleDescriptor.getParent()).getEntityID();
+    }
+    return Optional.ofNullable(trustBasisCriteria.get(EntityIdCriterion.class)).map(EntityIdCriterion::getEntityId).orElse(null);
+  }
+
+  /**
+   * Gets the cache of trusted keys.
+   * 
+   * @return the cache
+   */
+  public TrustedKeyCache getTrustedKeyCache() {
+    return this.trustedKeyCache;
+  }
+
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2016-2021 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.opensaml.xmlsec;
+
+import java.util.List;
+import java.util.Objects;
+
+import javax.xml.namespace.QName;
+
+import org.opensaml.security.credential.Credential;
+import org.opensaml.security.credential.UsageType;
+
+import se.litsec.opensaml.utils.VersionedCache;
+
+/**
+ * An in-memory implementation of {@link TrustedKeyCache}.
+ * <p>
+ * The credentials are cached per peer, role and key usage. When credentials resolved from a new metadata version are
+ * added, they replace the credentials for older versions.
+ * </p>
+ * <p>
+ * The cache is a bounded {@link VersionedCache} (see its documentation for the eviction policy). Lookups never block.
+ * </p>
+ * 
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+public class InMemoryTrustedKeyCache implements TrustedKeyCache {
+
+  /** The default maximum number of entries of the cache. */
+  public static final int DEFAULT_MAX_SIZE = VersionedCache.DEFAULT_MAX_SIZE;
+
+  /** The cache (versioned by the metadata snapshot version). */
+  private final VersionedCache<CacheKey, List<Credential>> cache;
+
+  /**
+   * Constructor creating a cache with {@value #DEFAULT_MAX_SIZE} entries.
+   */
+  public InMemoryTrustedKeyCache() {
+    this(DEFAULT_MAX_SIZE);
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param maxSize
+   *          the maximum number of entries of the cache
+   */
+  public InMemoryTrustedKeyCache(final int maxSize) {
+    this.cache = new VersionedCache<>(maxSize);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public List<Credential> get(final String entityID, final QName role, final long metadataVersion, final UsageType usage) {
+    return this.cache.get(new CacheKey(entityID, role, usage), metadataVersion);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void put(final String entityID, final QName role, final long metadataVersion, final UsageType usage,
+      final List<Credential> credentials) {
+    this.cache.put(new CacheKey(entityID, role, usage), metadataVersion, List.copyOf(credentials));
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void clear() {
+    this.cache.clear();
+  }
+
+  /**
+   * Returns the number of entries in the cache.
+   * 
+   * @return the number of entries
+   */
+  public int size() {
+    return this.cache.getSize();
+  }
+
+  /**
+   * Key for the cache.
+   */
+  private static class CacheKey {
+
+    /** The peer entityID. */
+    private final String entityID;
+
+    /** The role. */
+    private final QName role;
+
+    /** The key usage. */
+    private final UsageType usage;
+
+    /**
+     * Constructor.
+     * 
+     * @param entityID
+     *          the peer entityID
+     * @param role
+     *          the role
+     * @param usage
+     *          the key usage
+     */
+    CacheKey(final String entityID, final QName role, final UsageType usage) {
+      this.entityID = entityID;
+      this.role = role;
+      this.usage = usage;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int hashCode() {
+      return Objects.hash(this.entityID, this.role, this.usage);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean equals(final Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof CacheKey)) {
+        return false;
+      }
+      final CacheKey other = (CacheKey) obj;
+      return Objects.equals(this.entityID, other.entityID) && Objects.equals(this.role, other.role) && this.usage == other.usage;
+    }
+  }
+
+}
@@ -15,18 +15,32 @@
  */
 package se.litsec.opensaml.xmlsec;
 
+import java.security.Key;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
 
 import org.opensaml.core.xml.XMLObject;
 import org.opensaml.saml.saml2.core.EncryptedElementType;
 import org.opensaml.security.credential.Credential;
 import org.opensaml.xmlsec.DecryptionConfiguration;
 import org.opensaml.xmlsec.DecryptionParameters;
+import org.opensaml.xmlsec.encryption.CipherData;
 import org.opensaml.xmlsec.encryption.EncryptedData;
+import org.opensaml.xmlsec.encryption.EncryptedKey;
 import org.opensaml.xmlsec.encryption.support.Decrypter;
 import org.opensaml.xmlsec.encryption.support.DecryptionException;
+import org.opensaml.xmlsec.encryption.support.EncryptedKeyResolver;
+import org.opensaml.xmlsec.keyinfo.KeyInfoCredentialResolver;
+import org.opensaml.xmlsec.keyinfo.impl.ChainingKeyInfoCredentialResolver;
+import org.opensaml.xmlsec.keyinfo.impl.StaticKeyInfoCredentialResolver;
 
 import net.shibboleth.utilities.java.support.logic.Constraint;
 import se.swedenconnect.opensaml.xmlsec.encryption.support.DecryptionUtils;
@@ -40,13 +54,34 @@ import se.swedenconnect.opensaml.xmlsec.encryption.support.Pkcs11Decrypter;
  * perhaps easier to use; it supports initialization with just the encryption credentials and assigns the defaults from
  * {@link DecryptionUtils#createDecryptionParameters(Credential...)}.
  * </p>
+ * <p>
+ * The bean may be used by several threads concurrently. Each thread that decrypts uses its own {@link Decrypter}
+ * instance, and the instances are pooled and reused. If the bean is created with exactly one decryption credential, that
+ * credential is tried first when decrypting the key, before the key info of the encrypted key is resolved. Optionally,
+ * decrypted data encryption keys may be cached (see {@link #setKeyCacheSize(int)}).
+ * </p>
  * 
  * @author Martin Lindström (martin.lindstrom@litsec.se)
  */
 public class SAMLObjectDecrypter {
 
-  /** The decrypter. */
-  private Decrypter decrypter;
+  /** Pool of decrypters not currently in use. */
+  private final Queue<Decrypter> decrypters = new ConcurrentLinkedQueue<>();
+
+  /** Whether the first decrypter has been created (after which the parameters may not be changed). */
+  private volatile boolean initialized = false;
+
+  /** Cache of decrypted data encryption keys (null if not enabled). */
+  private Map<String, Key> keyCache;
+
+  /** The maximum size of the key cache. */
+  private int keyCacheSize = 0;
+
+  /** Number of times a data encryption key was found in the key cache. */
+  private final LongAdder keyCacheHits = new LongAdder();
+
+  /** Number of times a data encryption key was not found in the key cache. */
+  private final LongAdder keyCacheMisses = new LongAdder();
 
   /** Decryption parameters. */
   private DecryptionParameters parameters;
@@ -83,7 +118,18 @@ public class SAMLObjectDecrypter {
     Constraint.isNotEmpty(decryptionCredentials, "At least one credential must be supplied to SAMLObjectDecrypter");
     this.parameters = DecryptionUtils.createDecryptionParameters(
       decryptionCredentials.stream().toArray(Credential[]::new));
-    
+
+    // If there is only one credential holding a private key, it is tried first, so that the key info of the encrypted
+    // key only needs to be resolved if it can not decrypt the key. With several credentials (key rollover), the key
+    // info is resolved first so that the matching credential is used instead of trying each of them in turn.
+    final List<Credential> privateKeyCredentials = decryptionCredentials.stream()
+      .filter(c -> c.getPrivateKey() != null)
+      .collect(Collectors.toList());
+    if (privateKeyCredentials.size() == 1) {
+      this.parameters.setKEKKeyInfoCredentialResolver(new ChainingKeyInfoCredentialResolver(Arrays.<KeyInfoCredentialResolver> asList(
+        new StaticKeyInfoCredentialResolver(privateKeyCredentials), this.parameters.getKEKKeyInfoCredentialResolver())));
+    }
+
     // Should be assigned explicitly
     this.parameters.setExcludedAlgorithms(Collections.emptyList());
     this.parameters.setIncludedAlgorithms(Collections.emptyList());    
@@ -159,7 +205,16 @@ public class SAMLObjectDecrypter {
   public <T extends XMLObject> T decrypt(final EncryptedData encryptedData, final Class<T> destinationClass)
       throws DecryptionException {
 
-    final XMLObject object = this.getDecrypter().decryptData(encryptedData);
+    final Decrypter decrypter = this.borrowDecrypter();
+    final XMLObject object;
+    try {
+      object = this.keyCache != null
+          ? this.decryptUsingKeyCache(decrypter, encryptedData)
+          : decrypter.decryptData(encryptedData);
+    }
+    finally {
+      this.decrypters.offer(decrypter);
+    }
     if (!destinationClass.isInstance(object)) {
       throw new DecryptionException(String.format("Decrypted object can not be cast to %s - is %s",
         destinationClass.getSimpleName(), object.getClass().getSimpleName()));
@@ -168,23 +223,125 @@ public class SAMLObjectDecrypter {
   }
 
   /**
-   * Returns the decrypter to use.
+   * Decrypts the supplied data using a cached data encryption key, if the encrypted key has been decrypted before. If
+   * not, the key is decrypted and, once the data has been successfully decrypted using it, added to the cache.
    * 
-   * @return the decrypter
+   * @param decrypter
+   *          the decrypter
+   * @param encryptedData
+   *          the encrypted data
+   * @return the decrypted object
+   * @throws DecryptionException
+   *           for decryption errors
    */
-  private synchronized Decrypter getDecrypter() {
-    if (this.decrypter == null) {
-      if (this.pkcs11Workaround) {
-        final Pkcs11Decrypter p11Decrypter = new Pkcs11Decrypter(this.parameters);
-        p11Decrypter.setTestMode(this.pkcs11testMode);
-        this.decrypter = p11Decrypter;
+  private XMLObject decryptUsingKeyCache(final Decrypter decrypter, final EncryptedData encryptedData) throws DecryptionException {
+    final EncryptedKeyResolver encryptedKeyResolver = this.parameters.getEncryptedKeyResolver();
+    final String algorithm = encryptedData.getEncryptionMethod() != null ? encryptedData.getEncryptionMethod().getAlgorithm() : null;
+    if (encryptedKeyResolver == null || algorithm == null) {
+      return decrypter.decryptData(encryptedData);
+    }
+    for (final EncryptedKey encryptedKey : encryptedKeyResolver.resolve(encryptedData)) {
+      final CipherData cipherData = encryptedKey.getCipherData();
+      if (cipherData == null || cipherData.getCipherValue() == null || cipherData.getCipherValue().getValue() == null) {
+        continue;
+      }
+      final String cacheKey = algorithm + "|" + cipherData.getCipherValue().getValue().replaceAll("\\s", "");
+      Key key;
+      synchronized (this.keyCache) {
+        key = this.keyCache.get(cacheKey);
+      }
+      if (key != null) {
+        this.keyCacheHits.increment();
+        return decrypter.decryptData(encryptedData, key);
       }
-      else {
-        this.decrypter = new Decrypter(this.parameters);
+      this.keyCacheMisses.increment();
+      try {
+        key = decrypter.decryptKey(encryptedKey, algorithm);
       }
-      this.decrypter.setRootInNewDocument(true);
+      catch (DecryptionException e) {
+        continue;
+      }
+      final XMLObject object = decrypter.decryptData(encryptedData, key);
+      synchronized (this.keyCache) {
+        this.keyCache.put(cacheKey, key);
+      }
+      return object;
+    }
+    return decrypter.decryptData(encryptedData);
+  }
+
+  /**
+   * Returns a decrypter from the pool, or a new decrypter if the pool is empty. The decrypter must be returned to the
+   * pool after use.
+   * 
+   * @return the decrypter
+   */
+  private Decrypter borrowDecrypter() {
+    final Decrypter pooled = this.decrypters.poll();
+    if (pooled != null) {
+      return pooled;
+    }
+    this.initialized = true;
+    final Decrypter decrypter;
+    if (this.pkcs11Workaround) {
+      final Pkcs11Decrypter p11Decrypter = new Pkcs11Decrypter(this.parameters);
+      p11Decrypter.setTestMode(this.pkcs11testMode);
+      decrypter = p11Decrypter;
+    }
+    else {
+      decrypter = new Decrypter(this.parameters);
+    }
+    decrypter.setRootInNewDocument(true);
+    return decrypter;
+  }
+
+  /**
+   * Assigns the maximum number of decrypted data encryption keys to cache. If the same encrypted key is received again
+   * (for example, when a message is re-posted), the cached key is used instead of performing the private key operation
+   * again. The keys are cached under the encrypted key value, and the least recently used key is evicted when the cache
+   * is full. The default is 0, meaning that keys are not cached.
+   * 
+   * @param keyCacheSize
+   *          the maximum number of cached keys
+   */
+  public void setKeyCacheSize(final int keyCacheSize) {
+    if (this.initialized) {
+      throw new IllegalStateException("Object has already been initialized");
+    }
+    if (keyCacheSize < 0) {
+      throw new IllegalArgumentException("keyCacheSize must not be negative");
     }
-    return this.decrypter;
+    this.keyCacheSize = keyCacheSize;
+    if (keyCacheSize == 0) {
+      this.keyCache = null;
+      return;
+    }
+    this.keyCache = new LinkedHashMap<>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(final Map.Entry<String, Key> eldest) {
+        return this.size() > SAMLObjectDecrypter.this.keyCacheSize;
+      }
+    };
+  }
+
+  /**
+   * Returns the number of times a data encryption key was found in the key cache.
+   * 
+   * @return the number of key cache hits
+   */
+  public long getKeyCacheHits() {
+    return this.keyCacheHits.sum();
+  }
+
+  /**
+   * Returns the number of times a data encryption key was not found in the key cache (and was decrypted).
+   * 
+   * @return the number of key cache misses
+   */
+  public long getKeyCacheMisses() {
+    return this.keyCacheMisses.sum();
   }
 
   /**
@@ -194,7 +351,7 @@ public class SAMLObjectDecrypter {
    *          non allowed algorithms
    */
   public void setBlacklistedAlgorithms(final Collection<String> blacklistedAlgorithms) {
-    if (this.decrypter != null) {
+    if (this.initialized) {
       throw new IllegalStateException("Object has already been initialized");
     }
     this.parameters.setExcludedAlgorithms(blacklistedAlgorithms);
@@ -207,7 +364,7 @@ public class SAMLObjectDecrypter {
    *          white listed algorithms
    */
   public void setWhitelistedAlgorithms(final Collection<String> whitelistedAlgorithms) {
-    if (this.decrypter != null) {
+    if (this.initialized) {
       throw new IllegalStateException("Object has already been initialized");
     }
     this.parameters.setIncludedAlgorithms(whitelistedAlgorithms);
@@ -223,6 +380,7 @@ public class SAMLObjectDecrypter {
    *          whether to run in PKCS11 workaround mode
    */
   public void setPkcs11Workaround(final boolean pkcs11Workaround) {
+    this.decrypters.clear();
     this.pkcs11Workaround = pkcs11Workaround;
   }
 
@@ -233,6 +391,7 @@ public class SAMLObjectDecrypter {
    *          test flag
    */
   public void setPkcs11testMode(final boolean pkcs11testMode) {
+    this.decrypters.clear();
     this.pkcs11testMode = pkcs11testMode;
   }
 
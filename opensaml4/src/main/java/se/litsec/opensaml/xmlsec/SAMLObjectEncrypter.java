@@ -15,12 +15,25 @@
  */
 package se.litsec.opensaml.xmlsec;
 
+import java.security.Key;
+import java.security.KeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.interfaces.RSAPublicKey;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
 import org.opensaml.core.xml.XMLObject;
+import org.opensaml.core.xml.io.MarshallingException;
+import org.opensaml.core.xml.io.UnmarshallingException;
+import org.opensaml.core.xml.util.XMLObjectSupport;
 import org.opensaml.saml.criterion.RoleDescriptorCriterion;
 import org.opensaml.saml.saml2.metadata.EntityDescriptor;
 import org.opensaml.saml.saml2.metadata.SSODescriptor;
 import org.opensaml.saml.security.impl.MetadataCredentialResolver;
 import org.opensaml.saml.security.impl.SAMLMetadataEncryptionParametersResolver;
+import org.opensaml.security.credential.CredentialSupport;
 import org.opensaml.security.credential.UsageType;
 import org.opensaml.security.criteria.UsageCriterion;
 import org.opensaml.xmlsec.EncryptionConfiguration;
@@ -32,10 +45,12 @@ import org.opensaml.xmlsec.config.impl.DefaultSecurityConfigurationBootstrap;
 import org.opensaml.xmlsec.criterion.EncryptionConfigurationCriterion;
 import org.opensaml.xmlsec.criterion.EncryptionOptionalCriterion;
 import org.opensaml.xmlsec.encryption.EncryptedData;
+import org.opensaml.xmlsec.encryption.EncryptedKey;
 import org.opensaml.xmlsec.encryption.support.DataEncryptionParameters;
 import org.opensaml.xmlsec.encryption.support.Encrypter;
 import org.opensaml.xmlsec.encryption.support.EncryptionException;
 import org.opensaml.xmlsec.encryption.support.KeyEncryptionParameters;
+import org.opensaml.xmlsec.signature.KeyInfo;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -45,14 +60,27 @@ import net.shibboleth.utilities.java.support.resolver.CriteriaSet;
 import net.shibboleth.utilities.java.support.resolver.ResolverException;
 import se.litsec.opensaml.saml2.metadata.MetadataUtils;
 import se.litsec.opensaml.saml2.metadata.provider.MetadataProvider;
+import se.litsec.opensaml.saml2.metadata.provider.MetadataSnapshot;
+import se.litsec.opensaml.utils.VersionedCache;
 
 /**
  * Utility class for encrypting an element for a SAML entity.
+ * <p>
+ * The encryption parameters resolved from the peer metadata are cached per peer and encryption configuration. Each
+ * cache entry remembers the version of the {@link MetadataSnapshot} that the parameters were resolved from, and is only
+ * used if the peer metadata belongs to the same snapshot. Since metadata providers publish a new snapshot when they
+ * refresh their metadata, a refresh invalidates the cached parameters for a peer. Peer metadata that has not been
+ * published by a metadata provider is not cached. Only parameters where a new session key is generated for each
+ * encryption, and where the key transport key is an RSA key, are cached.
+ * </p>
  * 
  * @author Martin Lindström (martin.lindstrom@litsec.se)
  */
 public class SAMLObjectEncrypter {
 
+  /** The default maximum number of entries of the encryption parameters cache. */
+  public static final int DEFAULT_PARAMETERS_CACHE_SIZE = VersionedCache.DEFAULT_MAX_SIZE;
+
   /** Logger instance. */
   private Logger log = LoggerFactory.getLogger(SAMLObjectEncrypter.class);
 
@@ -68,6 +96,13 @@ public class SAMLObjectEncrypter {
   /** The encrypter to use. */
   private Encrypter encrypter = new Encrypter();
 
+  /** Whether encryption parameters are cached. */
+  private volatile boolean parametersCacheEnabled = true;
+
+  /** Cache of resolved encryption parameters (versioned by the metadata snapshot version). */
+  private volatile VersionedCache<ParametersCacheKey, EncryptionParameters> parametersCache =
+      new VersionedCache<>(DEFAULT_PARAMETERS_CACHE_SIZE);
+
   /**
    * Sets up the object encrypter without a metadata provider. This means that the peer metadata has to be supplied in
    * calls to {@link #encrypt(XMLObject, Peer)} and {@link #encrypt(XMLObject, Peer, EncryptionConfiguration)}.
@@ -159,6 +194,108 @@ public class SAMLObjectEncrypter {
     return this.encrypter.encryptElement(xmlObject, dataEncryptionParameters, kekParams);
   }
 
+  /**
+   * Maps to {@link #encrypt(List, Peer, EncryptionConfiguration)} where the default encryption configuration is
+   * supplied.
+   * 
+   * @param xmlObjects
+   *          the objects to encrypt
+   * @param peer
+   *          the peer to whom we encrypt for
+   * @return a list of {@code EncryptedData} objects (in the same order as the supplied objects)
+   * @throws EncryptionException
+   *           for encryption errors
+   */
+  public List<EncryptedData> encrypt(final List<? extends XMLObject> xmlObjects, final Peer peer) throws EncryptionException {
+    return this.encrypt(xmlObjects, peer, this.defaultEncryptionConfiguration);
+  }
+
+  /**
+   * Encrypts several XML objects for the same peer.
+   * <p>
+   * One data encryption key is generated and used for all objects, and this key is encrypted (wrapped) with the peer key
+   * only once. Each resulting {@code EncryptedData} element holds a copy of the same {@code EncryptedKey} in its
+   * {@code KeyInfo}, so that every element can be decrypted on its own. This saves one asymmetric key encryption for
+   * each object but the first.
+   * </p>
+   * 
+   * @param xmlObjects
+   *          the objects to encrypt
+   * @param peer
+   *          the peer to whom we encrypt for
+   * @param configuration
+   *          the encryption configuration
+   * @return a list of {@code EncryptedData} objects (in the same order as the supplied objects)
+   * @throws EncryptionException
+   *           for encryption errors
+   */
+  public List<EncryptedData> encrypt(final List<? extends XMLObject> xmlObjects, final Peer peer,
+      final EncryptionConfiguration configuration) throws EncryptionException {
+
+    Constraint.isNotNull(xmlObjects, "xmlObjects must not be null");
+    Constraint.isNotNull(peer, "peer must not be null");
+
+    if (xmlObjects.isEmpty()) {
+      return Collections.emptyList();
+    }
+
+    final EntityDescriptor peerMetadata = this.getPeerMetadata(peer);
+    final EncryptionParameters parameters = this.getEncryptionParameters(peerMetadata,
+      configuration != null ? configuration : this.defaultEncryptionConfiguration);
+    if (parameters == null) {
+      throw new EncryptionException(String.format("No encryption credentials found for '%s'", peer.getEntityID()));
+    }
+
+    // Generate the data encryption key that is shared by all elements ...
+    //
+    final DataEncryptionParameters dataEncryptionParameters = new DataEncryptionParameters(parameters);
+    if (dataEncryptionParameters.getEncryptionCredential() == null) {
+      try {
+        final Key key = AlgorithmSupport.generateSymmetricKey(dataEncryptionParameters.getAlgorithm());
+        dataEncryptionParameters.setEncryptionCredential(CredentialSupport.getSimpleCredential(key));
+        dataEncryptionParameters.setKeyInfoGenerator(null);
+      }
+      catch (NoSuchAlgorithmException | KeyException e) {
+        log.error("Failed to generate data encryption key", e);
+        throw new EncryptionException("Failed to generate data encryption key", e);
+      }
+    }
+    final KeyEncryptionParameters kekParams = new KeyEncryptionParameters(parameters, peer.getEntityID());
+
+    // The first element is encrypted with the key encryption parameters. This is where the key is wrapped ...
+    //
+    final List<EncryptedData> result = new ArrayList<>(xmlObjects.size());
+    final EncryptedData first = this.encrypter.encryptElement(xmlObjects.get(0), dataEncryptionParameters, kekParams);
+    result.add(first);
+    if (xmlObjects.size() == 1) {
+      return result;
+    }
+    if (first.getKeyInfo() == null || first.getKeyInfo().getEncryptedKeys().isEmpty()) {
+      throw new EncryptionException("No EncryptedKey was created");
+    }
+    final EncryptedKey encryptedKey = first.getKeyInfo().getEncryptedKeys().get(0);
+
+    // ... and the remaining elements get a copy of the wrapped key.
+    //
+    for (final XMLObject xmlObject : xmlObjects.subList(1, xmlObjects.size())) {
+      final EncryptedData encryptedData = this.encrypter.encryptElement(xmlObject, dataEncryptionParameters);
+      KeyInfo keyInfo = encryptedData.getKeyInfo();
+      if (keyInfo == null) {
+        keyInfo = (KeyInfo) XMLObjectSupport.buildXMLObject(KeyInfo.DEFAULT_ELEMENT_NAME);
+        encryptedData.setKeyInfo(keyInfo);
+      }
+      try {
+        keyInfo.getEncryptedKeys().add(XMLObjectSupport.cloneXMLObject(encryptedKey));
+      }
+      catch (MarshallingException | UnmarshallingException e) {
+        log.error("Failed to copy EncryptedKey", e);
+        throw new EncryptionException("Failed to copy EncryptedKey", e);
+      }
+      result.add(encryptedData);
+    }
+    return result;
+  }
+
   /**
    * Retrives the peer metadata entry.
    * 
@@ -207,6 +344,41 @@ public class SAMLObjectEncrypter {
     if (descriptor == null) {
       throw new EncryptionException("Bad peer metadata - no SSO descriptor available");
     }
+
+    final long metadataVersion = MetadataSnapshot.getVersion(descriptor);
+    final VersionedCache<ParametersCacheKey, EncryptionParameters> cache = this.parametersCache;
+    final ParametersCacheKey cacheKey = this.parametersCacheEnabled && metadata.getEntityID() != null
+        && metadataVersion != MetadataSnapshot.NO_VERSION
+            ? new ParametersCacheKey(metadata.getEntityID(), configuration)
+            : null;
+    if (cacheKey != null) {
+      final EncryptionParameters cached = cache.get(cacheKey, metadataVersion);
+      if (cached != null) {
+        return cached;
+      }
+    }
+
+    final EncryptionParameters parameters = this.resolveEncryptionParameters(descriptor, configuration);
+    if (cacheKey != null && isCacheable(parameters)) {
+      cache.put(cacheKey, metadataVersion, parameters);
+    }
+    return parameters;
+  }
+
+  /**
+   * Resolves the encryption parameters from the peer metadata.
+   * 
+   * @param descriptor
+   *          the peer SSO descriptor
+   * @param configuration
+   *          the encryption configuration
+   * @return the encryption parameters to use for encrypt, or {@code null} if no match is found
+   * @throws EncryptionException
+   *           for errors
+   */
+  private EncryptionParameters resolveEncryptionParameters(final SSODescriptor descriptor, final EncryptionConfiguration configuration)
+      throws EncryptionException {
+
     final CriteriaSet criteriaSet = new CriteriaSet();
     criteriaSet.add(new RoleDescriptorCriterion(descriptor));
     criteriaSet.add(new UsageCriterion(UsageType.ENCRYPTION));
@@ -222,6 +394,73 @@ public class SAMLObjectEncrypter {
     }
   }
 
+  /**
+   * Tells whether the supplied parameters may be reused for several encryptions. This is the case if a new session key
+   * is generated for each encryption and the key is encrypted using the peer RSA key. Parameters holding other types of
+   * key encryption credentials (for example derived using key agreement) are not cached.
+   * 
+   * @param parameters
+   *          the parameters
+   * @return whether the parameters may be cached
+   */
+  private static boolean isCacheable(final EncryptionParameters parameters) {
+    return parameters != null
+        && parameters.getDataEncryptionCredential() == null
+        && parameters.getKeyTransportEncryptionCredential() != null
+        && parameters.getKeyTransportEncryptionCredential().getPublicKey() instanceof RSAPublicKey;
+  }
+
+  /**
+   * Assigns the maximum number of entries of the cache of encryption parameters resolved from peer metadata. The cache
+   * is a {@link VersionedCache} (see its documentation for the eviction policy). A value of 0 turns off caching. The
+   * default is {@value #DEFAULT_PARAMETERS_CACHE_SIZE}.
+   * <p>
+   * Assigning a new size creates a new (empty) cache, and the cache statistics are reset.
+   * </p>
+   * 
+   * @param parametersCacheSize
+   *          the maximum number of cache entries
+   */
+  public void setParametersCacheSize(final int parametersCacheSize) {
+    if (parametersCacheSize < 0) {
+      throw new IllegalArgumentException("parametersCacheSize must not be negative");
+    }
+    this.parametersCacheEnabled = parametersCacheSize > 0;
+    if (this.parametersCacheEnabled) {
+      this.parametersCache = new VersionedCache<>(parametersCacheSize);
+    }
+    else {
+      this.parametersCache.clear();
+    }
+  }
+
+  /**
+   * Gets the number of times encryption parameters were served from the cache.
+   * 
+   * @return the number of cache hits
+   */
+  public long getParametersCacheHits() {
+    return this.parametersCache.getHits();
+  }
+
+  /**
+   * Gets the number of times encryption parameters were not found in the cache (and were resolved from metadata).
+   * 
+   * @return the number of cache misses
+   */
+  public long getParametersCacheMisses() {
+    return this.parametersCache.getMisses();
+  }
+
+  /**
+   * Gets the number of entries that have been evicted from the encryption parameters cache since it was full.
+   * 
+   * @return the number of evictions
+   */
+  public long getParametersCacheEvictions() {
+    return this.parametersCache.getEvictions();
+  }
+
   /**
    * The encrypter to use.
    * <p>
@@ -262,6 +501,51 @@ public class SAMLObjectEncrypter {
   public void setAlgorithmRegistry(final AlgorithmRegistry algorithmRegistry) {
     if (algorithmRegistry != null) {
       this.encryptionParameterResolver.setAlgorithmRegistry(algorithmRegistry);
+      this.parametersCache.clear();
+    }
+  }
+
+  /**
+   * Key for the encryption parameters cache.
+   */
+  private static class ParametersCacheKey {
+
+    /** The peer entityID. */
+    private final String entityID;
+
+    /** The encryption configuration. */
+    private final EncryptionConfiguration configuration;
+
+    /**
+     * Constructor.
+     * 
+     * @param entityID
+     *          the peer entityID
+     * @param configuration
+     *          the encryption configuration
+     */
+    ParametersCacheKey(final String entityID, final EncryptionConfiguration configuration) {
+      this.entityID = entityID;
+      this.configuration = configuration;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int hashCode() {
+      return Objects.hash(this.entityID, System.identityHashCode(this.configuration));
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean equals(final Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof ParametersCacheKey)) {
+        return false;
+      }
+      final ParametersCacheKey other = (ParametersCacheKey) obj;
+      return this.entityID.equals(other.entityID) && this.configuration == other.configuration;
     }
   }
 
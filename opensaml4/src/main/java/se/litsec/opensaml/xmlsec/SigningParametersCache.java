@@ -0,0 +1,208 @@
+/*
+ * Copyright 2016-2021 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.opensaml.xmlsec;
+
+import java.util.Objects;
+
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+import org.opensaml.security.credential.Credential;
+import org.opensaml.xmlsec.SecurityConfigurationSupport;
+import org.opensaml.xmlsec.SignatureSigningConfiguration;
+import org.opensaml.xmlsec.SignatureSigningParameters;
+import org.opensaml.xmlsec.signature.support.SignatureException;
+
+import se.litsec.opensaml.saml2.metadata.provider.MetadataSnapshot;
+import se.litsec.opensaml.utils.SignatureUtils;
+import se.litsec.opensaml.utils.VersionedCache;
+
+/**
+ * A cache for signature signing parameters resolved by
+ * {@link SignatureUtils#getSigningParameters(Credential, SignatureSigningConfiguration, EntityDescriptor)}.
+ * <p>
+ * The parameters are cached per signing credential, recipient and signature configuration (the credential and the
+ * configuration are compared by identity). Each entry also remembers the version of the {@link MetadataSnapshot} that
+ * the recipient metadata belongs to, and is only used if the recipient metadata belongs to the same snapshot. This way
+ * an entry is invalidated when the recipient metadata is refreshed, and the cache never holds on to the metadata
+ * itself. Parameters for recipient metadata that has not been published by a metadata provider are not cached.
+ * </p>
+ * <p>
+ * The cache is a bounded {@link VersionedCache} (see its documentation for the eviction policy). A cache is meant to
+ * be owned by the component that holds the signing credentials, for example a request generator.
+ * </p>
+ *
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+public class SigningParametersCache {
+
+  /** The default maximum number of entries of the cache. */
+  public static final int DEFAULT_MAX_SIZE = VersionedCache.DEFAULT_MAX_SIZE;
+
+  /** The cache. */
+  private final VersionedCache<CacheKey, SignatureSigningParameters> cache;
+
+  /**
+   * Constructor creating a cache with {@value #DEFAULT_MAX_SIZE} entries.
+   */
+  public SigningParametersCache() {
+    this(DEFAULT_MAX_SIZE);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param maxSize
+   *          the maximum number of entries of the cache
+   */
+  public SigningParametersCache(final int maxSize) {
+    this.cache = new VersionedCache<>(maxSize);
+  }
+
+  /**
+   * Returns the signature signing parameters to use when signing a message for the given recipient. The parameters are
+   * served from the cache, or, if not cached, resolved using
+   * {@link SignatureUtils#getSigningParameters(Credential, SignatureSigningConfiguration, EntityDescriptor)} and added
+   * to the cache.
+   *
+   * @param signingCredentials
+   *          signature credentials
+   * @param config
+   *          signature configuration (if {@code null}, the global configuration is used)
+   * @param recipientMetadata
+   *          recipient's metadata (may be {@code null})
+   * @return the signing parameters
+   * @throws SignatureException
+   *           if no parameters could be resolved
+   */
+  public SignatureSigningParameters getSigningParameters(final Credential signingCredentials,
+      final SignatureSigningConfiguration config, final EntityDescriptor recipientMetadata) throws SignatureException {
+
+    final SignatureSigningConfiguration configuration = config != null
+        ? config
+        : SecurityConfigurationSupport.getGlobalSignatureSigningConfiguration();
+
+    // Parameters for recipient metadata that has not been published are never added, so the lookup is a miss.
+    final long metadataVersion = MetadataSnapshot.getVersion(recipientMetadata);
+    final CacheKey key = new CacheKey(signingCredentials,
+      recipientMetadata != null ? recipientMetadata.getEntityID() : null, configuration);
+    final SignatureSigningParameters cached = this.cache.get(key, metadataVersion);
+    if (cached != null) {
+      return cached;
+    }
+
+    final SignatureSigningParameters parameters =
+        SignatureUtils.getSigningParameters(signingCredentials, configuration, recipientMetadata);
+    if (recipientMetadata == null || metadataVersion != MetadataSnapshot.NO_VERSION) {
+      this.cache.put(key, metadataVersion, parameters);
+    }
+    return parameters;
+  }
+
+  /**
+   * Removes all entries from the cache. This may be used to make changes in the signature configuration objects take
+   * effect.
+   */
+  public void clear() {
+    this.cache.clear();
+  }
+
+  /**
+   * Gets the number of entries in the cache.
+   *
+   * @return the number of entries
+   */
+  public int getSize() {
+    return this.cache.getSize();
+  }
+
+  /**
+   * Gets the number of times signing parameters were served from the cache.
+   *
+   * @return the number of cache hits
+   */
+  public long getHits() {
+    return this.cache.getHits();
+  }
+
+  /**
+   * Gets the number of times signing parameters were not found in the cache (and were resolved).
+   *
+   * @return the number of cache misses
+   */
+  public long getMisses() {
+    return this.cache.getMisses();
+  }
+
+  /**
+   * Gets the number of entries that have been evicted from the cache since it was full.
+   *
+   * @return the number of evictions
+   */
+  public long getEvictions() {
+    return this.cache.getEvictions();
+  }
+
+  /**
+   * Key for the cache. The credential and configuration are compared by identity.
+   */
+  private static class CacheKey {
+
+    /** The signing credential. */
+    private final Credential credential;
+
+    /** The recipient entityID (may be null). */
+    private final String entityID;
+
+    /** The signature configuration. */
+    private final SignatureSigningConfiguration configuration;
+
+    /**
+     * Constructor.
+     *
+     * @param credential
+     *          the signing credential
+     * @param entityID
+     *          the recipient entityID
+     * @param configuration
+     *          the signature configuration
+     */
+    CacheKey(final Credential credential, final String entityID, final SignatureSigningConfiguration configuration) {
+      this.credential = credential;
+      this.entityID = entityID;
+      this.configuration = configuration;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int hashCode() {
+      return Objects.hash(System.identityHashCode(this.credential), this.entityID, System.identityHashCode(this.configuration));
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean equals(final Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof CacheKey)) {
+        return false;
+      }
+      final CacheKey other = (CacheKey) obj;
+      return this.credential == other.credential && Objects.equals(this.entityID, other.entityID)
+          && this.configuration == other.configuration;
+    }
+  }
+
+}
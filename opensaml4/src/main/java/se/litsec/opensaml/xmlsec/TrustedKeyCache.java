@@ -0,0 +1,81 @@
+/*
+ * Copyright 2016-2021 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.opensaml.xmlsec;
+
+import java.util.List;
+
+import javax.xml.namespace.QName;
+
+import org.opensaml.security.credential.Credential;
+import org.opensaml.security.credential.UsageType;
+
+/**
+ * A cache for trusted keys (credentials) that have been resolved from a peer's metadata. The cache is used by
+ * {@link CachingSignatureTrustEngine} so that the metadata credentials of a signer do not have to be resolved for each
+ * signature that is verified.
+ * <p>
+ * Entries are keyed by the peer entityID, the role (the schema type, or element name, of the role descriptor that the
+ * credentials were resolved from), the version of the metadata that the credentials were resolved from, and the key
+ * usage. The role is part of the key since an entity may publish different keys for different roles, and the keys of
+ * one role must not be trusted when a signature is validated for another role. A lookup with a metadata version other than the one an entry was stored with is a cache miss, so when
+ * metadata is refreshed, the cached keys for the peer are no longer used. The version is the version of the
+ * {@link se.litsec.opensaml.saml2.metadata.provider.MetadataSnapshot MetadataSnapshot} that the credentials were
+ * resolved from, so a cache never needs to hold on to the metadata itself.
+ * </p>
+ * 
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ * @see InMemoryTrustedKeyCache
+ */
+public interface TrustedKeyCache {
+
+  /**
+   * Gets the cached trusted credentials for the given peer.
+   * 
+   * @param entityID
+   *          the peer entityID
+   * @param role
+   *          the role
+   * @param metadataVersion
+   *          the version of the metadata
+   * @param usage
+   *          the key usage
+   * @return the credentials, or {@code null} if there is no entry for the given peer, role, version and usage
+   */
+  List<Credential> get(final String entityID, final QName role, final long metadataVersion, final UsageType usage);
+
+  /**
+   * Adds trusted credentials for the given peer to the cache.
+   * 
+   * @param entityID
+   *          the peer entityID
+   * @param role
+   *          the role that the credentials were resolved for
+   * @param metadataVersion
+   *          the version of the metadata that the credentials were resolved from
+   * @param usage
+   *          the key usage
+   * @param credentials
+   *          the credentials
+   */
+  void put(final String entityID, final QName role, final long metadataVersion, final UsageType usage,
+      final List<Credential> credentials);
+
+  /**
+   * Removes all entries from the cache.
+   */
+  void clear();
+
+}
@@ -24,9 +24,11 @@ import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
 
 import org.junit.BeforeClass;
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
 import org.opensaml.security.x509.X509Credential;
 import org.opensaml.security.x509.impl.KeyStoreX509CredentialAdapter;
 
+import se.litsec.opensaml.saml2.metadata.provider.StaticMetadataProvider;
 import se.swedenconnect.opensaml.OpenSAMLInitializer;
 import se.swedenconnect.opensaml.OpenSAMLSecurityDefaultsConfig;
 import se.swedenconnect.opensaml.OpenSAMLSecurityExtensionConfig;
@@ -92,6 +94,27 @@ public abstract class OpenSAMLTestBase {
     KeyStore keyStore = loadKeyStore(keyStoreStream, keyStorePassword, "jks");
     return new KeyStoreX509CredentialAdapter(keyStore, alias, keyPassword.toCharArray());
   }
+
+  /**
+   * Publishes the supplied metadata through a metadata provider, so that the returned object belongs to a metadata
+   * snapshot (as metadata in a real deployment does).
+   * 
+   * @param entityDescriptor
+   *          the metadata
+   * @return the published metadata
+   * @throws Exception
+   *           for errors
+   */
+  public static EntityDescriptor publish(final EntityDescriptor entityDescriptor) throws Exception {
+    final StaticMetadataProvider provider = new StaticMetadataProvider(entityDescriptor);
+    provider.initialize();
+    try {
+      return provider.getEntityDescriptor(entityDescriptor.getEntityID());
+    }
+    finally {
+      provider.destroy();
+    }
+  }
   
 
 }
@@ -16,6 +16,9 @@
 package se.litsec.opensaml;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
 
 import org.apache.commons.io.IOUtils;
 import org.eclipse.jetty.server.Request;
@@ -39,6 +42,9 @@ public class TestWebServer {
   /** The URL that is exposed by the web server. */
   private String url;
 
+  /** The handler serving the resource. */
+  private ResourceHandler handler;
+
   /**
    * Constructor setting up the web server.
    * 
@@ -67,7 +73,28 @@ public class TestWebServer {
     ServerConnector connector = new ServerConnector(this.server, contextFactory);
     connector.setHost("localhost");
     this.server.addConnector(connector);
-    server.setHandler(new ResourceHandler(resourceProvider));
+    this.handler = new ResourceHandler(resourceProvider);
+    server.setHandler(this.handler);
+  }
+
+  /**
+   * Tells whether the server should gzip the response if the client accepts it.
+   * 
+   * @param compress
+   *          whether to compress responses
+   */
+  public void setCompress(boolean compress) {
+    this.handler.compress = compress;
+  }
+
+  /**
+   * Makes the server answer all requests with the given error status. A value of 0 turns this off.
+   * 
+   * @param errorStatus
+   *          the HTTP status to respond with
+   */
+  public void setErrorStatus(int errorStatus) {
+    this.handler.errorStatus = errorStatus;
   }
 
   /**
@@ -111,12 +138,17 @@ public class TestWebServer {
   }
 
   /**
-   * The {@code ResourceHandler} that is used by the server.
+   * The {@code ResourceHandler} that is used by the server. An {@code ETag} is sent for the resource and
+   * {@code If-None-Match} is honoured.
    */
   public static class ResourceHandler extends AbstractHandler {
 
     private ResourceProvider resourceProvider;
 
+    private volatile boolean compress = false;
+
+    private volatile int errorStatus = 0;
+
     public ResourceHandler(ResourceProvider resourceProvider) {
       this.resourceProvider = resourceProvider;
     }
@@ -125,7 +157,29 @@ public class TestWebServer {
     public void handle(String target, Request baseRequest, jakarta.servlet.http.HttpServletRequest request,
         jakarta.servlet.http.HttpServletResponse response) throws IOException, jakarta.servlet.ServletException {
 
-      response.getOutputStream().write(IOUtils.toByteArray(this.resourceProvider.getResource().getInputStream()));
+      if (this.errorStatus > 0) {
+        response.setStatus(this.errorStatus);
+        baseRequest.setHandled(true);
+        return;
+      }
+      byte[] contents = IOUtils.toByteArray(this.resourceProvider.getResource().getInputStream());
+      String etag = String.format("\"%08x\"", Arrays.hashCode(contents));
+      response.setHeader("ETag", etag);
+      if (etag.equals(request.getHeader("If-None-Match"))) {
+        response.setStatus(304);
+        baseRequest.setHandled(true);
+        return;
+      }
+      String acceptEncoding = request.getHeader("Accept-Encoding");
+      if (this.compress && acceptEncoding != null && acceptEncoding.contains("gzip")) {
+        response.setHeader("Content-Encoding", "gzip");
+        try (OutputStream os = new GZIPOutputStream(response.getOutputStream())) {
+          os.write(contents);
+        }
+      }
+      else {
+        response.getOutputStream().write(contents);
+      }
       baseRequest.setHandled(true);
 
     }
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2016-2021 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.opensaml.saml2.authentication.build;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.opensaml.saml.common.xml.SAMLConstants;
+import org.opensaml.saml.saml2.core.AuthnRequest;
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+import org.springframework.core.io.ClassPathResource;
+
+import net.shibboleth.utilities.java.support.security.impl.RandomIdentifierGenerationStrategy;
+import se.litsec.opensaml.OpenSAMLTestBase;
+import se.litsec.opensaml.saml2.metadata.provider.MetadataProvider;
+import se.litsec.opensaml.saml2.metadata.provider.spring.SpringResourceMetadataProvider;
+import se.litsec.opensaml.utils.BufferedRandomIdentifierGenerationStrategy;
+
+/**
+ * Multi-threaded benchmark for request ID generation and {@code AuthnRequest} creation.
+ * <p>
+ * The ID generation benchmarks compare {@link BufferedRandomIdentifierGenerationStrategy} with creating a
+ * {@link RandomIdentifierGenerationStrategy} per ID (which is what {@link ExtendedAuthnRequestBuilder} did before). Run
+ * {@link #main(String[])} (with the test classpath) to execute the benchmark with 1 and 8 threads.
+ * </p>
+ *
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AuthnRequestGenerationBenchmark {
+
+  private static final String TEST_IDP = "https://idp.svelegtest.se/idp";
+  private static final String TEST_SP = "https://eid.svelegtest.se/validation/testsp1";
+
+  private MetadataProvider metadataProvider;
+
+  private EntityDescriptor spMetadata;
+
+  private EntityDescriptor idpMetadata;
+
+  private final AuthnRequestTemplateCache templateCache = new AuthnRequestTemplateCache();
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    OpenSAMLTestBase.initializeOpenSAML();
+    this.metadataProvider = new SpringResourceMetadataProvider(new ClassPathResource("/metadata/sveleg-fedtest.xml"));
+    this.metadataProvider.initialize();
+    this.spMetadata = this.metadataProvider.getEntityDescriptor(TEST_SP);
+    this.idpMetadata = this.metadataProvider.getEntityDescriptor(TEST_IDP);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    this.metadataProvider.destroy();
+  }
+
+  @Benchmark
+  public String idPerRequestStrategy() {
+    return new RandomIdentifierGenerationStrategy(ExtendedAuthnRequestBuilder.DEFAULT_ID_SIZE).generateIdentifier();
+  }
+
+  @Benchmark
+  public String idBufferedStrategy() {
+    return BufferedRandomIdentifierGenerationStrategy.getInstance().generateIdentifier();
+  }
+
+  @Benchmark
+  public AuthnRequest authnRequest() {
+    return new ExtendedAuthnRequestBuilder(this.spMetadata, this.idpMetadata, this.templateCache)
+      .binding(SAMLConstants.SAML2_POST_BINDING_URI)
+      .assignDefaults()
+      .issueInstant(Instant.now())
+      .build();
+  }
+
+  /**
+   * Runs the benchmark.
+   *
+   * @param args
+   *          not used
+   * @throws RunnerException
+   *           for benchmark errors
+   */
+  public static void main(final String[] args) throws RunnerException {
+    for (final int threads : new int[] { 1, 8 }) {
+      new Runner(new OptionsBuilder()
+        .include(AuthnRequestGenerationBenchmark.class.getName())
+        .threads(threads)
+        .build()).run();
+    }
+  }
+
+}
@@ -18,6 +18,7 @@ package se.litsec.opensaml.saml2.authentication.build;
 import java.io.IOException;
 import java.time.Instant;
 
+import org.junit.Assert;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.opensaml.core.xml.util.XMLObjectSupport;
@@ -25,6 +26,7 @@ import org.opensaml.saml.common.xml.SAMLConstants;
 import org.opensaml.saml.saml2.core.AuthnRequest;
 import org.opensaml.saml.saml2.core.NameID;
 import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml.saml2.metadata.SPSSODescriptor;
 import org.springframework.core.io.ClassPathResource;
 import org.w3c.dom.Element;
 
@@ -72,4 +74,52 @@ public class ExtendedAuthnRequestBuilderTest extends OpenSAMLTestBase {
     
   }
 
+  @Test
+  public void testTemplate() throws Exception {
+    final EntityDescriptor spMetadata = metadataProvider.getEntityDescriptor(TEST_SP);
+    final EntityDescriptor idpMetadata = metadataProvider.getEntityDescriptor(TEST_IDP);
+    final AuthnRequestTemplateCache templateCache = new AuthnRequestTemplateCache();
+
+    final AuthnRequestTemplate template = templateCache.getTemplate(idpMetadata);
+    Assert.assertSame(template, templateCache.getTemplate(idpMetadata));
+
+    final AuthnRequest request1 = new ExtendedAuthnRequestBuilder(spMetadata, idpMetadata, templateCache).assignDefaults().build();
+    final AuthnRequest request2 = new ExtendedAuthnRequestBuilder(spMetadata, idpMetadata, templateCache).assignDefaults().build();
+    Assert.assertNotEquals(request1.getID(), request2.getID());
+    Assert.assertEquals(template.getDestination(SAMLConstants.SAML2_REDIRECT_BINDING_URI), request1.getDestination());
+    Assert.assertEquals(request1.getDestination(), request2.getDestination());
+    final SPSSODescriptor spDescriptor = spMetadata.getSPSSODescriptor(SAMLConstants.SAML20P_NS);
+    Assert.assertEquals(AuthnRequestTemplate.getAssertionConsumerServiceURL(spDescriptor), request2.getAssertionConsumerServiceURL());
+    Assert.assertEquals(template.getNameIDFormat(spDescriptor), request2.getNameIDPolicy().getFormat());
+    Assert.assertEquals(1, templateCache.getSize());
+
+    // The template is not resolved until it is needed.
+    final long lookups = templateCache.getHits() + templateCache.getMisses();
+    final ExtendedAuthnRequestBuilder builder = new ExtendedAuthnRequestBuilder(spMetadata, idpMetadata, templateCache);
+    Assert.assertEquals(lookups, templateCache.getHits() + templateCache.getMisses());
+    builder.assignDefaults();
+    Assert.assertEquals(lookups + 1, templateCache.getHits() + templateCache.getMisses());
+
+    // SP metadata that is not published by a provider does not prevent the template from being cached.
+    final EntityDescriptor unpublishedSpMetadata = XMLObjectSupport.cloneXMLObject(spMetadata);
+    final long hits = templateCache.getHits();
+    final AuthnRequest request3 = new ExtendedAuthnRequestBuilder(unpublishedSpMetadata, idpMetadata, templateCache)
+      .assignDefaults().build();
+    Assert.assertEquals(hits + 1, templateCache.getHits());
+    Assert.assertEquals(request1.getAssertionConsumerServiceURL(), request3.getAssertionConsumerServiceURL());
+
+    // A refreshed IdP metadata entry gives a new template.
+    final EntityDescriptor refreshedIdpMetadata = publish(XMLObjectSupport.cloneXMLObject(idpMetadata));
+    final AuthnRequestTemplate template2 = templateCache.getTemplate(refreshedIdpMetadata);
+    Assert.assertNotSame(template, template2);
+    Assert.assertSame(template2, templateCache.getTemplate(refreshedIdpMetadata));
+    Assert.assertEquals(1, templateCache.getSize());
+
+    // Metadata that is not published by a provider may be changed by its owner, and is not cached.
+    final EntityDescriptor unpublishedIdpMetadata = XMLObjectSupport.cloneXMLObject(idpMetadata);
+    final AuthnRequestTemplate template3 = templateCache.getTemplate(unpublishedIdpMetadata);
+    Assert.assertNotSame(template3, templateCache.getTemplate(unpublishedIdpMetadata));
+    Assert.assertSame(template2, templateCache.getTemplate(refreshedIdpMetadata));
+  }
+
 }
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2016-2021 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.opensaml.saml2.common.request;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.opensaml.saml.saml2.core.AuthnRequest;
+import org.opensaml.xmlsec.SecurityConfigurationSupport;
+import org.springframework.core.io.ClassPathResource;
+import org.w3c.dom.Element;
+
+import net.shibboleth.utilities.java.support.codec.Base64Support;
+import net.shibboleth.utilities.java.support.xml.SerializeSupport;
+import se.litsec.opensaml.OpenSAMLTestBase;
+import se.litsec.opensaml.saml2.core.build.AuthnRequestBuilder;
+import se.litsec.opensaml.utils.ObjectUtils;
+import se.litsec.opensaml.utils.SignatureUtils;
+
+/**
+ * Benchmark for the encoding of the {@code SAMLRequest} parameter of {@link PostRequestHttpObject}.
+ * <p>
+ * The encoding that serializes a signed request into a string, gets its bytes and Base64-encodes them is compared with
+ * {@link PostRequestHttpObject#encodeMessage(Element)}. Run {@link #main(String[])} (with the test classpath) to
+ * execute the benchmark with the GC profiler, whose {@code gc.alloc.rate.norm} value shows the number of bytes
+ * allocated per encoding.
+ * </p>
+ *
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class PostRequestEncodingBenchmark {
+
+  /** The size of the padding added to the request (to get messages of different sizes). */
+  @Param({ "0", "20000" })
+  private int padding;
+
+  /** The signed request DOM. */
+  private Element domMessage;
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    OpenSAMLTestBase.initializeOpenSAML();
+    final AuthnRequest request = AuthnRequestBuilder.builder()
+      .id("_abcdef0123456789")
+      .issueInstant(Instant.now())
+      .destination("https://idp.example.com/sso")
+      .issuer("https://sp.example.com")
+      .assertionConsumerServiceURL("https://sp.example.com/acs" + (this.padding > 0 ? "?p=" + "x".repeat(this.padding) : ""))
+      .build();
+    SignatureUtils.sign(request, OpenSAMLTestBase.loadKeyStoreCredential(
+      new ClassPathResource("sp-enc-cert.jks").getInputStream(), "secret", "eid", "secret"),
+      SecurityConfigurationSupport.getGlobalSignatureSigningConfiguration(), null);
+    this.domMessage = ObjectUtils.marshall(request);
+  }
+
+  @Benchmark
+  public String stringEncoding() throws Exception {
+    final String messageXML = SerializeSupport.nodeToString(this.domMessage);
+    return Base64Support.encode(messageXML.getBytes(StandardCharsets.UTF_8), Base64Support.UNCHUNKED);
+  }
+
+  @Benchmark
+  public String streamEncoding() throws Exception {
+    return PostRequestHttpObject.encodeMessage(this.domMessage);
+  }
+
+  /**
+   * Runs the benchmark.
+   *
+   * @param args
+   *          not used
+   * @throws RunnerException
+   *           for benchmark errors
+   */
+  public static void main(final String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder()
+      .include(PostRequestEncodingBenchmark.class.getName())
+      .addProfiler(GCProfiler.class)
+      .build()).run();
+  }
+
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2016-2021 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.opensaml.saml2.common.request;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.opensaml.saml.saml2.core.AuthnRequest;
+import org.opensaml.security.x509.X509Credential;
+import org.springframework.core.io.ClassPathResource;
+
+import net.shibboleth.utilities.java.support.codec.Base64Support;
+import net.shibboleth.utilities.java.support.xml.SerializeSupport;
+import se.litsec.opensaml.OpenSAMLTestBase;
+import se.litsec.opensaml.saml2.core.build.AuthnRequestBuilder;
+import se.litsec.opensaml.utils.ObjectUtils;
+
+/**
+ * Test cases for {@code PostRequestHttpObject}.
+ *
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+public class PostRequestHttpObjectTest extends OpenSAMLTestBase {
+
+  @Test
+  public void testEncoding() throws Exception {
+    final X509Credential credential = loadKeyStoreCredential(
+      new ClassPathResource("sp-enc-cert.jks").getInputStream(), "secret", "eid", "secret");
+
+    for (int i = 0; i < 3; i++) {
+      final AuthnRequest request = AuthnRequestBuilder.builder()
+        .id("_" + i)
+        .issueInstant(Instant.now())
+        .destination("https://idp.example.com/sso")
+        .issuer("https://sp.example.com")
+        .assertionConsumerServiceURL("https://sp.example.com/acs?p=" + "x".repeat(i * 10000))
+        .build();
+
+      final PostRequestHttpObject<AuthnRequest> post = new PostRequestHttpObject<>(
+        request, "state", credential, "https://idp.example.com/sso", null);
+
+      // The encoding should be the same as serializing the message to a string and Base64-encoding its bytes.
+      final String expected = Base64Support.encode(
+        SerializeSupport.nodeToString(ObjectUtils.marshall(request)).getBytes(StandardCharsets.UTF_8), Base64Support.UNCHUNKED);
+      Assert.assertEquals(expected, post.getRequestParameters().get("SAMLRequest"));
+    }
+  }
+
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2016-2021 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.opensaml.saml2.common.request;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.opensaml.saml.saml2.core.AuthnRequest;
+import org.opensaml.security.x509.X509Credential;
+import org.springframework.core.io.ClassPathResource;
+
+import se.litsec.opensaml.OpenSAMLTestBase;
+import se.litsec.opensaml.saml2.core.build.AuthnRequestBuilder;
+
+/**
+ * Benchmark for {@link RedirectRequestHttpObject}.
+ * <p>
+ * Run {@link #main(String[])} (with the test classpath) to execute the benchmark with 1 and 8 threads and the GC
+ * profiler.
+ * </p>
+ *
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RedirectRequestBenchmark {
+
+  /** The endpoint (with and without query parameters). */
+  @Param({ "https://idp.example.com/sso", "https://idp.example.com/sso?tenant=abc" })
+  private String endpoint;
+
+  /** Whether the request should be signed. */
+  @Param({ "false", "true" })
+  private boolean signed;
+
+  private X509Credential credential;
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    OpenSAMLTestBase.initializeOpenSAML();
+    this.credential = OpenSAMLTestBase.loadKeyStoreCredential(
+      new ClassPathResource("rsakey.jks").getInputStream(), "Test1234", "key1", "Test1234");
+  }
+
+  @Benchmark
+  public String redirect() throws Exception {
+    final AuthnRequest request = AuthnRequestBuilder.builder()
+      .id("_abcdef0123456789")
+      .issueInstant(Instant.now())
+      .destination(this.endpoint)
+      .issuer("https://sp.example.com")
+      .assertionConsumerServiceURL("https://sp.example.com/acs")
+      .build();
+    return new RedirectRequestHttpObject<>(request, "relay-state", this.signed ? this.credential : null, this.endpoint, null)
+      .getSendUrl();
+  }
+
+  /**
+   * Runs the benchmark.
+   *
+   * @param args
+   *          not used
+   * @throws RunnerException
+   *           for benchmark errors
+   */
+  public static void main(final String[] args) throws RunnerException {
+    for (final int threads : new int[] { 1, 8 }) {
+      new Runner(new OptionsBuilder()
+        .include(RedirectRequestBenchmark.class.getName())
+        .threads(threads)
+        .addProfiler(GCProfiler.class)
+        .build()).run();
+    }
+  }
+
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2016-2021 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.opensaml.saml2.common.request;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.opensaml.messaging.context.MessageContext;
+import org.opensaml.saml.common.messaging.context.SAMLBindingContext;
+import org.opensaml.saml.saml2.binding.encoding.impl.HTTPRedirectDeflateEncoder;
+import org.opensaml.saml.saml2.core.AuthnRequest;
+import org.opensaml.security.x509.X509Credential;
+import org.opensaml.xmlsec.SignatureSigningParameters;
+import org.opensaml.xmlsec.context.SecurityParametersContext;
+import org.springframework.core.io.ClassPathResource;
+
+import net.shibboleth.utilities.java.support.collection.Pair;
+import net.shibboleth.utilities.java.support.net.URLBuilder;
+import se.litsec.opensaml.OpenSAMLTestBase;
+import se.litsec.opensaml.saml2.core.build.AuthnRequestBuilder;
+import se.litsec.opensaml.utils.SignatureUtils;
+
+/**
+ * Test cases for {@code RedirectRequestHttpObject}.
+ *
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+public class RedirectRequestHttpObjectTest extends OpenSAMLTestBase {
+
+  private static final String[] ENDPOINTS = {
+      "https://idp.example.com/sso",
+      "https://idp.example.com:8443/sso/redirect",
+      "https://idp.example.com/sso?tenant=a%20b&x=1",
+      "https://idp.example.com/sso?SAMLRequest=old&tenant=a",
+      "https://idp.example.com/sso#frag"
+  };
+
+  private static final String[] RELAY_STATES = { null, "", "state-1", "a b&c=d" };
+
+  @Test
+  public void testSameAsOpenSAMLEncoding() throws Exception {
+    final X509Credential credential = loadKeyStoreCredential(
+      new ClassPathResource("rsakey.jks").getInputStream(), "Test1234", "key1", "Test1234");
+
+    for (final String endpoint : ENDPOINTS) {
+      for (final String relayState : RELAY_STATES) {
+        for (final X509Credential cred : new X509Credential[] { null, credential }) {
+          final AuthnRequest request = createRequest(endpoint);
+          final RedirectRequestHttpObject<AuthnRequest> redirect =
+              new RedirectRequestHttpObject<>(request, relayState, cred, endpoint, null);
+
+          final String expected = new LegacyEncoder().encode(createRequest(endpoint), relayState, cred, endpoint);
+          Assert.assertEquals(expected, redirect.getSendUrl());
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testQueryParamsFilterAppliedPerCall() throws Exception {
+    final String endpoint = "https://idp.example.com/filter?tenant=a&x=1";
+
+    final String url1 = RedirectBindingEncoder.buildRedirectURL(endpoint, "abc", null, null, p -> {});
+    Assert.assertEquals("https://idp.example.com/filter?tenant=a&x=1&SAMLRequest=abc", url1);
+
+    // The same endpoint with another filter - the cached endpoint must not carry the result of the first filter.
+    final String url2 = RedirectBindingEncoder.buildRedirectURL(endpoint, "abc", null, null,
+      p -> p.removeIf(q -> "x".equals(q.getFirst())));
+    Assert.assertEquals("https://idp.example.com/filter?tenant=a&SAMLRequest=abc", url2);
+
+    final String url3 = RedirectBindingEncoder.buildRedirectURL(endpoint, "abc", null, null, List::clear);
+    Assert.assertEquals("https://idp.example.com/filter?SAMLRequest=abc", url3);
+  }
+
+  private static AuthnRequest createRequest(final String endpoint) {
+    return AuthnRequestBuilder.builder()
+      .id("_abcdef0123456789")
+      .issueInstant(Instant.parse("2021-06-01T10:00:00Z"))
+      .destination(endpoint)
+      .issuer("https://sp.example.com")
+      .build();
+  }
+
+  /**
+   * Encodes the request the way that {@code RedirectRequestHttpObject} did before the encoding was moved to
+   * {@code RedirectBindingEncoder}, i.e., using OpenSAML's {@code HTTPRedirectDeflateEncoder}.
+   */
+  private static class LegacyEncoder extends HTTPRedirectDeflateEncoder {
+
+    public String encode(final AuthnRequest request, final String relayState, final X509Credential credential,
+        final String endpoint) throws Exception {
+
+      final MessageContext messageContext = new MessageContext();
+      messageContext.setMessage(request);
+      messageContext.getSubcontext(SAMLBindingContext.class, true).setRelayState(relayState);
+      if (credential != null) {
+        final SignatureSigningParameters parameters = SignatureUtils.getSigningParameters(credential, null, null);
+        messageContext.getSubcontext(SecurityParametersContext.class, true).setSignatureSigningParameters(parameters);
+      }
+      this.removeSignature(request);
+      final String encodedMessage = this.deflateAndBase64Encode(request);
+
+      URLBuilder urlBuilder = new URLBuilder(endpoint);
+      List<Pair<String, String>> queryParams = urlBuilder.getQueryParams();
+      this.removeDisallowedQueryParams(queryParams);
+      if (queryParams.isEmpty()) {
+        return this.buildRedirectURL(messageContext, endpoint, encodedMessage);
+      }
+      final List<Pair<String, String>> qp = new ArrayList<>(queryParams);
+      queryParams.clear();
+      urlBuilder = new URLBuilder(this.buildRedirectURL(messageContext, urlBuilder.buildURL(), encodedMessage));
+      urlBuilder.getQueryParams().addAll(0, qp);
+      return urlBuilder.buildURL();
+    }
+  }
+
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2016-2021 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.opensaml.saml2.common.response;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import se.litsec.opensaml.storage.InMemoryStorageService;
+
+/**
+ * Test cases for {@code AsyncMessageReplayCheckerImpl}.
+ *
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+public class AsyncMessageReplayCheckerImplTest {
+
+  private InMemoryStorageService storage;
+
+  @Before
+  public void setup() throws Exception {
+    this.storage = new InMemoryStorageService();
+    this.storage.initialize();
+  }
+
+  @After
+  public void tearDown() {
+    this.storage.destroy();
+  }
+
+  @Test
+  public void testReplay() throws Exception {
+    final AsyncMessageReplayCheckerImpl checker = this.createChecker();
+    try {
+      checker.checkReplay("ID1");
+      checker.checkReplay("ID2");
+      try {
+        checker.checkReplay("ID1");
+        Assert.fail("Expected MessageReplayException");
+      }
+      catch (MessageReplayException e) {
+      }
+      // The replay was detected locally.
+      Assert.assertEquals(2, this.storage.getCreateCalls());
+      Assert.assertEquals(1, checker.getLocalRejections());
+    }
+    finally {
+      checker.destroy();
+    }
+  }
+
+  @Test
+  public void testReplayFromOtherNode() throws Exception {
+    final AsyncMessageReplayCheckerImpl node1 = this.createChecker();
+    final AsyncMessageReplayCheckerImpl node2 = this.createChecker();
+    try {
+      node1.checkReplay("ID1");
+      try {
+        node2.checkReplay("ID1");
+        Assert.fail("Expected MessageReplayException");
+      }
+      catch (MessageReplayException e) {
+      }
+      Assert.assertEquals(0, node2.getLocalRejections());
+    }
+    finally {
+      node1.destroy();
+      node2.destroy();
+    }
+  }
+
+  @Test
+  public void testConcurrentChecks() throws Exception {
+    final AsyncMessageReplayCheckerImpl checker = this.createChecker();
+    try {
+      final List<CompletableFuture<Void>> results = new ArrayList<>();
+      for (int i = 0; i < 500; i++) {
+        results.add(checker.checkReplayAsync("ID" + i).toCompletableFuture());
+      }
+      for (int i = 0; i < 500; i += 2) {
+        results.add(checker.checkReplayAsync("ID" + i).toCompletableFuture());
+      }
+      int failed = 0;
+      for (final CompletableFuture<Void> r : results) {
+        try {
+          r.join();
+        }
+        catch (CompletionException e) {
+          Assert.assertTrue(e.getCause() instanceof MessageReplayException);
+          failed++;
+        }
+      }
+      Assert.assertEquals(250, failed);
+      // A repeated ID is rejected by the near-cache if the first check has completed, otherwise because the first
+      // check is in flight. In neither case is the storage service contacted.
+      Assert.assertEquals(500, this.storage.getCreateCalls());
+      Assert.assertEquals(250, checker.getLocalRejections());
+    }
+    finally {
+      checker.destroy();
+    }
+  }
+
+  @Test
+  public void testCoalescing() throws Exception {
+    final List<Runnable> tasks = new ArrayList<>();
+    final AsyncMessageReplayCheckerImpl checker = new AsyncMessageReplayCheckerImpl();
+    checker.setStorage(this.storage);
+    checker.setReplayCacheName("replay");
+    checker.setExecutor(tasks::add);
+    checker.setMaxConcurrency(2);
+    checker.afterPropertiesSet();
+
+    final List<CompletableFuture<Void>> results = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      results.add(checker.checkReplayAsync("ID" + i).toCompletableFuture());
+    }
+    // A concurrent check of an ID that is in flight is a replay.
+    final CompletableFuture<Void> duplicate = checker.checkReplayAsync("ID0").toCompletableFuture();
+    Assert.assertTrue(duplicate.isCompletedExceptionally());
+    Assert.assertEquals(1, checker.getLocalRejections());
+
+    // The 100 checks are performed by no more than 2 drain tasks.
+    Assert.assertEquals(2, tasks.size());
+    Assert.assertEquals(0, this.storage.getCreateCalls());
+    for (final Runnable task : tasks) {
+      task.run();
+    }
+    for (final CompletableFuture<Void> r : results) {
+      r.join();
+    }
+    Assert.assertEquals(100, this.storage.getCreateCalls());
+
+    // The drain tasks have finished, so new checks schedule new tasks.
+    checker.checkReplayAsync("ID100");
+    Assert.assertEquals(3, tasks.size());
+  }
+
+  @Test
+  public void testDestroyed() throws Exception {
+    final AsyncMessageReplayCheckerImpl checker = this.createChecker();
+    checker.destroy();
+    try {
+      checker.checkReplay("ID1");
+      Assert.fail("Expected MessageReplayException");
+    }
+    catch (MessageReplayException e) {
+    }
+    Assert.assertEquals(0, this.storage.getCreateCalls());
+  }
+
+  @Test
+  public void testStorageFailure() throws Exception {
+    final AsyncMessageReplayCheckerImpl checker = this.createChecker();
+    try {
+      this.storage.setFailing(true);
+      try {
+        checker.checkReplay("ID1");
+        Assert.fail("Expected MessageReplayException");
+      }
+      catch (MessageReplayException e) {
+      }
+      // The failed check must not have been recorded in the near-cache.
+      this.storage.setFailing(false);
+      checker.checkReplay("ID1");
+      Assert.assertEquals(0, checker.getLocalRejections());
+    }
+    finally {
+      checker.destroy();
+    }
+  }
+
+  private AsyncMessageReplayCheckerImpl createChecker() throws Exception {
+    final AsyncMessageReplayCheckerImpl checker = new AsyncMessageReplayCheckerImpl();
+    checker.setStorage(this.storage);
+    checker.setReplayCacheName("replay");
+    checker.afterPropertiesSet();
+    return checker;
+  }
+
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2016-2021 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.opensaml.saml2.common.response;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test cases for {@code InMemoryReplayChecker}.
+ *
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+public class InMemoryReplayCheckerTest {
+
+  @Test
+  public void testReplay() throws Exception {
+    final InMemoryReplayChecker checker = new InMemoryReplayChecker();
+    checker.checkReplay("ID1");
+    checker.checkReplay("ID2");
+    try {
+      checker.checkReplay("ID1");
+      Assert.fail("Expected MessageReplayException");
+    }
+    catch (MessageReplayException e) {
+    }
+    Assert.assertEquals(2, checker.getSize());
+    Assert.assertEquals(1, checker.getRejectedReplays());
+  }
+
+  @Test
+  public void testExpiration() throws Exception {
+    final InMemoryReplayChecker checker = new InMemoryReplayChecker();
+    checker.setReplayCacheExpiration(50);
+    checker.checkReplay("ID1");
+    Thread.sleep(100);
+
+    // The expired ID is accepted again, and the other expired entries are removed.
+    checker.checkReplay("ID1");
+    Assert.assertEquals(1, checker.getSize());
+    checker.checkReplay("ID2");
+    Assert.assertEquals(2, checker.getSize());
+  }
+
+  @Test
+  public void testCapacity() throws Exception {
+    final InMemoryReplayChecker checker = new InMemoryReplayChecker();
+    checker.setCapacity(10);
+    for (int i = 0; i < 25; i++) {
+      checker.checkReplay("ID" + i);
+    }
+    Assert.assertEquals(10, checker.getSize());
+    Assert.assertEquals(15, checker.getEvictions());
+
+    // The oldest IDs were evicted.
+    checker.checkReplay("ID0");
+    try {
+      checker.checkReplay("ID24");
+      Assert.fail("Expected MessageReplayException");
+    }
+    catch (MessageReplayException e) {
+    }
+  }
+
+}
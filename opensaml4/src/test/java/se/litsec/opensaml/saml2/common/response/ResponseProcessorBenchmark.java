@@ -0,0 +1,148 @@
+/*
+ * Copyright 2016-2021 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.opensaml.saml2.common.response;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.opensaml.saml.common.SAMLObject;
+import org.opensaml.saml.saml2.core.AuthnRequest;
+
+import se.litsec.opensaml.OpenSAMLTestBase;
+import se.litsec.opensaml.saml2.metadata.PeerMetadataResolver;
+
+/**
+ * Benchmark for {@link ResponseProcessorImpl#processSamlResponse(String, String, ResponseProcessingInput,
+ * PeerMetadataResolver, org.opensaml.saml.common.assertion.ValidationContext)} with and without caching of IdP
+ * credentials.
+ * <p>
+ * The {@code cache} parameter tells which caches are used:
+ * </p>
+ * <ul>
+ * <li>{@code NONE} - IdP credentials are resolved from metadata for each signature.</li>
+ * <li>{@code CREDENTIALS} - The metadata credential resolver caches the IdP credentials.</li>
+ * <li>{@code ALL} - The signature trust engine also caches the trusted keys (the default setup).</li>
+ * </ul>
+ * <p>
+ * Run {@link #main(String[])} (with the test classpath) to execute the benchmark.
+ * </p>
+ *
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResponseProcessorBenchmark {
+
+  @Param({ "NONE", "CREDENTIALS", "ALL" })
+  private String cache;
+
+  private TestResponseFactory factory;
+
+  private ResponseProcessorImpl processor;
+
+  private String samlResponse;
+
+  private ResponseProcessingInput input;
+
+  private PeerMetadataResolver peerMetadataResolver;
+
+  /**
+   * Sets up the processor and creates the response that is processed.
+   *
+   * @throws Exception
+   *           for errors
+   */
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    OpenSAMLTestBase.initializeOpenSAML();
+
+    this.factory = new TestResponseFactory();
+    this.processor = this.factory.createProcessor(new NoReplayChecker());
+    if (!"ALL".equals(this.cache)) {
+      this.processor.setTrustedKeyCache(new TestResponseFactory.NoTrustedKeyCache());
+    }
+    if ("NONE".equals(this.cache)) {
+      this.processor.setCredentialCacheSize(0);
+    }
+    this.processor.initialize();
+
+    final AuthnRequest authnRequest = this.factory.createAuthnRequest();
+    final Instant issueInstant = Instant.now();
+    this.samlResponse = TestResponseFactory.encode(this.factory.createResponse(authnRequest, issueInstant, true));
+    this.input = this.factory.createInput(authnRequest, issueInstant);
+    this.peerMetadataResolver = this.factory.getPeerMetadataResolver();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    this.processor.destroy();
+  }
+
+  @Benchmark
+  public ResponseProcessingResult processSamlResponse() throws Exception {
+    return this.processor.processSamlResponse(
+      this.samlResponse, TestResponseFactory.RELAY_STATE, this.input, this.peerMetadataResolver, null);
+  }
+
+  /**
+   * Runs the benchmark.
+   *
+   * @param args
+   *          not used
+   * @throws RunnerException
+   *           for benchmark errors
+   */
+  public static void main(final String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder()
+      .include(ResponseProcessorBenchmark.class.getName())
+      .build()).run();
+  }
+
+  /**
+   * The same response is processed over and over again, so replay checking is turned off.
+   */
+  private static class NoReplayChecker implements MessageReplayChecker {
+
+    @Override
+    public void checkReplay(final String id) {
+    }
+
+    @Override
+    public void checkReplay(final SAMLObject object) {
+    }
+  }
+
+}
@@ -0,0 +1,390 @@
+/*
+ * Copyright 2016-2021 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.opensaml.saml2.common.response;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.opensaml.saml.saml2.core.AuthnRequest;
+import org.opensaml.saml.saml2.core.Response;
+
+import se.litsec.opensaml.OpenSAMLTestBase;
+import se.litsec.opensaml.saml2.metadata.CachingMetadataCredentialResolver;
+
+/**
+ * Test cases for {@code ResponseProcessorImpl}.
+ * 
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+public class ResponseProcessorImplTest extends OpenSAMLTestBase {
+
+  /**
+   * Tests processing of a response holding an encrypted assertion.
+   * 
+   * @throws Exception
+   *           for errors
+   */
+  @Test
+  public void testProcess() throws Exception {
+    final TestResponseFactory factory = new TestResponseFactory();
+    final ResponseProcessorImpl processor = factory.createProcessor(new InMemoryReplayChecker());
+    processor.initialize();
+
+    final AuthnRequest authnRequest = factory.createAuthnRequest();
+    final Instant now = Instant.now();
+    final Response response = factory.createResponse(authnRequest, now, true);
+
+    final ResponseProcessingResult result = processor.processSamlResponse(TestResponseFactory.encode(response),
+      TestResponseFactory.RELAY_STATE, factory.createInput(authnRequest, now), factory.getPeerMetadataResolver(), null);
+    Assert.assertNotNull(result.getAssertion());
+    Assert.assertEquals(TestResponseFactory.IDP_ENTITY_ID, result.getIssuer());
+  }
+
+  /**
+   * Tests that the credentials of the IdP are cached.
+   * 
+   * @throws Exception
+   *           for errors
+   */
+  @Test
+  public void testCredentialCache() throws Exception {
+    final TestResponseFactory factory = new TestResponseFactory();
+    final ResponseProcessorImpl processor = factory.createProcessor(new InMemoryReplayChecker());
+    processor.setTrustedKeyCache(new TestResponseFactory.NoTrustedKeyCache());
+    processor.initialize();
+
+    for (int i = 0; i < 3; i++) {
+      final AuthnRequest authnRequest = factory.createAuthnRequest();
+      final Instant now = Instant.now();
+      final Response response = factory.createResponse(authnRequest, now, true);
+      processor.processSamlResponse(TestResponseFactory.encode(response), TestResponseFactory.RELAY_STATE,
+        factory.createInput(authnRequest, now), factory.getPeerMetadataResolver(), null);
+    }
+    final CachingMetadataCredentialResolver resolver = (CachingMetadataCredentialResolver) processor.metadataCredentialResolver;
+    Assert.assertEquals(1, resolver.getMisses());
+    Assert.assertEquals(5, resolver.getHits());
+    Assert.assertEquals(1, resolver.getSize());
+  }
+
+  /**
+   * Tests that responses larger than the maximum size are rejected.
+   * 
+   * @throws Exception
+   *           for errors
+   */
+  @Test
+  public void testMaxResponseSize() throws Exception {
+    final TestResponseFactory factory = new TestResponseFactory();
+    final ResponseProcessorImpl processor = factory.createProcessor(new InMemoryReplayChecker());
+    processor.setMaxResponseSize(1024);
+    processor.initialize();
+
+    final AuthnRequest authnRequest = factory.createAuthnRequest();
+    final Instant now = Instant.now();
+    final Response response = factory.createResponse(authnRequest, now, true);
+    try {
+      processor.processSamlResponse(TestResponseFactory.encode(response), TestResponseFactory.RELAY_STATE,
+        factory.createInput(authnRequest, now), factory.getPeerMetadataResolver(), null);
+      Assert.fail("Expected ResponseProcessingException");
+    }
+    catch (ResponseProcessingException e) {
+      Assert.assertTrue(e.getMessage().contains("maximum allowed size"));
+    }
+  }
+
+  /**
+   * Tests that a response parameter holding characters that are not valid Base64 is rejected, and that line breaks
+   * are accepted.
+   * 
+   * @throws Exception
+   *           for errors
+   */
+  @Test
+  public void testInvalidEncoding() throws Exception {
+    final TestResponseFactory factory = new TestResponseFactory();
+    final ResponseProcessorImpl processor = factory.createProcessor(new InMemoryReplayChecker());
+    processor.initialize();
+
+    final AuthnRequest authnRequest = factory.createAuthnRequest();
+    final Instant now = Instant.now();
+    final String response = TestResponseFactory.encode(factory.createResponse(authnRequest, now, true));
+
+    // A non-ASCII character whose low byte is the original character.
+    final char c = response.charAt(10);
+    final String nonAscii = response.substring(0, 10) + (char) (c | 0x100) + response.substring(11);
+    // A character that is not in the Base64 alphabet.
+    final String invalid = response.substring(0, 10) + "!" + response.substring(10);
+
+    for (final String r : Arrays.asList(nonAscii, invalid)) {
+      try {
+        processor.processSamlResponse(r, TestResponseFactory.RELAY_STATE,
+          factory.createInput(authnRequest, now), factory.getPeerMetadataResolver(), null);
+        Assert.fail("Expected ResponseProcessingException");
+      }
+      catch (ResponseProcessingException e) {
+      }
+    }
+
+    final String chunked = response.replaceAll("(.{76})", "$1\r\n");
+    final ResponseProcessingResult result = processor.processSamlResponse(chunked, TestResponseFactory.RELAY_STATE,
+      factory.createInput(authnRequest, now), factory.getPeerMetadataResolver(), null);
+    Assert.assertNotNull(result.getAssertion());
+  }
+
+  /**
+   * Tests that the default executor is shut down when the processor is destroyed, and that an assigned executor is
+   * not.
+   * 
+   * @throws Exception
+   *           for errors
+   */
+  @Test
+  public void testDestroy() throws Exception {
+    final TestResponseFactory factory = new TestResponseFactory();
+    ResponseProcessorImpl processor = factory.createProcessor(new InMemoryReplayChecker());
+    processor.initialize();
+    final ExecutorService defaultExecutor = (ExecutorService) processor.processingExecutor;
+    processor.destroy();
+    Assert.assertTrue(defaultExecutor.isShutdown());
+
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      processor = factory.createProcessor(new InMemoryReplayChecker());
+      processor.setProcessingExecutor(executor);
+      processor.initialize();
+      processor.destroy();
+      Assert.assertFalse(executor.isShutdown());
+    }
+    finally {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Tests that invalid responses are rejected by the pre-validation.
+   * 
+   * @throws Exception
+   *           for errors
+   */
+  @Test
+  public void testPreValidation() throws Exception {
+    final TestResponseFactory factory = new TestResponseFactory();
+    final ResponseProcessorImpl processor = factory.createProcessor(new InMemoryReplayChecker());
+    processor.setPreValidation(true);
+    processor.initialize();
+
+    final AuthnRequest authnRequest = factory.createAuthnRequest();
+    final Instant now = Instant.now();
+    final String response = TestResponseFactory.encode(factory.createResponse(authnRequest, now, true));
+
+    // Not for our request
+    try {
+      processor.processSamlResponse(response, TestResponseFactory.RELAY_STATE,
+        factory.createInput(factory.createAuthnRequest(), now), factory.getPeerMetadataResolver(), null);
+      Assert.fail("Expected ResponseValidationException");
+    }
+    catch (ResponseValidationException e) {
+    }
+
+    // Too old
+    try {
+      processor.processSamlResponse(response, TestResponseFactory.RELAY_STATE,
+        factory.createInput(authnRequest, now.plusSeconds(3600)), factory.getPeerMetadataResolver(), null);
+      Assert.fail("Expected ResponseValidationException");
+    }
+    catch (ResponseValidationException e) {
+    }
+
+    // Unknown issuer
+    try {
+      processor.processSamlResponse(response, TestResponseFactory.RELAY_STATE,
+        factory.createInput(authnRequest, now), entityID -> null, null);
+      Assert.fail("Expected ResponseValidationException");
+    }
+    catch (ResponseValidationException e) {
+    }
+
+    final ResponseProcessingResult result = processor.processSamlResponse(response, TestResponseFactory.RELAY_STATE,
+      factory.createInput(authnRequest, now), factory.getPeerMetadataResolver(), null);
+    Assert.assertNotNull(result.getAssertion());
+  }
+
+  /**
+   * Tests asynchronous processing.
+   * 
+   * @throws Exception
+   *           for errors
+   */
+  @Test
+  public void testProcessAsync() throws Exception {
+    final TestResponseFactory factory = new TestResponseFactory();
+    final ResponseProcessorImpl processor = factory.createProcessor(new InMemoryReplayChecker());
+    processor.initialize();
+
+    final AuthnRequest authnRequest = factory.createAuthnRequest();
+    final Instant now = Instant.now();
+    final String response = TestResponseFactory.encode(factory.createResponse(authnRequest, now, true));
+
+    final ResponseProcessingResult result = processor.processSamlResponseAsync(response, TestResponseFactory.RELAY_STATE,
+      factory.createInput(authnRequest, now), factory.getPeerMetadataResolver(), null).get();
+    Assert.assertNotNull(result.getAssertion());
+
+    // Replay
+    try {
+      processor.processSamlResponseAsync(response, TestResponseFactory.RELAY_STATE,
+        factory.createInput(authnRequest, now), factory.getPeerMetadataResolver(), null).join();
+      Assert.fail("Expected CompletionException");
+    }
+    catch (CompletionException e) {
+      Assert.assertTrue(e.getCause() instanceof ResponseProcessingException);
+      Assert.assertTrue(e.getCause().getMessage().startsWith("Message replay"));
+    }
+  }
+
+  /**
+   * Tests that a rejection by the processing executor is reported as a processing error, also when it occurs after the
+   * first stage.
+   * 
+   * @throws Exception
+   *           for errors
+   */
+  @Test
+  public void testProcessAsyncRejected() throws Exception {
+    final TestResponseFactory factory = new TestResponseFactory();
+    final ResponseProcessorImpl processor = factory.createProcessor(new InMemoryReplayChecker());
+    final AtomicInteger tasks = new AtomicInteger();
+    processor.setProcessingExecutor(r -> {
+      if (tasks.incrementAndGet() > 1) {
+        throw new RejectedExecutionException("Queue is full");
+      }
+      r.run();
+    });
+    processor.initialize();
+
+    final AuthnRequest authnRequest = factory.createAuthnRequest();
+    final Instant now = Instant.now();
+    final String response = TestResponseFactory.encode(factory.createResponse(authnRequest, now, true));
+    try {
+      processor.processSamlResponseAsync(response, TestResponseFactory.RELAY_STATE,
+        factory.createInput(authnRequest, now), factory.getPeerMetadataResolver(), null).join();
+      Assert.fail("Expected CompletionException");
+    }
+    catch (CompletionException e) {
+      Assert.assertTrue(e.getCause() instanceof ResponseProcessingException);
+      Assert.assertTrue(e.getCause().getCause() instanceof RejectedExecutionException);
+    }
+    Assert.assertEquals(2, tasks.get());
+  }
+
+  /**
+   * Tests that the processing stages are measured.
+   * 
+   * @throws Exception
+   *           for errors
+   */
+  @Test
+  public void testMetrics() throws Exception {
+    final TestResponseFactory factory = new TestResponseFactory();
+    final ResponseProcessorImpl processor = factory.createProcessor(new InMemoryReplayChecker());
+    final SimpleResponseProcessingMetrics metrics = new SimpleResponseProcessingMetrics();
+    processor.setMetrics(metrics);
+    processor.initialize();
+
+    final AuthnRequest authnRequest = factory.createAuthnRequest();
+    final Instant now = Instant.now();
+    final String response = TestResponseFactory.encode(factory.createResponse(authnRequest, now, true));
+
+    processor.processSamlResponse(response, TestResponseFactory.RELAY_STATE, factory.createInput(authnRequest, now),
+      factory.getPeerMetadataResolver(), null);
+    try {
+      processor.processSamlResponse(response, TestResponseFactory.RELAY_STATE, factory.createInput(authnRequest, now),
+        factory.getPeerMetadataResolver(), null);
+      Assert.fail("Expected ResponseProcessingException");
+    }
+    catch (ResponseProcessingException e) {
+    }
+
+    Assert.assertEquals(1, metrics.getOutcomeCount(ResponseProcessingMetrics.Outcome.SUCCESS));
+    Assert.assertEquals(1, metrics.getOutcomeCount(ResponseProcessingMetrics.Outcome.FAILURE));
+    Assert.assertEquals(2, metrics.getStageCount(ResponseProcessingMetrics.Stage.DECODE));
+    Assert.assertEquals(2, metrics.getStageCount(ResponseProcessingMetrics.Stage.REPLAY_CHECK));
+    Assert.assertEquals(1, metrics.getStageFailures(ResponseProcessingMetrics.Stage.REPLAY_CHECK));
+    Assert.assertEquals(1, metrics.getStageCount(ResponseProcessingMetrics.Stage.DECRYPT));
+    Assert.assertEquals(0, metrics.getStageCount(ResponseProcessingMetrics.Stage.PRE_VALIDATION));
+    Assert.assertEquals(response.length(), metrics.getMaxPayloadSize());
+  }
+
+  /**
+   * Tests decryption of the assertion in parallel with the Response signature validation.
+   * 
+   * @throws Exception
+   *           for errors
+   */
+  @Test
+  public void testParallelDecryption() throws Exception {
+    final TestResponseFactory factory = new TestResponseFactory();
+    final ResponseProcessorImpl processor = factory.createProcessor(new InMemoryReplayChecker());
+    processor.setParallelDecryption(true);
+    processor.setProcessingExecutor(Executors.newSingleThreadExecutor());
+    processor.initialize();
+
+    for (int i = 0; i < 3; i++) {
+      final AuthnRequest authnRequest = factory.createAuthnRequest();
+      final Instant now = Instant.now();
+      final String response = TestResponseFactory.encode(factory.createResponse(authnRequest, now, true));
+
+      final ResponseProcessingResult result = processor.processSamlResponse(response, TestResponseFactory.RELAY_STATE,
+        factory.createInput(authnRequest, now), factory.getPeerMetadataResolver(), null);
+      Assert.assertNotNull(result.getAssertion());
+
+      // The async path runs on the same (single) thread as the decryption.
+      final ResponseProcessingResult result2 = processor.processSamlResponseAsync(
+        TestResponseFactory.encode(factory.createResponse(authnRequest, now, true)), TestResponseFactory.RELAY_STATE,
+        factory.createInput(authnRequest, now), factory.getPeerMetadataResolver(), null).get();
+      Assert.assertNotNull(result2.getAssertion());
+    }
+  }
+
+  /**
+   * Tests that the assertion is decrypted by the processing thread if the default executor has been shut down.
+   * 
+   * @throws Exception
+   *           for errors
+   */
+  @Test
+  public void testParallelDecryptionNoExecutor() throws Exception {
+    final TestResponseFactory factory = new TestResponseFactory();
+    final ResponseProcessorImpl processor = factory.createProcessor(new InMemoryReplayChecker());
+    processor.setParallelDecryption(true);
+    processor.initialize();
+    processor.destroy();
+
+    final AuthnRequest authnRequest = factory.createAuthnRequest();
+    final Instant now = Instant.now();
+    final String response = TestResponseFactory.encode(factory.createResponse(authnRequest, now, true));
+    final ResponseProcessingResult result = processor.processSamlResponse(response, TestResponseFactory.RELAY_STATE,
+      factory.createInput(authnRequest, now), factory.getPeerMetadataResolver(), null);
+    Assert.assertNotNull(result.getAssertion());
+  }
+
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2016-2021 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.opensaml.saml2.common.response;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.opensaml.saml.common.assertion.ValidationContext;
+import org.opensaml.saml.common.assertion.ValidationResult;
+import org.opensaml.saml.saml2.assertion.SAML2AssertionValidationParameters;
+import org.opensaml.saml.saml2.core.Response;
+
+import se.litsec.opensaml.OpenSAMLTestBase;
+import se.litsec.opensaml.common.validation.CoreValidatorParameters;
+import se.litsec.opensaml.utils.ObjectUtils;
+
+/**
+ * Test cases for {@code ResponseValidator}.
+ * 
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+public class ResponseValidatorTest extends OpenSAMLTestBase {
+
+  private static final Duration MAX_AGE = Duration.ofMinutes(3);
+
+  private static final Duration CLOCK_SKEW = Duration.ofSeconds(30);
+
+  /**
+   * Tests the IssueInstant check for a response that is too old, at the boundary of the allowed age.
+   */
+  @Test
+  public void testIssueInstantTooOld() {
+    final ResponseValidator validator = new ResponseValidator(null, null);
+    final Instant receiveInstant = Instant.parse("2021-01-01T12:00:00Z");
+
+    // Received exactly max age + clock skew after it was issued - accepted
+    Assert.assertEquals(ValidationResult.VALID,
+      validator.validateIssueInstant(createResponse(receiveInstant.minus(MAX_AGE).minus(CLOCK_SKEW)),
+        createContext(receiveInstant)));
+
+    // One millisecond older - rejected
+    Assert.assertEquals(ValidationResult.INVALID,
+      validator.validateIssueInstant(createResponse(receiveInstant.minus(MAX_AGE).minus(CLOCK_SKEW).minusMillis(1)),
+        createContext(receiveInstant)));
+
+    // Received later than the clock skew, but within the max age - accepted
+    Assert.assertEquals(ValidationResult.VALID,
+      validator.validateIssueInstant(createResponse(receiveInstant.minus(CLOCK_SKEW).minusSeconds(1)),
+        createContext(receiveInstant)));
+  }
+
+  /**
+   * Tests the IssueInstant check for a response that is issued in the future, at the boundary of the allowed clock
+   * skew.
+   */
+  @Test
+  public void testIssueInstantInFuture() {
+    final ResponseValidator validator = new ResponseValidator(null, null);
+    final Instant receiveInstant = Instant.parse("2021-01-01T12:00:00Z");
+
+    // Issued exactly clock skew after it was received - accepted
+    Assert.assertEquals(ValidationResult.VALID,
+      validator.validateIssueInstant(createResponse(receiveInstant.plus(CLOCK_SKEW)), createContext(receiveInstant)));
+
+    // One millisecond later - rejected
+    Assert.assertEquals(ValidationResult.INVALID,
+      validator.validateIssueInstant(createResponse(receiveInstant.plus(CLOCK_SKEW).plusMillis(1)),
+        createContext(receiveInstant)));
+
+    // Issued further in the future than the clock skew, but less than the max age - rejected
+    Assert.assertEquals(ValidationResult.INVALID,
+      validator.validateIssueInstant(createResponse(receiveInstant.plus(MAX_AGE)), createContext(receiveInstant)));
+  }
+
+  private static Response createResponse(final Instant issueInstant) {
+    final Response response = ObjectUtils.createSamlObject(Response.class);
+    response.setIssueInstant(issueInstant);
+    return response;
+  }
+
+  private static ValidationContext createContext(final Instant receiveInstant) {
+    final Map<String, Object> params = new HashMap<>();
+    params.put(CoreValidatorParameters.RECEIVE_INSTANT, receiveInstant);
+    params.put(CoreValidatorParameters.MAX_AGE_MESSAGE, MAX_AGE);
+    params.put(SAML2AssertionValidationParameters.CLOCK_SKEW, CLOCK_SKEW);
+    return new ValidationContext(params);
+  }
+
+}
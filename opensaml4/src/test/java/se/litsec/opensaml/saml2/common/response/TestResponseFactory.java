@@ -0,0 +1,326 @@
+/*
+ * Copyright 2016-2021 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.opensaml.saml2.common.response;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.UUID;
+
+import javax.xml.namespace.QName;
+
+import org.opensaml.saml.common.SAMLObject;
+import org.opensaml.saml.common.SAMLVersion;
+import org.opensaml.saml.saml2.core.Assertion;
+import org.opensaml.saml.saml2.core.Audience;
+import org.opensaml.saml.saml2.core.AudienceRestriction;
+import org.opensaml.saml.saml2.core.AuthnContext;
+import org.opensaml.saml.saml2.core.AuthnContextClassRef;
+import org.opensaml.saml.saml2.core.AuthnRequest;
+import org.opensaml.saml.saml2.core.AuthnStatement;
+import org.opensaml.saml.saml2.core.Conditions;
+import org.opensaml.saml.saml2.core.EncryptedAssertion;
+import org.opensaml.saml.saml2.core.Issuer;
+import org.opensaml.saml.saml2.core.NameID;
+import org.opensaml.saml.saml2.core.Response;
+import org.opensaml.saml.saml2.core.Status;
+import org.opensaml.saml.saml2.core.StatusCode;
+import org.opensaml.saml.saml2.core.Subject;
+import org.opensaml.saml.saml2.core.SubjectConfirmation;
+import org.opensaml.saml.saml2.core.SubjectConfirmationData;
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+import org.opensaml.security.credential.Credential;
+import org.opensaml.security.credential.UsageType;
+import org.opensaml.security.x509.X509Credential;
+import org.springframework.core.io.ClassPathResource;
+
+import net.shibboleth.utilities.java.support.codec.Base64Support;
+import net.shibboleth.utilities.java.support.xml.SerializeSupport;
+import se.litsec.opensaml.OpenSAMLTestBase;
+import se.litsec.opensaml.saml2.metadata.PeerMetadataResolver;
+import se.litsec.opensaml.saml2.metadata.build.IdpEntityDescriptorBuilder;
+import se.litsec.opensaml.saml2.metadata.build.KeyDescriptorBuilder;
+import se.litsec.opensaml.saml2.metadata.build.SpEntityDescriptorBuilder;
+import se.litsec.opensaml.utils.ObjectUtils;
+import se.litsec.opensaml.utils.SignatureUtils;
+import se.litsec.opensaml.xmlsec.SAMLObjectDecrypter;
+import se.litsec.opensaml.xmlsec.SAMLObjectEncrypter;
+import se.litsec.opensaml.xmlsec.TrustedKeyCache;
+
+/**
+ * Creates AuthnRequest and Response messages, and the other objects needed to test response processing.
+ * <p>
+ * The IdP signs using the key in {@code credentials/litsec_sign.jks} and assertions are encrypted for the SP key in
+ * {@code credentials/litsec_auth.jks}.
+ * </p>
+ * 
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+public class TestResponseFactory {
+
+  public static final String IDP_ENTITY_ID = "https://idp.example.com/idp";
+
+  public static final String SP_ENTITY_ID = "https://sp.example.com/sp";
+
+  public static final String RECEIVE_URL = "https://sp.example.com/sp/saml2/post";
+
+  public static final String RELAY_STATE = "relay-state";
+
+  private final X509Credential idpCredential;
+
+  private final X509Credential spCredential;
+
+  private final EntityDescriptor idpMetadata;
+
+  private final EntityDescriptor spMetadata;
+
+  /**
+   * Constructor.
+   * 
+   * @throws Exception
+   *           for errors loading the credentials
+   */
+  public TestResponseFactory() throws Exception {
+    this.idpCredential = OpenSAMLTestBase.loadKeyStoreCredential(
+      new ClassPathResource("credentials/litsec_sign.jks").getInputStream(), "secret", "litsec_ab", "secret");
+    this.spCredential = OpenSAMLTestBase.loadKeyStoreCredential(
+      new ClassPathResource("credentials/litsec_auth.jks").getInputStream(), "secret", "litsec_ab", "secret");
+
+    this.idpMetadata = OpenSAMLTestBase.publish(IdpEntityDescriptorBuilder.builder()
+      .entityID(IDP_ENTITY_ID)
+      .keyDescriptors(KeyDescriptorBuilder.builder()
+        .use(UsageType.SIGNING)
+        .certificate(this.idpCredential.getEntityCertificate())
+        .build())
+      .build());
+    this.spMetadata = OpenSAMLTestBase.publish(SpEntityDescriptorBuilder.builder()
+      .entityID(SP_ENTITY_ID)
+      .keyDescriptors(KeyDescriptorBuilder.builder()
+        .use(UsageType.ENCRYPTION)
+        .certificate(this.spCredential.getEntityCertificate())
+        .build())
+      .build());
+  }
+
+  /**
+   * Creates a response processor that is set up to process the responses created by this factory.
+   * 
+   * @param replayChecker
+   *          the replay checker
+   * @return a response processor (not initialized)
+   */
+  public ResponseProcessorImpl createProcessor(final MessageReplayChecker replayChecker) {
+    final ResponseProcessorImpl processor = new ResponseProcessorImpl();
+    processor.setDecrypter(new SAMLObjectDecrypter(this.spCredential));
+    processor.setMessageReplayChecker(replayChecker);
+    return processor;
+  }
+
+  /**
+   * Returns a metadata resolver holding the IdP metadata.
+   * 
+   * @return a metadata resolver
+   */
+  public PeerMetadataResolver getPeerMetadataResolver() {
+    return entityID -> IDP_ENTITY_ID.equals(entityID) ? this.idpMetadata : null;
+  }
+
+  /**
+   * Creates an AuthnRequest.
+   * 
+   * @return the request
+   */
+  public AuthnRequest createAuthnRequest() {
+    final AuthnRequest request = ObjectUtils.createSamlObject(AuthnRequest.class);
+    request.setID(generateID());
+    request.setVersion(SAMLVersion.VERSION_20);
+    request.setIssueInstant(Instant.now());
+    request.setDestination(IDP_ENTITY_ID + "/sso");
+    request.setAssertionConsumerServiceURL(RECEIVE_URL);
+    request.setIssuer(createIssuer(SP_ENTITY_ID));
+    return request;
+  }
+
+  /**
+   * Creates a processing input for the supplied request.
+   * 
+   * @param authnRequest
+   *          the request
+   * @param receiveInstant
+   *          the receive time
+   * @return processing input
+   */
+  public ResponseProcessingInput createInput(final AuthnRequest authnRequest, final Instant receiveInstant) {
+    return new ResponseProcessingInput() {
+
+      @Override
+      public AuthnRequest getAuthnRequest() {
+        return authnRequest;
+      }
+
+      @Override
+      public String getRelayState() {
+        return RELAY_STATE;
+      }
+
+      @Override
+      public String getReceiveURL() {
+        return RECEIVE_URL;
+      }
+
+      @Override
+      public Instant getReceiveInstant() {
+        return receiveInstant;
+      }
+
+      @Override
+      public String getClientIpAddress() {
+        return null;
+      }
+    };
+  }
+
+  /**
+   * Creates a signed response holding a signed assertion.
+   * 
+   * @param authnRequest
+   *          the request that the response is for
+   * @param issueInstant
+   *          the issue instant of the response and assertion
+   * @param encrypt
+   *          whether the assertion should be encrypted
+   * @return a response
+   * @throws Exception
+   *           for errors
+   */
+  public Response createResponse(final AuthnRequest authnRequest, final Instant issueInstant, final boolean encrypt)
+      throws Exception {
+
+    final Assertion assertion = ObjectUtils.createSamlObject(Assertion.class);
+    assertion.setID(generateID());
+    assertion.setVersion(SAMLVersion.VERSION_20);
+    assertion.setIssueInstant(issueInstant);
+    assertion.setIssuer(createIssuer(IDP_ENTITY_ID));
+
+    final Subject subject = ObjectUtils.createSamlObject(Subject.class);
+    final NameID nameID = ObjectUtils.createSamlObject(NameID.class);
+    nameID.setFormat(NameID.PERSISTENT);
+    nameID.setValue("user-1234");
+    subject.setNameID(nameID);
+    final SubjectConfirmation confirmation = ObjectUtils.createSamlObject(SubjectConfirmation.class);
+    confirmation.setMethod(SubjectConfirmation.METHOD_BEARER);
+    final SubjectConfirmationData data = ObjectUtils.createSamlObject(SubjectConfirmationData.class);
+    data.setRecipient(RECEIVE_URL);
+    data.setInResponseTo(authnRequest.getID());
+    data.setNotOnOrAfter(issueInstant.plus(Duration.ofMinutes(5)));
+    confirmation.setSubjectConfirmationData(data);
+    subject.getSubjectConfirmations().add(confirmation);
+    assertion.setSubject(subject);
+
+    final Conditions conditions = ObjectUtils.createSamlObject(Conditions.class);
+    conditions.setNotBefore(issueInstant.minus(Duration.ofMinutes(1)));
+    conditions.setNotOnOrAfter(issueInstant.plus(Duration.ofMinutes(5)));
+    final AudienceRestriction audienceRestriction = ObjectUtils.createSamlObject(AudienceRestriction.class);
+    final Audience audience = ObjectUtils.createSamlObject(Audience.class);
+    audience.setURI(SP_ENTITY_ID);
+    audienceRestriction.getAudiences().add(audience);
+    conditions.getAudienceRestrictions().add(audienceRestriction);
+    assertion.setConditions(conditions);
+
+    final AuthnStatement authnStatement = ObjectUtils.createSamlObject(AuthnStatement.class);
+    authnStatement.setAuthnInstant(issueInstant);
+    final AuthnContext authnContext = ObjectUtils.createSamlObject(AuthnContext.class);
+    final AuthnContextClassRef classRef = ObjectUtils.createSamlObject(AuthnContextClassRef.class);
+    classRef.setURI(AuthnContext.PASSWORD_AUTHN_CTX);
+    authnContext.setAuthnContextClassRef(classRef);
+    authnStatement.setAuthnContext(authnContext);
+    assertion.getAuthnStatements().add(authnStatement);
+
+    SignatureUtils.sign(assertion, this.idpCredential);
+
+    final Response response = ObjectUtils.createSamlObject(Response.class);
+    response.setID(generateID());
+    response.setVersion(SAMLVersion.VERSION_20);
+    response.setIssueInstant(issueInstant);
+    response.setInResponseTo(authnRequest.getID());
+    response.setDestination(RECEIVE_URL);
+    response.setIssuer(createIssuer(IDP_ENTITY_ID));
+    final Status status = ObjectUtils.createSamlObject(Status.class);
+    final StatusCode statusCode = ObjectUtils.createSamlObject(StatusCode.class);
+    statusCode.setValue(StatusCode.SUCCESS);
+    status.setStatusCode(statusCode);
+    response.setStatus(status);
+
+    if (encrypt) {
+      final EncryptedAssertion encryptedAssertion = ObjectUtils.createSamlObject(EncryptedAssertion.class);
+      encryptedAssertion.setEncryptedData(
+        new SAMLObjectEncrypter().encrypt(assertion, new SAMLObjectEncrypter.Peer(this.spMetadata)));
+      response.getEncryptedAssertions().add(encryptedAssertion);
+    }
+    else {
+      response.getAssertions().add(assertion);
+    }
+
+    SignatureUtils.sign(response, this.idpCredential);
+    return response;
+  }
+
+  /**
+   * Returns the Base64 encoding of the supplied message (as posted to the SP).
+   * 
+   * @param message
+   *          the message
+   * @return the Base64 encoding
+   * @throws Exception
+   *           for marshalling errors
+   */
+  public static String encode(final SAMLObject message) throws Exception {
+    final String xml = SerializeSupport.nodeToString(ObjectUtils.marshall(message));
+    return Base64Support.encode(xml.getBytes(StandardCharsets.UTF_8), Base64Support.UNCHUNKED);
+  }
+
+  private static Issuer createIssuer(final String entityID) {
+    final Issuer issuer = ObjectUtils.createSamlObject(Issuer.class);
+    issuer.setValue(entityID);
+    return issuer;
+  }
+
+  private static String generateID() {
+    return "_" + UUID.randomUUID().toString().replace("-", "");
+  }
+
+  /**
+   * A {@link TrustedKeyCache} that doesn't cache anything.
+   */
+  public static class NoTrustedKeyCache implements TrustedKeyCache {
+
+    @Override
+    public List<Credential> get(final String entityID, final QName role, final long metadataVersion, final UsageType usage) {
+      return null;
+    }
+
+    @Override
+    public void put(final String entityID, final QName role, final long metadataVersion, final UsageType usage,
+        final List<Credential> credentials) {
+    }
+
+    @Override
+    public void clear() {
+    }
+  }
+
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2016-2021 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.opensaml.saml2.metadata;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.opensaml.saml.common.xml.SAMLConstants;
+import org.opensaml.saml.saml2.metadata.AssertionConsumerService;
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+
+import se.litsec.opensaml.OpenSAMLTestBase;
+import se.litsec.opensaml.saml2.metadata.build.AssertionConsumerServiceBuilder;
+import se.litsec.opensaml.saml2.metadata.build.SpEntityDescriptorBuilder;
+
+/**
+ * Test cases for {@code MetadataEndpointIndex}.
+ *
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+public class MetadataEndpointIndexTest extends OpenSAMLTestBase {
+
+  private static final String SP_ENTITY_ID = "http://sp.example.com";
+
+  @Test
+  public void testAssertionConsumerServices() throws Exception {
+    final EntityDescriptor original = SpEntityDescriptorBuilder.builder()
+      .entityID(SP_ENTITY_ID)
+      .assertionConsumerServices(
+        AssertionConsumerServiceBuilder.builder().redirectBinding().location("https://sp.example.com/redirect").index(0).build(),
+        AssertionConsumerServiceBuilder.builder().postBinding().location("https://sp.example.com/post3").index(3).build(),
+        AssertionConsumerServiceBuilder.builder().postBinding().location("https://sp.example.com/post1").index(1).build(),
+        AssertionConsumerServiceBuilder.builder().postBinding().location("https://sp.example.com/post2").index(2).build())
+      .build();
+    final EntityDescriptor metadata = publish(original);
+
+    final MetadataEndpointIndex index = new MetadataEndpointIndex();
+
+    Assert.assertEquals("https://sp.example.com/post3",
+      index.getAssertionConsumerService(metadata, SAMLConstants.SAML2_POST_BINDING_URI).getLocation());
+    Assert.assertEquals("https://sp.example.com/post2", index.getAssertionConsumerService(metadata, 2).getLocation());
+    Assert.assertNull(index.getAssertionConsumerService(metadata, 4));
+    Assert.assertEquals("https://sp.example.com/post1",
+      index.getDefaultAssertionConsumerService(metadata, SAMLConstants.SAML2_POST_BINDING_URI).getLocation());
+    Assert.assertEquals("https://sp.example.com/redirect",
+      index.getDefaultAssertionConsumerService(metadata, SAMLConstants.SAML2_REDIRECT_BINDING_URI).getLocation());
+    Assert.assertNull(index.getDefaultAssertionConsumerService(metadata, SAMLConstants.SAML2_ARTIFACT_BINDING_URI));
+
+    // An endpoint marked as default wins over the index.
+    original.getSPSSODescriptor(SAMLConstants.SAML20P_NS).getAssertionConsumerServices().get(3).setIsDefault(Boolean.TRUE);
+    final EntityDescriptor refreshed = publish(original);
+    final AssertionConsumerService acs = index.getDefaultAssertionConsumerService(refreshed, SAMLConstants.SAML2_POST_BINDING_URI);
+    Assert.assertEquals("https://sp.example.com/post2", acs.getLocation());
+    // The endpoint is read from the supplied metadata.
+    Assert.assertSame(refreshed.getSPSSODescriptor(SAMLConstants.SAML20P_NS), acs.getParent());
+    Assert.assertNull(index.getSingleSignOnService(refreshed, SAMLConstants.SAML2_POST_BINDING_URI));
+
+    Assert.assertEquals(1, index.getSize());
+    Assert.assertEquals(2, index.getMisses());
+    Assert.assertEquals(6, index.getHits());
+
+    // Metadata that is not published by a provider is not kept in the index.
+    Assert.assertEquals("https://sp.example.com/post2",
+      index.getDefaultAssertionConsumerService(original, SAMLConstants.SAML2_POST_BINDING_URI).getLocation());
+    Assert.assertEquals(3, index.getMisses());
+    Assert.assertEquals(1, index.getSize());
+  }
+
+  @Test
+  public void testSeveralProviders() throws Exception {
+    final EntityDescriptor original = SpEntityDescriptorBuilder.builder()
+      .entityID(SP_ENTITY_ID)
+      .assertionConsumerServices(
+        AssertionConsumerServiceBuilder.builder().postBinding().location("https://sp.example.com/post").index(0).build())
+      .build();
+    final EntityDescriptor metadata1 = publish(original);
+    final EntityDescriptor metadata2 = publish(original);
+
+    final MetadataEndpointIndex index = new MetadataEndpointIndex();
+    for (int i = 0; i < 2; i++) {
+      index.getAssertionConsumerService(metadata1, SAMLConstants.SAML2_POST_BINDING_URI);
+      index.getAssertionConsumerService(metadata2, SAMLConstants.SAML2_POST_BINDING_URI);
+    }
+    index.getAssertionConsumerService(metadata1, SAMLConstants.SAML2_POST_BINDING_URI);
+
+    // The entry for the older snapshot is dropped once, after that both entries are kept.
+    Assert.assertEquals(3, index.getMisses());
+    Assert.assertEquals(2, index.getHits());
+    Assert.assertEquals(1, index.getSize());
+  }
+
+  @Test
+  public void testEviction() throws Exception {
+    final MetadataEndpointIndex index = new MetadataEndpointIndex(2);
+    for (int i = 0; i < 3; i++) {
+      final EntityDescriptor metadata = publish(SpEntityDescriptorBuilder.builder().entityID(SP_ENTITY_ID + i).build());
+      Assert.assertNull(index.getAssertionConsumerService(metadata, SAMLConstants.SAML2_POST_BINDING_URI));
+    }
+    Assert.assertEquals(2, index.getSize());
+    Assert.assertEquals(1, index.getEvictions());
+    index.clear();
+    Assert.assertEquals(0, index.getSize());
+  }
+
+}
@@ -93,6 +93,12 @@ public abstract class BaseMetadataProviderTest extends OpenSAMLTestBase {
       List<EntityDescriptor> sps = provider.getServiceProviders();
       Assert.assertEquals("Expected 43 SPs", 43, sps.size());
 
+      // The returned lists are copies that the caller may modify.
+      sps.clear();
+      Assert.assertEquals("Expected 43 SPs", 43, provider.getServiceProviders().size());
+      idps.remove(0);
+      Assert.assertEquals("Expected 2 IdPs", 2, provider.getIdentityProviders().size());
+
       XMLObject xmlObject = provider.getMetadata();
       Assert.assertNotNull("Could not get metadata XMLObject from provider", xmlObject);
       Assert.assertTrue("Expected EntitiesDescriptor", xmlObject instanceof EntitiesDescriptor);
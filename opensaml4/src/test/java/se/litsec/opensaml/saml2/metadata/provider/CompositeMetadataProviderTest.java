@@ -15,6 +15,10 @@
  */
 package se.litsec.opensaml.saml2.metadata.provider;
 
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
 import java.util.Arrays;
 import java.util.List;
 
@@ -32,6 +36,8 @@ import org.springframework.core.io.ClassPathResource;
 import org.springframework.core.io.Resource;
 import org.w3c.dom.Element;
 
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.resolver.ResolverException;
 import se.litsec.opensaml.OpenSAMLTestBase;
 import se.litsec.opensaml.utils.ObjectUtils;
 
@@ -165,5 +171,224 @@ public class CompositeMetadataProviderTest extends OpenSAMLTestBase {
     }
   }
 
+  /**
+   * Tests that entities that are found in several providers only are included once.
+   * 
+   * @throws Exception
+   *           for errors
+   */
+  @Test
+  public void testDuplicates() throws Exception {
+    CompositeMetadataProvider provider = new CompositeMetadataProvider("MetadataService", Arrays.asList(new FilesystemMetadataProvider(part1.getFile()),
+      new FilesystemMetadataProvider(new ClassPathResource("/metadata/sveleg-fedtest.xml").getFile())));
+
+    try {
+      provider.initialize();
+      EntitiesDescriptor metadata = (EntitiesDescriptor) provider.getMetadata();
+      Assert.assertEquals(45, metadata.getEntityDescriptors().size());
+      Assert.assertEquals(2, provider.getIdentityProviders().size());
+      Assert.assertEquals(43, provider.getServiceProviders().size());
+    }
+    finally {
+      if (provider.isInitialized()) {
+        provider.destroy();
+      }
+    }
+  }
+
+  /**
+   * Tests that the composite metadata is assembled again when an underlying provider is updated, that only the entity
+   * descriptors of the updated provider are copied, and that the previously published composite is not modified.
+   * 
+   * @throws Exception
+   *           for errors
+   */
+  @Test
+  public void testUpdatedProvider() throws Exception {
+    File file1 = File.createTempFile("part1", ".xml");
+    File file2 = File.createTempFile("part2", ".xml");
+    Files.copy(part1.getInputStream(), file1.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    Files.copy(part2.getInputStream(), file2.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+    FilesystemMetadataProvider provider1 = new FilesystemMetadataProvider(file1);
+    FilesystemMetadataProvider provider2 = new FilesystemMetadataProvider(file2);
+    CompositeMetadataProvider provider = new CompositeMetadataProvider("MetadataService", Arrays.asList(provider1, provider2));
+
+    try {
+      provider.initialize();
+      MetadataSnapshot snapshot = provider.getMetadataSnapshot();
+      Assert.assertNotNull(snapshot);
+
+      EntityDescriptor fromProvider1 = ((EntitiesDescriptor) provider1.getMetadata()).getEntityDescriptors().get(0);
+      EntityDescriptor fromProvider2 = ((EntitiesDescriptor) provider2.getMetadata()).getEntityDescriptors().get(0);
+      EntityDescriptor copy1 = snapshot.getIndex().getEntityDescriptor(fromProvider1.getEntityID(), false);
+      EntityDescriptor copy2 = snapshot.getIndex().getEntityDescriptor(fromProvider2.getEntityID(), false);
+      Assert.assertNotNull(copy1);
+      Assert.assertNotNull(copy2);
+
+      // Make provider2 believe that its file has been updated.
+      file2.setLastModified(System.currentTimeMillis() + 10000L);
+      provider2.refresh();
+
+      // The composite metadata is assembled in the background. Wait for it ...
+      MetadataSnapshot updated = provider.getMetadataSnapshot();
+      for (int i = 0; i < 100 && updated.getVersion() == snapshot.getVersion(); i++) {
+        Thread.sleep(100L);
+        updated = provider.getMetadataSnapshot();
+      }
+      Assert.assertTrue("Expected new composite metadata", updated.getVersion() > snapshot.getVersion());
+      Assert.assertEquals(snapshot.getIndex().size(), updated.getIndex().size());
+
+      // The descriptors of the unchanged provider are not copied again, and keep their metadata version. The
+      // descriptors of the updated provider are new copies.
+      EntityDescriptor updated1 = updated.getIndex().getEntityDescriptor(fromProvider1.getEntityID(), false);
+      EntityDescriptor updated2 = updated.getIndex().getEntityDescriptor(fromProvider2.getEntityID(), false);
+      Assert.assertSame(copy1, updated1);
+      Assert.assertNotSame(copy2, updated2);
+      Assert.assertEquals(MetadataSnapshot.getVersion(copy1), MetadataSnapshot.getVersion(updated1));
+      Assert.assertTrue(MetadataSnapshot.getVersion(updated2) > MetadataSnapshot.getVersion(copy2));
+      for (EntityDescriptor ed : ((EntitiesDescriptor) provider1.getMetadata()).getEntityDescriptors()) {
+        Assert.assertSame(snapshot.getIndex().getEntityDescriptor(ed.getEntityID(), false),
+          updated.getIndex().getEntityDescriptor(ed.getEntityID(), false));
+      }
+
+      // The previous composite is left as it was, and the composite EntitiesDescriptor objects hold copies of their
+      // own.
+      Assert.assertSame(copy2, snapshot.getIndex().getEntityDescriptor(fromProvider2.getEntityID(), false));
+      EntitiesDescriptor metadata = (EntitiesDescriptor) updated.getMetadata();
+      Assert.assertSame(metadata, updated.getMetadata());
+      Assert.assertEquals(updated.getIndex().size(), metadata.getEntityDescriptors().size());
+      Assert.assertNotSame(updated1, metadata.getEntityDescriptors().get(0));
+      Assert.assertEquals(updated.getVersion(), MetadataSnapshot.getVersion(metadata.getEntityDescriptors().get(0)));
+      Assert.assertEquals(snapshot.getIndex().size(), ((EntitiesDescriptor) snapshot.getMetadata()).getEntityDescriptors().size());
+
+      Element xml = provider.getMetadataDOM();
+      Assert.assertNotNull("Could not get metadata DOM from provider", xml);
+    }
+    finally {
+      if (provider.isInitialized()) {
+        provider.destroy();
+      }
+      file1.delete();
+      file2.delete();
+    }
+  }
+
+  /**
+   * Tests that the underlying providers are initialized concurrently.
+   * 
+   * @throws Exception
+   *           for errors
+   */
+  @Test
+  public void testParallelInitialization() throws Exception {
+    CompositeMetadataProvider provider = new CompositeMetadataProvider("MetadataService", Arrays.asList(
+      new DelayedProvider(part1.getFile(), 1000L, false), new DelayedProvider(part2.getFile(), 1000L, false),
+      new DelayedProvider(part3.getFile(), 1000L, false)));
+
+    try {
+      final long start = System.currentTimeMillis();
+      provider.initialize();
+      final long time = System.currentTimeMillis() - start;
+      Assert.assertTrue("Expected providers to be initialized concurrently", time < 2500L);
+
+      Assert.assertEquals(2, provider.getIdentityProviders().size());
+      Assert.assertEquals(43, provider.getServiceProviders().size());
+
+      provider.refresh();
+    }
+    finally {
+      if (provider.isInitialized()) {
+        provider.destroy();
+      }
+    }
+  }
+
+  /**
+   * Tests that the composite provider fails to initialize if an underlying provider fails (default).
+   * 
+   * @throws Exception
+   *           for errors
+   */
+  @Test
+  public void testFailingProvider() throws Exception {
+    CompositeMetadataProvider provider = new CompositeMetadataProvider("MetadataService", Arrays.asList(
+      new FilesystemMetadataProvider(part1.getFile()), new DelayedProvider(part2.getFile(), 0L, true)));
+
+    try {
+      provider.initialize();
+      Assert.fail("Expected ComponentInitializationException");
+    }
+    catch (ComponentInitializationException e) {
+    }
+    finally {
+      if (provider.isInitialized()) {
+        provider.destroy();
+      }
+    }
+  }
+
+  /**
+   * Tests that the composite provider continues with the providers that succeeded if {@code failOnProviderError} is
+   * {@code false}, and that a provider that does not complete in time is regarded as failed.
+   * 
+   * @throws Exception
+   *           for errors
+   */
+  @Test
+  public void testContinueOnProviderError() throws Exception {
+    FilesystemMetadataProvider provider1 = new FilesystemMetadataProvider(part1.getFile());
+    CompositeMetadataProvider provider = new CompositeMetadataProvider("MetadataService", Arrays.asList(
+      provider1, new DelayedProvider(part2.getFile(), 0L, true), new DelayedProvider(part3.getFile(), 10000L, false)));
+    provider.setFailOnProviderError(false);
+    provider.setProviderTimeout(Duration.ofMillis(500L));
+
+    try {
+      final long start = System.currentTimeMillis();
+      provider.initialize();
+      Assert.assertTrue("Expected timeout", System.currentTimeMillis() - start < 5000L);
+
+      EntitiesDescriptor metadata = (EntitiesDescriptor) provider.getMetadata();
+      Assert.assertEquals(((EntitiesDescriptor) provider1.getMetadata()).getEntityDescriptors().size(),
+        metadata.getEntityDescriptors().size());
+
+      provider.refresh();
+    }
+    finally {
+      if (provider.isInitialized()) {
+        provider.destroy();
+      }
+    }
+  }
+
+  /**
+   * Provider that is slow to initialize, or fails.
+   */
+  private static class DelayedProvider extends FilesystemMetadataProvider {
+
+    private final long delay;
+
+    private final boolean fail;
+
+    public DelayedProvider(final File file, final long delay, final boolean fail) throws ResolverException {
+      super(file);
+      this.delay = delay;
+      this.fail = fail;
+    }
+
+    @Override
+    protected void initializeMetadataResolver() throws ComponentInitializationException {
+      try {
+        Thread.sleep(this.delay);
+      }
+      catch (InterruptedException e) {
+        throw new ComponentInitializationException("Interrupted");
+      }
+      if (this.fail) {
+        throw new ComponentInitializationException("Failed to initialize");
+      }
+      super.initializeMetadataResolver();
+    }
+  }
 
 }
@@ -16,6 +16,9 @@
 package se.litsec.opensaml.saml2.metadata.provider;
 
 import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
 import java.util.List;
 
 import org.junit.Assert;
@@ -57,6 +60,132 @@ public class HTTPMetadataProvider2Test extends OpenSAMLTestBase {
     }
   }
 
+  @Test
+  public void testConditionalFetch() throws Exception {
+    TestWebServer server = new TestWebServer(() -> new ClassPathResource("/metadata/sveleg-fedtest.xml"), null, null);
+    server.start();
+
+    HTTPMetadataProvider provider = null;
+    try {
+      provider = new HTTPMetadataProvider(server.getUrl(), null);
+      provider.setFailFastInitialization(true);
+      provider.initialize();
+
+      HTTPMetadataProvider.Statistics stats = provider.getStatistics();
+      Assert.assertEquals(1, stats.getDownloads());
+      Assert.assertEquals(0, stats.getNotModified());
+      final long transferred = stats.getBytesTransferred();
+      Assert.assertEquals(new ClassPathResource("/metadata/sveleg-fedtest.xml").contentLength(), transferred);
+
+      // The metadata has not been changed, so we expect a 304 ...
+      provider.refresh();
+      Assert.assertEquals(1, stats.getDownloads());
+      Assert.assertEquals(1, stats.getNotModified());
+      Assert.assertEquals(transferred, stats.getBytesTransferred());
+      Assert.assertEquals(transferred, stats.getBytesSkipped());
+      Assert.assertEquals(2, stats.getRefreshes());
+      Assert.assertEquals(0, stats.getFailures());
+      Assert.assertTrue(stats.getMaxRefreshDuration().toNanos() > 0);
+
+      Assert.assertNotNull(provider.getEntityDescriptor(BaseMetadataProviderTest.TEST_IDP));
+    }
+    finally {
+      provider.destroy();
+      server.stop();
+    }
+  }
+
+  @Test
+  public void testCompression() throws Exception {
+    TestWebServer server = new TestWebServer(() -> new ClassPathResource("/metadata/sveleg-fedtest.xml"), null, null);
+    server.setCompress(true);
+    server.start();
+
+    HTTPMetadataProvider provider = null;
+    try {
+      provider = new HTTPMetadataProvider(server.getUrl(), null);
+      provider.setFailFastInitialization(true);
+      provider.initialize();
+
+      Assert.assertEquals(1, provider.getStatistics().getDownloads());
+      Assert.assertTrue("Expected compressed transfer",
+        provider.getStatistics().getBytesTransferred() < new ClassPathResource("/metadata/sveleg-fedtest.xml").contentLength());
+      Assert.assertNotNull(provider.getEntityDescriptor(BaseMetadataProviderTest.TEST_IDP));
+    }
+    finally {
+      provider.destroy();
+      server.stop();
+    }
+  }
+
+  @Test
+  public void testRefreshBackoff() throws Exception {
+    TestWebServer server = new TestWebServer(() -> new ClassPathResource("/metadata/sveleg-fedtest.xml"), null, null);
+    server.setErrorStatus(500);
+    server.start();
+
+    HTTPMetadataProvider provider = null;
+    try {
+      MetadataRefreshPolicy policy = new MetadataRefreshPolicy();
+      policy.setErrorRetryDelay(Duration.ofMillis(250));
+      policy.setJitter(0f);
+
+      provider = new HTTPMetadataProvider(server.getUrl(), null);
+      provider.setFailFastInitialization(false);
+      provider.setRefreshPolicy(policy);
+      provider.initialize();
+
+      // The initial download failed. Record the delay until the next attempt after each of the following failures.
+      final List<Long> delays = new ArrayList<>();
+      long failures = provider.getStatistics().getFailures();
+      Assert.assertEquals(1, failures);
+      delays.add(Duration.between(Instant.now(), provider.getNextRefresh()).toMillis());
+      final long deadline = System.currentTimeMillis() + 5000L;
+      while (delays.size() < 3 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10L);
+        if (provider.getStatistics().getFailures() > failures) {
+          failures = provider.getStatistics().getFailures();
+          delays.add(Duration.between(Instant.now(), provider.getNextRefresh()).toMillis());
+        }
+      }
+      Assert.assertEquals("Expected two retries", 3, delays.size());
+      // 250, 500 and 1000 ms
+      Assert.assertTrue("Expected growing delays: " + delays, delays.get(1) > delays.get(0) + 100);
+      Assert.assertTrue("Expected growing delays: " + delays, delays.get(2) > delays.get(1) + 300);
+      Assert.assertEquals(3, provider.getStatistics().getFailures());
+
+      // When the server is back, the next retry succeeds.
+      server.setErrorStatus(0);
+      for (int i = 0; i < 200 && provider.getMetadata() == null; i++) {
+        Thread.sleep(10L);
+      }
+      Assert.assertNotNull(provider.getEntityDescriptor(BaseMetadataProviderTest.TEST_IDP));
+    }
+    finally {
+      provider.destroy();
+      server.stop();
+    }
+  }
+
+  @Test(expected = ComponentInitializationException.class)
+  public void testMaxSize() throws Exception {
+    TestWebServer server = new TestWebServer(() -> new ClassPathResource("/metadata/sveleg-fedtest.xml"), null, null);
+    server.setCompress(true);
+    server.start();
+
+    HTTPMetadataProvider provider = null;
+    try {
+      provider = new HTTPMetadataProvider(server.getUrl(), null);
+      provider.setFailFastInitialization(true);
+      provider.setMaxMetadataSize(10000L);
+      provider.initialize();
+    }
+    finally {
+      provider.destroy();
+      server.stop();
+    }
+  }
+
   @Test
   public void testSwedenConnect() throws Exception {
     X509CertificateFactoryBean certFactory = new X509CertificateFactoryBean(new ClassPathResource("sweden-connect-prod.crt"));
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2016-2021 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.opensaml.saml2.metadata.provider;
+
+import java.time.Instant;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.opensaml.saml.saml2.metadata.EntitiesDescriptor;
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml.saml2.metadata.IDPSSODescriptor;
+import org.opensaml.saml.saml2.metadata.SPSSODescriptor;
+import org.springframework.core.io.ClassPathResource;
+
+import se.litsec.opensaml.OpenSAMLTestBase;
+import se.litsec.opensaml.utils.ObjectUtils;
+
+/**
+ * Test cases for {@code MetadataIndex}.
+ *
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+public class MetadataIndexTest extends OpenSAMLTestBase {
+
+  private static final String TEST_IDP = "https://idp.svelegtest.se/idp";
+  private static final String TEST_SP = "https://eid.svelegtest.se/validation/testsp1";
+
+  /**
+   * Tests indexing of metadata holding nested EntitiesDescriptor elements.
+   *
+   * @throws Exception
+   *           for errors
+   */
+  @Test
+  public void testIndex() throws Exception {
+    final EntitiesDescriptor metadata = ObjectUtils.unmarshall(
+      new ClassPathResource("/metadata/sveleg-fedtest-complex.xml").getInputStream(), EntitiesDescriptor.class);
+
+    final MetadataIndex index = new MetadataIndex(metadata);
+    Assert.assertEquals(45, index.size());
+    Assert.assertEquals(2, index.getEntityDescriptors(IDPSSODescriptor.DEFAULT_ELEMENT_NAME).size());
+    Assert.assertEquals(43, index.getEntityDescriptors(SPSSODescriptor.DEFAULT_ELEMENT_NAME).size());
+    Assert.assertEquals(45, index.getEntityDescriptors(null).size());
+
+    Assert.assertNotNull(index.getEntityDescriptor(TEST_IDP, true));
+    Assert.assertNotNull(index.getIDPSSODescriptor(TEST_IDP, true));
+    Assert.assertNull(index.getSPSSODescriptor(TEST_IDP, true));
+    Assert.assertNotNull(index.getSPSSODescriptor(TEST_SP, true));
+    Assert.assertNull(index.getIDPSSODescriptor(TEST_SP, true));
+    Assert.assertNull(index.getEntityDescriptor("http://not.an.entity", true));
+    Assert.assertNull(index.getEntityDescriptor(null, true));
+
+    try {
+      index.getEntityDescriptors().clear();
+      Assert.fail("Expected UnsupportedOperationException");
+    }
+    catch (UnsupportedOperationException e) {
+    }
+  }
+
+  /**
+   * Tests that expired entries are not returned if valid metadata is required.
+   *
+   * @throws Exception
+   *           for errors
+   */
+  @Test
+  public void testExpired() throws Exception {
+    final EntityDescriptor ed = ObjectUtils.createSamlObject(EntityDescriptor.class);
+    ed.setEntityID(TEST_SP);
+    ed.setValidUntil(Instant.now().minusSeconds(60));
+
+    final MetadataIndex index = new MetadataIndex(ed);
+    Assert.assertNull(index.getEntityDescriptor(TEST_SP, true));
+    Assert.assertNotNull(index.getEntityDescriptor(TEST_SP, false));
+  }
+
+  /**
+   * An empty index.
+   */
+  @Test
+  public void testEmpty() {
+    Assert.assertEquals(0, MetadataIndex.EMPTY.size());
+    Assert.assertTrue(MetadataIndex.EMPTY.getEntityDescriptors(IDPSSODescriptor.DEFAULT_ELEMENT_NAME).isEmpty());
+    Assert.assertNull(MetadataIndex.EMPTY.getEntityDescriptor(TEST_SP, false));
+  }
+
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2016-2021 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.opensaml.saml2.metadata.provider;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.opensaml.core.xml.XMLObject;
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml.saml2.metadata.IDPSSODescriptor;
+import org.springframework.core.io.ClassPathResource;
+
+import net.shibboleth.utilities.java.support.resolver.ResolverException;
+import se.litsec.opensaml.OpenSAMLTestBase;
+
+/**
+ * Benchmark for the read operations of a metadata provider while the metadata is refreshed in the background.
+ * <p>
+ * Run {@link #main(String[])} (with the test classpath) to execute the benchmark with 1, 8 and 64 reader threads.
+ * </p>
+ *
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetadataProviderBenchmark {
+
+  private static final String TEST_IDP = "https://idp.svelegtest.se/idp";
+
+  private File metadataFile;
+
+  private FilesystemMetadataProvider provider;
+
+  private Thread refresher;
+
+  private volatile boolean running;
+
+  /**
+   * Sets up the provider and starts a thread that refreshes the metadata over and over again.
+   *
+   * @throws Exception
+   *           for errors
+   */
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    OpenSAMLTestBase.initializeOpenSAML();
+
+    this.metadataFile = File.createTempFile("metadata-benchmark", ".xml");
+    try (InputStream is = new ClassPathResource("/metadata/sveleg-fedtest.xml").getInputStream()) {
+      Files.copy(is, this.metadataFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+    this.provider = new FilesystemMetadataProvider(this.metadataFile);
+    this.provider.initialize();
+
+    this.running = true;
+    this.refresher = new Thread(() -> {
+      long lastModified = System.currentTimeMillis();
+      while (this.running) {
+        try {
+          // Make the resolver believe that the file has been updated so that the metadata is installed again.
+          lastModified += 1000L;
+          this.metadataFile.setLastModified(lastModified);
+          this.provider.refresh();
+        }
+        catch (ResolverException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    }, "metadata-refresher");
+    this.refresher.setDaemon(true);
+    this.refresher.start();
+  }
+
+  /**
+   * Stops the refresh thread and destroys the provider.
+   *
+   * @throws Exception
+   *           for errors
+   */
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    this.running = false;
+    this.refresher.join();
+    this.provider.destroy();
+    this.metadataFile.delete();
+  }
+
+  @Benchmark
+  public XMLObject getMetadata() {
+    return this.provider.getMetadata();
+  }
+
+  @Benchmark
+  public EntityDescriptor getEntityDescriptor() throws ResolverException {
+    return this.provider.getEntityDescriptor(TEST_IDP);
+  }
+
+  @Benchmark
+  public IDPSSODescriptor getIDPSSODescriptor() throws ResolverException {
+    return this.provider.getIDPSSODescriptor(TEST_IDP);
+  }
+
+  @Benchmark
+  public List<EntityDescriptor> getIdentityProviders() throws ResolverException {
+    return this.provider.getIdentityProviders();
+  }
+
+  @Benchmark
+  public void iterator(final Blackhole blackhole) {
+    for (final EntityDescriptor ed : this.provider.iterator()) {
+      blackhole.consume(ed);
+    }
+  }
+
+  /**
+   * Runs the benchmark with 1, 8 and 64 reader threads.
+   *
+   * @param args
+   *          not used
+   * @throws RunnerException
+   *           for benchmark errors
+   */
+  public static void main(final String[] args) throws RunnerException {
+    for (final int threads : new int[] { 1, 8, 64 }) {
+      new Runner(new OptionsBuilder()
+        .include(MetadataProviderBenchmark.class.getName())
+        .threads(threads)
+        .build()).run();
+    }
+  }
+
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2016-2021 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.opensaml.saml2.metadata.provider;
+
+import java.time.Duration;
+import java.time.Instant;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test cases for {@code MetadataRefreshPolicy}.
+ *
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+public class MetadataRefreshPolicyTest {
+
+  /**
+   * Tests that the delay is based on the expiration time of the metadata.
+   */
+  @Test
+  public void testExpiration() {
+    final MetadataRefreshPolicy policy = new MetadataRefreshPolicy();
+    policy.setJitter(0f);
+
+    Duration delay = policy.getRefreshDelay(Instant.now().plus(Duration.ofHours(2)), 0);
+    Assert.assertTrue(delay.compareTo(Duration.ofMinutes(89)) > 0 && delay.compareTo(Duration.ofMinutes(90)) <= 0);
+
+    // Bounded by min and max delays
+    Assert.assertEquals(Duration.ofMinutes(5), policy.getRefreshDelay(Instant.now().plusSeconds(60), 0));
+    Assert.assertEquals(Duration.ofMinutes(5), policy.getRefreshDelay(Instant.now().minusSeconds(60), 0));
+    Assert.assertEquals(Duration.ofHours(4), policy.getRefreshDelay(Instant.now().plus(Duration.ofDays(10)), 0));
+    Assert.assertEquals(Duration.ofHours(4), policy.getRefreshDelay(null, 0));
+  }
+
+  /**
+   * Tests that the jitter shortens the delay, but never below the minimum delay.
+   */
+  @Test
+  public void testJitter() {
+    final MetadataRefreshPolicy policy = new MetadataRefreshPolicy();
+    policy.setJitter(0.5f);
+
+    boolean varies = false;
+    Duration previous = null;
+    for (int i = 0; i < 20; i++) {
+      final Duration delay = policy.getRefreshDelay(null, 0);
+      Assert.assertTrue(delay.compareTo(Duration.ofHours(2)) >= 0 && delay.compareTo(Duration.ofHours(4)) <= 0);
+      varies |= previous != null && !previous.equals(delay);
+      previous = delay;
+
+      Assert.assertEquals(Duration.ofMinutes(5), policy.getRefreshDelay(Instant.now(), 0));
+    }
+    Assert.assertTrue("Expected delays to vary", varies);
+  }
+
+  /**
+   * Tests the backoff after failed refreshes.
+   */
+  @Test
+  public void testBackoff() {
+    final MetadataRefreshPolicy policy = new MetadataRefreshPolicy();
+    policy.setJitter(0f);
+
+    Assert.assertEquals(Duration.ofMinutes(1), policy.getRefreshDelay(null, 1));
+    Assert.assertEquals(Duration.ofMinutes(2), policy.getRefreshDelay(null, 2));
+    Assert.assertEquals(Duration.ofMinutes(32), policy.getRefreshDelay(Instant.now(), 6));
+    Assert.assertEquals(Duration.ofHours(1), policy.getRefreshDelay(null, 7));
+    Assert.assertEquals(Duration.ofHours(1), policy.getRefreshDelay(null, 1000));
+  }
+
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2016-2021 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.opensaml.saml2.metadata.provider;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.opensaml.saml.saml2.metadata.EntitiesDescriptor;
+import org.springframework.core.io.ClassPathResource;
+
+import se.litsec.opensaml.OpenSAMLTestBase;
+import se.litsec.opensaml.utils.ObjectUtils;
+
+/**
+ * Test cases for {@code MetadataSnapshotFile} and the use of snapshot files in {@code AbstractMetadataProvider}.
+ *
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+public class MetadataSnapshotFileTest extends OpenSAMLTestBase {
+
+  private static final String TEST_IDP = "https://idp.svelegtest.se/idp";
+
+  /**
+   * Tests writing and reading a snapshot file.
+   *
+   * @throws Exception
+   *           for errors
+   */
+  @Test
+  public void testWriteRead() throws Exception {
+    final File file = File.createTempFile("metadata-snapshot", ".bin");
+    file.delete();
+    try {
+      final EntitiesDescriptor metadata = ObjectUtils.unmarshall(
+        new ClassPathResource("/metadata/sveleg-fedtest.xml").getInputStream(), EntitiesDescriptor.class);
+      final Instant downloadTime = Instant.ofEpochMilli(System.currentTimeMillis());
+
+      final MetadataSnapshotFile snapshotFile = new MetadataSnapshotFile(file);
+      Assert.assertNull(snapshotFile.read());
+      Assert.assertTrue(snapshotFile.write(metadata, downloadTime));
+      Assert.assertFalse("Expected unchanged metadata not to be written", snapshotFile.write(metadata, downloadTime));
+
+      final MetadataSnapshot snapshot = new MetadataSnapshotFile(file).read();
+      Assert.assertNotNull(snapshot);
+      Assert.assertEquals(downloadTime, snapshot.getDownloadTime());
+      Assert.assertEquals(new MetadataIndex(metadata).size(), snapshot.getIndex().size());
+      Assert.assertNotNull(snapshot.getIndex().getIDPSSODescriptor(TEST_IDP, false));
+    }
+    finally {
+      file.delete();
+    }
+  }
+
+  /**
+   * Tests that a modified snapshot file is rejected.
+   *
+   * @throws Exception
+   *           for errors
+   */
+  @Test(expected = IOException.class)
+  public void testCorrupt() throws Exception {
+    final File file = File.createTempFile("metadata-snapshot", ".bin");
+    try {
+      final EntitiesDescriptor metadata = ObjectUtils.unmarshall(
+        new ClassPathResource("/metadata/sveleg-fedtest.xml").getInputStream(), EntitiesDescriptor.class);
+      new MetadataSnapshotFile(file).write(metadata, Instant.now());
+
+      try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+        raf.seek(raf.length() - 20);
+        final int b = raf.read();
+        raf.seek(raf.length() - 20);
+        raf.write(b ^ 0x01);
+      }
+      new MetadataSnapshotFile(file).read();
+    }
+    finally {
+      file.delete();
+    }
+  }
+
+  /**
+   * Tests that a provider serves metadata from the snapshot file at startup, and that it is replaced when the metadata
+   * has been revalidated.
+   *
+   * @throws Exception
+   *           for errors
+   */
+  @Test
+  public void testProviderStartup() throws Exception {
+    final File metadataFile = File.createTempFile("metadata", ".xml");
+    final File file = File.createTempFile("metadata-snapshot", ".bin");
+    file.delete();
+    Files.copy(new ClassPathResource("/metadata/sveleg-fedtest.xml").getInputStream(), metadataFile.toPath(),
+      StandardCopyOption.REPLACE_EXISTING);
+
+    try {
+      // The first time, the snapshot file is created.
+      FilesystemMetadataProvider provider = new FilesystemMetadataProvider(metadataFile);
+      provider.setSnapshotFile(file);
+      provider.initialize();
+      final MetadataSnapshot first = provider.getMetadataSnapshot();
+      provider.destroy();
+      Assert.assertTrue("Expected snapshot file to be written", file.isFile());
+
+      // The next time, metadata is read from the snapshot file and then revalidated.
+      provider = new FilesystemMetadataProvider(metadataFile);
+      provider.setSnapshotFile(file);
+      provider.initialize();
+      try {
+        MetadataSnapshot snapshot = provider.getMetadataSnapshot();
+        Assert.assertNotNull(snapshot);
+        Assert.assertEquals(first.getIndex().size(), snapshot.getIndex().size());
+        Assert.assertNotNull(provider.getIDPSSODescriptor(TEST_IDP));
+
+        final long version = snapshot.getVersion();
+        for (int i = 0; i < 100 && snapshot.getVersion() == version; i++) {
+          Thread.sleep(100L);
+          snapshot = provider.getMetadataSnapshot();
+        }
+        Assert.assertTrue("Expected metadata to be revalidated", snapshot.getVersion() > version);
+        Assert.assertEquals(first.getIndex().size(), snapshot.getIndex().size());
+      }
+      finally {
+        provider.destroy();
+      }
+
+      // If the metadata can not be revalidated, the metadata from the snapshot is discarded.
+      Files.write(metadataFile.toPath(), "<NotMetadata/>".getBytes());
+      provider = new FilesystemMetadataProvider(metadataFile);
+      provider.setSnapshotFile(file);
+      provider.initialize();
+      try {
+        for (int i = 0; i < 100 && provider.getMetadataSnapshot() != null; i++) {
+          Thread.sleep(100L);
+        }
+        Assert.assertNull("Expected snapshot to be discarded", provider.getMetadataSnapshot());
+      }
+      finally {
+        provider.destroy();
+      }
+    }
+    finally {
+      metadataFile.delete();
+      file.delete();
+    }
+  }
+
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2016-2021 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.opensaml.storage;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.opensaml.storage.AbstractMapBackedStorageService;
+import org.opensaml.storage.MutableStorageRecord;
+
+/**
+ * A simple in-memory {@code StorageService} for testing (a stand-in for a shared storage service).
+ * <p>
+ * The service counts the number of records that are created, and can be told to fail.
+ * </p>
+ *
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+@SuppressWarnings("rawtypes")
+public class InMemoryStorageService extends AbstractMapBackedStorageService {
+
+  private final Map<String, Map<String, MutableStorageRecord>> contextMap = new HashMap<>();
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock(true);
+
+  private final AtomicInteger createCalls = new AtomicInteger();
+
+  private volatile boolean failing;
+
+  /**
+   * Constructor.
+   */
+  public InMemoryStorageService() {
+    this.setId("in-memory-storage");
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean create(final String context, final String key, final String value, final Long expiration)
+      throws IOException {
+    this.createCalls.incrementAndGet();
+    if (this.failing) {
+      throw new IOException("Storage is unavailable");
+    }
+    return super.create(context, key, value, expiration);
+  }
+
+  /**
+   * Returns the number of calls to {@code create}.
+   *
+   * @return the number of calls
+   */
+  public int getCreateCalls() {
+    return this.createCalls.get();
+  }
+
+  /**
+   * Tells the service to fail all calls to {@code create}.
+   *
+   * @param failing
+   *          whether calls should fail
+   */
+  public void setFailing(final boolean failing) {
+    this.failing = failing;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected ReadWriteLock getLock() {
+    return this.lock;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected Map<String, Map<String, MutableStorageRecord>> getContextMap() {
+    return this.contextMap;
+  }
+
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2016-2021 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.opensaml.utils;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test cases for {@code BufferedRandomIdentifierGenerationStrategy}.
+ *
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+public class BufferedRandomIdentifierGenerationStrategyTest {
+
+  @Test
+  public void testFormat() throws Exception {
+    final BufferedRandomIdentifierGenerationStrategy generator = new BufferedRandomIdentifierGenerationStrategy(24);
+    for (int i = 0; i < 100; i++) {
+      Assert.assertTrue(generator.generateIdentifier().matches("_[0-9a-f]{48}"));
+      Assert.assertTrue(generator.generateIdentifier(false).matches("[0-9a-f]{48}"));
+    }
+    Assert.assertTrue(BufferedRandomIdentifierGenerationStrategy.getInstance().generateIdentifier().matches("_[0-9a-f]{32}"));
+  }
+
+  @Test
+  public void testUniqueFromSeveralThreads() throws Exception {
+    final Set<String> ids = ConcurrentHashMap.newKeySet();
+    final ExecutorService executor = Executors.newFixedThreadPool(8);
+    for (int t = 0; t < 8; t++) {
+      executor.execute(() -> {
+        for (int i = 0; i < 10000; i++) {
+          ids.add(BufferedRandomIdentifierGenerationStrategy.getInstance().generateIdentifier());
+        }
+      });
+    }
+    executor.shutdown();
+    Assert.assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+    Assert.assertEquals(80000, ids.size());
+  }
+
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2016-2021 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.opensaml.utils;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test cases for {@code VersionedCache}.
+ *
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+public class VersionedCacheTest {
+
+  @Test
+  public void testVersions() {
+    final VersionedCache<String, String> cache = new VersionedCache<>();
+    cache.put("key", 2L, "v2");
+    Assert.assertEquals("v2", cache.get("key", 2L));
+    Assert.assertNull(cache.get("key", 1L));
+
+    // An older version is kept alongside the newer one.
+    cache.put("key", 1L, "v1");
+    Assert.assertEquals("v1", cache.get("key", 1L));
+    Assert.assertEquals("v2", cache.get("key", 2L));
+
+    // A newer version drops the older ones.
+    cache.put("key", 3L, "v3");
+    Assert.assertNull(cache.get("key", 1L));
+    Assert.assertNull(cache.get("key", 2L));
+    Assert.assertEquals("v3", cache.get("key", 3L));
+
+    Assert.assertEquals(1, cache.getSize());
+    Assert.assertEquals(4, cache.getHits());
+    Assert.assertEquals(3, cache.getMisses());
+  }
+
+  @Test
+  public void testEviction() throws Exception {
+    final VersionedCache<String, String> cache = new VersionedCache<>(2);
+    cache.put("key1", 1L, "v1");
+    Thread.sleep(1);
+    cache.put("key2", 1L, "v2");
+    Thread.sleep(1);
+
+    // key1 is used, so key2 is the least recently used key
+    Assert.assertEquals("v1", cache.get("key1", 1L));
+    cache.put("key3", 1L, "v3");
+
+    Assert.assertEquals(2, cache.getSize());
+    Assert.assertEquals(1, cache.getEvictions());
+    Assert.assertNull(cache.get("key2", 1L));
+    Assert.assertEquals("v1", cache.get("key1", 1L));
+    Assert.assertEquals("v3", cache.get("key3", 1L));
+
+    cache.clear();
+    Assert.assertEquals(0, cache.getSize());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testIllegalSize() {
+    new VersionedCache<String, String>(0);
+  }
+
+}
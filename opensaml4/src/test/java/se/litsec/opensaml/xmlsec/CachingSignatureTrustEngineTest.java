@@ -0,0 +1,241 @@
+/*
+ * Copyright 2016-2021 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.opensaml.xmlsec;
+
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.opensaml.core.criterion.EntityIdCriterion;
+import org.opensaml.saml.common.xml.SAMLConstants;
+import org.opensaml.saml.criterion.RoleDescriptorCriterion;
+import org.opensaml.saml.saml2.core.Response;
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml.saml2.metadata.IDPSSODescriptor;
+import org.opensaml.saml.saml2.metadata.RoleDescriptor;
+import org.opensaml.saml.saml2.metadata.SPSSODescriptor;
+import org.opensaml.saml.security.impl.MetadataCredentialResolver;
+import org.opensaml.security.credential.Credential;
+import org.opensaml.security.credential.UsageType;
+import org.opensaml.security.criteria.UsageCriterion;
+import org.opensaml.xmlsec.config.impl.DefaultSecurityConfigurationBootstrap;
+import org.springframework.core.io.ClassPathResource;
+import org.w3c.dom.Attr;
+
+import net.shibboleth.utilities.java.support.resolver.CriteriaSet;
+import net.shibboleth.utilities.java.support.resolver.ResolverException;
+import se.litsec.opensaml.OpenSAMLTestBase;
+import se.litsec.opensaml.saml2.metadata.build.IdpEntityDescriptorBuilder;
+import se.litsec.opensaml.saml2.metadata.build.KeyDescriptorBuilder;
+import se.litsec.opensaml.saml2.metadata.build.SpEntityDescriptorBuilder;
+import se.litsec.opensaml.utils.ObjectUtils;
+
+/**
+ * Test cases for {@code CachingSignatureTrustEngine}.
+ * 
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+public class CachingSignatureTrustEngineTest extends OpenSAMLTestBase {
+
+  private static final String ISSUER_ENTITYID = "https://idp.svelegtest.se/idp";
+
+  /**
+   * Tests that the trusted keys are resolved once per metadata version.
+   * 
+   * @throws Exception
+   *           for errors
+   */
+  @Test
+  public void testCache() throws Exception {
+    final CountingCredentialResolver resolver = new CountingCredentialResolver();
+    final InMemoryTrustedKeyCache cache = new InMemoryTrustedKeyCache();
+    final CachingSignatureTrustEngine engine = new CachingSignatureTrustEngine(resolver,
+      DefaultSecurityConfigurationBootstrap.buildBasicInlineKeyInfoCredentialResolver(), cache);
+
+    final IDPSSODescriptor descriptor = createMetadata("/signed/signer.crt");
+
+    Assert.assertTrue(engine.validate(loadResponse("/signed/signed-response.xml").getSignature(), criteria(descriptor)));
+    Assert.assertTrue(engine.validate(loadResponse("/signed/signed-response.xml").getSignature(), criteria(descriptor)));
+    Assert.assertFalse(engine.validate(loadResponse("/signed/signed-baddigest-response.xml").getSignature(), criteria(descriptor)));
+    Assert.assertEquals(1, resolver.count.get());
+    Assert.assertEquals(1, cache.size());
+
+    // Refreshed metadata - the keys should be resolved again
+    final IDPSSODescriptor descriptor2 = createMetadata("/credentials/other.crt");
+    Assert.assertFalse(engine.validate(loadResponse("/signed/signed-response.xml").getSignature(), criteria(descriptor2)));
+    Assert.assertEquals(2, resolver.count.get());
+    Assert.assertEquals(1, cache.size());
+
+    final IDPSSODescriptor descriptor3 = createMetadata("/signed/signer.crt");
+    Assert.assertTrue(engine.validate(loadResponse("/signed/signed-response.xml").getSignature(), criteria(descriptor3)));
+    Assert.assertEquals(3, resolver.count.get());
+  }
+
+  /**
+   * Tests that metadata that has not been published by a provider is not cached.
+   * 
+   * @throws Exception
+   *           for errors
+   */
+  @Test
+  public void testUnpublishedMetadata() throws Exception {
+    final CountingCredentialResolver resolver = new CountingCredentialResolver();
+    final InMemoryTrustedKeyCache cache = new InMemoryTrustedKeyCache();
+    final CachingSignatureTrustEngine engine = new CachingSignatureTrustEngine(resolver,
+      DefaultSecurityConfigurationBootstrap.buildBasicInlineKeyInfoCredentialResolver(), cache);
+
+    final IDPSSODescriptor descriptor = createEntityDescriptor("/signed/signer.crt").getIDPSSODescriptor(SAMLConstants.SAML20P_NS);
+    Assert.assertTrue(engine.validate(loadResponse("/signed/signed-response.xml").getSignature(), criteria(descriptor)));
+    Assert.assertTrue(engine.validate(loadResponse("/signed/signed-response.xml").getSignature(), criteria(descriptor)));
+    Assert.assertEquals(2, resolver.count.get());
+    Assert.assertEquals(0, cache.size());
+  }
+
+  /**
+   * Tests that the keys of one role are not trusted for another role of the same entity, even if the first role's
+   * keys already have been cached.
+   * 
+   * @throws Exception
+   *           for errors
+   */
+  @Test
+  public void testDualRoleEntity() throws Exception {
+    final CountingCredentialResolver resolver = new CountingCredentialResolver();
+    final InMemoryTrustedKeyCache cache = new InMemoryTrustedKeyCache();
+    final CachingSignatureTrustEngine engine = new CachingSignatureTrustEngine(resolver,
+      DefaultSecurityConfigurationBootstrap.buildBasicInlineKeyInfoCredentialResolver(), cache);
+
+    // An entity acting both as an IdP (signing with signer.crt) and as an SP (signing with other.crt)
+    final EntityDescriptor entityDescriptor = createEntityDescriptor("/signed/signer.crt");
+    final EntityDescriptor spEntityDescriptor = SpEntityDescriptorBuilder.builder()
+      .entityID(ISSUER_ENTITYID)
+      .keyDescriptors(KeyDescriptorBuilder.builder()
+        .use(UsageType.SIGNING)
+        .certificate(new ClassPathResource("/credentials/other.crt").getInputStream())
+        .build())
+      .build();
+    final SPSSODescriptor spDescriptor = spEntityDescriptor.getSPSSODescriptor(SAMLConstants.SAML20P_NS);
+    spEntityDescriptor.getRoleDescriptors().remove(spDescriptor);
+    entityDescriptor.getRoleDescriptors().add(spDescriptor);
+
+    final EntityDescriptor published = publish(entityDescriptor);
+    final IDPSSODescriptor idp = published.getIDPSSODescriptor(SAMLConstants.SAML20P_NS);
+    final SPSSODescriptor sp = published.getSPSSODescriptor(SAMLConstants.SAML20P_NS);
+
+    Assert.assertTrue(engine.validate(loadResponse("/signed/signed-response.xml").getSignature(), criteria(idp)));
+    Assert.assertEquals(1, cache.size());
+
+    // The response is signed with the IdP key, which is not trusted for the SP role
+    Assert.assertFalse(engine.validate(loadResponse("/signed/signed-response.xml").getSignature(), criteria(sp)));
+    Assert.assertEquals(2, resolver.count.get());
+    Assert.assertEquals(2, cache.size());
+
+    Assert.assertTrue(engine.validate(loadResponse("/signed/signed-response.xml").getSignature(), criteria(idp)));
+    Assert.assertFalse(engine.validate(loadResponse("/signed/signed-response.xml").getSignature(), criteria(sp)));
+    Assert.assertEquals(2, resolver.count.get());
+  }
+
+  /**
+   * Tests that the size of the cache is bounded.
+   */
+  @Test
+  public void testMaxSize() {
+    final InMemoryTrustedKeyCache cache = new InMemoryTrustedKeyCache(2);
+    cache.put("https://sp1.example.com", IDPSSODescriptor.DEFAULT_ELEMENT_NAME, 1L, UsageType.SIGNING, Collections.emptyList());
+    cache.put("https://sp2.example.com", IDPSSODescriptor.DEFAULT_ELEMENT_NAME, 1L, UsageType.SIGNING, Collections.emptyList());
+    cache.put("https://sp3.example.com", IDPSSODescriptor.DEFAULT_ELEMENT_NAME, 1L, UsageType.SIGNING, Collections.emptyList());
+    Assert.assertEquals(2, cache.size());
+    Assert.assertNotNull(cache.get("https://sp3.example.com", IDPSSODescriptor.DEFAULT_ELEMENT_NAME, 1L, UsageType.SIGNING));
+    Assert.assertNull(cache.get("https://sp3.example.com", IDPSSODescriptor.DEFAULT_ELEMENT_NAME, 2L, UsageType.SIGNING));
+    Assert.assertNull(cache.get("https://sp3.example.com", SPSSODescriptor.DEFAULT_ELEMENT_NAME, 1L, UsageType.SIGNING));
+  }
+
+  /**
+   * Tests that the engine works as the explicit key trust engine if there is no role descriptor criterion.
+   * 
+   * @throws Exception
+   *           for errors
+   */
+  @Test
+  public void testNoRoleDescriptor() throws Exception {
+    final CountingCredentialResolver resolver = new CountingCredentialResolver();
+    final InMemoryTrustedKeyCache cache = new InMemoryTrustedKeyCache();
+    final CachingSignatureTrustEngine engine = new CachingSignatureTrustEngine(resolver,
+      DefaultSecurityConfigurationBootstrap.buildBasicInlineKeyInfoCredentialResolver(), cache);
+
+    final IDPSSODescriptor descriptor = createMetadata("/signed/signer.crt");
+    final CriteriaSet criteria = new CriteriaSet(new EntityIdCriterion(ISSUER_ENTITYID), new UsageCriterion(UsageType.SIGNING));
+    resolver.descriptor = descriptor;
+
+    Assert.assertTrue(engine.validate(loadResponse("/signed/signed-response.xml").getSignature(), criteria));
+    Assert.assertEquals(0, cache.size());
+  }
+
+  private static CriteriaSet criteria(final RoleDescriptor descriptor) {
+    return new CriteriaSet(new RoleDescriptorCriterion(descriptor), new UsageCriterion(UsageType.SIGNING),
+      new EntityIdCriterion(ISSUER_ENTITYID));
+  }
+
+  private static IDPSSODescriptor createMetadata(final String certificate) throws Exception {
+    return publish(createEntityDescriptor(certificate)).getIDPSSODescriptor(SAMLConstants.SAML20P_NS);
+  }
+
+  private static EntityDescriptor createEntityDescriptor(final String certificate) throws Exception {
+    return IdpEntityDescriptorBuilder.builder()
+      .entityID(ISSUER_ENTITYID)
+      .keyDescriptors(KeyDescriptorBuilder.builder()
+        .use(UsageType.SIGNING)
+        .certificate(new ClassPathResource(certificate).getInputStream())
+        .build())
+      .build();
+  }
+
+  private static Response loadResponse(final String resource) throws Exception {
+    final Response response = ObjectUtils.unmarshall(new ClassPathResource(resource).getInputStream(), Response.class);
+    final Attr idAttr = response.getDOM().getAttributeNode("ID");
+    idAttr.getOwnerElement().setIdAttributeNode(idAttr, true);
+    return response;
+  }
+
+  /**
+   * Metadata credential resolver that counts the number of resolve calls.
+   */
+  private static class CountingCredentialResolver extends MetadataCredentialResolver {
+
+    private final AtomicInteger count = new AtomicInteger();
+
+    private IDPSSODescriptor descriptor;
+
+    public CountingCredentialResolver() throws Exception {
+      this.setKeyInfoCredentialResolver(DefaultSecurityConfigurationBootstrap.buildBasicInlineKeyInfoCredentialResolver());
+      this.initialize();
+    }
+
+    @Override
+    protected Iterable<Credential> resolveFromSource(final CriteriaSet criteriaSet) throws ResolverException {
+      this.count.incrementAndGet();
+      if (!criteriaSet.contains(RoleDescriptorCriterion.class) && this.descriptor != null) {
+        final CriteriaSet c = new CriteriaSet();
+        c.addAll(criteriaSet);
+        c.add(new RoleDescriptorCriterion(this.descriptor));
+        return super.resolveFromSource(c);
+      }
+      return super.resolveFromSource(criteriaSet);
+    }
+  }
+
+}
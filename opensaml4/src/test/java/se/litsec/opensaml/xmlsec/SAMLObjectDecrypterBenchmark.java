@@ -0,0 +1,120 @@
+/*
+ * Copyright 2016-2021 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.opensaml.xmlsec;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.opensaml.saml.saml2.core.Assertion;
+import org.opensaml.saml.saml2.core.EncryptedAssertion;
+import org.opensaml.saml.saml2.core.Response;
+import org.springframework.core.io.ClassPathResource;
+
+import se.litsec.opensaml.OpenSAMLTestBase;
+import se.litsec.opensaml.utils.ObjectUtils;
+
+/**
+ * Multi-threaded benchmark for {@link SAMLObjectDecrypter} using the {@code encrypted-*.xml} test resources.
+ * <p>
+ * The decrypter is shared by all threads, and each thread decrypts its own copy of the encrypted assertion. Run
+ * {@link #main(String[])} (with the test classpath) to execute the benchmark with 1 and 8 threads.
+ * </p>
+ *
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SAMLObjectDecrypterBenchmark {
+
+  /**
+   * The decrypter shared by all threads.
+   */
+  @State(Scope.Benchmark)
+  public static class DecrypterState {
+
+    @Param({ "0", "100" })
+    private int keyCacheSize;
+
+    private SAMLObjectDecrypter decrypter;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+      OpenSAMLTestBase.initializeOpenSAML();
+      this.decrypter = new SAMLObjectDecrypter(OpenSAMLTestBase.loadKeyStoreCredential(
+        new ClassPathResource("sp-enc-cert.jks").getInputStream(), "secret", "eid", "secret"));
+      this.decrypter.setKeyCacheSize(this.keyCacheSize);
+    }
+  }
+
+  /**
+   * The encrypted assertion of a thread.
+   */
+  @State(Scope.Thread)
+  public static class MessageState {
+
+    @Param({ "encrypted-20180428.xml", "encrypted-basic.xml" })
+    private String resource;
+
+    private EncryptedAssertion encryptedAssertion;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+      OpenSAMLTestBase.initializeOpenSAML();
+      final Response response = ObjectUtils.unmarshall(new ClassPathResource(this.resource).getInputStream(), Response.class);
+      this.encryptedAssertion = response.getEncryptedAssertions().get(0);
+    }
+  }
+
+  @Benchmark
+  public Assertion decrypt(final DecrypterState decrypterState, final MessageState messageState) throws Exception {
+    return decrypterState.decrypter.decrypt(messageState.encryptedAssertion, Assertion.class);
+  }
+
+  /**
+   * Runs the benchmark.
+   *
+   * @param args
+   *          not used
+   * @throws RunnerException
+   *           for benchmark errors
+   */
+  public static void main(final String[] args) throws RunnerException {
+    for (final int threads : new int[] { 1, 8 }) {
+      new Runner(new OptionsBuilder()
+        .include(SAMLObjectDecrypterBenchmark.class.getName())
+        .threads(threads)
+        .build()).run();
+    }
+  }
+
+}
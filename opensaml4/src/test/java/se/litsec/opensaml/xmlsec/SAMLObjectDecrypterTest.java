@@ -15,6 +15,12 @@
  */
 package se.litsec.opensaml.xmlsec;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 import org.junit.Assert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -28,6 +34,7 @@ import org.springframework.core.io.Resource;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 
+import se.litsec.opensaml.OpenSAMLTestBase;
 import se.litsec.opensaml.utils.ObjectUtils;
 
 /**
@@ -71,4 +78,42 @@ public class SAMLObjectDecrypterTest {
     //System.out.println(SerializeSupport.prettyPrintXML(assertion.getDOM()));
   }
   
+  @Test
+  public void testConcurrentDecryptionWithKeyCache() throws Exception {
+    final SAMLObjectDecrypter cachingDecrypter = new SAMLObjectDecrypter(OpenSAMLTestBase.loadKeyStoreCredential(
+      new ClassPathResource("sp-enc-cert.jks").getInputStream(), "secret", "eid", "secret"));
+    cachingDecrypter.setKeyCacheSize(10);
+
+    final ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      final List<Future<Assertion>> results = new ArrayList<>();
+      for (int i = 0; i < 20; i++) {
+        final String resource = i % 2 == 0 ? "encrypted-20180428.xml" : "encrypted-basic.xml";
+        results.add(executor.submit(() -> {
+          Response response = ObjectUtils.unmarshall(new ClassPathResource(resource).getInputStream(), Response.class);
+          return cachingDecrypter.decrypt(response.getEncryptedAssertions().get(0), Assertion.class);
+        }));
+      }
+      for (Future<Assertion> r : results) {
+        Assert.assertNotNull(r.get());
+      }
+      // There are two different encrypted keys, and each thread decrypts a key at most once before it is cached.
+      Assert.assertEquals(20, cachingDecrypter.getKeyCacheHits() + cachingDecrypter.getKeyCacheMisses());
+      Assert.assertTrue(cachingDecrypter.getKeyCacheMisses() >= 2);
+      Assert.assertTrue(cachingDecrypter.getKeyCacheHits() >= 12);
+    }
+    finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testKeyCacheSizeAfterInitialization() throws Exception {
+    final SAMLObjectDecrypter decrypter = new SAMLObjectDecrypter(OpenSAMLTestBase.loadKeyStoreCredential(
+      new ClassPathResource("sp-enc-cert.jks").getInputStream(), "secret", "eid", "secret"));
+    final Response response = ObjectUtils.unmarshall(new ClassPathResource("encrypted-basic.xml").getInputStream(), Response.class);
+    decrypter.decrypt(response.getEncryptedAssertions().get(0), Assertion.class);
+    decrypter.setKeyCacheSize(10);
+  }
+
 }
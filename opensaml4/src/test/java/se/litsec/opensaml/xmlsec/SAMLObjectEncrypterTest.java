@@ -16,8 +16,10 @@
 package se.litsec.opensaml.xmlsec;
 
 import java.security.KeyStore;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
 import java.util.stream.Collectors;
 
 import org.junit.Assert;
@@ -265,6 +267,88 @@ public class SAMLObjectEncrypterTest extends OpenSAMLTestBase {
     Assert.assertEquals(CONTENTS, decryptedMsg);
   }  
   
+  //
+  // Tests that the encryption parameters are cached and that the cache is invalidated when the metadata changes.
+  //
+  @Test
+  public void testParametersCache() throws Exception {
+
+    XSString msg = (XSString) XMLObjectSupport.buildXMLObject(XSString.TYPE_NAME);
+    msg.setValue(CONTENTS);
+
+    EntityDescriptor ed = this.createMetadataProvider(this.createMetadata(KeyDescriptorBuilder.builder()
+      .use(UsageType.ENCRYPTION)
+      .certificate(new ClassPathResource("credentials/litsec_auth.crt").getInputStream())
+      .build())).getEntityDescriptor(ENTITY_ID);
+
+    SAMLObjectEncrypter encrypter = new SAMLObjectEncrypter();
+    for (int i = 0; i < 3; i++) {
+      EncryptedData encryptedData = encrypter.encrypt(msg, new SAMLObjectEncrypter.Peer(ed));
+      Assert.assertEquals(CONTENTS, this.decrypt(encryptedData, new ClassPathResource("credentials/litsec_auth.jks"), "secret",
+        "litsec_ab"));
+    }
+    Assert.assertEquals(1, encrypter.getParametersCacheMisses());
+    Assert.assertEquals(2, encrypter.getParametersCacheHits());
+
+    // New metadata for the same peer (as after a refresh) - the cached parameters should not be used.
+    EntityDescriptor ed2 = this.createMetadataProvider(this.createMetadata(KeyDescriptorBuilder.builder()
+      .use(UsageType.ENCRYPTION)
+      .certificate(new ClassPathResource("credentials/other.crt").getInputStream())
+      .build())).getEntityDescriptor(ENTITY_ID);
+    EncryptedData encryptedData = encrypter.encrypt(msg, new SAMLObjectEncrypter.Peer(ed2));
+    Assert.assertEquals(2, encrypter.getParametersCacheMisses());
+    Assert.assertEquals(CONTENTS, this.decrypt(encryptedData, new ClassPathResource("credentials/other.jks"), "secret", "Test"));
+
+    // Metadata that has not been published by a provider is not cached.
+    EntityDescriptor unpublished = this.createMetadata(KeyDescriptorBuilder.builder()
+      .use(UsageType.ENCRYPTION)
+      .certificate(new ClassPathResource("credentials/litsec_auth.crt").getInputStream())
+      .build());
+    encrypter.encrypt(msg, new SAMLObjectEncrypter.Peer(unpublished));
+    encrypter.encrypt(msg, new SAMLObjectEncrypter.Peer(unpublished));
+    Assert.assertEquals(2, encrypter.getParametersCacheMisses());
+    Assert.assertEquals(2, encrypter.getParametersCacheHits());
+
+    // Turn off caching.
+    encrypter.setParametersCacheSize(0);
+    encrypter.encrypt(msg, new SAMLObjectEncrypter.Peer(ed2));
+    Assert.assertEquals(2, encrypter.getParametersCacheMisses());
+    Assert.assertEquals(2, encrypter.getParametersCacheHits());
+  }
+
+  //
+  // Tests that several objects may be encrypted using one data encryption key.
+  //
+  @Test
+  public void testEncryptSeveral() throws Exception {
+
+    List<XSString> msgs = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      XSString msg = (XSString) XMLObjectSupport.buildXMLObject(XSString.TYPE_NAME);
+      msg.setValue(CONTENTS + i);
+      msgs.add(msg);
+    }
+
+    EntityDescriptor ed = this.createMetadata(KeyDescriptorBuilder.builder()
+      .use(UsageType.ENCRYPTION)
+      .certificate(new ClassPathResource("credentials/litsec_auth.crt").getInputStream())
+      .build());
+    MetadataProvider provider = this.createMetadataProvider(ed);
+
+    SAMLObjectEncrypter encrypter = new SAMLObjectEncrypter(provider);
+    List<EncryptedData> encryptedData = encrypter.encrypt(msgs, new SAMLObjectEncrypter.Peer(ENTITY_ID));
+    Assert.assertEquals(3, encryptedData.size());
+
+    // All elements should carry the same wrapped key.
+    String cipherValue = encryptedData.get(0).getKeyInfo().getEncryptedKeys().get(0).getCipherData().getCipherValue().getValue();
+    for (int i = 0; i < 3; i++) {
+      Assert.assertEquals(cipherValue,
+        encryptedData.get(i).getKeyInfo().getEncryptedKeys().get(0).getCipherData().getCipherValue().getValue());
+      Assert.assertEquals(CONTENTS + i,
+        this.decrypt(encryptedData.get(i), new ClassPathResource("credentials/litsec_auth.jks"), "secret", "litsec_ab"));
+    }
+  }
+
   private String decrypt(EncryptedData encrypted, Resource jks, String password, String alias) throws Exception {
     KeyStore keyStore = KeyStoreUtils.loadKeyStore(jks.getInputStream(), password, "JKS");
     Credential cred = new KeyStoreX509CredentialAdapter(keyStore, alias, password.toCharArray());
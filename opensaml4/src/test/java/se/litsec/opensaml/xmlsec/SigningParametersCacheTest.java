@@ -0,0 +1,102 @@
+/*
+ * Copyright 2016-2021 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.opensaml.xmlsec;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+import org.opensaml.security.x509.X509Credential;
+import org.opensaml.xmlsec.SignatureSigningParameters;
+import org.opensaml.xmlsec.signature.support.SignatureConstants;
+import org.springframework.core.io.ClassPathResource;
+
+import se.litsec.opensaml.OpenSAMLTestBase;
+import se.litsec.opensaml.saml2.metadata.build.IdpEntityDescriptorBuilder;
+import se.litsec.opensaml.saml2.metadata.build.SigningMethodBuilder;
+
+/**
+ * Test cases for {@code SigningParametersCache}.
+ * 
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+public class SigningParametersCacheTest extends OpenSAMLTestBase {
+
+  private static final String IDP_ENTITY_ID = "http://www.dummy.com/idp";
+
+  @Test
+  public void testCache() throws Exception {
+    final X509Credential rsaCredential = OpenSAMLTestBase.loadKeyStoreCredential(
+      new ClassPathResource("rsakey.jks").getInputStream(), "Test1234", "key1", "Test1234");
+    final SigningParametersCache cache = new SigningParametersCache();
+
+    final EntityDescriptor metadata = publish(createMetadata(SignatureConstants.ALGO_ID_SIGNATURE_RSA_SHA512));
+    final SignatureSigningParameters p1 = cache.getSigningParameters(rsaCredential, null, metadata);
+    final SignatureSigningParameters p2 = cache.getSigningParameters(rsaCredential, null, metadata);
+    Assert.assertSame(p1, p2);
+    Assert.assertEquals(1, cache.getHits());
+    Assert.assertEquals(SignatureConstants.ALGO_ID_SIGNATURE_RSA_SHA512, p2.getSignatureAlgorithm());
+
+    // Refreshed metadata for the same IdP - the new preferences should be used.
+    final EntityDescriptor refreshedMetadata = publish(createMetadata(SignatureConstants.ALGO_ID_SIGNATURE_RSA_SHA384));
+    final SignatureSigningParameters p3 = cache.getSigningParameters(rsaCredential, null, refreshedMetadata);
+    Assert.assertEquals(SignatureConstants.ALGO_ID_SIGNATURE_RSA_SHA384, p3.getSignatureAlgorithm());
+    Assert.assertEquals(2, cache.getMisses());
+    Assert.assertEquals(1, cache.getSize());
+
+    // No recipient metadata
+    cache.getSigningParameters(rsaCredential, null, null);
+    cache.getSigningParameters(rsaCredential, null, null);
+    Assert.assertEquals(2, cache.getHits());
+    Assert.assertEquals(2, cache.getSize());
+  }
+
+  @Test
+  public void testUnpublishedMetadata() throws Exception {
+    final X509Credential rsaCredential = OpenSAMLTestBase.loadKeyStoreCredential(
+      new ClassPathResource("rsakey.jks").getInputStream(), "Test1234", "key1", "Test1234");
+    final SigningParametersCache cache = new SigningParametersCache();
+
+    final EntityDescriptor metadata = createMetadata(SignatureConstants.ALGO_ID_SIGNATURE_RSA_SHA512);
+    cache.getSigningParameters(rsaCredential, null, metadata);
+
+    // The metadata is changed by its owner - it is not cached, so the change is seen.
+    metadata.getRoleDescriptors().get(0).getExtensions().getUnknownXMLObjects().clear();
+    final SignatureSigningParameters p = cache.getSigningParameters(rsaCredential, null, metadata);
+    Assert.assertNotEquals(SignatureConstants.ALGO_ID_SIGNATURE_RSA_SHA512, p.getSignatureAlgorithm());
+    Assert.assertEquals(0, cache.getHits());
+    Assert.assertEquals(0, cache.getSize());
+  }
+
+  @Test
+  public void testMaxSize() throws Exception {
+    final X509Credential rsaCredential = OpenSAMLTestBase.loadKeyStoreCredential(
+      new ClassPathResource("rsakey.jks").getInputStream(), "Test1234", "key1", "Test1234");
+    final SigningParametersCache cache = new SigningParametersCache(1);
+
+    cache.getSigningParameters(rsaCredential, null, null);
+    cache.getSigningParameters(rsaCredential, null, publish(createMetadata(SignatureConstants.ALGO_ID_SIGNATURE_RSA_SHA512)));
+    Assert.assertEquals(1, cache.getSize());
+    Assert.assertEquals(1, cache.getEvictions());
+  }
+
+  private static EntityDescriptor createMetadata(final String signingAlgorithm) {
+    return IdpEntityDescriptorBuilder.builder()
+      .entityID(IDP_ENTITY_ID)
+      .signingMethods(true, SigningMethodBuilder.builder().algorithm(signingAlgorithm).build())
+      .build();
+  }
+
+}